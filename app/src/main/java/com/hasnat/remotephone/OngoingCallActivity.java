@@ -22,6 +22,7 @@ public class OngoingCallActivity extends AppCompatActivity {
     public static final String EXTRA_PHONE_NUMBER = "com.hasnat.remotephone.PHONE_NUMBER";
 
     private TextView callInfoTextView;
+    private TextView audioStatsTextView;
     private Button muteButton, holdButton, speakerButton, endButton;
     private boolean isMuted = false;
     private boolean isOnHold = false;
@@ -42,6 +43,8 @@ public class OngoingCallActivity extends AppCompatActivity {
                         finish();
                     }
                 }
+            } else if (NetworkClientService.ACTION_AUDIO_STATS.equals(action)) {
+                audioStatsTextView.setText(intent.getStringExtra(NetworkClientService.EXTRA_AUDIO_STATS));
             } else if (NetworkClientService.ACTION_HOST_CALL_STARTED.equals(action)) {
                 Log.d(TAG, "Host call started event received. Sending START_AUDIO_BRIDGE command.");
                 sendCommand("START_AUDIO_BRIDGE");
@@ -55,6 +58,7 @@ public class OngoingCallActivity extends AppCompatActivity {
         setContentView(R.layout.activity_ongoing_call);
 
         callInfoTextView = findViewById(R.id.callInfoTextView);
+        audioStatsTextView = findViewById(R.id.audioStatsTextView);
         muteButton = findViewById(R.id.muteButton);
         holdButton = findViewById(R.id.holdButton);
         speakerButton = findViewById(R.id.speakerButton);
@@ -93,8 +97,9 @@ public class OngoingCallActivity extends AppCompatActivity {
             finish();
         });
 
-        // Register the BroadcastReceiver for both client status updates and the new ACTION_HOST_CALL_STARTED event.
+        // Register the BroadcastReceiver for client status updates, audio statistics and the new ACTION_HOST_CALL_STARTED event.
         IntentFilter filter = new IntentFilter(NetworkClientService.ACTION_CLIENT_STATUS);
+        filter.addAction(NetworkClientService.ACTION_AUDIO_STATS);
         filter.addAction(NetworkClientService.ACTION_HOST_CALL_STARTED);
         LocalBroadcastManager.getInstance(this).registerReceiver(clientServiceReceiver, filter);
     }
@@ -11,10 +11,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioRecord;
-import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.IBinder;
@@ -30,18 +26,50 @@ import com.hasnat.remotephone.MainActivity;
 import com.hasnat.remotephone.OngoingCallActivity;
 import com.hasnat.remotephone.R;
 import com.hasnat.remotephone.IncomingCallActivity;
+import com.hasnat.remotephone.service.audio.AudioBufferPool;
+import com.hasnat.remotephone.service.audio.AudioCallStats;
+import com.hasnat.remotephone.service.audio.AudioCodec;
+import com.hasnat.remotephone.service.audio.AudioCodecs;
+import com.hasnat.remotephone.service.audio.AudioFrame;
+import com.hasnat.remotephone.service.audio.AudioPlayer;
+import com.hasnat.remotephone.service.audio.AudioPlayout;
+import com.hasnat.remotephone.service.audio.AudioRateController;
+import com.hasnat.remotephone.service.audio.AudioReceiver;
+import com.hasnat.remotephone.service.audio.AudioSender;
+import com.hasnat.remotephone.service.audio.AudioSessionParams;
+import com.hasnat.remotephone.service.audio.AudioSink;
+import com.hasnat.remotephone.service.audio.AudioSource;
+import com.hasnat.remotephone.service.audio.AudioStatsReport;
+import com.hasnat.remotephone.service.audio.AudioTransport;
+import com.hasnat.remotephone.service.audio.DatagramAudioTransport;
+import com.hasnat.remotephone.service.audio.FecAudioTransport;
+import com.hasnat.remotephone.service.audio.JitterBuffer;
+import com.hasnat.remotephone.service.audio.ResumableAudioTransport;
+import com.hasnat.remotephone.service.audio.StreamAudioTransport;
+import com.hasnat.remotephone.service.audio.device.AudioRecordSource;
+import com.hasnat.remotephone.service.audio.device.AudioTrackSink;
+import com.hasnat.remotephone.service.network.ControlMessage;
+import com.hasnat.remotephone.service.network.MultiplexedConnection;
+import com.hasnat.remotephone.service.network.SocketConnector;
+import com.hasnat.remotephone.utils.AudioDeviceUtils;
 import com.hasnat.remotephone.utils.WifiUtils;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service to connect to a Remote Phone Host and manage call signaling and audio streaming.
@@ -65,6 +93,33 @@ public class NetworkClientService extends Service {
     public static final String EXTRA_HOST_IP = "host_ip";
     public static final String ACTION_HOST_CONNECTION_UPDATE = "com.hasnat.remotephone.ACTION_HOST_CONNECTION_UPDATE";
     public static final String EXTRA_CONNECTED_HOST_IP = "connected_host_ip";
+    // Live audio latency and quality of both directions, as text for the call screen.
+    public static final String ACTION_AUDIO_STATS = "com.hasnat.remotephone.ACTION_AUDIO_STATS";
+    public static final String EXTRA_AUDIO_STATS = "audio_stats";
+    // "tcp" (default) or "udp"; stored in the same preferences as the host IP.
+    public static final String PREF_AUDIO_TRANSPORT = "audio_transport";
+    // Codec name offered first, e.g. "adpcm"; unset keeps the default order (G.711 first).
+    public static final String PREF_AUDIO_CODEC = "audio_codec";
+    // Frame duration in milliseconds proposed to the host: 10, 20 (default) or 40.
+    public static final String PREF_AUDIO_FRAME_MS = "audio_frame_ms";
+    // Whether to ask for discontinuous transmission (silence suppression); on by default.
+    public static final String PREF_AUDIO_DTX = "audio_dtx";
+    // Wire sample rate offered first: 8000, 16000 (default) or 48000 Hz.
+    public static final String PREF_AUDIO_SAMPLE_RATE = "audio_sample_rate";
+    // Whether to ask for parity frames over UDP; on by default, they are only sent while frames are being lost.
+    public static final String PREF_AUDIO_FEC = "audio_fec";
+    // Whether to ask for streams that step down to cheaper encodings while the link is congested; on by default.
+    public static final String PREF_AUDIO_ADAPTIVE = "audio_adaptive";
+    // Whether to set call audio up while a call rings or is dialled, so it flows as soon as the call is answered; on by default.
+    public static final String PREF_AUDIO_PREWARM = "audio_prewarm";
+    // Whether to carry call audio on the control connection rather than a second one, if the host can; on by default.
+    public static final String PREF_CONNECTION_MULTIPLEX = "connection_multiplex";
+    // Capture buffer in frames; only absorbs scheduling hiccups, the frame size sets the latency.
+    private static final int CAPTURE_BUFFER_FRAMES = 4;
+    // How long an older host, which ignores the request, keeps us from switching a new connection to multiplexing.
+    private static final int MULTIPLEX_UPGRADE_TIMEOUT_MS = 1000;
+    // How often audio statistics are sent to the host and shown while a call's audio runs.
+    private static final long AUDIO_STATS_INTERVAL_MS = 2000;
     public static String lastDialedNumber;
     public static String lastDialedName;
     public static String lastIncomingNumber;
@@ -73,23 +128,73 @@ public class NetworkClientService extends Service {
     private ExecutorService clientExecutor;
     private Socket socket;
     private PrintWriter writer;
+    private volatile MultiplexedConnection multiplexed;
     private BufferedReader reader;
     private Thread clientThread;
     private String serverIpAddress;
     private volatile boolean isStreaming = false;
+    // Set from the moment AUDIO_READY is being prepared until the bridge stops.
+    private volatile boolean audioRequested;
+    private volatile boolean callAnswered;
+    private volatile long callAnsweredMicros;
+    // Cleared for the connection once the host turns out to start its audio at once.
+    private volatile boolean hostPrewarms = true;
+    private volatile boolean microphoneHeld;
+    // Cleared for the connection once the host turns out not to take a stream it did not answer yet.
+    private volatile boolean optimisticAudio = true;
+    // What the bridge started with before the host answered; checked against START_AUDIO_BRIDGE.
+    private volatile AudioSessionParams optimisticParams;
+    private final SecureRandom sessionRandom = new SecureRandom();
+    private volatile AudioSender clientSender;
 
     // Static variables to hold the current call information, for both incoming and outgoing
     public static String currentCallNumber;
     public static String currentCallName;
 
     private static final int AUDIO_SERVER_PORT = 8081;
-    private static final int AUDIO_CONNECTION_RETRY_COUNT = 5;
-    private static final long AUDIO_CONNECTION_RETRY_DELAY_MS = 1000;
+    private static final int AUDIO_CONNECTION_RETRY_COUNT = 8;
+    // Each connection attempt gives up after this, rather than after the system's tens of seconds.
+    private static final int CONTROL_CONNECT_TIMEOUT_MS = 3000;
+    private static final int AUDIO_CONNECT_TIMEOUT_MS = 1000;
+    // Retries start this soon and back off exponentially, up to the maximum delays.
+    private static final long CONNECT_RETRY_INITIAL_DELAY_MS = 25;
+    private static final long CONTROL_RETRY_MAX_DELAY_MS = 5000;
+    private static final long AUDIO_RETRY_MAX_DELAY_MS = 500;
+    // A control connection that stayed up this long was a good one, so the next reconnect starts quickly again.
+    private static final long CONTROL_STABLE_CONNECTION_MS = 5000;
+    // Reattaching to a running call has to be quick; the reconnector retries on its own.
+    private static final int AUDIO_RECONNECT_TIMEOUT_MS = 300;
+    // Lets the audio session notice a TCP connection that went quiet.
+    private static final int AUDIO_READ_TIMEOUT_MS = 200;
+    // Over UDP, session probes let the host follow us to a new address.
+    private static final long SESSION_PROBE_INTERVAL_MS = 500;
+    // How long a bridge started ahead of the host's answer waits for it before starting over with the plain handshake.
+    private static final long AUDIO_ANSWER_TIMEOUT_MS = 3000;
+    // How long a new bridge waits for the previous one's threads to let go of the audio devices.
+    private static final long AUDIO_STOP_TIMEOUT_MS = 500;
 
     private Socket audioSocket;
+    private final SocketConnector audioConnector = new SocketConnector(AUDIO_CONNECT_TIMEOUT_MS,
+            CONNECT_RETRY_INITIAL_DELAY_MS, AUDIO_RETRY_MAX_DELAY_MS);
+    private final SocketConnector audioReconnector = new SocketConnector(AUDIO_RECONNECT_TIMEOUT_MS,
+            CONNECT_RETRY_INITIAL_DELAY_MS, AUDIO_RETRY_MAX_DELAY_MS);
+    private StreamAudioTransport audioStreamTransport;
+    private AudioTransport multiplexedAudio;
+    private DatagramAudioTransport datagramTransport;
+    private volatile AudioTransport audioTransport;
+    private volatile ResumableAudioTransport audioSession;
     private ExecutorService audioStreamingExecutor;
     private Future<?> clientMicStreamFuture;
     private Future<?> hostMicStreamFuture;
+    private Future<?> hostMicReceiveFuture;
+    // Streaming tasks of any bridge that have not returned yet, guarded by this.
+    private int runningAudioTasks;
+    // One capture and one playout buffer, reused for every call.
+    private final AudioBufferPool deviceBuffers = new AudioBufferPool(2, 2 * AudioFrame.MAX_PAYLOAD_SIZE);
+    private AudioReceiver hostAudioReceiver;
+    private volatile AudioCallStats callStats;
+    private volatile AudioRateController rateController;
+    private ScheduledExecutorService statsExecutor;
 
     /**
      * BroadcastReceiver to listen for commands from the UI.
@@ -102,6 +207,9 @@ public class NetworkClientService extends Service {
                 if (command != null) {
                     Log.d(TAG, "Received command from UI: " + command);
                     sendCommand(command);
+                    if (ControlMessage.DIAL.equals(ControlMessage.parse(command).getName())) {
+                        prewarmAudio();
+                    }
                 }
             }
         }
@@ -112,7 +220,11 @@ public class NetworkClientService extends Service {
         super.onCreate();
         createNotificationChannel();
         clientExecutor = Executors.newSingleThreadExecutor();
-        audioStreamingExecutor = Executors.newFixedThreadPool(2);
+        // A bridge started right after another does not queue behind its threads.
+        audioStreamingExecutor = Executors.newCachedThreadPool();
+        statsExecutor = Executors.newSingleThreadScheduledExecutor();
+        statsExecutor.scheduleAtFixedRate(this::reportAudioStats, AUDIO_STATS_INTERVAL_MS, AUDIO_STATS_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
         startForeground(NOTIFICATION_ID, createNotification("Remote Phone Client", "Client service is running."));
         LocalBroadcastManager.getInstance(this).registerReceiver(commandReceiver, new IntentFilter(ACTION_SEND_COMMAND));
     }
@@ -120,10 +232,19 @@ public class NetworkClientService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null && intent.hasExtra(EXTRA_HOST_IP)) {
+            String previousIpAddress = serverIpAddress;
             serverIpAddress = intent.getStringExtra(EXTRA_HOST_IP);
             if (serverIpAddress != null) {
-                if (clientThread == null || !clientThread.isAlive()) {
-                    clientThread = new Thread(new TcpClientRunnable(serverIpAddress));
+                Thread previousThread = null;
+                if (clientThread != null && clientThread.isAlive() && !serverIpAddress.equals(previousIpAddress)) {
+                    // Another host was chosen: stop reconnecting to the old one.
+                    previousThread = clientThread;
+                    previousThread.interrupt();
+                    stopAudioBridge();
+                    closeConnection();
+                }
+                if (clientThread == null || !clientThread.isAlive() || previousThread != null) {
+                    clientThread = new Thread(new TcpClientRunnable(serverIpAddress, previousThread));
                     clientThread.start();
                     updateNotification("Remote Phone Client", "Connecting to " + serverIpAddress);
                     sendClientStatus("Client: Attempting to connect to " + serverIpAddress);
@@ -147,6 +268,9 @@ public class NetworkClientService extends Service {
         if (audioStreamingExecutor != null) {
             audioStreamingExecutor.shutdownNow();
         }
+        if (statsExecutor != null) {
+            statsExecutor.shutdownNow();
+        }
     }
 
     @Nullable
@@ -211,6 +335,45 @@ public class NetworkClientService extends Service {
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
+    /**
+     * Sends the audio statistics of the running call to the host, and shows them on the call screen.
+     */
+    private void reportAudioStats() {
+        AudioCallStats stats = callStats;
+        if (stats != null) {
+            sendCommand(stats.snapshot(System.nanoTime() / 1000).toCommand());
+            sendAudioStats(stats);
+        }
+    }
+
+    /**
+     * Adapts the stream sent to the host, and its parity, to how the host receives it.
+     */
+    private void adaptAudioStream(AudioStatsReport report, AudioCallStats stats) {
+        AudioRateController controller = rateController;
+        if (controller == null) return;
+        if (controller.onReport(report, stats.getLastRoundTripMicros())) {
+            Log.i(TAG, "Client->Host stream adapted: " + controller);
+        }
+        AudioTransport transport = audioTransport;
+        if (transport instanceof FecAudioTransport) {
+            ((FecAudioTransport) transport).reportLoss(controller.getLossFraction());
+        }
+    }
+
+    /**
+     * Sends the audio statistics of both directions via LocalBroadcastManager.
+     */
+    private void sendAudioStats(AudioCallStats stats) {
+        Intent intent = new Intent(ACTION_AUDIO_STATS);
+        intent.putExtra(EXTRA_AUDIO_STATS, describeAudioStats(stats));
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
+
+    private static String describeAudioStats(AudioCallStats stats) {
+        return stats.describe("You->Host", "Host->You", System.nanoTime() / 1000);
+    }
+
     /**
      * Sends a host connection update via LocalBroadcastManager.
      */
@@ -225,76 +388,168 @@ public class NetworkClientService extends Service {
      * @param command The command to send.
      */
     private void sendCommand(String command) {
-        clientExecutor.execute(() -> {
-            if (writer != null && !socket.isClosed() && socket.isConnected()) {
-                writer.println(command);
-                if (writer.checkError()) {
-                    Log.e(TAG, "Error sending command to server.");
-                    sendClientStatus("Client: Error sending command.");
-                }
-            } else {
-                Log.e(TAG, "Client not connected. Cannot send command.");
-                sendClientStatus("Client: Not connected to a server.");
+        clientExecutor.execute(() -> writeCommand(command));
+    }
+
+    /**
+     * Sends a command right away; only on {@link #clientExecutor}.
+     */
+    private void writeCommand(String command) {
+        MultiplexedConnection connection = multiplexed;
+        if (connection != null) {
+            try {
+                connection.sendControl(command);
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending command to server.", e);
+                sendClientStatus("Client: Error sending command.");
             }
-        });
+            return;
+        }
+        if (writer != null && !socket.isClosed() && socket.isConnected()) {
+            writer.println(command);
+            if (writer.checkError()) {
+                Log.e(TAG, "Error sending command to server.");
+                sendClientStatus("Client: Error sending command.");
+            }
+        } else {
+            Log.e(TAG, "Client not connected. Cannot send command.");
+            sendClientStatus("Client: Not connected to a server.");
+        }
     }
 
     /**
-     * Disconnects from the host and cleans up resources.
+     * Disconnects from the host for good and cleans up resources.
      */
     private void disconnect() {
+        if (clientThread != null) {
+            clientThread.interrupt();
+        }
         stopAudioBridge();
+        closeConnection();
+        sendClientStatus("Client: Disconnected from server.");
+        updateNotification("Remote Phone Client", "Disconnected.");
+        sendHostConnectionUpdate(null);
+    }
+
+    /**
+     * Closes the connection to the host, e.g. before reconnecting. A call's audio on a
+     * connection of its own carries on, reattaching by itself if that dropped too, until the
+     * host reports {@code CALL_IDLE}; audio multiplexed on the control connection ends with it.
+     */
+    private void closeConnection() {
+        if (multiplexedAudio != null) {
+            stopAudioBridge();
+        }
         try {
+            MultiplexedConnection connection = multiplexed;
+            multiplexed = null;
+            if (connection != null) {
+                connection.close();
+            }
             if (socket != null) {
                 socket.close();
             }
-            if (audioSocket != null) {
-                audioSocket.close();
-            }
             if (reader != null) {
                 reader.close();
             }
             if (writer != null) {
                 writer.close();
             }
-            if (clientThread != null) {
-                clientThread.interrupt();
-            }
         } catch (IOException e) {
             Log.e(TAG, "Error closing client resources", e);
         } finally {
             socket = null;
-            audioSocket = null; // Also set audioSocket to null
             reader = null;
             writer = null;
-            sendClientStatus("Client: Disconnected from server.");
-            updateNotification("Remote Phone Client", "Disconnected.");
-            sendHostConnectionUpdate(null);
         }
     }
 
     /**
-     * Runnable for managing the TCP client connection in a separate thread.
+     * Runnable for managing the TCP client connection in a separate thread. A dropped
+     * connection is reconnected, after a short delay that grows while the host stays away,
+     * until the service stops.
      */
     class TcpClientRunnable implements Runnable {
         private final String ipAddress;
+        private final Thread previousThread;
 
-        public TcpClientRunnable(String ipAddress) {
+        /**
+         * @param previousThread The thread of the host connection this one replaces, which is
+         *                       waited for first; {@code null} if there is none.
+         */
+        public TcpClientRunnable(String ipAddress, Thread previousThread) {
             this.ipAddress = ipAddress;
+            this.previousThread = previousThread;
         }
 
         @Override
         public void run() {
             Log.d(TAG, "TcpClientRunnable is starting...");
             try {
-                socket = new Socket(ipAddress, TCP_SERVER_PORT);
-                writer = new PrintWriter(socket.getOutputStream(), true);
-                reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                Log.d(TAG, "Connected to server: " + ipAddress);
+                if (previousThread != null) previousThread.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+            InetSocketAddress address = new InetSocketAddress(ipAddress, TCP_SERVER_PORT);
+            SocketConnector connector = new SocketConnector(CONTROL_CONNECT_TIMEOUT_MS, CONNECT_RETRY_INITIAL_DELAY_MS,
+                    CONTROL_RETRY_MAX_DELAY_MS);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Socket connected = connector.connect(address, 0, (attempt, error, delayMillis) -> Log.w(TAG,
+                            "Cannot reach host " + ipAddress + " on attempt " + attempt + ", retrying in " + delayMillis
+                                    + " ms: " + error.getMessage()));
+                    if (Thread.currentThread().isInterrupted()) {
+                        connected.close();
+                        break;
+                    }
+                    long connectedNanos = System.nanoTime();
+                    runConnection(connected);
+                    closeConnection();
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    if (System.nanoTime() - connectedNanos >= CONTROL_STABLE_CONNECTION_MS * 1_000_000) {
+                        connector.reset();
+                    }
+                    long delay = connector.nextDelayMillis();
+                    Log.i(TAG, "Connection to host lost, reconnecting in " + delay + " ms.");
+                    sendClientStatus("Client: Connection lost, reconnecting to " + ipAddress + "...");
+                    updateNotification("Remote Phone Client", "Reconnecting to " + ipAddress);
+                    sendHostConnectionUpdate(null);
+                    Thread.sleep(delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                Log.e(TAG, "TCP Client socket error", e);
+            }
+            Log.d(TAG, "TcpClientRunnable stopped.");
+        }
+
+        /**
+         * Serves one connection to the host until it drops.
+         */
+        private void runConnection(Socket connected) {
+            try {
+                socket = connected;
+                hostPrewarms = true;
+                optimisticAudio = true;
+                boolean multiplex = getSharedPreferences("AppPrefs", MODE_PRIVATE).getBoolean(PREF_CONNECTION_MULTIPLEX, true);
+                MultiplexedConnection connection = multiplex ? switchToMultiplexed(socket) : null;
+                if (connection == null) {
+                    writer = new PrintWriter(socket.getOutputStream(), true);
+                    reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                }
+                Log.d(TAG, "Connected to server: " + ipAddress + (connection != null ? " (multiplexed)" : ""));
                 updateNotification("Remote Phone Client", "Connected to " + ipAddress);
                 sendClientStatus("Client: Connected to " + ipAddress);
                 sendHostConnectionUpdate(ipAddress);
 
+                if (connection != null) {
+                    connection.read();
+                    Log.d(TAG, "Disconnected cleanly from server: " + connection);
+                    return;
+                }
                 String serverMessage;
                 while (!Thread.currentThread().isInterrupted() && (serverMessage = reader.readLine()) != null) {
                     Log.d(TAG, "Received message from server: " + serverMessage);
@@ -306,109 +561,291 @@ public class NetworkClientService extends Service {
                     Log.e(TAG, "TCP Client socket error", e);
                     sendClientStatus("Client: Connection error - " + e.getMessage());
                 }
-            } finally {
-                disconnect();
             }
         }
     }
 
+    /**
+     * Asks the host to carry the call's audio on the control connection too, so that audio
+     * starts without a second connection (see {@link MultiplexedConnection}). A host that does
+     * not answer in time is an older one, and the connection stays on plain lines; anything it
+     * sent meanwhile is handled as usual.
+     * @return The switched connection, or {@code null} if it stays on plain lines.
+     */
+    private MultiplexedConnection switchToMultiplexed(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((MultiplexedConnection.upgradeLine() + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String answer;
+        socket.setSoTimeout(MULTIPLEX_UPGRADE_TIMEOUT_MS);
+        try {
+            answer = MultiplexedConnection.readLine(socket.getInputStream());
+        } catch (SocketTimeoutException e) {
+            answer = null;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        if (MultiplexedConnection.isUpgrade(answer)) {
+            MultiplexedConnection connection = new MultiplexedConnection(socket, new MultiplexedConnection.Listener() {
+                @Override
+                public void onControl(String line) {
+                    Log.d(TAG, "Received message from server: " + line);
+                    handleServerMessage(line);
+                }
+
+                @Override
+                public void onBulk(byte[] data, int offset, int length) {
+                    Log.d(TAG, "Ignoring " + length + " bytes of bulk data from the host.");
+                }
+            });
+            multiplexed = connection;
+            return connection;
+        }
+        Log.d(TAG, "Host does not multiplex; staying on plain control lines.");
+        if (answer != null) {
+            handleServerMessage(answer);
+        }
+        return null;
+    }
+
     /**
      * Handles incoming messages from the host.
      * @param message The message string received from the host.
      */
     private void handleServerMessage(@NonNull String message) {
-        // We've replaced the old "CALL_STARTED" message with a new,
-        // more detailed one. Both answered incoming calls and outgoing calls
-        // will now be handled by the "CALL_STARTED:" block.
-        if (message.startsWith("RINGING:")) {
-            // Host sends "RINGING:phoneNumber|contactName"
-            String[] parts = message.substring("RINGING:".length()).split("\\|", 2);
-            String incomingNumber = parts[0];
-            String contactName = parts.length > 1 ? parts[1] : "Unknown";
-
-            // Store call information for later use in OngoingCallActivity
-            currentCallNumber = incomingNumber;
-            currentCallName = contactName;
-
-            Log.d(TAG, "Incoming call detected: " + currentCallNumber + " (" + currentCallName + ")");
-            Intent callIntent = new Intent(this, IncomingCallActivity.class);
-            callIntent.putExtra(EXTRA_INCOMING_NUMBER, currentCallNumber);
-            callIntent.putExtra(EXTRA_INCOMING_NAME, currentCallName);
-            callIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            startActivity(callIntent);
-
-        } else if (message.startsWith("CALL_STARTED:")) {
-            // This block now handles BOTH outgoing calls and answered incoming calls
-            // from the host, ensuring the name is always displayed.
-            String[] parts = message.substring("CALL_STARTED:".length()).split("\\|", 2);
-            String number = parts[0];
-            String contactName = parts.length > 1 ? parts[1] : "Unknown";
-
-            Log.d(TAG, "Call started: " + number + " (" + contactName + ")");
-
-            // Store call information for OngoingCallActivity
-            currentCallNumber = number;
-            currentCallName = contactName;
-
-            Intent ongoingCallIntent = new Intent(this, OngoingCallActivity.class);
-            ongoingCallIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            ongoingCallIntent.putExtra(OngoingCallActivity.EXTRA_PHONE_NUMBER, currentCallNumber);
-            ongoingCallIntent.putExtra(OngoingCallActivity.EXTRA_CONTACT_NAME, currentCallName);
-            startActivity(ongoingCallIntent);
-
-            // Client initiates the audio socket connection to the host.
-            startAudioConnectionToServer();
+        ControlMessage parsed = ControlMessage.parse(message);
+        switch (parsed.getName()) {
+            case ControlMessage.RINGING: {
+                // Host sends "RINGING:phoneNumber|contactName"
+                String[] parts = parsed.getFields(2);
+                String incomingNumber = parts[0];
+                String contactName = parts.length > 1 ? parts[1] : "Unknown";
 
-        } else if (message.equals("CALL_IDLE")) {
-            Log.d(TAG, "Call ended on host. Stopping audio bridge.");
-            stopAudioBridge();
-            sendClientStatus("Client: Call ended.");
-        } else if (message.equals("START_AUDIO_BRIDGE")) {
-            Log.d(TAG, "Host requested to start audio bridge. Beginning streaming.");
-            // This is the final step of the handshake.
-            startAudioBridgeToHost();
-            sendClientStatus("Client: Audio bridge started.");
-        } else if (message.startsWith("OTP:")) {
-            String otpCode = message.substring("OTP:".length());
-            Log.d(TAG, "OTP received from host: " + otpCode);
-            sendClientStatus("Client: OTP received.");
-        } else if (message.startsWith("NOTIFICATION:")) {
-            String notificationContent = message.substring("NOTIFICATION:".length());
-            Log.d(TAG, "Notification received from host: " + notificationContent);
-            sendClientStatus("Client: Notification received.");
-        } else {
-            sendClientStatus("Client: " + message);
+                // Store call information for later use in OngoingCallActivity
+                currentCallNumber = incomingNumber;
+                currentCallName = contactName;
+
+                Log.d(TAG, "Incoming call detected: " + currentCallNumber + " (" + currentCallName + ")");
+                Intent callIntent = new Intent(this, IncomingCallActivity.class);
+                callIntent.putExtra(EXTRA_INCOMING_NUMBER, currentCallNumber);
+                callIntent.putExtra(EXTRA_INCOMING_NAME, currentCallName);
+                callIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                startActivity(callIntent);
+                prewarmAudio();
+                break;
+            }
+            case ControlMessage.CALL_STARTED: {
+                // Handles both outgoing calls and answered incoming calls from the host,
+                // ensuring the name is always displayed: "CALL_STARTED:phoneNumber|contactName".
+                String[] parts = parsed.getFields(2);
+                String number = parts[0];
+                String contactName = parts.length > 1 ? parts[1] : "Unknown";
+
+                Log.d(TAG, "Call started: " + number + " (" + contactName + ")");
+
+                // Store call information for OngoingCallActivity
+                currentCallNumber = number;
+                currentCallName = contactName;
+
+                Intent ongoingCallIntent = new Intent(this, OngoingCallActivity.class);
+                ongoingCallIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                ongoingCallIntent.putExtra(OngoingCallActivity.EXTRA_PHONE_NUMBER, currentCallNumber);
+                ongoingCallIntent.putExtra(OngoingCallActivity.EXTRA_CONTACT_NAME, currentCallName);
+                startActivity(ongoingCallIntent);
+
+                callAnsweredMicros = System.nanoTime() / 1000;
+                callAnswered = true;
+                if (audioRequested) {
+                    // Set up while the call rang: only the microphone is left to release.
+                    releaseMicrophone();
+                } else {
+                    // Client initiates the audio socket connection to the host.
+                    startAudioConnectionToServer();
+                }
+                break;
+            }
+            case ControlMessage.CALL_IDLE: {
+                Log.d(TAG, "Call ended on host. Stopping audio bridge.");
+                callAnswered = false;
+                AudioCallStats stats = callStats;
+                stopAudioBridge();
+                sendClientStatus(stats != null ? "Client: Call ended.\n" + describeAudioStats(stats) : "Client: Call ended.");
+                break;
+            }
+            case ControlMessage.START_AUDIO_BRIDGE: {
+                AudioSessionParams accepted = AudioSessionParams.parse(parsed.getArgument());
+                // After the task that may have started the bridge already, so its parameters are known.
+                clientExecutor.execute(() -> onAudioBridgeAnswer(accepted));
+                break;
+            }
+            case AudioStatsReport.COMMAND: {
+                AudioCallStats stats = callStats;
+                if (stats != null) {
+                    AudioStatsReport report = AudioStatsReport.parse(parsed.getArgument());
+                    stats.onPeerReport(report, System.nanoTime() / 1000);
+                    adaptAudioStream(report, stats);
+                    sendAudioStats(stats);
+                }
+                break;
+            }
+            case ControlMessage.OTP:
+                Log.d(TAG, "OTP received from host: " + parsed.getArgument());
+                sendClientStatus("Client: OTP received.");
+                break;
+            case ControlMessage.NOTIFICATION:
+                Log.d(TAG, "Notification received from host: " + parsed.getArgument());
+                sendClientStatus("Client: Notification received.");
+                break;
+            default:
+                sendClientStatus("Client: " + message);
+                break;
         }
     }
 
 
 
-    // Add this new method to NetworkClientService to manage the audio connection.
+    /**
+     * @return The audio transport the user prefers, as stored in the app preferences.
+     */
+    private String getPreferredAudioTransport() {
+        String transport = getSharedPreferences("AppPrefs", MODE_PRIVATE)
+                .getString(PREF_AUDIO_TRANSPORT, AudioSessionParams.TRANSPORT_TCP);
+        return AudioSessionParams.TRANSPORT_UDP.equals(transport) ? AudioSessionParams.TRANSPORT_UDP : AudioSessionParams.TRANSPORT_TCP;
+    }
+
+    /**
+     * @return The codec names to offer the host, with the user's preferred codec first.
+     */
+    private List<String> getAudioCodecOffer() {
+        String preferred = getSharedPreferences("AppPrefs", MODE_PRIVATE).getString(PREF_AUDIO_CODEC, null);
+        return AudioCodecs.supportedNames(preferred);
+    }
+
     private void startAudioConnectionToServer() {
+        startAudioConnectionToServer(getPreferredAudioTransport());
+    }
+
+    /**
+     * Sets the call's audio up while it rings or is being dialled, with both microphones held
+     * until it is answered (see {@link AudioSessionParams#isPrewarm()}), so that connecting and
+     * opening the devices no longer delays the audio after answering.
+     */
+    private void prewarmAudio() {
+        if (audioRequested || callAnswered || !hostPrewarms
+                || !getSharedPreferences("AppPrefs", MODE_PRIVATE).getBoolean(PREF_AUDIO_PREWARM, true)) {
+            return;
+        }
+        Log.d(TAG, "Setting call audio up ahead of the call.");
+        startAudioConnectionToServer();
+    }
+
+    /**
+     * Starts sending the microphone of a bridge that was set up ahead of the call.
+     */
+    private void releaseMicrophone() {
+        microphoneHeld = false;
+        AudioSender sender = clientSender;
+        if (sender != null) {
+            sender.setHeld(false);
+        }
+        AudioCallStats stats = callStats;
+        if (stats != null) {
+            stats.markAnswered(callAnsweredMicros);
+        }
+        Log.d(TAG, "Call answered; client microphone is live.");
+    }
+
+    /**
+     * Prepares the audio connection for the given transport and proposes it to the host with
+     * {@code AUDIO_READY}, offering every codec this build supports. For UDP no connection setup
+     * is needed, so the proposal goes out at once; neither is it on a multiplexed control
+     * connection, whose audio channel replaces a TCP audio connection. Before the call is
+     * answered, the proposal asks for a {@link AudioSessionParams#isPrewarm() pre-warmed} bridge.
+     * <p>
+     * Over a stream the client names the session itself and starts streaming at once, without
+     * waiting for {@code START_AUDIO_BRIDGE}: on its own audio connection the proposal goes in
+     * the hello, which is enough for the host to start the bridge; on a multiplexed connection
+     * {@code AUDIO_READY} goes ahead of the first frame.
+     */
+    private void startAudioConnectionToServer(String transport) {
+        audioRequested = true;
         clientExecutor.execute(() -> {
-            boolean connected = false;
-            for (int i = 0; i < AUDIO_CONNECTION_RETRY_COUNT; i++) {
+            AudioSessionParams proposal = new AudioSessionParams();
+            proposal.setTransport(transport);
+            proposal.setPrewarm(!callAnswered);
+            proposal.setCodecs(getAudioCodecOffer());
+            proposal.setFrameMillis(getSharedPreferences("AppPrefs", MODE_PRIVATE)
+                    .getInt(PREF_AUDIO_FRAME_MS, AudioSessionParams.DEFAULT_FRAME_MILLIS));
+            proposal.setDtx(getSharedPreferences("AppPrefs", MODE_PRIVATE).getBoolean(PREF_AUDIO_DTX, true));
+            proposal.setSampleRates(AudioSessionParams.supportedSampleRates(getSharedPreferences("AppPrefs", MODE_PRIVATE)
+                    .getInt(PREF_AUDIO_SAMPLE_RATE, AudioSessionParams.DEFAULT_SAMPLE_RATE)));
+            proposal.setFec(getSharedPreferences("AppPrefs", MODE_PRIVATE).getBoolean(PREF_AUDIO_FEC, true));
+            proposal.setAdaptive(getSharedPreferences("AppPrefs", MODE_PRIVATE).getBoolean(PREF_AUDIO_ADAPTIVE, true));
+            optimisticParams = null;
+            if (proposal.isDatagram()) {
                 try {
-                    // Establish the audio socket connection on the specified port.
-                    audioSocket = new Socket(serverIpAddress, AUDIO_SERVER_PORT);
-                    Log.d(TAG, "Audio socket connected to host on attempt " + (i + 1));
-                    connected = true;
-                    break;
+                    datagramTransport = DatagramAudioTransport.connect(new InetSocketAddress(serverIpAddress, AUDIO_SERVER_PORT));
+                    sendCommand(proposal.toCommand(ControlMessage.AUDIO_READY));
+                    return;
                 } catch (IOException e) {
-                    Log.w(TAG, "Failed to connect audio socket to host on attempt " + (i + 1) + ". Retrying...", e);
-                    try {
-                        Thread.sleep(AUDIO_CONNECTION_RETRY_DELAY_MS);
-                    } catch (InterruptedException interruptedException) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
+                    Log.w(TAG, "Failed to open UDP audio channel, falling back to TCP.", e);
+                    proposal.setTransport(AudioSessionParams.TRANSPORT_TCP);
                 }
             }
+            MultiplexedConnection connection = multiplexed;
+            if (connection != null) {
+                // The control connection carries the audio as well: nothing to connect.
+                proposal.setTransport(AudioSessionParams.TRANSPORT_MUX);
+                multiplexedAudio = connection.openAudioChannel();
+                if (!optimisticAudio) {
+                    sendCommand(proposal.toCommand(ControlMessage.AUDIO_READY));
+                    return;
+                }
+                proposal.setSessionToken(newSessionToken());
+                // Written before the bridge starts, so the host opens its channel ahead of our first frame.
+                writeCommand(proposal.toCommand(ControlMessage.AUDIO_READY));
+                startAudioBridgeOptimistically(proposal);
+                return;
+            }
+            boolean optimistic = optimisticAudio;
+            if (optimistic) proposal.setSessionToken(newSessionToken());
 
-            if (connected) {
+            boolean connected = false;
+            audioConnector.reset();
+            try {
+                // Establish the audio socket connection on the specified port.
+                audioSocket = audioConnector.connect(new InetSocketAddress(serverIpAddress, AUDIO_SERVER_PORT),
+                        AUDIO_CONNECTION_RETRY_COUNT, (attempt, error, delayMillis) -> Log.w(TAG,
+                                "Failed to connect audio socket to host on attempt " + attempt + ", retrying in "
+                                        + delayMillis + " ms: " + error.getMessage()));
+                audioSocket.setSoTimeout(AUDIO_READ_TIMEOUT_MS);
+                audioStreamTransport = new StreamAudioTransport(audioSocket);
+                AudioFrame hello = new AudioFrame();
+                if (optimistic) {
+                    ResumableAudioTransport.writeSessionHello(hello, proposal);
+                } else {
+                    // A new session: the host issues its token when the bridge starts.
+                    ResumableAudioTransport.writeSessionProbe(hello, 0);
+                }
+                audioStreamTransport.send(hello);
+                Log.d(TAG, "Audio socket connected to host.");
+                connected = true;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to connect audio socket to host.", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (connected && !audioRequested) {
+                // The call ended while we were connecting.
+                audioStreamTransport.close();
+            } else if (connected) {
                 // Send a command to the host to let it know the audio connection is ready.
-                sendCommand("AUDIO_READY");
+                // A host that read the hello ignores it; an older one waits for it.
+                writeCommand(proposal.toCommand(ControlMessage.AUDIO_READY));
+                if (optimistic) startAudioBridgeOptimistically(proposal);
             } else {
+                audioRequested = false;
                 Log.e(TAG, "Failed to connect audio socket to host after " + AUDIO_CONNECTION_RETRY_COUNT + " attempts.");
                 sendClientStatus("Client: Audio connection failed after multiple attempts.");
                 // We'll keep the main connection alive, but the audio bridge won't start.
@@ -416,105 +853,369 @@ public class NetworkClientService extends Service {
         });
     }
 
+    /**
+     * Handles the host's {@code START_AUDIO_BRIDGE}, the final step of the handshake. A bridge
+     * that already started optimistically only needs the host to agree with it; otherwise it is
+     * set up again with the plain handshake and the host's own answer.
+     */
+    private void onAudioBridgeAnswer(AudioSessionParams accepted) {
+        AudioSessionParams optimistic = optimisticParams;
+        optimisticParams = null;
+        if (optimistic != null) {
+            if (optimistic.agreesWith(accepted)) {
+                Log.d(TAG, "Host confirmed the audio stream started ahead of its answer.");
+                return;
+            }
+            // An older host, or a call other clients already share: it answered with a stream of its own.
+            Log.w(TAG, "Host answered " + accepted + " to a stream started as " + optimistic + "; restarting audio.");
+            optimisticAudio = false;
+            stopAudioBridge();
+            startAudioConnectionToServer();
+            return;
+        }
+        Log.d(TAG, "Host requested to start audio bridge. Beginning streaming.");
+        if (!callAnswered && !accepted.isPrewarm()) {
+            // An older host streams at once, although the call is not answered yet.
+            Log.w(TAG, "Host does not hold its audio until the call is answered; setting audio up when it is.");
+            hostPrewarms = false;
+            stopAudioBridge();
+            return;
+        }
+        startAudioBridgeToHost(accepted);
+        reportAudioBridgeStarted(accepted);
+    }
+
+    private void reportAudioBridgeStarted(AudioSessionParams accepted) {
+        if (microphoneHeld) {
+            sendClientStatus("Client: Audio ready, waiting for the call to be answered.");
+        } else {
+            sendClientStatus(accepted.isListenOnly() ? "Client: Listening to the call." : "Client: Audio bridge started.");
+        }
+    }
+
+    /**
+     * Starts streaming before the host answers, with the answer a host that takes the proposal
+     * unchanged gives; {@link #onAudioBridgeAnswer} checks it once the host's answer arrives.
+     * If none arrives within {@link #AUDIO_ANSWER_TIMEOUT_MS}, the audio starts over with the
+     * plain handshake.
+     */
+    private void startAudioBridgeOptimistically(AudioSessionParams proposal) {
+        AudioSessionParams expected = proposal.answer();
+        optimisticParams = expected;
+        startAudioBridgeToHost(expected);
+        reportAudioBridgeStarted(expected);
+        statsExecutor.schedule(() -> clientExecutor.execute(() -> {
+            if (optimisticParams != expected) {
+                return;
+            }
+            Log.w(TAG, "Host did not answer the audio stream started as " + expected + "; restarting audio.");
+            optimisticAudio = false;
+            stopAudioBridge();
+            startAudioConnectionToServer();
+        }), AUDIO_ANSWER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private long newSessionToken() {
+        long token;
+        do {
+            token = sessionRandom.nextLong();
+        } while (token == 0);
+        return token;
+    }
+
     /**
      * Starts the bidirectional audio bridge with the host.
+     * If the host named the session, a dropped audio connection is replaced with a new one that
+     * rejoins it, and the call's audio carries on. If other clients are already on the call,
+     * this one joins them; if the host cannot mix another microphone, it only listens.
+     * Waits for the threads of a previous bridge to stop first, so that the devices are free.
+     * @param accepted The parameters the host accepted in {@code START_AUDIO_BRIDGE}.
      */
-    private void startAudioBridgeToHost() {
-        if (audioSocket == null || audioSocket.isClosed() || !audioSocket.isConnected()) {
-            Log.e(TAG, "Cannot start audio bridge: audio socket is not connected.");
+    private synchronized void startAudioBridgeToHost(AudioSessionParams accepted) {
+        if (!awaitAudioTasksStopped()) {
+            Log.w(TAG, "Previous audio bridge is still stopping; starting the new one anyway.");
+        }
+        if (!audioRequested) {
+            Log.d(TAG, "Audio bridge stopped while the previous one was stopping; not starting it.");
             return;
         }
+        AudioTransport transport;
+        if (accepted.isDatagram()) {
+            if (datagramTransport == null) {
+                Log.e(TAG, "Cannot start audio bridge: UDP audio channel is not open.");
+                return;
+            }
+            transport = datagramTransport;
+        } else if (accepted.isMultiplexed()) {
+            if (multiplexedAudio == null) {
+                Log.e(TAG, "Cannot start audio bridge: no multiplexed audio channel is open.");
+                return;
+            }
+            transport = multiplexedAudio;
+        } else {
+            if (audioSocket == null || audioSocket.isClosed() || !audioSocket.isConnected() || audioStreamTransport == null) {
+                if (datagramTransport != null) {
+                    // We proposed UDP but the host wants TCP: connect the socket and ask again.
+                    Log.w(TAG, "Host declined UDP audio, retrying over TCP.");
+                    datagramTransport.close();
+                    datagramTransport = null;
+                    startAudioConnectionToServer(AudioSessionParams.TRANSPORT_TCP);
+                    return;
+                }
+                Log.e(TAG, "Cannot start audio bridge: audio socket is not connected.");
+                return;
+            }
+            transport = audioStreamTransport;
+        }
+
+        AudioCodec known = AudioCodecs.byName(accepted.getCodec());
+        AudioCodec codec = known != null ? known : AudioCodecs.byId(AudioFrame.CODEC_PCM_16BIT);
+        int deviceRate = AudioDeviceUtils.getNativeSampleRate(this, accepted.getSampleRate());
+
+        // Hosts that predate session tokens cannot take a connection back; multiplexed audio lasts as long as the control connection.
+        boolean datagram = accepted.isDatagram();
+        boolean reconnectable = accepted.getSessionToken() != 0 && !accepted.isMultiplexed();
+        ResumableAudioTransport session = new ResumableAudioTransport(transport, accepted.getSessionToken(),
+                reconnectable ? () -> reconnectAudio(datagram) : null);
+        AudioTransport bridgeTransport = accepted.isFec() ? new FecAudioTransport(session) : session;
 
+        audioTransport = bridgeTransport;
+        audioSession = session;
         isStreaming = true;
-        Log.d(TAG, "Starting bidirectional audio bridge.");
+        // Until the call is answered, only the host's side learns of it; the host holds its microphone too.
+        microphoneHeld = accepted.isPrewarm();
+        if (callAnswered) microphoneHeld = false;
+        Log.d(TAG, "Starting bidirectional audio bridge (" + accepted + ", device rate " + deviceRate + " Hz"
+                + (microphoneHeld ? ", held until answered" : "") + ").");
 
-        // Client microphone -> Host speaker (OUTGOING STREAM)
-        clientMicStreamFuture = audioStreamingExecutor.submit(this::streamClientMicToHost);
+        // A buffer of its own, which a previous bridge's receiver that is still stopping cannot touch.
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        jitterBuffer.reset(accepted.getFrameMillis() * 1000L);
+        AudioCallStats stats = new AudioCallStats(jitterBuffer, bridgeTransport);
+        callStats = stats;
+        // Checked once published, so an answer that comes in on the reading thread meanwhile is not missed.
+        if (callAnswered) {
+            stats.markAnswered(callAnsweredMicros);
+        }
+        // A host that agreed to adapt is as recent as we are, so it plays every codec we have.
+        AudioRateController controller = accepted.isAdaptive() && !accepted.isListenOnly()
+                ? AudioRateController.forSession(accepted, codec, AudioCodecs.supportedNames()) : null;
+        rateController = controller;
+
+        // Client microphone -> Host speaker (OUTGOING STREAM), unless the host has no room to mix it.
+        if (!accepted.isListenOnly()) {
+            clientMicStreamFuture = submitAudioTask(() -> streamClientMicToHost(bridgeTransport, codec, accepted, deviceRate,
+                    stats, controller));
+        }
+
+        // Host microphone -> Client speaker (INCOMING STREAM), through the jitter buffer
+        AudioReceiver receiver = new AudioReceiver(bridgeTransport, jitterBuffer, stats);
+        hostAudioReceiver = receiver;
+        hostMicReceiveFuture = submitAudioTask(receiver);
+        hostMicStreamFuture = submitAudioTask(() -> streamHostMicToClient(session, receiver, jitterBuffer, accepted, deviceRate, stats));
+    }
+
+    /**
+     * Runs one of a bridge's streaming tasks, counting it until it returns.
+     */
+    private Future<?> submitAudioTask(Runnable task) {
+        return audioStreamingExecutor.submit(() -> {
+            synchronized (this) {
+                runningAudioTasks++;
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (this) {
+                    runningAudioTasks--;
+                    notifyAll();
+                }
+            }
+        });
+    }
 
-        // Host microphone -> Client speaker (INCOMING STREAM)
-        hostMicStreamFuture = audioStreamingExecutor.submit(this::streamHostMicToClient);
+    /**
+     * Waits up to {@link #AUDIO_STOP_TIMEOUT_MS} for the streaming tasks of stopped bridges to return.
+     * @return {@code false} if some are still running.
+     */
+    private synchronized boolean awaitAudioTasksStopped() {
+        long deadline = System.nanoTime() + AUDIO_STOP_TIMEOUT_MS * 1_000_000L;
+        while (runningAudioTasks > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining / 1_000_000L + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a new audio connection to the host for a session whose connection failed.
+     */
+    private AudioTransport reconnectAudio(boolean datagram) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(serverIpAddress, AUDIO_SERVER_PORT);
+        if (datagram) {
+            DatagramAudioTransport transport = DatagramAudioTransport.connect(address);
+            datagramTransport = transport;
+            return transport;
+        }
+        // One quick attempt: the session retries on its own.
+        Socket socket = audioReconnector.connect(address);
+        try {
+            socket.setSoTimeout(AUDIO_READ_TIMEOUT_MS);
+            StreamAudioTransport transport = new StreamAudioTransport(socket);
+            audioSocket = socket;
+            audioStreamTransport = transport;
+            return transport;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
     }
 
     /**
-     * Streams audio from the client's microphone to the host's speaker.
+     * Streams audio from the client's microphone to the host's speaker through an {@link AudioSender}.
+     * @param controller Adapts the stream to the host's reports; {@code null} to send as negotiated.
      */
-    private void streamClientMicToHost() {
+    private void streamClientMicToHost(AudioTransport transport, AudioCodec codec, AudioSessionParams params, int deviceRate,
+                                       AudioCallStats stats, AudioRateController controller) {
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
             Log.e(TAG, "RECORD_AUDIO permission not granted. Cannot stream mic to host.");
             return;
         }
 
-        int bufferSize = AudioRecord.getMinBufferSize(16000, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-        AudioRecord recorder = new AudioRecord(
-                MediaRecorder.AudioSource.MIC,
-                16000, AudioFormat.CHANNEL_IN_MONO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                bufferSize);
-
-        try (OutputStream out = audioSocket.getOutputStream()) {
-            recorder.startRecording();
-            byte[] buffer = new byte[bufferSize];
-            Log.d(TAG, "Client to host audio streaming started.");
-            while (isStreaming && !Thread.currentThread().isInterrupted()) {
-                int read = recorder.read(buffer, 0, buffer.length);
-                if (read > 0) {
-                    out.write(buffer, 0, read);
-                }
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error in client mic streaming thread", e);
+        AudioSource mic = new AudioRecordSource(MediaRecorder.AudioSource.MIC, deviceRate,
+                params.getFrameSamples(deviceRate), CAPTURE_BUFFER_FRAMES, deviceBuffers);
+        AudioSender sender = new AudioSender(mic, transport, codec, params, stats);
+        if (controller != null) sender.setRateController(controller);
+        // Published before the hold is checked again, so a release in between is not missed.
+        sender.setHeld(microphoneHeld);
+        clientSender = sender;
+        if (!microphoneHeld) sender.setHeld(false);
+        Log.d(TAG, "Client to host audio streaming started (" + sender + ", "
+                + params.getFrameSamples(params.getSampleRate()) + " samples per frame).");
+        try {
+            sender.run();
         } finally {
-            if (recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-                recorder.stop();
-            }
-            recorder.release();
-            Log.d(TAG, "Client to host audio streaming stopped.");
+            mic.close();
+        }
+        if (sender.getError() != null && isStreaming) {
+            Log.e(TAG, "Error in client mic streaming thread", sender.getError());
         }
+        Log.d(TAG, "Client to host audio streaming stopped: " + sender);
     }
 
     /**
-     * Streams audio from the host's microphone to the client's speaker.
+     * Plays the host's microphone audio on the client's speaker through an {@link AudioPlayer}.
+     * Frames come out of the jitter buffer filled by {@code receiver}. Over UDP, a session probe
+     * goes out every {@link #SESSION_PROBE_INTERVAL_MS} from the playout thread.
+     * @param session The call's session, without FEC; used to send the UDP probes.
      */
-    private void streamHostMicToClient() {
-        int bufferSize = AudioTrack.getMinBufferSize(16000, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
-        AudioTrack player = new AudioTrack(
-                AudioManager.STREAM_VOICE_CALL,
-                16000, AudioFormat.CHANNEL_OUT_MONO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                bufferSize, AudioTrack.MODE_STREAM);
-
-        try (InputStream in = audioSocket.getInputStream()) {
-            player.play();
-            byte[] buffer = new byte[bufferSize];
-            Log.d(TAG, "Host to client audio streaming started.");
-            while (isStreaming && !Thread.currentThread().isInterrupted()) {
-                int read = in.read(buffer);
-                if (read > 0) {
-                    player.write(buffer, 0, read);
-                }
+    private void streamHostMicToClient(ResumableAudioTransport session, AudioReceiver receiver, JitterBuffer jitterBuffer,
+                                       AudioSessionParams params, int deviceRate, AudioCallStats stats) {
+        int wireRate = params.getSampleRate();
+        AudioPlayout playout = new AudioPlayout(jitterBuffer, wireRate, params.getFrameSamples(wireRate), stats);
+        AudioSink speaker = new AudioTrackSink(deviceRate, deviceBuffers);
+        AudioPlayer player = new AudioPlayer(playout, receiver, speaker, wireRate, stats);
+        try {
+            if (params.isDatagram()) {
+                // Lets the host learn our UDP address even if the microphone never starts.
+                session.sendSessionProbe();
+                long[] lastProbeMicros = {System.nanoTime() / 1000};
+                player.setFrameListener(nowMicros -> {
+                    if (nowMicros - lastProbeMicros[0] >= SESSION_PROBE_INTERVAL_MS * 1000) {
+                        // Keeps the host sending to our current address if the network changed under us.
+                        session.sendSessionProbe();
+                        lastProbeMicros[0] = nowMicros;
+                    }
+                });
+            }
+            Log.d(TAG, "Host to client audio streaming started (" + player + ").");
+            player.run();
+            if (player.getError() != null && isStreaming) {
+                Log.e(TAG, "Error in host mic playout thread", player.getError());
+            }
+            if (receiver.getError() != null) {
+                Log.e(TAG, "Error in host mic streaming thread", receiver.getError());
             }
         } catch (IOException e) {
             Log.e(TAG, "Error in host mic streaming thread", e);
         } finally {
-            if (player.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-                player.stop();
-            }
-            player.release();
-            Log.d(TAG, "Host to client audio streaming stopped.");
+            speaker.close();
+            Log.d(TAG, "Host to client audio streaming stopped: " + player + ", " + jitterBuffer);
         }
     }
 
     /**
-     * Stops the audio streaming threads by setting the streaming flag to false.
+     * Stops the audio streaming threads by setting the streaming flag to false, and logs a
+     * summary of the call's audio statistics. The threads finish on their own; a new bridge
+     * waits for them.
      */
-    private void stopAudioBridge() {
+    private synchronized void stopAudioBridge() {
         isStreaming = false;
+        audioRequested = false;
+        AudioSender sender = clientSender;
+        clientSender = null;
+        if (sender != null) {
+            sender.stop();
+        }
+        optimisticParams = null;
         Log.d(TAG, "Stopping audio bridge.");
+        AudioCallStats stats = callStats;
+        callStats = null;
+        if (stats != null) {
+            Log.i(TAG, "Call audio summary:\n" + describeAudioStats(stats));
+        }
+        AudioRateController controller = rateController;
+        rateController = null;
+        if (controller != null) {
+            Log.d(TAG, "Client to host " + controller);
+        }
         if (clientMicStreamFuture != null) {
             clientMicStreamFuture.cancel(true);
         }
         if (hostMicStreamFuture != null) {
             hostMicStreamFuture.cancel(true);
         }
+        if (hostAudioReceiver != null) {
+            hostAudioReceiver.stop();
+        }
+        if (hostMicReceiveFuture != null) {
+            hostMicReceiveFuture.cancel(true);
+        }
+        AudioTransport transport = audioTransport;
+        audioTransport = null;
+        if (transport instanceof FecAudioTransport) {
+            Log.d(TAG, "Host to client " + transport);
+        }
+        ResumableAudioTransport session = audioSession;
+        audioSession = null;
+        if (session != null && session.getReattachCount() > 0) {
+            Log.d(TAG, "Audio session " + session);
+        }
+        if (transport != null) {
+            // Closing unblocks the receive loop and ends the stream for the host as well.
+            transport.close();
+        }
+        if (datagramTransport != null) {
+            datagramTransport.close();
+            datagramTransport = null;
+        }
+        // Also ends a connection set up for a bridge that never started.
+        if (audioStreamTransport != null) {
+            audioStreamTransport.close();
+            audioStreamTransport = null;
+            audioSocket = null;
+        }
+        if (multiplexedAudio != null) {
+            multiplexedAudio.close();
+            multiplexedAudio = null;
+        }
     }
 }
@@ -11,14 +11,22 @@ import android.telephony.TelephonyManager;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import com.hasnat.remotephone.service.audio.AudioCallStats;
+import com.hasnat.remotephone.service.audio.AudioSessionParams;
+import com.hasnat.remotephone.service.audio.AudioStatsReport;
+import com.hasnat.remotephone.service.audio.AudioTransport;
 import com.hasnat.remotephone.service.network.AudioServer;
+import com.hasnat.remotephone.service.network.ControlMessage;
 import com.hasnat.remotephone.service.network.TcpServer;
 import com.hasnat.remotephone.service.telephony.PhoneCallManager;
 import com.hasnat.remotephone.service.telephony.SmsHandler;
 import com.hasnat.remotephone.utils.WifiUtils;
 
+import java.net.InetAddress;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class NetworkServerService extends Service {
     public static final String ACTION_BROADCAST_TO_CLIENTS = "com.hasnat.remotephone.BROADCAST_TO_CLIENTS";
@@ -30,6 +38,10 @@ public class NetworkServerService extends Service {
     public static final String ACTION_CLIENT_COUNT_UPDATE = "com.hasnat.remotephone.CLIENT_COUNT_UPDATE";
     public static final String EXTRA_CLIENT_COUNT = "client_count";
     public static boolean isHostAsModemMode = false;
+    // Whether one event loop serves every control client, rather than a thread each; on by default.
+    public static final String PREF_CONTROL_SELECTOR = "control_selector";
+    // How often audio statistics are sent to the client while a call's audio runs.
+    private static final long AUDIO_STATS_INTERVAL_MS = 2000;
 
     private NotificationHelper notificationHelper;
     private BroadcastManager broadcastManager;
@@ -39,6 +51,9 @@ public class NetworkServerService extends Service {
     private AudioServer audioServer;
 
     private ExecutorService broadcastExecutor;
+    private ScheduledExecutorService statsExecutor;
+    // The client whose microphone is bridged into the call; the audio statistics are exchanged with it.
+    private volatile TcpServer.ClientConnection audioClient;
 
     // This BroadcastReceiver listens for internal broadcasts from PhoneCallManager
     // and forwards them to all connected TCP clients.
@@ -51,8 +66,18 @@ public class NetworkServerService extends Service {
                     Log.d(TAG, "Received internal broadcast to send to clients: " + command);
                     // Use a thread to send the command to all clients
                     broadcastExecutor.execute(() -> {
+                        String name = ControlMessage.parse(command).getName();
+                        if (ControlMessage.CALL_STARTED.equals(name)) {
+                            // Before the clients hear of it, so the host's audio is already on its way.
+                            audioServer.setOffHook(true);
+                        }
+                        if (ControlMessage.CALL_IDLE.equals(command)) {
+                            // Final numbers first, so the client's summary includes them.
+                            sendAudioStats();
+                            audioServer.setOffHook(false);
+                        }
                         tcpServer.broadcastToClients(command);
-                        if (command.equals("CALL_IDLE")) {
+                        if (ControlMessage.CALL_IDLE.equals(command)) {
                             audioServer.stopAudioBridge();
                         }
                         if (command.equals("CALL_STARTED")) {
@@ -72,7 +97,7 @@ public class NetworkServerService extends Service {
                 String title = intent.getStringExtra(HostNotificationListenerService.EXTRA_NOTIFICATION_TITLE);
                 String text = intent.getStringExtra(HostNotificationListenerService.EXTRA_NOTIFICATION_TEXT);
 
-                String command = "NOTIFICATION:" + packageName + "|" + title + "|" + text;
+                String command = ControlMessage.encode(ControlMessage.NOTIFICATION, packageName, title, text);
                 broadcastExecutor.execute(() -> tcpServer.broadcastToClients(command));
             }
         }
@@ -94,10 +119,14 @@ public class NetworkServerService extends Service {
         // Correctly initialize PhoneCallManager with the 3-argument constructor
         phoneCallManager = new PhoneCallManager(this, notificationHelper, broadcastManager);
         smsHandler = new SmsHandler(broadcastManager);
-        tcpServer = new TcpServer(this, new CommandListener(), broadcastManager, notificationHelper);
-        audioServer = new AudioServer(this);
+        boolean useSelector = getSharedPreferences("AppPrefs", MODE_PRIVATE).getBoolean(PREF_CONTROL_SELECTOR, true);
+        tcpServer = new TcpServer(this, new CommandListener(), broadcastManager, notificationHelper, useSelector);
+        audioServer = new AudioServer(this, new SessionListener());
 
         broadcastExecutor = Executors.newSingleThreadExecutor();
+        statsExecutor = Executors.newSingleThreadScheduledExecutor();
+        statsExecutor.scheduleAtFixedRate(() -> broadcastExecutor.execute(this::sendAudioStats),
+                AUDIO_STATS_INTERVAL_MS, AUDIO_STATS_INTERVAL_MS, TimeUnit.MILLISECONDS);
 
         notificationHelper.createNotificationChannel();
         startForeground(1, notificationHelper.createNotification("Remote Phone Host", initialStatus));
@@ -132,6 +161,7 @@ public class NetworkServerService extends Service {
         tcpServer.stopServer();
         audioServer.stopServer();
         phoneCallManager.stopPhoneStateListener();
+        statsExecutor.shutdownNow();
         broadcastExecutor.shutdownNow();
         LocalBroadcastManager.getInstance(this).unregisterReceiver(notificationReceiver);
         // Unregister the client broadcast receiver on destroy
@@ -143,40 +173,111 @@ public class NetworkServerService extends Service {
         return null;
     }
 
+    /**
+     * Sends the running call's audio statistics to the talking client, if audio is being bridged.
+     */
+    private void sendAudioStats() {
+        AudioCallStats stats = audioServer.getCallStats();
+        TcpServer.ClientConnection client = audioClient;
+        if (stats != null && client != null) {
+            client.send(stats.snapshot(System.nanoTime() / 1000).toCommand());
+        }
+    }
+
+    private class SessionListener implements AudioServer.SessionListener {
+        @Override
+        public boolean isControlClient(InetAddress address) {
+            return tcpServer.findClient(address) != null;
+        }
+
+        @Override
+        public void onBridgeStarted(InetAddress clientAddress, AudioSessionParams accepted) {
+            TcpServer.ClientConnection client = tcpServer.findClient(clientAddress);
+            if (client == null) {
+                return;
+            }
+            if (!accepted.isListenOnly()) {
+                audioClient = client;
+            }
+            client.send(accepted.toCommand(ControlMessage.START_AUDIO_BRIDGE));
+        }
+    }
+
     private class CommandListener implements TcpServer.IncomingCommandListener {
         @Override
-        public void onCommandReceived(String command) {
+        public void onCommandReceived(String command, TcpServer.ClientConnection client) {
             Log.d(TAG, "Command received from client: " + command);
-            if ("ANSWER".equals(command)) {
-                phoneCallManager.answerCall();
-            } else if ("END_CALL".equals(command)) {
-                phoneCallManager.endCall();
-                audioServer.stopAudioBridge();
-            } else if ("MUTE".equals(command)) {
-                phoneCallManager.setMute(true);
-            } else if ("UNMUTE".equals(command)) {
-                phoneCallManager.setMute(false);
-            } else if ("HOLD".equals(command)) {
-                phoneCallManager.setOnHold(true);
-            } else if ("RESUME".equals(command)) {
-                phoneCallManager.setOnHold(false);
-            } else if ("SPEAKER_ON".equals(command)) {
-                phoneCallManager.setSpeaker(true);
-            } else if ("SPEAKER_OFF".equals(command)) {
-                phoneCallManager.setSpeaker(false);
-            } else if (command.startsWith("DIAL:")) {
-                String phoneNumber = command.substring(5);
-                Log.d(TAG, "Client requested to dial: " + phoneNumber);
-
-                phoneCallManager.dialWithTelecom(phoneNumber);
-                broadcastManager.sendHostStatus("Host: Dialing " + phoneNumber + "...");
-            } else if (command.startsWith("REMOTE_CALL:")) {
-                String number = command.substring("REMOTE_CALL:".length());
-                phoneCallManager.placeCall(number);
-            } else if ("AUDIO_READY".equals(command)) {
-                Log.d(TAG, "Client is ready for audio bridge. Starting host-side streaming.");
-                audioServer.startAudioBridge();
-                tcpServer.broadcastToClients("START_AUDIO_BRIDGE");
+            ControlMessage message = ControlMessage.parse(command);
+            switch (message.getName()) {
+                case ControlMessage.ANSWER:
+                    phoneCallManager.answerCall();
+                    break;
+                case ControlMessage.END_CALL:
+                    phoneCallManager.endCall();
+                    audioServer.stopAudioBridge();
+                    break;
+                case ControlMessage.MUTE:
+                    phoneCallManager.setMute(true);
+                    break;
+                case ControlMessage.UNMUTE:
+                    phoneCallManager.setMute(false);
+                    break;
+                case ControlMessage.HOLD:
+                    phoneCallManager.setOnHold(true);
+                    break;
+                case ControlMessage.RESUME:
+                    phoneCallManager.setOnHold(false);
+                    break;
+                case ControlMessage.SPEAKER_ON:
+                    phoneCallManager.setSpeaker(true);
+                    break;
+                case ControlMessage.SPEAKER_OFF:
+                    phoneCallManager.setSpeaker(false);
+                    break;
+                case ControlMessage.DIAL: {
+                    String phoneNumber = message.getArgument();
+                    Log.d(TAG, "Client requested to dial: " + phoneNumber);
+
+                    phoneCallManager.dialWithTelecom(phoneNumber);
+                    broadcastManager.sendHostStatus("Host: Dialing " + phoneNumber + "...");
+                    break;
+                }
+                case ControlMessage.REMOTE_CALL:
+                    phoneCallManager.placeCall(message.getArgument());
+                    break;
+                case ControlMessage.AUDIO_READY: {
+                    Log.d(TAG, "Client is ready for audio bridge. Starting host-side streaming.");
+                    AudioSessionParams requested = AudioSessionParams.parse(message.getArgument());
+                    if (requested.getSessionToken() != 0 && !requested.isDatagram() && !requested.isMultiplexed()
+                            && audioServer.isStartedByHello(requested, client.getAddress())) {
+                        // The client named its session in the hello on its audio connection, which starts the bridge.
+                        Log.d(TAG, "Audio bridge is started from the client's audio connection.");
+                        break;
+                    }
+                    if (requested.isMultiplexed()) {
+                        AudioTransport channel = client.openAudioChannel();
+                        if (channel == null) {
+                            Log.w(TAG, "Client asked for multiplexed audio on a plain connection.");
+                            break;
+                        }
+                        audioServer.addMultiplexedStream(client.getAddress(), channel);
+                    }
+                    AudioSessionParams accepted = audioServer.startAudioBridge(requested, client.getAddress());
+                    if (accepted != null) {
+                        if (!accepted.isListenOnly()) {
+                            audioClient = client;
+                        }
+                        client.send(accepted.toCommand(ControlMessage.START_AUDIO_BRIDGE));
+                    }
+                    break;
+                }
+                case AudioStatsReport.COMMAND:
+                    if (client == audioClient) {
+                        audioServer.onClientReport(AudioStatsReport.parse(message.getArgument()));
+                    }
+                    break;
+                default:
+                    break;
             }
         }
     }
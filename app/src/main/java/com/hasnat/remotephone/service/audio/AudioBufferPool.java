@@ -0,0 +1,79 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed set of reusable direct {@link ByteBuffer}s for PCM moving to and from the audio devices.
+ * <p>
+ * Direct buffers let {@code AudioRecord.read(ByteBuffer, ...)} and {@code AudioTrack.write(ByteBuffer, ...)}
+ * work on native memory without a JNI array copy, but they are expensive to allocate and are
+ * freed only by the GC, so they are created once, up front, and handed out again for every
+ * call. Buffers use the platform byte order, which is what the audio devices produce and expect.
+ * <p>
+ * Thread-safe; {@link #acquire()} and {@link #release(ByteBuffer)} never block and do not
+ * allocate unless the pool is exhausted.
+ */
+public class AudioBufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+    private volatile int misses;
+
+    /**
+     * @param buffers Number of buffers to preallocate; also the most the pool will hold.
+     * @param bufferSize Capacity of each buffer in bytes.
+     */
+    public AudioBufferPool(int buffers, int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < buffers; i++) {
+            free.offer(allocate());
+        }
+    }
+
+    private ByteBuffer allocate() {
+        return ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return A cleared buffer of {@link #getBufferSize()} bytes. If the pool is empty a new
+     * buffer is allocated and counted as a miss.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            misses++;
+            return allocate();
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()}. Buffers beyond the pool's capacity are
+     * left to the GC.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) return;
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return Number of buffers currently available.
+     */
+    public int getAvailable() {
+        return free.size();
+    }
+
+    /**
+     * @return How often {@link #acquire()} found the pool empty and had to allocate.
+     */
+    public int getMissCount() {
+        return misses;
+    }
+}
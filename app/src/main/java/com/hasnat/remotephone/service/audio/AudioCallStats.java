@@ -0,0 +1,196 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Latency and quality statistics of one side of a call's audio bridge: the stream it sends and
+ * the stream it plays.
+ * <p>
+ * The audio loops record each frame as it passes the stages in {@link AudioStatsReport}:
+ * the capture loop when it hands a frame to the transport, the {@link AudioReceiver} when a
+ * frame arrives, the {@link AudioPlayout} when it leaves the jitter buffer, and the playout loop
+ * when it is written to the device. The two devices' clocks are unrelated, so network transit
+ * is recorded relative to the fastest frame of the call; the round trip time of the reports
+ * exchanged with the peer stands in for the fixed part. Loss, lateness and underruns come from
+ * the {@link JitterBuffer}, and rebuilt frames from the {@link FecAudioTransport} if there is one.
+ * Once the call is {@link #markAnswered answered}, the time until the first frame arrives is
+ * recorded too: the dead air the peer hears, or rather does not hear, after going off-hook.
+ * <p>
+ * Recording does not allocate. One instance serves one call.
+ */
+public class AudioCallStats {
+    private final JitterBuffer jitterBuffer;
+    private final FecAudioTransport fec;
+    private final LatencyHistogram[] stages = new LatencyHistogram[AudioStatsReport.STAGE_KEYS.length];
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+
+    // Written by the receiver thread only.
+    private long minTransitMicros = Long.MAX_VALUE;
+    private volatile boolean haveHighestSeq;
+    private volatile int highestSeq;
+
+    private volatile long answeredMicros = -1;
+    private volatile long answerToAudioMicros = -1;
+    private volatile long reorderedFrames;
+    private volatile long concealedFrames;
+
+    private volatile AudioStatsReport peerReport;
+    private volatile long peerReportArrivalMicros;
+    private volatile long lastRoundTripMicros;
+
+    /**
+     * @param jitterBuffer The buffer the received stream is played from.
+     * @param transport The call's transport; a {@link FecAudioTransport} adds its rebuilt frames to the report.
+     */
+    public AudioCallStats(JitterBuffer jitterBuffer, AudioTransport transport) {
+        this.jitterBuffer = jitterBuffer;
+        this.fec = transport instanceof FecAudioTransport ? (FecAudioTransport) transport : null;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records a frame that was just handed to the transport.
+     */
+    public void recordSent(AudioFrame frame, long nowMicros) {
+        stages[AudioStatsReport.STAGE_CAPTURE].record(nowMicros - frame.getCaptureTimeMicros());
+    }
+
+    /**
+     * Records a frame that just arrived from the network. Call from the receiving thread only,
+     * and not for frames rebuilt from parity, which arrive with the parity frame.
+     */
+    public void recordArrival(AudioFrame frame, long arrivalMicros) {
+        if (answerToAudioMicros < 0 && answeredMicros >= 0) {
+            answerToAudioMicros = Math.max(0, arrivalMicros - answeredMicros);
+        }
+        long transit = arrivalMicros - frame.getCaptureTimeMicros();
+        if (transit < minTransitMicros) {
+            minTransitMicros = transit;
+        }
+        stages[AudioStatsReport.STAGE_NETWORK].record(transit - minTransitMicros);
+        int seq = frame.getSequenceNumber();
+        if (!haveHighestSeq || seq - highestSeq > 0) {
+            haveHighestSeq = true;
+            highestSeq = seq;
+        } else {
+            reorderedFrames++;
+        }
+    }
+
+    /**
+     * Marks when the call went off-hook; the first frame that arrives after it ends the wait
+     * {@link #getAnswerToAudioMicros()} reports. Frames of a bridge opened ahead of the call
+     * only flow once it is answered, so an earlier bridge is no different.
+     * @param nowMicros When the call was answered, on the clock frames arrive by.
+     */
+    public void markAnswered(long nowMicros) {
+        if (answeredMicros < 0) answeredMicros = nowMicros;
+    }
+
+    /**
+     * @return How long after the call was answered the first frame arrived; -1 until both happened.
+     */
+    public long getAnswerToAudioMicros() {
+        return answerToAudioMicros;
+    }
+
+    /**
+     * Records how long a frame waited in the jitter buffer before it was played.
+     */
+    public void recordJitterBufferResidency(long micros) {
+        stages[AudioStatsReport.STAGE_JITTER_BUFFER].record(micros);
+    }
+
+    /**
+     * Records a frame period filled by packet loss concealment.
+     */
+    public void recordConcealed() {
+        concealedFrames++;
+    }
+
+    /**
+     * Records how much audio the output device still had queued when a frame was written to it.
+     */
+    public void recordPlayoutQueue(long micros) {
+        stages[AudioStatsReport.STAGE_PLAYOUT].record(micros);
+    }
+
+    /**
+     * Takes in a report from the peer; if it echoes one of ours, the round trip is measured.
+     */
+    public void onPeerReport(AudioStatsReport report, long nowMicros) {
+        if (report.hasEcho()) {
+            long rtt = nowMicros - report.getEchoMicros() - report.getHoldMicros();
+            if (rtt >= 0) {
+                roundTrip.record(rtt);
+                lastRoundTripMicros = rtt;
+            }
+        }
+        peerReportArrivalMicros = nowMicros;
+        peerReport = report;
+    }
+
+    /**
+     * @return The round trip measured with the latest report that echoed one of ours; 0 if none has.
+     */
+    public long getLastRoundTripMicros() {
+        return lastRoundTripMicros;
+    }
+
+    /**
+     * @return The latest report from the peer, or {@code null} if none has arrived yet.
+     */
+    public AudioStatsReport getPeerReport() {
+        return peerReport;
+    }
+
+    /**
+     * @return The statistics so far, stamped with {@code nowMicros} and echoing the peer's latest report.
+     */
+    public AudioStatsReport snapshot(long nowMicros) {
+        AudioStatsReport report = new AudioStatsReport();
+        report.setTimeMicros(nowMicros);
+        AudioStatsReport peer = peerReport;
+        if (peer != null) {
+            report.setEcho(peer.getTimeMicros(), nowMicros - peerReportArrivalMicros);
+        }
+        report.setRoundTripMicros(roundTrip.getPercentile(0.5));
+        report.setJitterMicros(jitterBuffer.getJitterMicros());
+        if (haveHighestSeq) {
+            report.setHighestSequence(highestSeq);
+        }
+        for (int i = 0; i < stages.length; i++) {
+            report.setLatency(i, stages[i].getPercentile(0.5), stages[i].getPercentile(0.95));
+        }
+        report.setCount(AudioStatsReport.COUNT_RECEIVED, jitterBuffer.getReceivedCount());
+        report.setCount(AudioStatsReport.COUNT_LOST, jitterBuffer.getLostCount());
+        report.setCount(AudioStatsReport.COUNT_LATE, jitterBuffer.getLateDropCount());
+        report.setCount(AudioStatsReport.COUNT_REORDERED, reorderedFrames);
+        report.setCount(AudioStatsReport.COUNT_UNDERRUNS, jitterBuffer.getUnderrunCount());
+        report.setCount(AudioStatsReport.COUNT_CONCEALED, concealedFrames);
+        report.setCount(AudioStatsReport.COUNT_RECOVERED, fec != null ? fec.getRecoveredCount() : 0);
+        return report;
+    }
+
+    /**
+     * Describes both directions of the call, from this side's point of view.
+     * @param sentLabel Names the direction this side sends, e.g. "Host->Client".
+     * @param receivedLabel Names the direction this side plays.
+     */
+    public String describe(String sentLabel, String receivedLabel, long nowMicros) {
+        AudioStatsReport local = snapshot(nowMicros);
+        AudioStatsReport peer = peerReport;
+        long answerToAudio = answerToAudioMicros;
+        return sentLabel + ": " + AudioStatsReport.describe(local, peer) + "\n"
+                + receivedLabel + ": " + AudioStatsReport.describe(peer, local)
+                + (answerToAudio >= 0 ? "\n" + receivedLabel + " audio " + answerToAudio / 1000 + " ms after answer" : "");
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return stages[stage];
+    }
+
+    public LatencyHistogram getRoundTripHistogram() {
+        return roundTrip;
+    }
+}
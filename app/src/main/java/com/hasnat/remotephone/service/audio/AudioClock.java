@@ -0,0 +1,100 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Paces JVM sources and sinks like audio devices, so that the streaming loops run in real
+ * time off-device.
+ * <p>
+ * A capture clock releases samples as a microphone would: sample {@code n} is available
+ * {@code n / rate} seconds after the start. A playout clock models a speaker with a bounded
+ * buffer: written samples play back to back from when they are written, a write blocks while
+ * more than the buffer is queued, and a write to an empty speaker is an underrun.
+ */
+final class AudioClock {
+    private final int sampleRate;
+    private final long bufferNanos;
+    private long startNanos;
+    private long samples;
+    private long playEndNanos;
+    private long underruns;
+
+    /**
+     * @param bufferMillis How much audio a playout clock holds before writes block; unused for capture.
+     */
+    AudioClock(int sampleRate, int bufferMillis) {
+        this.sampleRate = sampleRate;
+        this.bufferNanos = bufferMillis * 1_000_000L;
+    }
+
+    synchronized void start() {
+        startNanos = System.nanoTime();
+        playEndNanos = startNanos;
+        samples = 0;
+    }
+
+    synchronized long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Blocks until the next {@code n} samples have been captured.
+     */
+    void awaitCaptured(int n) throws InterruptedIOException {
+        long due;
+        synchronized (this) {
+            samples += n;
+            due = startNanos + samples * 1_000_000_000L / sampleRate;
+        }
+        sleepUntil(due);
+    }
+
+    /**
+     * Queues {@code n} samples for playing, blocking until no more than the buffer is queued.
+     */
+    void play(int n) throws InterruptedIOException {
+        long due;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now > playEndNanos) {
+                if (samples > 0) underruns++;
+                playEndNanos = now;
+            }
+            playEndNanos += n * 1_000_000_000L / sampleRate;
+            samples += n;
+            due = playEndNanos - bufferNanos;
+        }
+        sleepUntil(due);
+    }
+
+    /**
+     * Counts {@code n} samples as played at once, for sinks that are not paced.
+     */
+    synchronized void advance(int n) {
+        samples += n;
+    }
+
+    /**
+     * @return The samples written and already played.
+     */
+    synchronized long getPlayedSamples() {
+        long queuedNanos = Math.max(0, playEndNanos - System.nanoTime());
+        return samples - (queuedNanos * sampleRate + 999_999_999L) / 1_000_000_000L;
+    }
+
+    synchronized long getUnderrunCount() {
+        return underruns;
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedIOException {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
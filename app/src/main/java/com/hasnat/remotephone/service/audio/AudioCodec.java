@@ -0,0 +1,43 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Service interface for the codecs that turn 16-bit mono PCM into frame payloads and back.
+ * <p>
+ * Implementations encode and decode into buffers supplied by the caller and must not allocate
+ * per call. Every frame must be decodable on its own, so that a lost frame never corrupts the
+ * ones after it. Codecs are registered in {@link AudioCodecs}.
+ */
+public interface AudioCodec {
+
+    /**
+     * @return The id carried in the frame header; unique among registered codecs (0..255).
+     */
+    int getId();
+
+    /**
+     * @return The name used during negotiation, e.g. {@code pcmu}.
+     */
+    String getName();
+
+    /**
+     * @return The largest payload {@link #encode} can produce for {@code samples} samples.
+     */
+    int getMaxEncodedSize(int samples);
+
+    /**
+     * @return The most samples {@link #decode} can produce from an encoded payload of {@code bytes} bytes.
+     */
+    int getDecodedSamples(int bytes);
+
+    /**
+     * Encodes {@code samples} samples starting at {@code pcm[pcmOffset]}.
+     * @return The number of bytes written to {@code out}.
+     */
+    int encode(short[] pcm, int pcmOffset, int samples, byte[] out, int outOffset);
+
+    /**
+     * Decodes {@code length} bytes starting at {@code in[offset]}.
+     * @return The number of samples written to {@code pcm}.
+     */
+    int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset);
+}
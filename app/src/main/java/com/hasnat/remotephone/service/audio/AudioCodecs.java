@@ -0,0 +1,89 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Registry of the {@link AudioCodec}s this build supports, and codec negotiation.
+ * <p>
+ * The client offers codec names in order of preference with {@code AUDIO_READY} and the host
+ * picks the first one it supports. Receivers look codecs up by the id in each frame header, so
+ * a stream can switch codec between frames.
+ */
+public final class AudioCodecs {
+    private static final AudioCodec[] BY_ID = new AudioCodec[256];
+    private static final List<AudioCodec> ALL = new ArrayList<>();
+
+    static {
+        // Registration order is the default preference order.
+        register(G711Codec.muLaw());
+        register(G711Codec.aLaw());
+        register(new ImaAdpcmCodec());
+        register(new PcmCodec());
+    }
+
+    private AudioCodecs() {
+    }
+
+    private static void register(AudioCodec codec) {
+        if (BY_ID[codec.getId()] != null) {
+            throw new IllegalStateException("Duplicate audio codec id " + codec.getId());
+        }
+        BY_ID[codec.getId()] = codec;
+        ALL.add(codec);
+    }
+
+    /**
+     * @return The codec for a frame header's codec id, or {@code null} if unknown.
+     */
+    public static AudioCodec byId(int id) {
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+
+    /**
+     * @return The codec with the given negotiation name, or {@code null} if unknown.
+     */
+    public static AudioCodec byName(String name) {
+        for (AudioCodec codec : ALL) {
+            if (codec.getName().equalsIgnoreCase(name)) return codec;
+        }
+        return null;
+    }
+
+    /**
+     * @return The names of all supported codecs, most preferred first.
+     */
+    public static List<String> supportedNames() {
+        List<String> names = new ArrayList<>();
+        for (AudioCodec codec : ALL) {
+            names.add(codec.getName());
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return The supported codec names with {@code preferred} moved to the front, if it is supported.
+     */
+    public static List<String> supportedNames(String preferred) {
+        List<String> names = new ArrayList<>(supportedNames());
+        AudioCodec codec = preferred != null ? byName(preferred) : null;
+        if (codec != null) {
+            names.remove(codec.getName());
+            names.add(0, codec.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Picks the first offered codec that is supported, falling back to uncompressed PCM,
+     * which every peer understands.
+     */
+    public static AudioCodec negotiate(List<String> offered) {
+        for (String name : offered) {
+            AudioCodec codec = byName(name);
+            if (codec != null) return codec;
+        }
+        return BY_ID[AudioFrame.CODEC_PCM_16BIT];
+    }
+}
@@ -0,0 +1,219 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Send-only {@link AudioTransport} that delivers every frame to any number of subscribers, so
+ * the host captures and encodes a call's audio once however many clients listen to it.
+ * <p>
+ * Each subscriber has its own bounded queue and sending task. {@link #send} only copies the
+ * frame into each queue and never blocks, so a subscriber whose network is slow falls behind
+ * on its own: when its queue is full the oldest frame is dropped, which keeps its delay bounded
+ * and looks like loss to its jitter buffer. A subscriber whose transport fails is removed.
+ * <p>
+ * Queued frames are preallocated, and the subscriber list is an array replaced on change, so
+ * sending does not allocate. Frames from the subscribers are read from their own transports;
+ * {@link #receive} always reports the end of the stream.
+ */
+public class AudioFanout implements AudioTransport {
+    /** Frames a subscriber may fall behind before its oldest are dropped. */
+    public static final int DEFAULT_QUEUE_FRAMES = 8;
+
+    private final ExecutorService senders;
+    private final int queueFrames;
+    private final Object lock = new Object();
+    private volatile Subscriber[] subscribers = new Subscriber[0];
+    private boolean closed; // guarded by lock
+
+    /**
+     * @param senders Runs one sending task per subscriber for as long as it is subscribed.
+     */
+    public AudioFanout(ExecutorService senders) {
+        this(senders, DEFAULT_QUEUE_FRAMES);
+    }
+
+    public AudioFanout(ExecutorService senders, int queueFrames) {
+        this.senders = senders;
+        this.queueFrames = queueFrames;
+    }
+
+    /**
+     * Starts delivering frames to {@code transport}; it is closed when it is unsubscribed.
+     * @return The subscription, or {@code null} if the fan-out is already closed; the transport is closed then.
+     */
+    public Subscriber subscribe(AudioTransport transport) {
+        Subscriber subscriber = new Subscriber(transport, queueFrames);
+        synchronized (lock) {
+            if (closed) {
+                transport.close();
+                return null;
+            }
+            Subscriber[] grown = new Subscriber[subscribers.length + 1];
+            System.arraycopy(subscribers, 0, grown, 0, subscribers.length);
+            grown[subscribers.length] = subscriber;
+            subscribers = grown;
+        }
+        senders.execute(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * Stops delivering frames to {@code subscriber} and closes its transport.
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        synchronized (lock) {
+            Subscriber[] current = subscribers;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscriber) {
+                    Subscriber[] shrunk = new Subscriber[current.length - 1];
+                    System.arraycopy(current, 0, shrunk, 0, i);
+                    System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                    subscribers = shrunk;
+                    break;
+                }
+            }
+        }
+        subscriber.stop();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.length;
+    }
+
+    /**
+     * Queues a copy of {@code frame} for every subscriber.
+     */
+    @Override
+    public void send(AudioFrame frame) {
+        Subscriber[] current = subscribers;
+        for (Subscriber subscriber : current) {
+            subscriber.offer(frame);
+        }
+    }
+
+    @Override
+    public boolean receive(AudioFrame frame) {
+        return false;
+    }
+
+    /**
+     * Unsubscribes everyone; later subscriptions are refused.
+     */
+    @Override
+    public void close() {
+        Subscriber[] current;
+        synchronized (lock) {
+            closed = true;
+            current = subscribers;
+            subscribers = new Subscriber[0];
+        }
+        for (Subscriber subscriber : current) {
+            subscriber.stop();
+        }
+    }
+
+    /**
+     * One subscriber's queue and the task that drains it into its transport.
+     */
+    public class Subscriber implements Runnable {
+        private final AudioTransport transport;
+        private final AudioFrame[] queue;
+        private final AudioFrame sending = new AudioFrame();
+        // Guarded by the subscriber.
+        private int head;
+        private int size;
+        private boolean stopped;
+
+        private volatile long sentCount;
+        private volatile long droppedCount;
+        private volatile IOException error;
+
+        Subscriber(AudioTransport transport, int capacity) {
+            this.transport = transport;
+            this.queue = new AudioFrame[capacity];
+            for (int i = 0; i < capacity; i++) {
+                queue[i] = new AudioFrame();
+            }
+        }
+
+        public AudioTransport getTransport() {
+            return transport;
+        }
+
+        synchronized void offer(AudioFrame frame) {
+            if (stopped) return;
+            if (size == queue.length) {
+                // The subscriber is behind: the oldest frame is worth least.
+                head = (head + 1) % queue.length;
+                size--;
+                droppedCount++;
+            }
+            queue[(head + size) % queue.length].copyFrom(frame);
+            size++;
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            if (stopped) return;
+            stopped = true;
+            size = 0;
+            notifyAll();
+            transport.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (size == 0 && !stopped) {
+                            wait();
+                        }
+                        if (stopped) return;
+                        sending.copyFrom(queue[head]);
+                        head = (head + 1) % queue.length;
+                        size--;
+                    }
+                    transport.send(sending);
+                    sentCount++;
+                }
+            } catch (IOException e) {
+                error = e;
+                unsubscribe(this);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return Whether the subscriber still receives frames.
+         */
+        public synchronized boolean isSubscribed() {
+            return !stopped;
+        }
+
+        public long getSentCount() {
+            return sentCount;
+        }
+
+        /**
+         * @return How many frames were dropped because the subscriber fell behind.
+         */
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        /**
+         * @return The error that ended the subscription, or {@code null}.
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Subscriber{sent=" + sentCount + ", dropped=" + droppedCount + "}";
+        }
+    }
+}
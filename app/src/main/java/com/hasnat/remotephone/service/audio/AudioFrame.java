@@ -0,0 +1,112 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * A single audio frame as carried between host and client: the header fields of the wire
+ * format plus the (possibly encoded) audio payload.
+ * Instances are mutable so that the streaming loops can reuse one frame for every read.
+ */
+public class AudioFrame {
+    /** Codec id for raw 16-bit little-endian mono PCM, the format AudioRecord produces. */
+    public static final int CODEC_PCM_16BIT = 0;
+    /** Flag for a frame without audio, sent only so the receiver learns the sender's address. */
+    public static final int FLAG_PROBE = 0x01;
+    /**
+     * Flag for a silence descriptor sent during discontinuous transmission: the sender stopped
+     * sending audio and the payload is a single byte with the noise level in -dBov (RFC 3389).
+     */
+    public static final int FLAG_SID = 0x02;
+    /** Flag for a parity frame of {@link FecAudioTransport}; it protects the frames before it and carries no audio itself. */
+    public static final int FLAG_FEC = 0x04;
+    /**
+     * Flag for audio sampled at half the session's wire rate, sent by an adaptive sender while
+     * the link is congested (see {@link AudioRateController}); the receiver upsamples it.
+     */
+    public static final int FLAG_HALF_RATE = 0x08;
+    /** Largest payload a frame can carry (100 ms of 16 kHz 16-bit mono PCM fits comfortably). */
+    public static final int MAX_PAYLOAD_SIZE = 4096;
+
+    private int sequenceNumber;
+    private long captureTimeMicros;
+    private int codecId = CODEC_PCM_16BIT;
+    private int flags;
+    private final byte[] payload = new byte[MAX_PAYLOAD_SIZE];
+    private int payloadLength;
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(int sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * @return The sender's monotonic clock, in microseconds, at which the first sample was captured.
+     */
+    public long getCaptureTimeMicros() {
+        return captureTimeMicros;
+    }
+
+    public void setCaptureTimeMicros(long captureTimeMicros) {
+        this.captureTimeMicros = captureTimeMicros;
+    }
+
+    public int getCodecId() {
+        return codecId;
+    }
+
+    public void setCodecId(int codecId) {
+        this.codecId = codecId;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public void setFlags(int flags) {
+        this.flags = flags;
+    }
+
+    /**
+     * @return The backing payload array. Only the first {@link #getPayloadLength()} bytes are valid.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public void setPayloadLength(int payloadLength) {
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Invalid payload length: " + payloadLength);
+        }
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Copies the given bytes into this frame's payload.
+     */
+    public void setPayload(byte[] src, int offset, int length) {
+        setPayloadLength(length);
+        System.arraycopy(src, offset, payload, 0, length);
+    }
+
+    /**
+     * Copies all header fields and the payload of another frame into this one.
+     */
+    public void copyFrom(AudioFrame other) {
+        sequenceNumber = other.sequenceNumber;
+        captureTimeMicros = other.captureTimeMicros;
+        codecId = other.codecId;
+        flags = other.flags;
+        setPayload(other.payload, 0, other.payloadLength);
+    }
+
+    @Override
+    public String toString() {
+        return "AudioFrame{seq=" + sequenceNumber + ", ts=" + captureTimeMicros + ", codec=" + codecId
+                + ", flags=" + flags + ", len=" + payloadLength + "}";
+    }
+}
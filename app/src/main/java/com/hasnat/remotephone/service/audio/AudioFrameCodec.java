@@ -0,0 +1,149 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes {@link AudioFrame}s to and from the audio wire format.
+ *
+ * <pre>
+ *  offset  size  field
+ *  0       1     version ({@link #VERSION})
+ *  1       1     codec id
+ *  2       1     flags
+ *  3       1     reserved, always 0
+ *  4       4     sequence number
+ *  8       8     capture timestamp, sender monotonic clock in microseconds
+ *  16      2     payload length (unsigned)
+ *  18      n     payload
+ * </pre>
+ * All multi-byte header fields are big-endian. The payload is copied as-is.
+ */
+public final class AudioFrameCodec {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 18;
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + AudioFrame.MAX_PAYLOAD_SIZE;
+
+    private AudioFrameCodec() {
+    }
+
+    /**
+     * Writes the header of the given frame into {@code dst} starting at {@code offset}.
+     * @return The number of bytes written, always {@link #HEADER_SIZE}.
+     */
+    public static int encodeHeader(AudioFrame frame, byte[] dst, int offset) {
+        int seq = frame.getSequenceNumber();
+        long ts = frame.getCaptureTimeMicros();
+        int len = frame.getPayloadLength();
+        dst[offset] = (byte) VERSION;
+        dst[offset + 1] = (byte) frame.getCodecId();
+        dst[offset + 2] = (byte) frame.getFlags();
+        dst[offset + 3] = 0;
+        dst[offset + 4] = (byte) (seq >>> 24);
+        dst[offset + 5] = (byte) (seq >>> 16);
+        dst[offset + 6] = (byte) (seq >>> 8);
+        dst[offset + 7] = (byte) seq;
+        for (int i = 0; i < 8; i++) {
+            dst[offset + 8 + i] = (byte) (ts >>> (56 - 8 * i));
+        }
+        dst[offset + 16] = (byte) (len >>> 8);
+        dst[offset + 17] = (byte) len;
+        return HEADER_SIZE;
+    }
+
+    /**
+     * Writes the complete frame (header and payload) into {@code dst} starting at {@code offset}.
+     * @return The number of bytes written.
+     */
+    public static int encode(AudioFrame frame, byte[] dst, int offset) {
+        encodeHeader(frame, dst, offset);
+        System.arraycopy(frame.getPayload(), 0, dst, offset + HEADER_SIZE, frame.getPayloadLength());
+        return HEADER_SIZE + frame.getPayloadLength();
+    }
+
+    /**
+     * Writes the complete frame at the buffer's current position, advancing it.
+     */
+    public static void encode(AudioFrame frame, ByteBuffer dst) {
+        dst.put((byte) VERSION)
+                .put((byte) frame.getCodecId())
+                .put((byte) frame.getFlags())
+                .put((byte) 0)
+                .putInt(frame.getSequenceNumber())
+                .putLong(frame.getCaptureTimeMicros())
+                .putShort((short) frame.getPayloadLength())
+                .put(frame.getPayload(), 0, frame.getPayloadLength());
+    }
+
+    /**
+     * Parses a header from {@code src} into {@code frame}. The payload itself is not copied.
+     * @return The payload length announced by the header.
+     * @throws ProtocolException If the header is not a valid frame header.
+     */
+    public static int decodeHeader(byte[] src, int offset, AudioFrame frame) throws ProtocolException {
+        int version = src[offset] & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported audio frame version: " + version);
+        }
+        int len = ((src[offset + 16] & 0xFF) << 8) | (src[offset + 17] & 0xFF);
+        if (len > AudioFrame.MAX_PAYLOAD_SIZE) {
+            throw new ProtocolException("Audio frame payload too large: " + len);
+        }
+        long ts = 0;
+        for (int i = 0; i < 8; i++) {
+            ts = (ts << 8) | (src[offset + 8 + i] & 0xFF);
+        }
+        frame.setCodecId(src[offset + 1] & 0xFF);
+        frame.setFlags(src[offset + 2] & 0xFF);
+        frame.setSequenceNumber(((src[offset + 4] & 0xFF) << 24) | ((src[offset + 5] & 0xFF) << 16)
+                | ((src[offset + 6] & 0xFF) << 8) | (src[offset + 7] & 0xFF));
+        frame.setCaptureTimeMicros(ts);
+        return len;
+    }
+
+    /**
+     * Decodes a complete frame from {@code src} starting at {@code offset}.
+     * @return The number of bytes consumed.
+     * @throws ProtocolException If the data is malformed or truncated.
+     */
+    public static int decode(byte[] src, int offset, int length, AudioFrame frame) throws ProtocolException {
+        if (length < HEADER_SIZE) {
+            throw new ProtocolException("Truncated audio frame header: " + length + " bytes");
+        }
+        int len = decodeHeader(src, offset, frame);
+        if (length < HEADER_SIZE + len) {
+            throw new ProtocolException("Truncated audio frame payload: " + (length - HEADER_SIZE) + " < " + len);
+        }
+        frame.setPayload(src, offset + HEADER_SIZE, len);
+        return HEADER_SIZE + len;
+    }
+
+    /**
+     * Decodes a complete frame starting at the buffer's current position, advancing it.
+     * @throws ProtocolException If the data is malformed or truncated.
+     */
+    public static void decode(ByteBuffer src, AudioFrame frame) throws ProtocolException {
+        if (src.remaining() < HEADER_SIZE) {
+            throw new ProtocolException("Truncated audio frame header: " + src.remaining() + " bytes");
+        }
+        int version = src.get() & 0xFF;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported audio frame version: " + version);
+        }
+        int codecId = src.get() & 0xFF;
+        int flags = src.get() & 0xFF;
+        src.get();
+        int seq = src.getInt();
+        long ts = src.getLong();
+        int len = src.getShort() & 0xFFFF;
+        if (len > AudioFrame.MAX_PAYLOAD_SIZE || src.remaining() < len) {
+            throw new ProtocolException("Invalid audio frame payload length: " + len);
+        }
+        frame.setCodecId(codecId);
+        frame.setFlags(flags);
+        frame.setSequenceNumber(seq);
+        frame.setCaptureTimeMicros(ts);
+        frame.setPayloadLength(len);
+        src.get(frame.getPayload(), 0, len);
+    }
+}
@@ -0,0 +1,55 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads framed audio from a byte stream such as the audio socket.
+ * <p>
+ * The reader is resumable: if the underlying stream throws (for example a
+ * {@link java.net.SocketTimeoutException} from {@code setSoTimeout}) in the middle of a frame,
+ * the bytes read so far are kept by the reader and the next call to {@link #read(AudioFrame)}
+ * continues where it left off, so the stream never loses frame alignment. That call may pass
+ * a different frame: the payload is only copied into the caller's frame once it is complete.
+ */
+public class AudioFrameReader {
+    private final InputStream in;
+    private final byte[] header = new byte[AudioFrameCodec.HEADER_SIZE];
+    private final byte[] payload = new byte[AudioFrame.MAX_PAYLOAD_SIZE];
+    private int headerRead;
+    private int payloadRead;
+    private int payloadLength = -1;
+
+    public AudioFrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next complete frame into {@code frame}.
+     * @return {@code true} if a frame was read, {@code false} on end of stream.
+     * @throws java.net.ProtocolException If the stream does not contain valid frames.
+     */
+    public boolean read(AudioFrame frame) throws IOException {
+        while (headerRead < AudioFrameCodec.HEADER_SIZE) {
+            int n = in.read(header, headerRead, AudioFrameCodec.HEADER_SIZE - headerRead);
+            if (n == -1) return false;
+            headerRead += n;
+        }
+        if (payloadLength < 0) {
+            payloadLength = AudioFrameCodec.decodeHeader(header, 0, frame);
+            payloadRead = 0;
+        }
+        while (payloadRead < payloadLength) {
+            int n = in.read(payload, payloadRead, payloadLength - payloadRead);
+            if (n == -1) return false;
+            payloadRead += n;
+        }
+        // Re-applied, as the caller may have touched the frame or passed another between partial reads.
+        AudioFrameCodec.decodeHeader(header, 0, frame);
+        System.arraycopy(payload, 0, frame.getPayload(), 0, payloadLength);
+        frame.setPayloadLength(payloadLength);
+        headerRead = 0;
+        payloadLength = -1;
+        return true;
+    }
+}
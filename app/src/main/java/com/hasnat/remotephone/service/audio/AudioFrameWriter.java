@@ -0,0 +1,27 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes framed audio to a byte stream such as the audio socket.
+ * Each frame goes out in a single write call so a frame is never split across TCP segments
+ * by the writer itself.
+ */
+public class AudioFrameWriter {
+    private final OutputStream out;
+    private final byte[] scratch = new byte[AudioFrameCodec.MAX_FRAME_SIZE];
+
+    public AudioFrameWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Encodes and writes one frame, then flushes the stream.
+     */
+    public void write(AudioFrame frame) throws IOException {
+        int n = AudioFrameCodec.encode(frame, scratch, 0);
+        out.write(scratch, 0, n);
+        out.flush();
+    }
+}
@@ -0,0 +1,154 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Mixes the microphones of several clients into the one stream the host plays into the call.
+ * <p>
+ * Each source is a stream with its own {@link JitterBuffer} and {@link AudioPlayout}, so each is
+ * delayed by just enough for its own network path; once per frame period {@link #mix} takes the
+ * next frame from every source, which lines them up in time. Sources that produce fewer
+ * samples than the others are padded with silence.
+ * <p>
+ * Mixing is fixed point: each source is scaled by its gain in Q12 and summed in 32 bits. Where
+ * the sum approaches full scale a soft knee compresses it instead of letting it wrap or clip
+ * hard, so several loud talkers at once sound loud rather than broken. Below the knee, samples
+ * pass unchanged.
+ * <p>
+ * Does not allocate after construction. {@link #mix} must be driven by a single thread;
+ * sources can be added and removed from any thread.
+ */
+public class AudioMixer {
+    /** The most sources one mixer takes. */
+    public static final int MAX_SOURCES = 8;
+    static final int GAIN_SHIFT = 12;
+    /** A gain of 1.0 in the mixer's fixed-point format. */
+    public static final int UNITY_GAIN = 1 << GAIN_SHIFT;
+    private static final int MAX_GAIN = 8 * UNITY_GAIN;
+    /** Magnitude above which the sum is compressed. */
+    static final int KNEE = 24576;
+    private static final int HEADROOM = Short.MAX_VALUE - KNEE;
+
+    /**
+     * A stream to be mixed; produces one frame period of samples per call, like {@link AudioPlayout#next}.
+     */
+    public interface Input {
+        int next(short[] pcm);
+    }
+
+    private final short[] scratch;
+    private final int[] sum;
+    private final Object lock = new Object();
+    private volatile Source[] sources = new Source[0];
+
+    /**
+     * @param maxFrameSamples The largest number of samples a source may produce per frame period.
+     */
+    public AudioMixer(int maxFrameSamples) {
+        scratch = new short[maxFrameSamples];
+        sum = new int[maxFrameSamples];
+    }
+
+    /**
+     * @return The new source, at unity gain, or {@code null} if the mixer already has {@link #MAX_SOURCES}.
+     */
+    public Source addSource(Input input) {
+        synchronized (lock) {
+            Source[] current = sources;
+            if (current.length == MAX_SOURCES) return null;
+            Source source = new Source(input);
+            Source[] grown = new Source[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = source;
+            sources = grown;
+            return source;
+        }
+    }
+
+    public void removeSource(Source source) {
+        synchronized (lock) {
+            Source[] current = sources;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == source) {
+                    Source[] shrunk = new Source[current.length - 1];
+                    System.arraycopy(current, 0, shrunk, 0, i);
+                    System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                    sources = shrunk;
+                    return;
+                }
+            }
+        }
+    }
+
+    public int getSourceCount() {
+        return sources.length;
+    }
+
+    /**
+     * Takes the next frame from every source and mixes them.
+     * @param out Receives the mix; must hold {@code maxFrameSamples}.
+     * @return The number of samples written, the longest of the sources' frames; 0 without sources.
+     */
+    public int mix(short[] out) {
+        Source[] current = sources;
+        int length = 0;
+        for (Source source : current) {
+            int n = Math.min(source.input.next(scratch), scratch.length);
+            for (int i = length; i < n; i++) {
+                sum[i] = 0;
+            }
+            if (n > length) length = n;
+            int gain = source.gain;
+            if (gain == UNITY_GAIN) {
+                for (int i = 0; i < n; i++) {
+                    sum[i] += scratch[i];
+                }
+            } else if (gain != 0) {
+                for (int i = 0; i < n; i++) {
+                    sum[i] += (scratch[i] * gain) >> GAIN_SHIFT;
+                }
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            out[i] = limit(sum[i]);
+        }
+        return length;
+    }
+
+    /**
+     * Maps a sum of samples into 16 bits: unchanged up to the knee, then compressed so that it
+     * approaches but never reaches full scale.
+     */
+    static short limit(int x) {
+        if (x > KNEE) {
+            long over = x - KNEE;
+            return (short) (KNEE + over * HEADROOM / (over + HEADROOM));
+        }
+        if (x < -KNEE) {
+            long over = -KNEE - (long) x;
+            return (short) -(KNEE + over * HEADROOM / (over + HEADROOM));
+        }
+        return (short) x;
+    }
+
+    /**
+     * One stream in the mix.
+     */
+    public static class Source {
+        private final Input input;
+        private volatile int gain = UNITY_GAIN;
+
+        Source(Input input) {
+            this.input = input;
+        }
+
+        /**
+         * @param gain The factor this source is scaled by, from 0 (muted) to 8.
+         */
+        public void setGain(float gain) {
+            this.gain = Math.max(0, Math.min(MAX_GAIN, Math.round(gain * UNITY_GAIN)));
+        }
+
+        public float getGain() {
+            return (float) gain / UNITY_GAIN;
+        }
+    }
+}
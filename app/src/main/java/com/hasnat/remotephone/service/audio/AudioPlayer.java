@@ -0,0 +1,124 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+
+/**
+ * Playout side of a call: once per frame period takes the next frame of audio, a single
+ * {@link AudioPlayout} or an {@link AudioMixer} of several, resamples it from the wire rate to
+ * the sink's rate and writes it to an {@link AudioSink}, whose blocking write paces the loop.
+ * <p>
+ * Runs until {@link #stop()} is called, the sink fails, or the stream ends: its receiver has
+ * finished and its playout has drained the jitter buffer. Does not allocate after
+ * construction; the sink is left open for the caller to close.
+ */
+public class AudioPlayer implements Runnable {
+
+    /**
+     * Called on the playout thread after each frame is written, e.g. to send keepalives at the frame rate.
+     */
+    public interface FrameListener {
+        void onFramePlayed(long nowMicros) throws IOException;
+    }
+
+    private final AudioMixer.Input input;
+    private final AudioPlayout playout;
+    private final AudioReceiver receiver;
+    private final AudioSink sink;
+    private final AudioCallStats stats;
+    private final Resampler resampler;
+    private CallRecorder recorder;
+    private int recorderChannel;
+    private FrameListener listener;
+    private volatile boolean running = true;
+    private volatile boolean finished;
+    private volatile IOException error;
+
+    /**
+     * Plays one stream.
+     */
+    public AudioPlayer(AudioPlayout playout, AudioReceiver receiver, AudioSink sink, int wireRate, AudioCallStats stats) {
+        this(playout::next, playout, receiver, sink, wireRate, stats);
+    }
+
+    /**
+     * @param input What is played, e.g. a mixer that includes {@code playout}.
+     * @param playout With {@code receiver}, the stream whose end ends the loop.
+     * @param stats Records the depth of the sink's queue; may be {@code null}.
+     */
+    public AudioPlayer(AudioMixer.Input input, AudioPlayout playout, AudioReceiver receiver, AudioSink sink, int wireRate,
+                       AudioCallStats stats) {
+        this.input = input;
+        this.playout = playout;
+        this.receiver = receiver;
+        this.sink = sink;
+        this.stats = stats;
+        this.resampler = new Resampler(wireRate, sink.getSampleRate());
+    }
+
+    /**
+     * Also records every frame played on {@code channel} of {@code recorder}.
+     */
+    public void setRecorder(CallRecorder recorder, int channel) {
+        this.recorder = recorder;
+        this.recorderChannel = channel;
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        short[] pcm = new short[AudioFrame.MAX_PAYLOAD_SIZE]; // compressed frames decode to more samples than their byte count
+        short[] devicePcm = new short[resampler.getMaxOutputSamples(pcm.length)];
+        int deviceRate = sink.getSampleRate();
+        long samplesWritten = 0;
+        try {
+            sink.start();
+            while (running && !Thread.currentThread().isInterrupted()) {
+                int samples = input.next(pcm);
+                if (recorder != null) recorder.write(recorderChannel, pcm, 0, samples);
+                if (playout.getLastStatus() == JitterBuffer.EMPTY && receiver.isFinished()) break;
+                int deviceSamples = resampler.process(pcm, 0, samples, devicePcm, 0);
+                sink.write(devicePcm, 0, deviceSamples);
+                samplesWritten += deviceSamples;
+                if (stats != null) {
+                    long queued = samplesWritten - sink.getPlayedSamples();
+                    stats.recordPlayoutQueue(queued * 1_000_000L / deviceRate);
+                }
+                if (listener != null) listener.onFramePlayed(System.nanoTime() / 1000);
+            }
+        } catch (IOException e) {
+            if (running) error = e;
+        } finally {
+            finished = true;
+        }
+    }
+
+    /**
+     * Asks the loop to exit after the frame being played.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return Whether the loop has exited.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return The I/O error that ended the loop, or {@code null} if it ended normally.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioPlayer{" + resampler + ", concealed " + playout.getConcealedFrameCount() + " frames, comfort noise for "
+                + playout.getComfortNoiseFrameCount() + ", " + playout.getDriftCompensator() + "}";
+    }
+}
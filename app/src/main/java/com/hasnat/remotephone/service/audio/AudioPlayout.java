@@ -0,0 +1,177 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.util.Arrays;
+
+/**
+ * Playout side of one stream: once per frame period, takes the next frame from a
+ * {@link JitterBuffer} and turns it into PCM for the audio device.
+ * <p>
+ * Frames are decoded with the codec named in their header. Lost, late and undecodable frames
+ * are concealed by a {@link PacketLossConcealer}; silent periods announced by SID frames are
+ * filled by a {@link ComfortNoiseGenerator}; before the first frame the output is silence.
+ * Comfort noise passes through the concealer's history as well, so a loss right after a
+ * silent period continues the noise rather than the last word.
+ * <p>
+ * Output comes in periods of the negotiated frame size, whatever size the frames have: an
+ * adaptive sender (see {@link AudioRateController}) may switch to longer frames, and those are
+ * handed out over several calls, so a mixer polling several streams keeps them in step.
+ * {@link AudioFrame#FLAG_HALF_RATE Half-rate} frames are upsampled to the wire rate. A
+ * {@link ClockDriftCompensator} stretches decoded frames by a sample now and then, so the
+ * stream's latency holds steady even though the sender's clock and the playout clock differ.
+ * <p>
+ * Does not allocate after construction; must be driven by a single thread.
+ */
+public class AudioPlayout {
+    private final JitterBuffer jitterBuffer;
+    private final PacketLossConcealer concealer;
+    private final ComfortNoiseGenerator comfortNoise = new ComfortNoiseGenerator();
+    private final AudioFrame frame = new AudioFrame();
+    private final AudioCallStats stats;
+    private final ClockDriftCompensator driftCompensator;
+    private final int sampleRate;
+    private final int periodSamples;
+    private final short[] pending = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+    private int pendingOffset;
+    private int pendingCount;
+    private final Resampler halfRateUpsampler;
+    private final short[] halfRatePcm;
+    private boolean wasHalfRate;
+    private int frameSamples;
+    private int lastStatus = JitterBuffer.EMPTY;
+    private long comfortNoiseFrames;
+
+    /**
+     * @param frameSamples The negotiated frame size: the most {@link #next} returns at once, and
+     *                     the size of silence, comfort noise and concealment until frames of
+     *                     another size arrive.
+     */
+    public AudioPlayout(JitterBuffer jitterBuffer, int sampleRate, int frameSamples) {
+        this(jitterBuffer, sampleRate, frameSamples, null);
+    }
+
+    /**
+     * @param stats Records jitter buffer residency and concealment; may be {@code null}.
+     */
+    public AudioPlayout(JitterBuffer jitterBuffer, int sampleRate, int frameSamples, AudioCallStats stats) {
+        this.jitterBuffer = jitterBuffer;
+        this.stats = stats;
+        this.concealer = new PacketLossConcealer(sampleRate);
+        this.driftCompensator = new ClockDriftCompensator(jitterBuffer);
+        this.sampleRate = sampleRate;
+        this.periodSamples = frameSamples;
+        this.frameSamples = frameSamples;
+        if (sampleRate >= 16000) {
+            halfRateUpsampler = new Resampler(sampleRate / 2, sampleRate);
+            // Upsampled and stretched, the largest half-rate frame still fits the pending buffer.
+            halfRatePcm = new short[pending.length / 2 - 2];
+            halfRateUpsampler.process(halfRatePcm, 0, halfRatePcm.length, pending, 0);
+            halfRateUpsampler.reset();
+        } else {
+            halfRateUpsampler = null;
+            halfRatePcm = null;
+        }
+    }
+
+    /**
+     * Produces the audio for the next frame period.
+     * @param pcm Receives the samples; must hold one negotiated frame.
+     * @return The number of samples written to {@code pcm}: one negotiated frame.
+     */
+    public int next(short[] pcm) {
+        return next(pcm, System.nanoTime() / 1000);
+    }
+
+    /**
+     * @param nowMicros Local monotonic clock when the period starts playing.
+     */
+    public int next(short[] pcm, long nowMicros) {
+        int filled = 0;
+        while (filled < periodSamples) {
+            if (pendingCount == 0) {
+                pendingOffset = 0;
+                pendingCount = nextFrame(pending, nowMicros + filled * 1_000_000L / sampleRate);
+                if (pendingCount == 0) break;
+            }
+            int n = Math.min(pendingCount, periodSamples - filled);
+            System.arraycopy(pending, pendingOffset, pcm, filled, n);
+            pendingOffset += n;
+            pendingCount -= n;
+            filled += n;
+        }
+        return filled;
+    }
+
+    /**
+     * Produces the audio for the next frame, whatever its size.
+     */
+    private int nextFrame(short[] pcm, long nowMicros) {
+        int previousStatus = lastStatus;
+        int status = jitterBuffer.poll(frame);
+        lastStatus = status;
+        if (status == JitterBuffer.FRAME) {
+            long waitMicros = nowMicros - jitterBuffer.getPolledArrivalMicros();
+            if (stats != null) {
+                stats.recordJitterBufferResidency(waitMicros);
+            }
+            if (previousStatus == JitterBuffer.EMPTY || previousStatus == JitterBuffer.SILENCE) {
+                driftCompensator.restart(); // rebuffered, at a latency of its own
+            }
+            driftCompensator.onFramePlayed(waitMicros, nowMicros);
+            if ((frame.getFlags() & AudioFrame.FLAG_SID) != 0) {
+                comfortNoise.setLevel(DiscontinuousTransmission.readSidLevel(frame));
+                return playComfortNoise(pcm);
+            }
+            AudioCodec codec = AudioCodecs.byId(frame.getCodecId());
+            boolean halfRate = (frame.getFlags() & AudioFrame.FLAG_HALF_RATE) != 0;
+            short[] decoded = halfRate ? halfRatePcm : pcm;
+            if (codec != null && decoded != null && codec.getDecodedSamples(frame.getPayloadLength()) < decoded.length) {
+                int samples = codec.decode(frame.getPayload(), 0, frame.getPayloadLength(), decoded, 0);
+                if (halfRate) {
+                    if (!wasHalfRate) halfRateUpsampler.reset();
+                    samples = halfRateUpsampler.process(decoded, 0, samples, pcm, 0);
+                }
+                wasHalfRate = halfRate;
+                frameSamples = samples;
+                concealer.process(pcm, 0, frameSamples);
+                return driftCompensator.stretch(pcm, frameSamples);
+            }
+        } else if (status == JitterBuffer.SILENCE) {
+            return playComfortNoise(pcm);
+        } else if (status == JitterBuffer.EMPTY && jitterBuffer.getPlayedCount() == 0) {
+            // Still filling before the first frame: silence keeps the device pacing the loop.
+            Arrays.fill(pcm, 0, frameSamples, (short) 0);
+            return frameSamples;
+        }
+        // Lost frame, undecodable frame or underrun: synthesize a replacement from the recent signal.
+        if (stats != null) stats.recordConcealed();
+        concealer.conceal(pcm, 0, frameSamples);
+        return frameSamples;
+    }
+
+    private int playComfortNoise(short[] pcm) {
+        comfortNoise.generate(pcm, 0, frameSamples);
+        concealer.process(pcm, 0, frameSamples);
+        comfortNoiseFrames++;
+        return frameSamples;
+    }
+
+    /**
+     * @return The jitter buffer status behind the last {@link #next} call; {@link JitterBuffer#EMPTY}
+     * together with a finished receiver means the stream has ended.
+     */
+    public int getLastStatus() {
+        return lastStatus;
+    }
+
+    public ClockDriftCompensator getDriftCompensator() {
+        return driftCompensator;
+    }
+
+    public long getConcealedFrameCount() {
+        return concealer.getConcealedFrameCount();
+    }
+
+    public long getComfortNoiseFrameCount() {
+        return comfortNoiseFrames;
+    }
+}
@@ -0,0 +1,265 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Adapts the stream a sender encodes to how it arrives at the peer, as told by the peer's
+ * {@link AudioStatsReport}s, so that a call on a busy hotspot degrades step by step instead of
+ * collapsing.
+ * <p>
+ * The sender's options form a ladder of {@link Level}s, from the negotiated stream down to the
+ * cheapest one the peer can play: codecs with fewer bytes per sample, then
+ * {@value #MAX_FRAME_MILLIS} ms frames (half the packets, and so half the per-packet airtime
+ * and header overhead), then {@link AudioFrame#FLAG_HALF_RATE half-rate} audio. Each report
+ * is compared with the one before, RTCP style: the frames expected in the interval follow from
+ * the highest sequence numbers, and what did not arrive, or arrived too late to play, counts as
+ * lost. A congested interval (loss, jitter, or a round trip well above the call's fastest)
+ * steps the stream down at once. Stepping back up takes several clean intervals in a row; an
+ * upward step that meets congestion right away doubles the clean run the next one needs, so a
+ * link at its limit is not probed every few seconds.
+ * <p>
+ * Reports are taken on one thread; the sender reads the current level from any other.
+ */
+public class AudioRateController {
+    /** The longest frames the ladder steps to; longer ones would not fit a 48 kHz PCM frame. */
+    static final int MAX_FRAME_MILLIS = 40;
+    /** Loss in an interval, after FEC and counting late frames, that steps the stream down. */
+    static final double CONGESTED_LOSS = 0.05;
+    static final double CLEAN_LOSS = 0.01;
+    static final long CONGESTED_JITTER_MICROS = 40_000;
+    static final long CLEAN_JITTER_MICROS = 20_000;
+    /** Round trip above the call's fastest, i.e. time spent queued on the way. */
+    static final long CONGESTED_QUEUEING_MICROS = 100_000;
+    static final long CLEAN_QUEUEING_MICROS = 30_000;
+    static final int MIN_CLEAN_REPORTS = 3;
+    static final int MAX_CLEAN_REPORTS = 32;
+
+    /**
+     * One way of encoding the stream.
+     */
+    public static final class Level {
+        private final AudioCodec codec;
+        private final int frameMillis;
+        private final boolean halfRate;
+
+        public Level(AudioCodec codec, int frameMillis, boolean halfRate) {
+            this.codec = codec;
+            this.frameMillis = frameMillis;
+            this.halfRate = halfRate;
+        }
+
+        public AudioCodec getCodec() {
+            return codec;
+        }
+
+        public int getFrameMillis() {
+            return frameMillis;
+        }
+
+        /**
+         * @return Whether frames carry audio at half the wire rate, flagged {@link AudioFrame#FLAG_HALF_RATE}.
+         */
+        public boolean isHalfRate() {
+            return halfRate;
+        }
+
+        /**
+         * @return The bits per second this level sends while audio is active, frame headers included.
+         */
+        public int getBitrate(int wireRate) {
+            int samples = (halfRate ? wireRate / 2 : wireRate) * frameMillis / 1000;
+            return (AudioFrameCodec.HEADER_SIZE + codec.getMaxEncodedSize(samples)) * 8 * 1000 / frameMillis;
+        }
+
+        @Override
+        public String toString() {
+            return codec.getName() + "/" + frameMillis + "ms" + (halfRate ? "/half" : "");
+        }
+    }
+
+    private final Level[] ladder;
+    private volatile int level;
+    private volatile double lossFraction;
+    private volatile double residualLossFraction;
+
+    // Reporting thread only.
+    private AudioStatsReport previous;
+    private long minRoundTripMicros = Long.MAX_VALUE;
+    private int cleanReports;
+    private int requiredCleanReports = MIN_CLEAN_REPORTS;
+    private boolean probing;
+    private long downSteps;
+    private long upSteps;
+
+    /**
+     * @param ladder The levels to choose from, best first; the stream starts at the first.
+     */
+    public AudioRateController(List<Level> ladder) {
+        if (ladder.isEmpty()) {
+            throw new IllegalArgumentException("Empty ladder");
+        }
+        this.ladder = ladder.toArray(new Level[0]);
+    }
+
+    /**
+     * Builds the ladder for a session, starting from the negotiated codec and frame duration.
+     * @param playable The names of the codecs the peer can decode; uncompressed PCM always is.
+     */
+    public static AudioRateController forSession(AudioSessionParams params, AudioCodec codec, List<String> playable) {
+        List<Level> ladder = new ArrayList<>();
+        Level current = new Level(codec, params.getFrameMillis(), false);
+        ladder.add(current);
+        // Fewer bytes per sample: every smaller codec the peer plays, biggest first.
+        while (true) {
+            AudioCodec next = null;
+            for (String name : playable) {
+                AudioCodec candidate = AudioCodecs.byName(name);
+                if (candidate != null && bytesPerKilosample(candidate) < bytesPerKilosample(current.codec)
+                        && (next == null || bytesPerKilosample(candidate) > bytesPerKilosample(next))) {
+                    next = candidate;
+                }
+            }
+            if (next == null) break;
+            current = new Level(next, current.frameMillis, false);
+            ladder.add(current);
+        }
+        if (current.frameMillis < MAX_FRAME_MILLIS) {
+            current = new Level(current.codec, MAX_FRAME_MILLIS, false);
+            ladder.add(current);
+        }
+        if (params.getSampleRate() >= 16000) {
+            ladder.add(new Level(current.codec, current.frameMillis, true));
+        }
+        return new AudioRateController(ladder);
+    }
+
+    private static int bytesPerKilosample(AudioCodec codec) {
+        return codec.getMaxEncodedSize(1000);
+    }
+
+    /**
+     * Takes in the peer's latest report on the stream this side sends.
+     * @param roundTripMicros The round trip measured with this report (see
+     *                        {@link AudioCallStats#getLastRoundTripMicros()}); 0 if unknown.
+     * @return Whether the stream changed level.
+     */
+    public synchronized boolean onReport(AudioStatsReport report, long roundTripMicros) {
+        if (!report.hasHighestSequence()) {
+            return false; // Nothing has reached the peer yet.
+        }
+        AudioStatsReport last = previous;
+        previous = report;
+        if (roundTripMicros > 0) {
+            minRoundTripMicros = Math.min(minRoundTripMicros, roundTripMicros);
+        }
+        if (last == null || !last.hasHighestSequence()) {
+            return false;
+        }
+        long expected = report.getHighestSequence() - last.getHighestSequence();
+        long received = delta(report, last, AudioStatsReport.COUNT_RECEIVED);
+        if (expected <= 0 || received < 0) {
+            return false; // Silence, or the peer started over; the next interval will tell.
+        }
+        long recovered = Math.max(0, delta(report, last, AudioStatsReport.COUNT_RECOVERED));
+        long late = Math.max(0, delta(report, last, AudioStatsReport.COUNT_LATE));
+        lossFraction = fraction(expected - (received - recovered), expected);
+        double residualLoss = fraction(expected - received + late, expected);
+        residualLossFraction = residualLoss;
+        long jitter = report.getJitterMicros();
+        long queueing = roundTripMicros > 0 ? roundTripMicros - minRoundTripMicros : 0;
+
+        if (residualLoss > CONGESTED_LOSS || jitter > CONGESTED_JITTER_MICROS || queueing > CONGESTED_QUEUEING_MICROS) {
+            cleanReports = 0;
+            if (probing) {
+                requiredCleanReports = Math.min(2 * requiredCleanReports, MAX_CLEAN_REPORTS);
+                probing = false;
+            }
+            if (level < ladder.length - 1) {
+                level++;
+                downSteps++;
+                return true;
+            }
+            return false;
+        }
+        if (probing) {
+            // The step up held.
+            requiredCleanReports = Math.max(MIN_CLEAN_REPORTS, requiredCleanReports / 2);
+            probing = false;
+        }
+        if (residualLoss > CLEAN_LOSS || jitter > CLEAN_JITTER_MICROS || queueing > CLEAN_QUEUEING_MICROS) {
+            cleanReports = 0;
+            return false;
+        }
+        if (++cleanReports >= requiredCleanReports && level > 0) {
+            level--;
+            upSteps++;
+            cleanReports = 0;
+            probing = true;
+            return true;
+        }
+        return false;
+    }
+
+    private static long delta(AudioStatsReport report, AudioStatsReport last, int counter) {
+        return report.getCount(counter) - last.getCount(counter);
+    }
+
+    private static double fraction(long part, long whole) {
+        return Math.max(0, Math.min(1, (double) part / whole));
+    }
+
+    /**
+     * @return How the stream should be encoded now.
+     */
+    public Level getLevel() {
+        return ladder[level];
+    }
+
+    /**
+     * @return The position of the current level on the ladder; 0 is the negotiated stream.
+     */
+    public int getLevelIndex() {
+        return level;
+    }
+
+    public List<Level> getLadder() {
+        return Collections.unmodifiableList(Arrays.asList(ladder));
+    }
+
+    /**
+     * @return The longest frame duration on the ladder, for sizing capture buffers.
+     */
+    public int getMaxFrameMillis() {
+        int max = 0;
+        for (Level l : ladder) {
+            max = Math.max(max, l.frameMillis);
+        }
+        return max;
+    }
+
+    /**
+     * @return The fraction of frames lost on the way in the last interval, before FEC recovery;
+     * what {@link FecAudioTransport#reportLoss} expects.
+     */
+    public double getLossFraction() {
+        return lossFraction;
+    }
+
+    /**
+     * @return The fraction of frames in the last interval that could not be played: lost even
+     * after FEC recovery, or late.
+     */
+    public double getResidualLossFraction() {
+        return residualLossFraction;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "AudioRateController{%s (%d of %d), loss %.1f%%, %d down, %d up}",
+                ladder[level], level, ladder.length - 1, residualLossFraction * 100, downSteps, upSteps);
+    }
+}
@@ -0,0 +1,86 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Network side of a playout path: reads frames from an {@link AudioTransport} and puts them
+ * into a {@link JitterBuffer}, stamped with their arrival time. Runs until the transport is
+ * closed, the peer ends the stream, or {@link #stop()} is called.
+ * <p>
+ * Over a {@link FecAudioTransport}, the jitter buffer is kept at least one parity group deep,
+ * so that rebuilt frames are still in time for playout.
+ */
+public class AudioReceiver implements Runnable {
+    private final AudioTransport transport;
+    private final JitterBuffer jitterBuffer;
+    private final AudioCallStats stats;
+    private volatile boolean running = true;
+    private volatile boolean finished;
+    private volatile IOException error;
+
+    public AudioReceiver(AudioTransport transport, JitterBuffer jitterBuffer) {
+        this(transport, jitterBuffer, null);
+    }
+
+    /**
+     * @param stats Records the arrival of each frame; may be {@code null}.
+     */
+    public AudioReceiver(AudioTransport transport, JitterBuffer jitterBuffer, AudioCallStats stats) {
+        this.transport = transport;
+        this.jitterBuffer = jitterBuffer;
+        this.stats = stats;
+    }
+
+    @Override
+    public void run() {
+        AudioFrame frame = new AudioFrame();
+        FecAudioTransport fec = transport instanceof FecAudioTransport ? (FecAudioTransport) transport : null;
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                long recovered = fec != null ? fec.getRecoveredCount() : 0;
+                try {
+                    if (!transport.receive(frame)) break;
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if ((frame.getFlags() & AudioFrame.FLAG_PROBE) != 0) continue; // probes carry no audio
+                if (fec != null) {
+                    // One frame more than the group: its last frame and the parity arrive one after the other.
+                    int group = fec.getReceiveGroupSize();
+                    jitterBuffer.setDepthFloor(group > 0 ? group + 1 : 0);
+                }
+                long arrivalMicros = System.nanoTime() / 1000;
+                if (stats != null && (fec == null || fec.getRecoveredCount() == recovered)) {
+                    stats.recordArrival(frame, arrivalMicros);
+                }
+                jitterBuffer.put(frame, arrivalMicros);
+            }
+        } catch (IOException e) {
+            if (running) error = e;
+        } finally {
+            finished = true;
+        }
+    }
+
+    /**
+     * Asks the loop to exit; pair with closing the transport to unblock a pending receive.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return Whether the loop has exited, i.e. no more frames will be added to the buffer.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return The I/O error that ended the loop, or {@code null} if it ended normally.
+     */
+    public IOException getError() {
+        return error;
+    }
+}
@@ -0,0 +1,172 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+
+/**
+ * Capture side of a call: reads an {@link AudioSource} in frames of exactly the negotiated
+ * duration, whatever the device's buffer size, resamples each to the wire rate, encodes it and
+ * sends it as one {@link AudioFrame}. With DTX, silence is replaced by periodic SID frames.
+ * With an {@link AudioRateController}, each frame is encoded as the controller's current
+ * level says: codec, frame duration and half-rate audio can change from one frame to the next.
+ * Runs until the source ends, the transport fails or {@link #stop()} is called.
+ * <p>
+ * A sender can be {@link #setHeld(boolean) held} while the call is not yet answered: the source
+ * is started and read, so the microphone is primed and its buffer does not fill up with stale
+ * audio, but nothing is sent until the hold is released.
+ * <p>
+ * Does not allocate after construction; the source is left open for the caller to close.
+ */
+public class AudioSender implements Runnable {
+    private final AudioSource source;
+    private final AudioTransport transport;
+    private final AudioCodec codec;
+    private final AudioCallStats stats;
+    private final int wireRate;
+    private final int deviceRate;
+    private final Resampler resampler;
+    private final Resampler halfRateResampler;
+    private final DiscontinuousTransmission dtx;
+    private final AudioRateController.Level negotiated;
+    private AudioRateController rateController;
+    private CallRecorder recorder;
+    private int recorderChannel;
+    private volatile boolean running = true;
+    private volatile boolean held;
+    private volatile boolean finished;
+    private volatile IOException error;
+    private volatile long sentCount;
+
+    /**
+     * @param stats Records each frame sent; may be {@code null}.
+     */
+    public AudioSender(AudioSource source, AudioTransport transport, AudioCodec codec, AudioSessionParams params,
+                       AudioCallStats stats) {
+        this.source = source;
+        this.transport = transport;
+        this.codec = codec;
+        this.stats = stats;
+        this.wireRate = params.getSampleRate();
+        this.deviceRate = source.getSampleRate();
+        this.resampler = new Resampler(deviceRate, wireRate);
+        this.halfRateResampler = wireRate >= 16000 ? new Resampler(wireRate, wireRate / 2) : null;
+        this.negotiated = new AudioRateController.Level(codec, params.getFrameMillis(), false);
+        this.dtx = params.isDtx() ? new DiscontinuousTransmission(wireRate) : null;
+    }
+
+    /**
+     * Also records every captured frame, before DTX, on {@code channel} of {@code recorder}.
+     */
+    public void setRecorder(CallRecorder recorder, int channel) {
+        this.recorder = recorder;
+        this.recorderChannel = channel;
+    }
+
+    /**
+     * Encodes the stream as {@code controller} says, rather than always as negotiated.
+     */
+    public void setRateController(AudioRateController controller) {
+        this.rateController = controller;
+    }
+
+    /**
+     * While held, captured audio is dropped; the first frame captured after the hold is released
+     * is the first one sent.
+     */
+    public void setHeld(boolean held) {
+        this.held = held;
+    }
+
+    @Override
+    public void run() {
+        AudioRateController controller = rateController;
+        AudioFrame frame = new AudioFrame();
+        int maxFrameMillis = Math.max(negotiated.getFrameMillis(), controller != null ? controller.getMaxFrameMillis() : 0);
+        int maxDeviceSamples = deviceRate * maxFrameMillis / 1000;
+        short[] devicePcm = new short[maxDeviceSamples];
+        short[] pcm = new short[resampler.getMaxOutputSamples(maxDeviceSamples)];
+        short[] halfRatePcm = null;
+        if (controller != null) {
+            // Sizes the resamplers' history for the longest frame now rather than mid-call.
+            resampler.process(devicePcm, 0, maxDeviceSamples, pcm, 0);
+            resampler.reset();
+            if (halfRateResampler != null) {
+                halfRatePcm = new short[halfRateResampler.getMaxOutputSamples(pcm.length)];
+                halfRateResampler.process(pcm, 0, pcm.length, halfRatePcm, 0);
+            }
+        }
+        boolean wasHalfRate = false;
+        int seq = 0;
+        try {
+            source.start();
+            while (running && !Thread.currentThread().isInterrupted()) {
+                AudioRateController.Level level = controller != null ? controller.getLevel() : negotiated;
+                int read = source.read(devicePcm, 0, deviceRate * level.getFrameMillis() / 1000);
+                if (read < 0) break;
+                if (read == 0 || held) continue;
+                int n = resampler.process(devicePcm, 0, read, pcm, 0);
+                if (recorder != null) recorder.write(recorderChannel, pcm, 0, n);
+                int action = dtx != null ? dtx.process(pcm, 0, n) : DiscontinuousTransmission.SEND_AUDIO;
+                if (action == DiscontinuousTransmission.SUPPRESS) continue;
+                // The read returns once the frame is complete, so the first sample is one frame old.
+                long durationMicros = n * 1_000_000L / wireRate;
+                frame.setSequenceNumber(seq++);
+                frame.setCaptureTimeMicros(System.nanoTime() / 1000 - durationMicros);
+                AudioCodec frameCodec = level.getCodec();
+                frame.setCodecId(frameCodec.getId());
+                boolean halfRate = level.isHalfRate() && halfRatePcm != null;
+                if (action == DiscontinuousTransmission.SEND_SID) {
+                    dtx.writeSid(frame);
+                } else if (halfRate) {
+                    if (!wasHalfRate) halfRateResampler.reset();
+                    int half = halfRateResampler.process(pcm, 0, n, halfRatePcm, 0);
+                    frame.setFlags(AudioFrame.FLAG_HALF_RATE);
+                    frame.setPayloadLength(frameCodec.encode(halfRatePcm, 0, half, frame.getPayload(), 0));
+                } else {
+                    frame.setFlags(0);
+                    frame.setPayloadLength(frameCodec.encode(pcm, 0, n, frame.getPayload(), 0));
+                }
+                wasHalfRate = halfRate && action == DiscontinuousTransmission.SEND_AUDIO;
+                transport.send(frame);
+                sentCount++;
+                if (stats != null) stats.recordSent(frame, System.nanoTime() / 1000);
+            }
+        } catch (IOException e) {
+            if (running) error = e;
+        } finally {
+            finished = true;
+        }
+    }
+
+    /**
+     * Asks the loop to exit after the frame being captured.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return Whether the loop has exited.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return The I/O error that ended the loop, or {@code null} if it ended normally.
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    @Override
+    public String toString() {
+        AudioRateController controller = rateController;
+        return "AudioSender{" + (controller != null ? controller.toString() : codec.getName()) + ", " + resampler + (held ? ", held" : "") + ", sent " + sentCount
+                + (dtx != null ? " (" + dtx.getAudioFrameCount() + " audio, " + dtx.getSidFrameCount() + " SID, suppressed "
+                + dtx.getSuppressedFrameCount() + ")" : "") + "}";
+    }
+}
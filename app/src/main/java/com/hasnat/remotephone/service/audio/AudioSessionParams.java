@@ -0,0 +1,474 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Audio stream parameters negotiated over the control channel.
+ * <p>
+ * The client proposes parameters with {@code AUDIO_READY:<params>} and the host answers with
+ * the parameters it accepted in {@code START_AUDIO_BRIDGE:<params>}. Parameters are encoded as
+ * {@code key=value} pairs separated by {@code ;}. Unknown keys are ignored and missing keys
+ * keep their defaults, so a bare {@code AUDIO_READY} still means the original TCP stream
+ * of uncompressed PCM.
+ * <p>
+ * The client offers codecs with {@code codecs=<name>,<name>,...} in order of preference and
+ * the host answers with the one it chose in {@code codec=<name>}. Both directions use the
+ * frame duration in {@code frame=<ms>}: the client proposes one of
+ * {@link #SUPPORTED_FRAME_MILLIS} and the host confirms it or falls back to the default.
+ * {@code dtx=1} switches on discontinuous transmission in both directions; it is off unless
+ * both sides agree, since older receivers would play SID frames as audio.
+ * <p>
+ * The wire sample rate is negotiated like the codec: the client offers
+ * {@code rates=<hz>,<hz>,...} from {@link #SUPPORTED_SAMPLE_RATES} in order of preference and the
+ * host answers with {@code rate=<hz>}. Each side converts between the wire rate and its
+ * devices' native rate with a {@link Resampler}.
+ * <p>
+ * {@code transport=mux} carries the audio on the control connection itself, once the client has
+ * switched it to a {@code MultiplexedConnection}; there is no audio connection to open, and
+ * the stream behaves like TCP. Only clients whose connection switched propose it.
+ * <p>
+ * {@code fec=1} wraps a UDP transport in {@link FecAudioTransport} in both directions; like
+ * DTX it needs both sides to agree.
+ * <p>
+ * {@code adapt=1} lets each sender step its stream down while the peer's reports show loss or
+ * jitter (see {@link AudioRateController}): to a more compressed codec, longer frames, and
+ * {@link AudioFrame#FLAG_HALF_RATE half-rate} audio. It too needs both sides to agree, since
+ * older receivers cannot play half-rate frames.
+ * <p>
+ * The host names the session in its answer with {@code session=<hex token>}; the client
+ * quotes the token when it reattaches a new audio connection to the call (see
+ * {@link ResumableAudioTransport}).
+ * <p>
+ * A client that does not want to wait for the answer names the session itself in its
+ * proposal, and the host keeps that token. It computes the host's {@link #answer()} and
+ * streams with it right away: over TCP the proposal travels in the
+ * {@link ResumableAudioTransport#writeSessionHello hello} that opens the audio connection, and
+ * on a multiplexed connection the audio follows {@code AUDIO_READY} in order. It only checks
+ * the answer once it arrives (see {@link #agreesWith}). Older hosts issue their own token,
+ * and the client starts over with the plain handshake.
+ * <p>
+ * Once a call's audio runs, further clients join it: the host answers them with the running
+ * session's codec, rate, frame duration and DTX, sends them the same frames it sends the first
+ * client and mixes their microphones into the call (see {@link AudioMixer}). When the mixer is
+ * full, the host adds {@code listen=1} and the client does not send its microphone.
+ * <p>
+ * {@code prewarm=1} sets the bridge up before the call is answered, while it rings or is being
+ * dialled: connections, devices and streaming threads are ready, but each side holds its
+ * microphone until it learns the call went off-hook, so audio flows from the first frame after
+ * answering. The host answers with {@code prewarm=1} if it holds its side too; a client whose
+ * host does not takes the bridge down again and sets it up when the call starts.
+ */
+public class AudioSessionParams {
+    public static final String TRANSPORT_TCP = "tcp";
+    public static final String TRANSPORT_UDP = "udp";
+    public static final String TRANSPORT_MUX = "mux";
+    public static final int DEFAULT_FRAME_MILLIS = 20;
+    public static final int[] SUPPORTED_FRAME_MILLIS = {10, 20, 40};
+    /** The wire rate of peers that do not negotiate one. */
+    public static final int DEFAULT_SAMPLE_RATE = 16000;
+    public static final int[] SUPPORTED_SAMPLE_RATES = {8000, 16000, 48000};
+
+    private static final String KEY_TRANSPORT = "transport";
+    private static final String KEY_CODECS = "codecs";
+    private static final String KEY_CODEC = "codec";
+    private static final String KEY_FRAME = "frame";
+    private static final String KEY_DTX = "dtx";
+    private static final String KEY_RATES = "rates";
+    private static final String KEY_RATE = "rate";
+    private static final String KEY_FEC = "fec";
+    private static final String KEY_SESSION = "session";
+    private static final String KEY_LISTEN = "listen";
+    private static final String KEY_ADAPT = "adapt";
+    private static final String KEY_PREWARM = "prewarm";
+
+    private String transport = TRANSPORT_TCP;
+    private final List<String> codecs = new ArrayList<>();
+    private String codec = PcmCodec.NAME;
+    private int frameMillis = DEFAULT_FRAME_MILLIS;
+    private boolean dtx;
+    private final List<Integer> sampleRates = new ArrayList<>();
+    private int sampleRate = DEFAULT_SAMPLE_RATE;
+    private boolean fec;
+    private long sessionToken;
+    private boolean listenOnly;
+    private boolean adaptive;
+    private boolean prewarm;
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public boolean isDatagram() {
+        return TRANSPORT_UDP.equals(transport);
+    }
+
+    /**
+     * @return Whether the audio shares the multiplexed control connection.
+     */
+    public boolean isMultiplexed() {
+        return TRANSPORT_MUX.equals(transport);
+    }
+
+    /**
+     * @return The codec names offered by the client, most preferred first; empty if none were offered.
+     */
+    public List<String> getCodecs() {
+        return codecs;
+    }
+
+    public void setCodecs(List<String> codecs) {
+        this.codecs.clear();
+        this.codecs.addAll(codecs);
+    }
+
+    /**
+     * @return The codec name the host chose.
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @return The duration of every audio frame, in milliseconds.
+     */
+    public int getFrameMillis() {
+        return frameMillis;
+    }
+
+    /**
+     * Sets the frame duration; unsupported values select {@link #DEFAULT_FRAME_MILLIS}.
+     */
+    public void setFrameMillis(int frameMillis) {
+        this.frameMillis = isSupportedFrameMillis(frameMillis) ? frameMillis : DEFAULT_FRAME_MILLIS;
+    }
+
+    /**
+     * @return The number of samples in one frame at the given sample rate.
+     */
+    public int getFrameSamples(int sampleRate) {
+        return sampleRate * frameMillis / 1000;
+    }
+
+    /**
+     * @return Whether silent frames are replaced by periodic SID frames (see {@link DiscontinuousTransmission}).
+     */
+    public boolean isDtx() {
+        return dtx;
+    }
+
+    public void setDtx(boolean dtx) {
+        this.dtx = dtx;
+    }
+
+    /**
+     * @return Whether lost frames are protected with parity frames (see {@link FecAudioTransport}).
+     */
+    public boolean isFec() {
+        return fec;
+    }
+
+    public void setFec(boolean fec) {
+        this.fec = fec;
+    }
+
+    /**
+     * @return The token naming the audio session, or 0 if the host did not issue one.
+     */
+    public long getSessionToken() {
+        return sessionToken;
+    }
+
+    public void setSessionToken(long sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * @return Whether the client only listens to the call's audio, which another client talks on.
+     */
+    public boolean isListenOnly() {
+        return listenOnly;
+    }
+
+    public void setListenOnly(boolean listenOnly) {
+        this.listenOnly = listenOnly;
+    }
+
+    /**
+     * @return Whether senders adapt their stream to the peer's reports (see {@link AudioRateController}).
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @return Whether the bridge is set up ahead of the call and held until it is answered.
+     */
+    public boolean isPrewarm() {
+        return prewarm;
+    }
+
+    public void setPrewarm(boolean prewarm) {
+        this.prewarm = prewarm;
+    }
+
+    /**
+     * @return The parameters a host answers this proposal with when it starts a new bridge: the
+     * first codec and sample rate offered that are supported, parity only over UDP, and the
+     * proposal's frame duration, DTX, adaptation, pre-warming and session. The host issues a
+     * token if the proposal has none.
+     */
+    public AudioSessionParams answer() {
+        AudioSessionParams answer = new AudioSessionParams();
+        answer.transport = transport;
+        answer.codec = AudioCodecs.negotiate(codecs).getName();
+        answer.frameMillis = frameMillis;
+        answer.dtx = dtx;
+        answer.sampleRate = negotiateSampleRate(sampleRates);
+        // A stream never loses frames, so parity would only cost bandwidth.
+        answer.fec = fec && isDatagram();
+        answer.adaptive = adaptive;
+        answer.prewarm = prewarm;
+        answer.sessionToken = sessionToken;
+        return answer;
+    }
+
+    /**
+     * @return Whether {@code answer} describes the same streams as these parameters, so a
+     * bridge started with these before the answer arrived can carry on as it is.
+     */
+    public boolean agreesWith(AudioSessionParams answer) {
+        return transport.equals(answer.transport) && codec.equals(answer.codec) && frameMillis == answer.frameMillis
+                && dtx == answer.dtx && sampleRate == answer.sampleRate && fec == answer.fec && adaptive == answer.adaptive
+                && prewarm == answer.prewarm && listenOnly == answer.listenOnly && sessionToken == answer.sessionToken;
+    }
+
+    /**
+     * @return Whether a client that proposed these parameters can play the stream of a session
+     * running with {@code running}, as it is encoded.
+     */
+    public boolean canReceive(AudioSessionParams running) {
+        boolean codecOffered = PcmCodec.NAME.equalsIgnoreCase(running.codec); // every peer plays PCM
+        for (String name : codecs) {
+            codecOffered |= name.equalsIgnoreCase(running.codec);
+        }
+        boolean rateOffered = sampleRates.isEmpty() ? running.sampleRate == DEFAULT_SAMPLE_RATE
+                : sampleRates.contains(running.sampleRate);
+        // Receivers that did not ask for DTX would play SID frames as audio, and half-rate frames
+        // of an adaptive stream at twice their speed.
+        return codecOffered && rateOffered && (dtx || !running.dtx) && (adaptive || !running.adaptive);
+    }
+
+    /**
+     * @return The wire sample rates offered by the client, most preferred first; empty if none were offered.
+     */
+    public List<Integer> getSampleRates() {
+        return sampleRates;
+    }
+
+    public void setSampleRates(List<Integer> sampleRates) {
+        this.sampleRates.clear();
+        this.sampleRates.addAll(sampleRates);
+    }
+
+    /**
+     * @return The wire sample rate the host chose, in Hz.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Sets the wire sample rate; unsupported values select {@link #DEFAULT_SAMPLE_RATE}.
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = isSupportedSampleRate(sampleRate) ? sampleRate : DEFAULT_SAMPLE_RATE;
+    }
+
+    public static boolean isSupportedSampleRate(int sampleRate) {
+        for (int supported : SUPPORTED_SAMPLE_RATES) {
+            if (supported == sampleRate) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Every supported wire rate, with {@code preferred} first if it is supported.
+     */
+    public static List<Integer> supportedSampleRates(int preferred) {
+        List<Integer> rates = new ArrayList<>();
+        if (isSupportedSampleRate(preferred)) {
+            rates.add(preferred);
+        }
+        for (int rate : SUPPORTED_SAMPLE_RATES) {
+            if (rate != preferred) rates.add(rate);
+        }
+        return rates;
+    }
+
+    /**
+     * @return The first offered rate that is supported, or {@link #DEFAULT_SAMPLE_RATE} if there is none.
+     */
+    public static int negotiateSampleRate(List<Integer> offered) {
+        for (int rate : offered) {
+            if (isSupportedSampleRate(rate)) return rate;
+        }
+        return DEFAULT_SAMPLE_RATE;
+    }
+
+    public static boolean isSupportedFrameMillis(int frameMillis) {
+        for (int supported : SUPPORTED_FRAME_MILLIS) {
+            if (supported == frameMillis) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the parameter part of a handshake message.
+     * @param encoded The text after the command's colon; may be {@code null} or empty.
+     */
+    public static AudioSessionParams parse(String encoded) {
+        AudioSessionParams params = new AudioSessionParams();
+        if (encoded == null || encoded.isEmpty()) {
+            return params;
+        }
+        for (String pair : encoded.split(";")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            String key = pair.substring(0, eq).trim();
+            String value = pair.substring(eq + 1).trim();
+            if (KEY_TRANSPORT.equals(key)) {
+                if (TRANSPORT_UDP.equalsIgnoreCase(value)) {
+                    params.transport = TRANSPORT_UDP;
+                } else if (TRANSPORT_MUX.equalsIgnoreCase(value)) {
+                    params.transport = TRANSPORT_MUX;
+                } else {
+                    params.transport = TRANSPORT_TCP;
+                }
+            } else if (KEY_CODECS.equals(key)) {
+                for (String name : value.split(",")) {
+                    if (!name.trim().isEmpty()) params.codecs.add(name.trim());
+                }
+            } else if (KEY_CODEC.equals(key) && !value.isEmpty()) {
+                params.codec = value;
+            } else if (KEY_DTX.equals(key)) {
+                params.dtx = "1".equals(value);
+            } else if (KEY_FEC.equals(key)) {
+                params.fec = "1".equals(value);
+            } else if (KEY_ADAPT.equals(key)) {
+                params.adaptive = "1".equals(value);
+            } else if (KEY_PREWARM.equals(key)) {
+                params.prewarm = "1".equals(value);
+            } else if (KEY_LISTEN.equals(key)) {
+                params.listenOnly = "1".equals(value);
+            } else if (KEY_SESSION.equals(key)) {
+                try {
+                    params.sessionToken = Long.parseUnsignedLong(value, 16);
+                } catch (NumberFormatException ignored) {
+                    // No session: the audio cannot be reattached.
+                }
+            } else if (KEY_FRAME.equals(key)) {
+                try {
+                    params.setFrameMillis(Integer.parseInt(value));
+                } catch (NumberFormatException ignored) {
+                    // Keep the default.
+                }
+            } else if (KEY_RATES.equals(key)) {
+                for (String rate : value.split(",")) {
+                    try {
+                        params.sampleRates.add(Integer.parseInt(rate.trim()));
+                    } catch (NumberFormatException ignored) {
+                        // Skip rates this version cannot read.
+                    }
+                }
+            } else if (KEY_RATE.equals(key)) {
+                try {
+                    params.setSampleRate(Integer.parseInt(value));
+                } catch (NumberFormatException ignored) {
+                    // Keep the default.
+                }
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Parses the parameters of a full handshake message such as {@code AUDIO_READY:transport=udp}.
+     */
+    public static AudioSessionParams fromCommand(String command, String name) {
+        if (command.length() > name.length() && command.charAt(name.length()) == ':') {
+            return parse(command.substring(name.length() + 1));
+        }
+        return new AudioSessionParams();
+    }
+
+    /**
+     * @return Whether {@code command} is the handshake message {@code name}, with or without parameters.
+     */
+    public static boolean isCommand(String command, String name) {
+        return command.equals(name) || command.startsWith(name + ":");
+    }
+
+    /**
+     * Builds a handshake message such as {@code START_AUDIO_BRIDGE:transport=udp}.
+     */
+    public String toCommand(String name) {
+        return name + ":" + encode();
+    }
+
+    /**
+     * @return The parameters in {@code key=value;...} form.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder(KEY_TRANSPORT).append('=').append(transport);
+        sb.append(';').append(KEY_FRAME).append('=').append(frameMillis);
+        sb.append(';').append(KEY_DTX).append('=').append(dtx ? 1 : 0);
+        sb.append(';').append(KEY_FEC).append('=').append(fec ? 1 : 0);
+        sb.append(';').append(KEY_ADAPT).append('=').append(adaptive ? 1 : 0);
+        if (sessionToken != 0) {
+            sb.append(';').append(KEY_SESSION).append('=').append(Long.toHexString(sessionToken));
+        }
+        if (listenOnly) {
+            sb.append(';').append(KEY_LISTEN).append("=1");
+        }
+        if (prewarm) {
+            sb.append(';').append(KEY_PREWARM).append("=1");
+        }
+        if (sampleRates.isEmpty()) {
+            sb.append(';').append(KEY_RATE).append('=').append(sampleRate);
+        } else {
+            sb.append(';').append(KEY_RATES).append('=');
+            for (int i = 0; i < sampleRates.size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append(sampleRates.get(i));
+            }
+        }
+        if (codecs.isEmpty()) {
+            sb.append(';').append(KEY_CODEC).append('=').append(codec);
+        } else {
+            sb.append(';').append(KEY_CODECS).append('=');
+            for (int i = 0; i < codecs.size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append(codecs.get(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,42 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where played audio goes: the device speaker on a phone, a file on the JVM. Takes 16-bit
+ * mono PCM at a fixed rate.
+ * <p>
+ * Like a speaker, a sink paces its writer: it holds a bounded amount of audio and
+ * {@link #write} blocks until there is room for more. Sinks that are not paced take audio as
+ * fast as it is written.
+ */
+public interface AudioSink extends Closeable {
+
+    /**
+     * @return The rate of the samples {@link #write} takes, in Hz.
+     */
+    int getSampleRate();
+
+    /**
+     * Starts playing; called once, before the first {@link #write}.
+     */
+    void start() throws IOException;
+
+    /**
+     * Queues {@code samples} samples for playing, blocking while the sink is full.
+     */
+    void write(short[] pcm, int offset, int samples) throws IOException;
+
+    /**
+     * @return How many samples have been played since {@link #start}; what was written and not
+     * yet played is still queued.
+     */
+    long getPlayedSamples();
+
+    /**
+     * Stops playing and releases the sink.
+     */
+    @Override
+    void close();
+}
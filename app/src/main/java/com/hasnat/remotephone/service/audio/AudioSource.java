@@ -0,0 +1,36 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where captured audio comes from: the device microphone on a phone, a file or a generator
+ * on the JVM. Produces 16-bit mono PCM at a fixed rate.
+ * <p>
+ * Like a microphone, a source paces its reader: {@link #read} blocks until the samples have
+ * been captured. Sources that are not paced return as fast as they are read.
+ */
+public interface AudioSource extends Closeable {
+
+    /**
+     * @return The rate of the samples {@link #read} produces, in Hz.
+     */
+    int getSampleRate();
+
+    /**
+     * Starts capturing; called once, before the first {@link #read}.
+     */
+    void start() throws IOException;
+
+    /**
+     * Blocks until {@code samples} samples have been captured and copies them into {@code pcm}.
+     * @return The number of samples read, or -1 once the source has no more audio.
+     */
+    int read(short[] pcm, int offset, int samples) throws IOException;
+
+    /**
+     * Stops capturing and releases the source.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,293 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of one side's {@link AudioCallStats}, exchanged over the control channel as
+ * {@code AUDIO_STATS:<report>} while a call's audio runs.
+ * <p>
+ * Like {@link AudioSessionParams}, the report is a list of {@code key=value} pairs separated by
+ * {@code ;}. Latencies are in microseconds, as {@code <p50>/<p95>} pairs for the stages in
+ * {@link #STAGE_KEYS}; counts are plain numbers. Unknown keys are ignored and missing ones read
+ * as zero. {@code t} is the sender's monotonic clock when the report was made; {@code echo} and
+ * {@code hold} return the last {@code t} received from the peer and how long ago it arrived,
+ * from which the peer works out the round trip time.
+ * <p>
+ * Each report doubles as a receiver report for the stream the peer sends: {@code jit} is the
+ * interarrival jitter of that stream and {@code seq} the highest sequence number received, so
+ * the peer's {@link AudioRateController} can tell the loss of each interval between reports.
+ */
+public class AudioStatsReport {
+    public static final String COMMAND = "AUDIO_STATS";
+
+    /** From capture of a frame's first sample to the frame being handed to the transport; measured by the sender. */
+    public static final int STAGE_CAPTURE = 0;
+    /** Network transit above the fastest frame of the call; measured by the receiver. */
+    public static final int STAGE_NETWORK = 1;
+    /** From arrival to being taken for playout. */
+    public static final int STAGE_JITTER_BUFFER = 2;
+    /** Audio queued in the output device when a frame is written to it. */
+    public static final int STAGE_PLAYOUT = 3;
+    static final String[] STAGE_KEYS = {"cap", "net", "jb", "out"};
+
+    /** Frames received from the peer. */
+    public static final int COUNT_RECEIVED = 0;
+    /** Frame periods with no frame to play, after FEC recovery. */
+    public static final int COUNT_LOST = 1;
+    /** Frames that arrived after their playout time. */
+    public static final int COUNT_LATE = 2;
+    /** Frames that arrived after a frame with a higher sequence number. */
+    public static final int COUNT_REORDERED = 3;
+    /** Times playout ran dry and rebuffered. */
+    public static final int COUNT_UNDERRUNS = 4;
+    /** Frame periods filled by packet loss concealment. */
+    public static final int COUNT_CONCEALED = 5;
+    /** Lost frames rebuilt from parity. */
+    public static final int COUNT_RECOVERED = 6;
+    static final String[] COUNT_KEYS = {"rx", "lost", "late", "reorder", "underrun", "conceal", "fec"};
+
+    private static final String KEY_TIME = "t";
+    private static final String KEY_ECHO = "echo";
+    private static final String KEY_HOLD = "hold";
+    private static final String KEY_ROUND_TRIP = "rtt";
+    private static final String KEY_JITTER = "jit";
+    private static final String KEY_SEQUENCE = "seq";
+
+    private final long[] p50Micros = new long[STAGE_KEYS.length];
+    private final long[] p95Micros = new long[STAGE_KEYS.length];
+    private final long[] counts = new long[COUNT_KEYS.length];
+    private long timeMicros;
+    private boolean hasEcho;
+    private long echoMicros;
+    private long holdMicros;
+    private long roundTripMicros;
+    private long jitterMicros;
+    private boolean hasHighestSequence;
+    private int highestSequence;
+
+    public long getP50Micros(int stage) {
+        return p50Micros[stage];
+    }
+
+    public long getP95Micros(int stage) {
+        return p95Micros[stage];
+    }
+
+    public void setLatency(int stage, long p50Micros, long p95Micros) {
+        this.p50Micros[stage] = p50Micros;
+        this.p95Micros[stage] = p95Micros;
+    }
+
+    public long getCount(int counter) {
+        return counts[counter];
+    }
+
+    public void setCount(int counter, long value) {
+        counts[counter] = value;
+    }
+
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    public void setTimeMicros(long timeMicros) {
+        this.timeMicros = timeMicros;
+    }
+
+    /**
+     * @return Whether the report echoes a report of the peer's.
+     */
+    public boolean hasEcho() {
+        return hasEcho;
+    }
+
+    public long getEchoMicros() {
+        return echoMicros;
+    }
+
+    public long getHoldMicros() {
+        return holdMicros;
+    }
+
+    /**
+     * @param echoMicros The {@link #getTimeMicros() time} of the peer's latest report.
+     * @param holdMicros How long ago that report arrived.
+     */
+    public void setEcho(long echoMicros, long holdMicros) {
+        this.hasEcho = true;
+        this.echoMicros = echoMicros;
+        this.holdMicros = holdMicros;
+    }
+
+    /**
+     * @return The median control channel round trip time the sender measured; 0 if unknown.
+     */
+    public long getRoundTripMicros() {
+        return roundTripMicros;
+    }
+
+    public void setRoundTripMicros(long roundTripMicros) {
+        this.roundTripMicros = roundTripMicros;
+    }
+
+    /**
+     * @return The interarrival jitter of the stream received from the peer (RFC 3550).
+     */
+    public long getJitterMicros() {
+        return jitterMicros;
+    }
+
+    public void setJitterMicros(long jitterMicros) {
+        this.jitterMicros = jitterMicros;
+    }
+
+    /**
+     * @return Whether a frame of the peer's stream has been received, i.e. {@link #getHighestSequence()} is known.
+     */
+    public boolean hasHighestSequence() {
+        return hasHighestSequence;
+    }
+
+    /**
+     * @return The highest sequence number received from the peer.
+     */
+    public int getHighestSequence() {
+        return highestSequence;
+    }
+
+    public void setHighestSequence(int highestSequence) {
+        this.hasHighestSequence = true;
+        this.highestSequence = highestSequence;
+    }
+
+    /**
+     * @return Frames lost at playout as a fraction of the frames due.
+     */
+    public double getLossFraction() {
+        long due = counts[COUNT_RECEIVED] + counts[COUNT_LOST];
+        return due > 0 ? (double) counts[COUNT_LOST] / due : 0;
+    }
+
+    /**
+     * Parses the part of an {@code AUDIO_STATS} message after the colon.
+     */
+    public static AudioStatsReport parse(String encoded) {
+        AudioStatsReport report = new AudioStatsReport();
+        if (encoded == null || encoded.isEmpty()) {
+            return report;
+        }
+        for (String pair : encoded.split(";")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            String key = pair.substring(0, eq).trim();
+            String value = pair.substring(eq + 1).trim();
+            try {
+                if (KEY_TIME.equals(key)) {
+                    report.timeMicros = Long.parseLong(value);
+                } else if (KEY_ECHO.equals(key)) {
+                    report.echoMicros = Long.parseLong(value);
+                    report.hasEcho = true;
+                } else if (KEY_HOLD.equals(key)) {
+                    report.holdMicros = Long.parseLong(value);
+                } else if (KEY_ROUND_TRIP.equals(key)) {
+                    report.roundTripMicros = Long.parseLong(value);
+                } else if (KEY_JITTER.equals(key)) {
+                    report.jitterMicros = Long.parseLong(value);
+                } else if (KEY_SEQUENCE.equals(key)) {
+                    report.highestSequence = Integer.parseInt(value);
+                    report.hasHighestSequence = true;
+                } else {
+                    int stage = indexOf(STAGE_KEYS, key);
+                    int counter = indexOf(COUNT_KEYS, key);
+                    if (stage >= 0) {
+                        int slash = value.indexOf('/');
+                        report.p50Micros[stage] = Long.parseLong(slash < 0 ? value : value.substring(0, slash));
+                        report.p95Micros[stage] = slash < 0 ? report.p50Micros[stage] : Long.parseLong(value.substring(slash + 1));
+                    } else if (counter >= 0) {
+                        report.counts[counter] = Long.parseLong(value);
+                    }
+                }
+            } catch (NumberFormatException ignored) {
+                // Leave the value at zero.
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Parses a full {@code AUDIO_STATS:<report>} message.
+     */
+    public static AudioStatsReport fromCommand(String command) {
+        return AudioSessionParams.isCommand(command, COMMAND) && command.length() > COMMAND.length()
+                ? parse(command.substring(COMMAND.length() + 1)) : new AudioStatsReport();
+    }
+
+    public String toCommand() {
+        return COMMAND + ":" + encode();
+    }
+
+    /**
+     * @return The report in {@code key=value;...} form.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder(KEY_TIME).append('=').append(timeMicros);
+        if (hasEcho) {
+            sb.append(';').append(KEY_ECHO).append('=').append(echoMicros);
+            sb.append(';').append(KEY_HOLD).append('=').append(holdMicros);
+        }
+        sb.append(';').append(KEY_ROUND_TRIP).append('=').append(roundTripMicros);
+        sb.append(';').append(KEY_JITTER).append('=').append(jitterMicros);
+        if (hasHighestSequence) {
+            sb.append(';').append(KEY_SEQUENCE).append('=').append(highestSequence);
+        }
+        for (int i = 0; i < STAGE_KEYS.length; i++) {
+            sb.append(';').append(STAGE_KEYS[i]).append('=').append(p50Micros[i]).append('/').append(p95Micros[i]);
+        }
+        for (int i = 0; i < COUNT_KEYS.length; i++) {
+            sb.append(';').append(COUNT_KEYS[i]).append('=').append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Describes one direction of the call from the reports of both its ends, e.g.
+     * {@code "62 ms (p95 95): capture 21 + network 4 + buffer 22 + playout 15; loss 1.2% (3 rebuilt), ..."}.
+     * The network stage adds half the round trip time to the measured transit variation,
+     * since the two clocks cannot be compared directly.
+     * @param sender The report of the side that captures the audio; {@code null} if not yet known.
+     * @param receiver The report of the side that plays it; {@code null} if not yet known.
+     */
+    public static String describe(AudioStatsReport sender, AudioStatsReport receiver) {
+        if (receiver == null) {
+            return sender == null ? "no data" : String.format(Locale.US, "capture %.0f ms, waiting for the peer",
+                    sender.p50Micros[STAGE_CAPTURE] / 1000.0);
+        }
+        long roundTrip = receiver.roundTripMicros > 0 ? receiver.roundTripMicros : sender != null ? sender.roundTripMicros : 0;
+        long capture50 = sender != null ? sender.p50Micros[STAGE_CAPTURE] : 0;
+        long capture95 = sender != null ? sender.p95Micros[STAGE_CAPTURE] : 0;
+        long network50 = receiver.p50Micros[STAGE_NETWORK] + roundTrip / 2;
+        long network95 = receiver.p95Micros[STAGE_NETWORK] + roundTrip / 2;
+        long total50 = capture50 + network50 + receiver.p50Micros[STAGE_JITTER_BUFFER] + receiver.p50Micros[STAGE_PLAYOUT];
+        // Stage percentiles do not add up exactly; the sum bounds the true end-to-end p95 from above.
+        long total95 = capture95 + network95 + receiver.p95Micros[STAGE_JITTER_BUFFER] + receiver.p95Micros[STAGE_PLAYOUT];
+        return String.format(Locale.US,
+                "%.0f ms (p95 %.0f): capture %.0f + network %.0f + buffer %.0f + playout %.0f; "
+                        + "loss %.1f%% (%d rebuilt), late %d, reordered %d, underruns %d",
+                total50 / 1000.0, total95 / 1000.0, capture50 / 1000.0, network50 / 1000.0,
+                receiver.p50Micros[STAGE_JITTER_BUFFER] / 1000.0, receiver.p50Micros[STAGE_PLAYOUT] / 1000.0,
+                receiver.getLossFraction() * 100, receiver.counts[COUNT_RECOVERED], receiver.counts[COUNT_LATE],
+                receiver.counts[COUNT_REORDERED], receiver.counts[COUNT_UNDERRUNS]);
+    }
+
+    private static int indexOf(String[] keys, String key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,30 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Carries {@link AudioFrame}s between host and client, independent of the underlying socket type.
+ * One thread may send while another receives.
+ */
+public interface AudioTransport extends Closeable {
+
+    /**
+     * Sends one frame. Datagram transports may silently drop the frame if it cannot be delivered.
+     */
+    void send(AudioFrame frame) throws IOException;
+
+    /**
+     * Blocks until the next frame arrives and copies it into {@code frame}.
+     * @return {@code true} if a frame was received, {@code false} once the transport is closed
+     * or the peer ended the stream.
+     * @throws java.net.SocketTimeoutException If the transport has a read timeout and it expired.
+     */
+    boolean receive(AudioFrame frame) throws IOException;
+
+    /**
+     * Closes the transport, unblocking any thread waiting in {@link #receive(AudioFrame)}.
+     */
+    @Override
+    void close();
+}
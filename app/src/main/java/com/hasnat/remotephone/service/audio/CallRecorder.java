@@ -0,0 +1,313 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * Records both directions of a bridged call to a stereo WAV file: the host's side on the left
+ * channel and what the clients said on the right, at the wire sample rate.
+ * <p>
+ * The audio threads hand their PCM to {@link #write}, which copies it into one of a fixed set
+ * of preallocated blocks and returns; it never blocks and never allocates. A background thread
+ * interleaves the two channels, encodes them as 16-bit PCM or G.711 mu-law (half the size), and
+ * writes them to a {@link FileChannel} in batches. If the disk stalls for longer than the
+ * blocks last, further audio is dropped and counted rather than holding up the call. The two
+ * channels are produced by different threads, so whichever runs ahead is padded with silence
+ * once it leads by {@link #MAX_SKEW_MILLIS}.
+ * <p>
+ * The WAV header is written with placeholder sizes when recording starts and filled in by
+ * {@link #finish}, so a recording that was never finished still holds its audio.
+ */
+public class CallRecorder {
+    /** WAV format tag of 16-bit linear PCM. */
+    public static final int FORMAT_PCM_16 = 1;
+    /** WAV format tag of G.711 mu-law. */
+    public static final int FORMAT_MU_LAW = 7;
+    /** The host's side of the call: what its microphone captured. */
+    public static final int CHANNEL_HOST = 0;
+    /** The clients' side of the call: what the host played. */
+    public static final int CHANNEL_CLIENTS = 1;
+    /** Frames of audio the writer may fall behind, both channels together, before audio is dropped. */
+    public static final int DEFAULT_QUEUE_FRAMES = 128;
+    /** How far one channel may run ahead before the other is padded with silence. */
+    static final int MAX_SKEW_MILLIS = 200;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int CHANNELS = 2;
+
+    private final SeekableByteChannel channel;
+    private final File file;
+    private final int sampleRate;
+    private final int format;
+    private final int headerSize;
+    private final Object lock = new Object();
+    private final ArrayDeque<Block> free;
+    private final ArrayDeque<Block> filled;
+    private final Thread writer;
+    // Guarded by lock.
+    private boolean finishing;
+
+    // Writer thread only.
+    private final short[][] pending;
+    private final int[] pendingSamples = new int[CHANNELS];
+    private final int maxSkewSamples;
+    private final short[] interleaved;
+    private final byte[] encoded;
+    private final G711Codec muLaw = G711Codec.muLaw();
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private long dataBytes;
+    private volatile IOException error;
+
+    private volatile long droppedFrames;
+    private volatile long recordedFrames; // stereo sample frames written
+
+    CallRecorder(SeekableByteChannel channel, File file, int sampleRate, int maxFrameSamples, int format, int queueFrames)
+            throws IOException {
+        if (format != FORMAT_PCM_16 && format != FORMAT_MU_LAW) {
+            throw new IllegalArgumentException("Unsupported WAV format " + format);
+        }
+        this.channel = channel;
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.format = format;
+        this.headerSize = format == FORMAT_PCM_16 ? 44 : 58;
+        this.free = new ArrayDeque<>(queueFrames);
+        this.filled = new ArrayDeque<>(queueFrames);
+        for (int i = 0; i < queueFrames; i++) {
+            free.add(new Block(maxFrameSamples));
+        }
+        this.maxSkewSamples = sampleRate * MAX_SKEW_MILLIS / 1000;
+        int pendingCapacity = maxSkewSamples + maxFrameSamples;
+        this.pending = new short[][] {new short[pendingCapacity], new short[pendingCapacity]};
+        this.interleaved = new short[CHANNELS * pendingCapacity];
+        this.encoded = new byte[CHANNELS * pendingCapacity];
+        writeHeader();
+        this.writer = new Thread(this::drain, "CallRecorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates {@code file} and starts recording into it.
+     * @param sampleRate The rate of the PCM given to {@link #write}.
+     * @param maxFrameSamples The most samples one {@link #write} passes.
+     * @param format {@link #FORMAT_PCM_16} or {@link #FORMAT_MU_LAW}.
+     */
+    public static CallRecorder open(File file, int sampleRate, int maxFrameSamples, int format) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return new CallRecorder(channel, file, sampleRate, maxFrameSamples, format, DEFAULT_QUEUE_FRAMES);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues one frame of {@code channel}'s audio. Safe to call from the real-time audio
+     * threads: if the writer is behind, the frame is dropped instead of waiting.
+     * @param channel {@link #CHANNEL_HOST} or {@link #CHANNEL_CLIENTS}.
+     */
+    public void write(int channel, short[] pcm, int offset, int samples) {
+        Block block;
+        synchronized (lock) {
+            if (finishing) return;
+            block = free.poll();
+            if (block == null) {
+                droppedFrames++;
+                return;
+            }
+        }
+        int n = Math.min(samples, block.pcm.length);
+        System.arraycopy(pcm, offset, block.pcm, 0, n);
+        block.samples = n;
+        block.channel = channel;
+        synchronized (lock) {
+            filled.add(block);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops recording, writes what is queued and completes the WAV header. Blocks until the
+     * file is closed; call it from outside the audio threads once they have stopped.
+     * @throws IOException If writing the file failed at any point.
+     */
+    public void finish() throws IOException {
+        synchronized (lock) {
+            if (finishing) return;
+            finishing = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (error == null) {
+                writeHeader();
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            channel.close();
+        }
+        if (error != null) throw error;
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Block block;
+                synchronized (lock) {
+                    while (filled.isEmpty() && !finishing) {
+                        lock.wait();
+                    }
+                    block = filled.poll();
+                }
+                if (block == null) break; // finishing and drained
+                append(block.channel, block.pcm, block.samples);
+                synchronized (lock) {
+                    free.add(block);
+                }
+                if (batch.position() >= BATCH_BYTES * 3 / 4) {
+                    flush();
+                }
+            }
+            // Whatever one channel still has over the other is played against silence.
+            interleave(Math.max(pendingSamples[0], pendingSamples[1]));
+            flush();
+        } catch (IOException e) {
+            error = e;
+            synchronized (lock) {
+                finishing = true; // stop taking audio that cannot be written
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(int ch, short[] pcm, int samples) throws IOException {
+        if (ch != CHANNEL_HOST && ch != CHANNEL_CLIENTS) return;
+        int other = 1 - ch;
+        int room = pending[ch].length - pendingSamples[ch];
+        if (samples > room) {
+            // Too far ahead of the other channel, which is silent meanwhile.
+            interleave(pendingSamples[ch]);
+        }
+        System.arraycopy(pcm, 0, pending[ch], pendingSamples[ch], samples);
+        pendingSamples[ch] += samples;
+        int both = Math.min(pendingSamples[ch], pendingSamples[other]);
+        if (both > 0) {
+            interleave(both);
+        } else if (pendingSamples[ch] > maxSkewSamples) {
+            interleave(pendingSamples[ch] - maxSkewSamples);
+        }
+    }
+
+    /**
+     * Writes the first {@code frames} samples of both channels, padding the shorter with silence.
+     */
+    private void interleave(int frames) throws IOException {
+        if (frames <= 0) return;
+        for (int ch = 0; ch < CHANNELS; ch++) {
+            int available = Math.min(frames, pendingSamples[ch]);
+            short[] samples = pending[ch];
+            for (int i = 0; i < available; i++) {
+                interleaved[CHANNELS * i + ch] = samples[i];
+            }
+            for (int i = available; i < frames; i++) {
+                interleaved[CHANNELS * i + ch] = 0;
+            }
+            System.arraycopy(samples, available, samples, 0, pendingSamples[ch] - available);
+            pendingSamples[ch] -= available;
+        }
+        int count = CHANNELS * frames;
+        if (format == FORMAT_MU_LAW) {
+            muLaw.encode(interleaved, 0, count, encoded, 0);
+            for (int offset = 0; offset < count; ) {
+                if (!batch.hasRemaining()) flush();
+                int n = Math.min(count - offset, batch.remaining());
+                batch.put(encoded, offset, n);
+                offset += n;
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                if (batch.remaining() < 2) flush();
+                batch.putShort(interleaved[i]);
+            }
+        }
+        recordedFrames += frames;
+    }
+
+    private void flush() throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            dataBytes += channel.write(batch);
+        }
+        batch.clear();
+    }
+
+    private void writeHeader() throws IOException {
+        int bytesPerSample = format == FORMAT_PCM_16 ? 2 : 1;
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] {'R', 'I', 'F', 'F'}).putInt((int) (headerSize - 8 + dataBytes));
+        header.put(new byte[] {'W', 'A', 'V', 'E'});
+        header.put(new byte[] {'f', 'm', 't', ' '}).putInt(format == FORMAT_PCM_16 ? 16 : 18);
+        header.putShort((short) format).putShort((short) CHANNELS).putInt(sampleRate);
+        header.putInt(sampleRate * CHANNELS * bytesPerSample).putShort((short) (CHANNELS * bytesPerSample));
+        header.putShort((short) (8 * bytesPerSample));
+        if (format != FORMAT_PCM_16) {
+            header.putShort((short) 0); // no extra format bytes
+            header.put(new byte[] {'f', 'a', 'c', 't'}).putInt(4).putInt((int) (dataBytes / (CHANNELS * bytesPerSample)));
+        }
+        header.put(new byte[] {'d', 'a', 't', 'a'}).putInt((int) dataBytes);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.position(headerSize + dataBytes);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return How many frames the audio threads offered while the writer was too far behind to take them.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return The length of the recording written so far, in milliseconds.
+     */
+    public long getDurationMillis() {
+        return recordedFrames * 1000 / sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return "CallRecorder{" + (file != null ? file.getName() + ", " : "") + getDurationMillis() + " ms, "
+                + (format == FORMAT_MU_LAW ? "mu-law" : "PCM") + ", dropped=" + droppedFrames + "}";
+    }
+
+    private static class Block {
+        final short[] pcm;
+        int samples;
+        int channel;
+
+        Block(int maxSamples) {
+            pcm = new short[maxSamples];
+        }
+    }
+}
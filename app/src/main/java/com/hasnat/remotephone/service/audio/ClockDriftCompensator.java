@@ -0,0 +1,196 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.util.Locale;
+
+/**
+ * Holds a stream's playout latency steady against clock drift between the sender's capture
+ * device and the local playout device. The two run on independent crystals, typically a few
+ * hundred parts per million apart, so over a long call frames arrive slightly faster or slower
+ * than they are played: left alone, the {@link JitterBuffer} slowly fills until it skips a
+ * whole frame, or drains until it underruns.
+ * <p>
+ * Drift shows as a trend in how long frames wait in the jitter buffer: arrival and playout are
+ * both timed on the local clock, so the trend is the sender's rate against the playout rate,
+ * whatever the two hosts' system clocks do. The wait is averaged over windows of
+ * {@value #WINDOW_MICROS} µs to smooth out network jitter, and the change from one window to the
+ * next, plus the correction already applied, estimates the drift. The correction is that
+ * estimate plus a slow pull back to the latency the stream settled at, and it is applied by
+ * stretching decoded frames one sample longer or shorter: at most {@value #MAX_CORRECTION} of
+ * the samples, a pitch change of a few cents spread over a whole frame, well below what a
+ * listener notices.
+ * <p>
+ * The jitter buffer still sets the latency itself. Whenever it changes it on purpose, by
+ * skipping a frame or by rebuffering after an underrun or a silent period, the latency to hold
+ * is measured afresh; the drift estimate carries over.
+ * <p>
+ * Does not allocate after construction; must be driven by the playout thread.
+ */
+public class ClockDriftCompensator {
+    static final long WINDOW_MICROS = 5_000_000;
+    /** Largest fraction of samples inserted or deleted: 2 ms per second, far beyond crystal tolerances. */
+    static final double MAX_CORRECTION = 0.002;
+    /** Time over which a latency offset is worked off, on top of the drift itself. */
+    static final long LEVEL_HORIZON_MICROS = 60_000_000;
+    /** Weight of the newest window in the drift estimate. */
+    private static final double SMOOTHING = 0.25;
+
+    private final JitterBuffer jitterBuffer;
+    private final short[] scratch = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+    private boolean enabled = true;
+
+    private long windowStartMicros;
+    private int windowFrames;
+    private double windowWaitSum;
+    private double windowTimeSum;
+    private boolean haveLastWindow;
+    private double lastWindowWait;
+    private double lastWindowTime;
+    private boolean haveReference;
+    private double referenceWait;
+    private long skippedFrames;
+
+    private boolean haveDrift;
+    private double drift;
+    private double correction;
+    private double credit;
+    private long insertedSamples;
+    private long deletedSamples;
+
+    public ClockDriftCompensator(JitterBuffer jitterBuffer) {
+        this.jitterBuffer = jitterBuffer;
+    }
+
+    /**
+     * With compensation off the drift is still estimated, but frames are left as they are.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) credit = 0;
+    }
+
+    /**
+     * Notes a frame taken from the jitter buffer for playout.
+     * @param waitMicros How long the frame waited between arrival and playout.
+     * @param nowMicros Local monotonic clock when the frame starts playing.
+     */
+    public void onFramePlayed(long waitMicros, long nowMicros) {
+        long skipped = jitterBuffer.getSkippedCount();
+        if (skipped != skippedFrames) {
+            skippedFrames = skipped;
+            restart();
+        }
+        if (windowFrames == 0) {
+            windowStartMicros = nowMicros;
+        }
+        windowFrames++;
+        windowWaitSum += waitMicros;
+        windowTimeSum += nowMicros - windowStartMicros;
+        if (nowMicros - windowStartMicros < WINDOW_MICROS) {
+            return;
+        }
+        double wait = windowWaitSum / windowFrames;
+        double time = windowStartMicros + windowTimeSum / windowFrames;
+        windowFrames = 0;
+        windowWaitSum = 0;
+        windowTimeSum = 0;
+        if (haveLastWindow) {
+            // Frames waiting longer and longer means they arrive faster than they are played;
+            // what the correction already removed was part of the drift too.
+            double applied = enabled ? correction : 0;
+            double measured = (wait - lastWindowWait) / (time - lastWindowTime) + applied;
+            drift = haveDrift ? drift + SMOOTHING * (measured - drift) : measured;
+            haveDrift = true;
+        }
+        haveLastWindow = true;
+        lastWindowWait = wait;
+        lastWindowTime = time;
+        if (!haveReference) {
+            haveReference = true;
+            referenceWait = wait;
+        }
+        double target = drift + (wait - referenceWait) / LEVEL_HORIZON_MICROS;
+        correction = Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, target));
+    }
+
+    /**
+     * Starts measuring the latency to hold afresh, e.g. after the jitter buffer rebuffered.
+     */
+    public void restart() {
+        windowFrames = 0;
+        windowWaitSum = 0;
+        windowTimeSum = 0;
+        haveLastWindow = false;
+        haveReference = false;
+        correction = haveDrift ? Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, drift)) : 0;
+    }
+
+    /**
+     * Stretches a decoded frame by the correction due: one sample shorter when frames arrive
+     * faster than they are played, one longer when they arrive slower, or unchanged.
+     * @param pcm The frame, with room for one more sample.
+     * @param samples The number of samples in the frame.
+     * @return The number of samples in the frame now.
+     */
+    public int stretch(short[] pcm, int samples) {
+        if (!enabled || samples < 2) {
+            return samples;
+        }
+        credit += correction * samples;
+        int stretched;
+        if (credit >= 1) {
+            credit -= 1;
+            stretched = samples - 1;
+            deletedSamples++;
+        } else if (credit <= -1) {
+            credit += 1;
+            stretched = samples + 1;
+            insertedSamples++;
+        } else {
+            return samples;
+        }
+        // Linear interpolation over the whole frame keeps both ends in place, so the frame
+        // still joins its neighbours without a step.
+        System.arraycopy(pcm, 0, scratch, 0, samples);
+        int span = stretched - 1;
+        for (int j = 0; j < stretched; j++) {
+            int position = j * (samples - 1);
+            int index = position / span;
+            int fraction = position % span;
+            int sample = scratch[index];
+            if (fraction != 0) {
+                sample += (scratch[index + 1] - sample) * fraction / span;
+            }
+            pcm[j] = (short) sample;
+        }
+        return stretched;
+    }
+
+    /**
+     * @return The estimated drift as a fraction: positive when the sender's clock runs faster
+     * than the playout clock; 0 until two windows have been measured.
+     */
+    public double getDrift() {
+        return drift;
+    }
+
+    /**
+     * @return The fraction of samples currently deleted (positive) or inserted (negative).
+     */
+    public double getCorrection() {
+        return correction;
+    }
+
+    public long getInsertedSamples() {
+        return insertedSamples;
+    }
+
+    public long getDeletedSamples() {
+        return deletedSamples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ClockDriftCompensator{drift %+.0f ppm, %d samples inserted, %d deleted}",
+                drift * 1e6, insertedSamples, deletedSamples);
+    }
+}
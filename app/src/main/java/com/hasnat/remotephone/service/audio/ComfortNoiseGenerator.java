@@ -0,0 +1,39 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Generates comfort noise at the level announced by silence descriptor frames (RFC 3389, level
+ * only), so a suppressed silence sounds like the sender's background instead of a dead line.
+ * <p>
+ * The noise is lightly low-passed white noise from a xorshift generator. Level changes glide
+ * over a few milliseconds to avoid steps. Does not allocate; one instance serves one stream.
+ */
+public class ComfortNoiseGenerator {
+    /** RMS of the low-passed uniform noise before scaling, used to hit the target level. */
+    private static final double SHAPED_NOISE_RMS = 1 / 3.0;
+    private static final double LEVEL_GLIDE = 0.002;
+
+    private int seed = 0x2545F491;
+    private double amplitude;
+    private double targetAmplitude;
+    private double lowPass;
+
+    /**
+     * @param level Noise level in -dBov: 0 is full scale, 127 is silence.
+     */
+    public void setLevel(int level) {
+        targetAmplitude = level >= 127 ? 0 : 32768.0 * Math.pow(10, -level / 20.0) / SHAPED_NOISE_RMS;
+    }
+
+    public void generate(short[] out, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            double white = seed / 2147483648.0; // uniform in [-1, 1)
+            lowPass += (white - lowPass) * 0.5;
+            amplitude += (targetAmplitude - amplitude) * LEVEL_GLIDE;
+            double sample = lowPass * amplitude;
+            out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * {@link AudioTransport} over UDP that sends exactly one frame per datagram.
+ * <p>
+ * Lost datagrams are never retransmitted, so a loss on a congested link costs one frame
+ * instead of stalling every frame queued behind it. The host side is bound to a port and
+ * learns the client's address from the first datagram it receives; until then outgoing
+ * frames are dropped. The client side is connected to the host and should send a
+ * {@link #sendProbe() probe} so the host learns its address even before any audio is captured.
+ * Once the host knows the {@link #setSessionToken(long) session token}, a
+ * {@link ResumableAudioTransport#writeSessionProbe session probe} from another address moves
+ * the peer there, so the call follows a client whose address changed.
+ * <p>
+ * The connected client side reads with {@link DatagramChannel#read}, which does not create a
+ * {@link SocketAddress} per datagram. The host side stays unconnected, because connecting a
+ * channel discards datagrams already queued on it, and compares each sender with the peer.
+ */
+public class DatagramAudioTransport implements AudioTransport {
+    private final DatagramChannel channel;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(AudioFrameCodec.MAX_FRAME_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(AudioFrameCodec.MAX_FRAME_SIZE);
+    private final AudioFrame probe = new AudioFrame();
+    private volatile SocketAddress peer;
+    private volatile long sessionToken;
+
+    private DatagramAudioTransport(DatagramChannel channel, SocketAddress peer) {
+        this.channel = channel;
+        this.peer = peer;
+        probe.setFlags(AudioFrame.FLAG_PROBE);
+    }
+
+    /**
+     * Opens a transport that waits for a peer on the given local UDP port (host side).
+     */
+    public static DatagramAudioTransport bind(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new DatagramAudioTransport(channel, null);
+    }
+
+    /**
+     * Opens a transport connected to the given remote address (client side).
+     */
+    public static DatagramAudioTransport connect(InetSocketAddress remote) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.connect(remote);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new DatagramAudioTransport(channel, remote);
+    }
+
+    /**
+     * @return The local port the transport's channel is bound to.
+     */
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * @return Whether the address of the remote side is known, i.e. sent frames can be delivered.
+     */
+    public boolean hasPeer() {
+        return peer != null;
+    }
+
+    /**
+     * Lets session probes carrying {@code token} move the peer to their sender's address; 0 pins the peer.
+     */
+    public void setSessionToken(long token) {
+        this.sessionToken = token;
+    }
+
+    /**
+     * Sends an empty {@link AudioFrame#FLAG_PROBE} frame so the remote side learns this address.
+     */
+    public void sendProbe() throws IOException {
+        send(probe);
+    }
+
+    @Override
+    public synchronized void send(AudioFrame frame) throws IOException {
+        SocketAddress target = peer;
+        if (target == null) {
+            return;
+        }
+        sendBuffer.clear();
+        AudioFrameCodec.encode(frame, sendBuffer);
+        sendBuffer.flip();
+        try {
+            if (channel.isConnected()) {
+                channel.write(sendBuffer);
+            } else {
+                channel.send(sendBuffer, target);
+            }
+        } catch (PortUnreachableException e) {
+            // The peer's socket is not (yet) open; like any lost datagram, this frame is gone.
+        }
+    }
+
+    @Override
+    public boolean receive(AudioFrame frame) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = null;
+            try {
+                if (channel.isConnected()) {
+                    channel.read(receiveBuffer);
+                } else {
+                    from = channel.receive(receiveBuffer);
+                    if (from == null) {
+                        continue;
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                return false;
+            } catch (PortUnreachableException e) {
+                continue; // ICMP error for an earlier send; the peer may still come up.
+            }
+            receiveBuffer.flip();
+            try {
+                AudioFrameCodec.decode(receiveBuffer, frame);
+            } catch (ProtocolException e) {
+                continue; // Malformed datagram: drop it like a lost one.
+            }
+            if (from != null) {
+                if (peer == null) {
+                    peer = from;
+                } else if (!peer.equals(from)) {
+                    long token = sessionToken;
+                    if (token == 0 || ResumableAudioTransport.readSessionToken(frame) != token) {
+                        continue; // Stray datagram from someone other than the call peer.
+                    }
+                    peer = from; // The client moved, e.g. to a new address after a network change.
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
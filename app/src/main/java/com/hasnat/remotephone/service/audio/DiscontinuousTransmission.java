@@ -0,0 +1,101 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Discontinuous transmission (DTX) for a capture loop: decides per frame whether to send audio,
+ * send a silence descriptor (SID), or send nothing.
+ * <p>
+ * Speech, as judged by a {@link VoiceActivityDetector}, is always sent. When silence starts a
+ * SID frame with the background noise level goes out at once, then one every
+ * {@value #SID_INTERVAL_MS} ms so the receiver's comfort noise follows the level and a lost SID
+ * is soon replaced. Everything in between is suppressed. Sequence numbers are only consumed by
+ * frames actually sent, so suppressed frames never look like losses to the receiver.
+ */
+public class DiscontinuousTransmission {
+    /** {@link #process} result: send the frame as audio. */
+    public static final int SEND_AUDIO = 0;
+    /** {@link #process} result: send a SID frame instead (see {@link #writeSid}). */
+    public static final int SEND_SID = 1;
+    /** {@link #process} result: send nothing. */
+    public static final int SUPPRESS = 2;
+
+    public static final int SID_INTERVAL_MS = 200;
+
+    private final VoiceActivityDetector vad;
+    private final int sidIntervalSamples;
+    private boolean silent;
+    private int sinceSid;
+    private double silenceEnergy;
+
+    private long audioFrames;
+    private long sidFrames;
+    private long suppressedFrames;
+
+    public DiscontinuousTransmission(int sampleRate) {
+        this.vad = new VoiceActivityDetector(sampleRate);
+        this.sidIntervalSamples = sampleRate * SID_INTERVAL_MS / 1000;
+    }
+
+    /**
+     * Classifies one captured frame.
+     * @return {@link #SEND_AUDIO}, {@link #SEND_SID} or {@link #SUPPRESS}.
+     */
+    public int process(short[] pcm, int offset, int length) {
+        if (vad.process(pcm, offset, length)) {
+            silent = false;
+            audioFrames++;
+            return SEND_AUDIO;
+        }
+        double energy = vad.getLastEnergy();
+        if (!silent) {
+            silent = true;
+            silenceEnergy = energy;
+            sinceSid = 0;
+            sidFrames++;
+            return SEND_SID;
+        }
+        silenceEnergy += (energy - silenceEnergy) * 0.25;
+        sinceSid += length;
+        if (sinceSid >= sidIntervalSamples) {
+            sinceSid = 0;
+            sidFrames++;
+            return SEND_SID;
+        }
+        suppressedFrames++;
+        return SUPPRESS;
+    }
+
+    /**
+     * @return The noise level to describe in the next SID, in -dBov.
+     */
+    public int getSilenceLevel() {
+        return VoiceActivityDetector.energyToLevel(silenceEnergy);
+    }
+
+    public long getAudioFrameCount() {
+        return audioFrames;
+    }
+
+    public long getSidFrameCount() {
+        return sidFrames;
+    }
+
+    public long getSuppressedFrameCount() {
+        return suppressedFrames;
+    }
+
+    /**
+     * Turns {@code frame} into a SID frame describing the current silence level.
+     */
+    public void writeSid(AudioFrame frame) {
+        frame.setFlags(AudioFrame.FLAG_SID);
+        frame.getPayload()[0] = (byte) getSilenceLevel();
+        frame.setPayloadLength(1);
+    }
+
+    /**
+     * @return The noise level carried by a SID frame, in -dBov.
+     */
+    public static int readSidLevel(AudioFrame frame) {
+        return frame.getPayloadLength() > 0 ? frame.getPayload()[0] & 0x7F : 127;
+    }
+}
@@ -0,0 +1,328 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+
+/**
+ * Forward error correction for lossy links: wraps another {@link AudioTransport} and, after
+ * every group of frames sent, sends one {@link AudioFrame#FLAG_FEC parity frame} holding the
+ * XOR of the group's headers and payloads (after RFC 5109). The receiving side rebuilds any
+ * single lost frame of a group from the parity and the frames that did arrive, without a
+ * retransmit round trip. Parity frames never reach the caller of {@link #receive(AudioFrame)};
+ * rebuilt frames are returned in their place.
+ * <p>
+ * The group size follows the loss measured on the frames this side receives, on the
+ * assumption that both directions share the link, or the loss the peer
+ * {@link #reportLoss(double) reports}, whichever is higher. On a clean link no parity is sent
+ * at all; as loss grows the groups shrink from {@link #MAX_GROUP_SIZE} to
+ * {@link #MIN_GROUP_SIZE}, keeping the loss left after recovery near
+ * {@link #TARGET_RESIDUAL_LOSS} at a bandwidth cost of one frame per group. A frame can only be
+ * rebuilt once its group's parity has arrived, so the receiver should buffer at least
+ * {@link #getReceiveGroupSize()} frames.
+ * <p>
+ * Parity payload layout: group size (1 byte), then the XOR of the protected frames' codec
+ * id (1), flags (1), payload length (2, big-endian), capture timestamp (8, big-endian) and
+ * payloads (zero-padded to the longest). The parity frame's sequence number is that of the
+ * group's first frame; parity frames do not use sequence numbers of their own.
+ * <p>
+ * One thread may send while another receives; neither allocates per frame.
+ */
+public class FecAudioTransport implements AudioTransport {
+    public static final int MIN_GROUP_SIZE = 2;
+    /** Caps the extra playout delay needed for recovery at this many frames. */
+    public static final int MAX_GROUP_SIZE = 5;
+    /** Parity is sent once the loss reaches this fraction... */
+    static final double ENABLE_LOSS = 0.01;
+    /** ...and stopped again when it falls below this one. */
+    static final double DISABLE_LOSS = 0.005;
+    /** Fraction of frames the group size aims to leave unrecovered. */
+    static final double TARGET_RESIDUAL_LOSS = 0.005;
+    /** Weight of each frame in the running loss estimate (about 2.5 s at 50 frames/s). */
+    private static final double LOSS_SMOOTHING = 1.0 / 128;
+    private static final int PARITY_HEADER_SIZE = 13;
+    /** Received frames kept for recovery; covers two groups plus reordering. */
+    private static final int HISTORY = 32;
+
+    private final AudioTransport transport;
+
+    // Send side, used only by the sending thread.
+    private final AudioFrame parity = new AudioFrame();
+    private final byte[] payloadXor = new byte[AudioFrame.MAX_PAYLOAD_SIZE];
+    private int groupBase;
+    private int groupCount;
+    private int groupSize;
+    private int codecXor;
+    private int flagsXor;
+    private int lengthXor;
+    private long timestampXor;
+    private int maxLength;
+    private boolean protecting;
+    private volatile double reportedLoss;
+    private volatile long parityFramesSent;
+
+    // Receive side, used only by the receiving thread.
+    private final AudioFrame[] history = new AudioFrame[HISTORY];
+    private final boolean[] present = new boolean[HISTORY];
+    private final byte[] parityPayload = new byte[AudioFrame.MAX_PAYLOAD_SIZE];
+    private boolean haveHighest;
+    private int highestSeq;
+    private volatile double measuredLoss;
+    private volatile int receiveGroupSize;
+    private int lastParityBase;
+    private volatile long lostFrames;
+    private volatile long recoveredFrames;
+
+    public FecAudioTransport(AudioTransport transport) {
+        this.transport = transport;
+        for (int i = 0; i < HISTORY; i++) {
+            history[i] = new AudioFrame();
+        }
+        parity.setFlags(AudioFrame.FLAG_FEC);
+    }
+
+    @Override
+    public void send(AudioFrame frame) throws IOException {
+        transport.send(frame);
+        if (groupCount > 0 && frame.getSequenceNumber() != groupBase + groupCount) {
+            // The sender skipped or restarted its numbering; the partial group cannot be used.
+            groupCount = 0;
+        }
+        if (groupCount == 0) {
+            groupSize = chooseGroupSize();
+            if (groupSize == 0) return;
+            groupBase = frame.getSequenceNumber();
+            codecXor = flagsXor = lengthXor = maxLength = 0;
+            timestampXor = 0;
+        }
+        byte[] payload = frame.getPayload();
+        int length = frame.getPayloadLength();
+        for (int i = 0; i < length; i++) {
+            payloadXor[i] = (byte) ((i < maxLength ? payloadXor[i] : 0) ^ payload[i]);
+        }
+        maxLength = Math.max(maxLength, length);
+        codecXor ^= frame.getCodecId();
+        flagsXor ^= frame.getFlags();
+        lengthXor ^= length;
+        timestampXor ^= frame.getCaptureTimeMicros();
+        if (++groupCount == groupSize) {
+            groupCount = 0;
+            if (PARITY_HEADER_SIZE + maxLength <= AudioFrame.MAX_PAYLOAD_SIZE) {
+                writeParity(frame.getCaptureTimeMicros());
+                transport.send(parity);
+                parityFramesSent++;
+            }
+        }
+    }
+
+    private void writeParity(long captureTimeMicros) {
+        parity.setSequenceNumber(groupBase);
+        parity.setCaptureTimeMicros(captureTimeMicros);
+        byte[] p = parity.getPayload();
+        p[0] = (byte) groupSize;
+        p[1] = (byte) codecXor;
+        p[2] = (byte) flagsXor;
+        p[3] = (byte) (lengthXor >>> 8);
+        p[4] = (byte) lengthXor;
+        for (int i = 0; i < 8; i++) {
+            p[5 + i] = (byte) (timestampXor >>> (56 - 8 * i));
+        }
+        System.arraycopy(payloadXor, 0, p, PARITY_HEADER_SIZE, maxLength);
+        parity.setPayloadLength(PARITY_HEADER_SIZE + maxLength);
+    }
+
+    /**
+     * @return The size of the next group, or 0 to send it unprotected.
+     */
+    private int chooseGroupSize() {
+        double loss = Math.max(measuredLoss, reportedLoss);
+        if (protecting ? loss < DISABLE_LOSS : loss < ENABLE_LOSS) {
+            protecting = false;
+            return 0;
+        }
+        protecting = true;
+        return groupSizeFor(loss);
+    }
+
+    /**
+     * @return The largest group size whose residual loss, the chance that a frame is lost
+     * together with another frame or the parity of its group, stays within the target.
+     */
+    static int groupSizeFor(double loss) {
+        int size = MIN_GROUP_SIZE;
+        while (size < MAX_GROUP_SIZE && loss * (1 - Math.pow(1 - loss, size + 1)) <= TARGET_RESIDUAL_LOSS) {
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean receive(AudioFrame frame) throws IOException {
+        while (true) {
+            if (!transport.receive(frame)) return false;
+            if ((frame.getFlags() & AudioFrame.FLAG_FEC) == 0) {
+                if ((frame.getFlags() & AudioFrame.FLAG_PROBE) == 0) {
+                    remember(frame);
+                }
+                return true;
+            }
+            if (recover(frame)) return true;
+        }
+    }
+
+    private void remember(AudioFrame frame) {
+        int seq = frame.getSequenceNumber();
+        double loss = measuredLoss;
+        if (!haveHighest) {
+            haveHighest = true;
+            highestSeq = seq;
+        } else if (seq - highestSeq > 0) {
+            int gap = seq - highestSeq - 1;
+            lostFrames += gap;
+            // A long gap is an outage rather than loss; cap its weight in the estimate.
+            for (int i = 0; i < Math.min(gap, HISTORY); i++) {
+                loss += (1 - loss) * LOSS_SMOOTHING;
+            }
+            highestSeq = seq;
+            if (receiveGroupSize > 0 && seq - lastParityBase > HISTORY) {
+                // The peer stopped sending parity.
+                receiveGroupSize = 0;
+            }
+        } else if (highestSeq - seq < HISTORY && !isPresent(seq)) {
+            // Counted as lost when the gap opened, but only late.
+            lostFrames--;
+        }
+        measuredLoss = loss - loss * LOSS_SMOOTHING;
+        int slot = seq & (HISTORY - 1);
+        history[slot].copyFrom(frame);
+        present[slot] = true;
+    }
+
+    /**
+     * Rebuilds the one missing frame of the group protected by {@code frame}, a parity frame,
+     * into {@code frame} itself.
+     * @return {@code false} if nothing was missing, or too much.
+     */
+    private boolean recover(AudioFrame frame) {
+        int base = frame.getSequenceNumber();
+        int length = frame.getPayloadLength();
+        if (length < PARITY_HEADER_SIZE) return false;
+        System.arraycopy(frame.getPayload(), 0, parityPayload, 0, length);
+        int size = parityPayload[0] & 0xFF;
+        if (size < 1 || size >= HISTORY / 2 || !haveHighest || highestSeq - base >= HISTORY - size) return false;
+        receiveGroupSize = size;
+        lastParityBase = base;
+
+        int missing = 0;
+        int missingSeq = 0;
+        for (int s = base; s - base < size; s++) {
+            if (!isPresent(s)) {
+                missing++;
+                missingSeq = s;
+            }
+        }
+        if (missing != 1) return false;
+
+        int codec = parityPayload[1] & 0xFF;
+        int flags = parityPayload[2] & 0xFF;
+        int payloadLength = ((parityPayload[3] & 0xFF) << 8) | (parityPayload[4] & 0xFF);
+        long timestamp = 0;
+        for (int i = 0; i < 8; i++) {
+            timestamp = (timestamp << 8) | (parityPayload[5 + i] & 0xFF);
+        }
+        for (int s = base; s - base < size; s++) {
+            if (s == missingSeq) continue;
+            AudioFrame f = history[s & (HISTORY - 1)];
+            codec ^= f.getCodecId();
+            flags ^= f.getFlags();
+            payloadLength ^= f.getPayloadLength();
+            timestamp ^= f.getCaptureTimeMicros();
+        }
+        if (payloadLength > length - PARITY_HEADER_SIZE) return false;
+
+        byte[] out = frame.getPayload();
+        System.arraycopy(parityPayload, PARITY_HEADER_SIZE, out, 0, payloadLength);
+        for (int s = base; s - base < size; s++) {
+            if (s == missingSeq) continue;
+            AudioFrame f = history[s & (HISTORY - 1)];
+            byte[] in = f.getPayload();
+            int n = Math.min(payloadLength, f.getPayloadLength());
+            for (int i = 0; i < n; i++) {
+                out[i] ^= in[i];
+            }
+        }
+        frame.setSequenceNumber(missingSeq);
+        frame.setCodecId(codec);
+        frame.setFlags(flags);
+        frame.setCaptureTimeMicros(timestamp);
+        frame.setPayloadLength(payloadLength);
+        recoveredFrames++;
+        // Keep it, so that the original arriving late is not counted as a late arrival.
+        int slot = missingSeq & (HISTORY - 1);
+        history[slot].copyFrom(frame);
+        present[slot] = true;
+        return true;
+    }
+
+    private boolean isPresent(int seq) {
+        int slot = seq & (HISTORY - 1);
+        return present[slot] && history[slot].getSequenceNumber() == seq;
+    }
+
+    /**
+     * Feeds the loss rate the peer measured on the frames this side sends, e.g. from a
+     * receiver report. The group size follows the higher of this and the local measurement.
+     * @param fraction Lost frames as a fraction of frames sent, 0..1.
+     */
+    public void reportLoss(double fraction) {
+        reportedLoss = Math.max(0, Math.min(1, fraction));
+    }
+
+    /**
+     * @return The smoothed fraction of received frames that were lost on the way, before recovery.
+     */
+    public double getMeasuredLoss() {
+        return measuredLoss;
+    }
+
+    /**
+     * @return The group size of the last parity frame received, or 0 if the peer is not sending any.
+     */
+    public int getReceiveGroupSize() {
+        return receiveGroupSize;
+    }
+
+    public long getParityFramesSent() {
+        return parityFramesSent;
+    }
+
+    /**
+     * @return Frames lost on the way to this side, whether or not they were rebuilt.
+     */
+    public long getLostCount() {
+        return lostFrames;
+    }
+
+    /**
+     * @return Lost frames rebuilt from parity.
+     */
+    public long getRecoveredCount() {
+        return recoveredFrames;
+    }
+
+    /**
+     * @return Lost frames that could not be rebuilt and have to be concealed.
+     */
+    public long getUnrecoverableCount() {
+        return Math.max(0, lostFrames - recoveredFrames);
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    @Override
+    public String toString() {
+        return "FecAudioTransport{paritySent=" + parityFramesSent + ", lost=" + lostFrames + ", recovered=" + recoveredFrames
+                + ", unrecoverable=" + getUnrecoverableCount() + ", loss=" + String.format("%.3f", measuredLoss) + "}";
+    }
+}
@@ -0,0 +1,162 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * ITU-T G.711 companding, µ-law ({@code pcmu}) or A-law ({@code pcma}): one byte per sample,
+ * halving the bandwidth of 16-bit PCM at any sample rate.
+ * <p>
+ * Both directions are table lookups. The encode tables are indexed by the sample with the
+ * low bits dropped that G.711 ignores anyway (14 bits for µ-law, 13 bits for A-law), so
+ * the tables are exact for every 16-bit input and small: 16 KiB and 8 KiB.
+ */
+public class G711Codec implements AudioCodec {
+    public static final int ID_MU_LAW = 1;
+    public static final int ID_A_LAW = 2;
+    public static final String NAME_MU_LAW = "pcmu";
+    public static final String NAME_A_LAW = "pcma";
+
+    private static final int MU_BIAS = 0x84;
+    private static final int MU_CLIP = 8159;
+    private static final int[] MU_SEGMENT_END = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+    private static final int[] A_SEGMENT_END = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+
+    private static final byte[] MU_ENCODE = new byte[1 << 14];
+    private static final short[] MU_DECODE = new short[256];
+    private static final byte[] A_ENCODE = new byte[1 << 13];
+    private static final short[] A_DECODE = new short[256];
+
+    static {
+        for (int i = 0; i < MU_ENCODE.length; i++) {
+            MU_ENCODE[i] = (byte) linearToMuLaw((i - (1 << 13)) << 2);
+        }
+        for (int i = 0; i < A_ENCODE.length; i++) {
+            A_ENCODE[i] = (byte) linearToALaw((i - (1 << 12)) << 3);
+        }
+        for (int i = 0; i < 256; i++) {
+            MU_DECODE[i] = (short) muLawToLinear(i);
+            A_DECODE[i] = (short) aLawToLinear(i);
+        }
+    }
+
+    private final boolean aLaw;
+    private final byte[] encodeTable;
+    private final short[] decodeTable;
+    private final int shift;
+    private final int offset;
+
+    private G711Codec(boolean aLaw) {
+        this.aLaw = aLaw;
+        this.encodeTable = aLaw ? A_ENCODE : MU_ENCODE;
+        this.decodeTable = aLaw ? A_DECODE : MU_DECODE;
+        this.shift = aLaw ? 3 : 2;
+        this.offset = aLaw ? 1 << 12 : 1 << 13;
+    }
+
+    public static G711Codec muLaw() {
+        return new G711Codec(false);
+    }
+
+    public static G711Codec aLaw() {
+        return new G711Codec(true);
+    }
+
+    @Override
+    public int getId() {
+        return aLaw ? ID_A_LAW : ID_MU_LAW;
+    }
+
+    @Override
+    public String getName() {
+        return aLaw ? NAME_A_LAW : NAME_MU_LAW;
+    }
+
+    @Override
+    public int getMaxEncodedSize(int samples) {
+        return samples;
+    }
+
+    @Override
+    public int getDecodedSamples(int bytes) {
+        return bytes;
+    }
+
+    @Override
+    public int encode(short[] pcm, int pcmOffset, int samples, byte[] out, int outOffset) {
+        byte[] table = encodeTable;
+        for (int i = 0; i < samples; i++) {
+            out[outOffset + i] = table[(pcm[pcmOffset + i] >> shift) + offset];
+        }
+        return samples;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+        short[] table = decodeTable;
+        for (int i = 0; i < length; i++) {
+            pcm[pcmOffset + i] = table[in[offset + i] & 0xFF];
+        }
+        return length;
+    }
+
+    private static int segment(int value, int[] ends) {
+        for (int i = 0; i < ends.length; i++) {
+            if (value <= ends[i]) return i;
+        }
+        return ends.length;
+    }
+
+    /** Reference µ-law encoder (CCITT G.711), used to build the lookup table. */
+    static int linearToMuLaw(int sample) {
+        int pcm = sample >> 2;
+        int mask;
+        if (pcm < 0) {
+            pcm = -pcm;
+            mask = 0x7F;
+        } else {
+            mask = 0xFF;
+        }
+        if (pcm > MU_CLIP) pcm = MU_CLIP;
+        pcm += MU_BIAS >> 2;
+        int seg = segment(pcm, MU_SEGMENT_END);
+        if (seg >= 8) return 0x7F ^ mask;
+        return ((seg << 4) | ((pcm >> (seg + 1)) & 0x0F)) ^ mask;
+    }
+
+    /** Reference µ-law decoder (CCITT G.711). */
+    static int muLawToLinear(int code) {
+        int u = ~code;
+        int t = ((u & 0x0F) << 3) + MU_BIAS;
+        t <<= (u & 0x70) >> 4;
+        return (u & 0x80) != 0 ? MU_BIAS - t : t - MU_BIAS;
+    }
+
+    /** Reference A-law encoder (CCITT G.711), used to build the lookup table. */
+    static int linearToALaw(int sample) {
+        int pcm = sample >> 3;
+        int mask;
+        if (pcm >= 0) {
+            mask = 0xD5;
+        } else {
+            mask = 0x55;
+            pcm = -pcm - 1;
+        }
+        int seg = segment(pcm, A_SEGMENT_END);
+        if (seg >= 8) return 0x7F ^ mask;
+        int aval = seg << 4;
+        aval |= seg < 2 ? (pcm >> 1) & 0x0F : (pcm >> seg) & 0x0F;
+        return aval ^ mask;
+    }
+
+    /** Reference A-law decoder (CCITT G.711). */
+    static int aLawToLinear(int code) {
+        int a = code ^ 0x55;
+        int t = (a & 0x0F) << 4;
+        int seg = (a & 0x70) >> 4;
+        if (seg == 0) {
+            t += 8;
+        } else {
+            t += 0x108;
+            if (seg > 1) t <<= seg - 1;
+        }
+        return (a & 0x80) != 0 ? t : -t;
+    }
+}
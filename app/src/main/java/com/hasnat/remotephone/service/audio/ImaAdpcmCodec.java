@@ -0,0 +1,161 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * IMA/DVI ADPCM ({@code adpcm}): 4 bits per sample, about 64 kbit/s for 16 kHz voice.
+ * <p>
+ * Every frame starts from its own state so it decodes without the frames before it. The
+ * 4-byte frame header holds the first sample verbatim (little-endian), the initial step
+ * index and the number of padding nibbles (0 or 1). The remaining samples follow as 4-bit
+ * codes, two per byte, low nibble first. The encoder picks the initial step index from the
+ * first few sample differences, so it keeps no state between frames and one instance can
+ * serve any number of streams.
+ */
+public class ImaAdpcmCodec implements AudioCodec {
+    public static final int ID = 3;
+    public static final String NAME = "adpcm";
+    public static final int HEADER_SIZE = 4;
+
+    /** Sample differences averaged to choose a frame's initial step size. */
+    private static final int STEP_PROBE_SAMPLES = 8;
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getMaxEncodedSize(int samples) {
+        return HEADER_SIZE + samples / 2;
+    }
+
+    @Override
+    public int getDecodedSamples(int bytes) {
+        return bytes < HEADER_SIZE ? 0 : 1 + 2 * (bytes - HEADER_SIZE);
+    }
+
+    @Override
+    public int encode(short[] pcm, int pcmOffset, int samples, byte[] out, int outOffset) {
+        if (samples == 0) return 0;
+        int predictor = pcm[pcmOffset];
+        int index = initialIndex(pcm, pcmOffset, samples);
+        int codes = samples - 1;
+        out[outOffset] = (byte) predictor;
+        out[outOffset + 1] = (byte) (predictor >> 8);
+        out[outOffset + 2] = (byte) index;
+        out[outOffset + 3] = (byte) (codes & 1);
+
+        int o = outOffset + HEADER_SIZE;
+        int pending = 0;
+        for (int i = 0; i < codes; i++) {
+            int step = STEP_TABLE[index];
+            int diff = pcm[pcmOffset + 1 + i] - predictor;
+            int code = 0;
+            if (diff < 0) {
+                code = 8;
+                diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+                code |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 1;
+                delta += step;
+            }
+            predictor = clamp16((code & 8) != 0 ? predictor - delta : predictor + delta);
+            index = clampIndex(index + INDEX_TABLE[code]);
+
+            if ((i & 1) == 0) {
+                pending = code;
+            } else {
+                out[o++] = (byte) (pending | (code << 4));
+            }
+        }
+        if ((codes & 1) != 0) {
+            out[o++] = (byte) pending;
+        }
+        return o - outOffset;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+        if (length < HEADER_SIZE) return 0;
+        int predictor = (short) ((in[offset] & 0xFF) | (in[offset + 1] << 8));
+        int index = clampIndex(in[offset + 2]);
+        int codes = 2 * (length - HEADER_SIZE) - (in[offset + 3] & 1);
+        pcm[pcmOffset] = (short) predictor;
+
+        int p = pcmOffset + 1;
+        for (int i = 0; i < codes; i++) {
+            int b = in[offset + HEADER_SIZE + (i >> 1)];
+            int code = (i & 1) == 0 ? b & 0x0F : (b >> 4) & 0x0F;
+            int step = STEP_TABLE[index];
+            int delta = step >> 3;
+            if ((code & 4) != 0) delta += step;
+            if ((code & 2) != 0) delta += step >> 1;
+            if ((code & 1) != 0) delta += step >> 2;
+            predictor = clamp16((code & 8) != 0 ? predictor - delta : predictor + delta);
+            index = clampIndex(index + INDEX_TABLE[code]);
+            pcm[p++] = (short) predictor;
+        }
+        return p - pcmOffset;
+    }
+
+    /**
+     * Chooses the smallest step that covers the average difference between the first samples,
+     * so the frame starts close to the step size the encoder would have adapted to.
+     */
+    private static int initialIndex(short[] pcm, int offset, int samples) {
+        int n = Math.min(STEP_PROBE_SAMPLES, samples - 1);
+        if (n <= 0) return 0;
+        int sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += Math.abs(pcm[offset + i + 1] - pcm[offset + i]);
+        }
+        int average = sum / n;
+        int index = 0;
+        while (index < STEP_TABLE.length - 1 && STEP_TABLE[index] < average) {
+            index++;
+        }
+        return index;
+    }
+
+    private static int clampIndex(int index) {
+        return index < 0 ? 0 : Math.min(index, STEP_TABLE.length - 1);
+    }
+
+    private static int clamp16(int value) {
+        return value > Short.MAX_VALUE ? Short.MAX_VALUE : Math.max(value, Short.MIN_VALUE);
+    }
+}
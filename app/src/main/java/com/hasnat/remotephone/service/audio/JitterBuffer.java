@@ -0,0 +1,356 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Adaptive jitter buffer between the network reader and the playout loop.
+ * <p>
+ * The reader thread {@link #put(AudioFrame, long) puts} frames as they arrive, in any order.
+ * The playout thread {@link #poll(AudioFrame) polls} once per frame, paced by the audio device,
+ * and gets frames back in sequence order. Playout starts once the buffer holds the target
+ * depth; the target follows the measured inter-arrival jitter (RFC 3550 estimator), so it stays
+ * at one frame on a clean LAN and only grows when the network actually jitters. When jitter
+ * subsides and the buffer holds clearly more than the target, old frames are skipped to bring
+ * latency back down.
+ * <p>
+ * Senders using discontinuous transmission stop sending during silence after a
+ * {@link AudioFrame#FLAG_SID SID} frame. Running dry after a SID is the expected end of a
+ * talkspurt, not an underrun: the buffer reports {@link #SILENCE} and prebuffers the next
+ * talkspurt to the target depth.
+ * <p>
+ * With forward error correction, lost frames are rebuilt only after the rest of their group
+ * has arrived; a {@link #setDepthFloor(int) depth floor} keeps them from arriving too late.
+ * <p>
+ * Frames are copied into preallocated slots, so neither side allocates per frame.
+ */
+public class JitterBuffer {
+    /** {@link #poll(AudioFrame)} result: the next frame was copied into the output frame. */
+    public static final int FRAME = 0;
+    /** {@link #poll(AudioFrame)} result: the next frame is lost or late; the caller should conceal it. */
+    public static final int MISSING = 1;
+    /** {@link #poll(AudioFrame)} result: the buffer is (re)filling; the caller should play silence. */
+    public static final int EMPTY = 2;
+    /** {@link #poll(AudioFrame)} result: the sender is in a silent period; the caller should play comfort noise. */
+    public static final int SILENCE = 3;
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final int DEFAULT_MIN_DEPTH = 1;
+    public static final int DEFAULT_MAX_DEPTH = 16;
+    private static final long DEFAULT_FRAME_DURATION_MICROS = 20_000;
+    /** The target covers this many jitter estimates, which catches nearly all late arrivals. */
+    private static final int JITTER_MULTIPLIER = 3;
+    /** Frames above the target tolerated before the buffer starts skipping frames. */
+    private static final int DRAIN_SLACK = 2;
+
+    private final AudioFrame[] slots;
+    private final boolean[] present;
+    private final long[] arrivalMicros;
+    private final int mask;
+    private final int minDepth;
+    private final int maxDepth;
+
+    private boolean initialized;
+    private boolean started;
+    private boolean playing;
+    private boolean silent;
+    private int nextSeq;
+    private int highestSeq;
+
+    private boolean haveTransit;
+    private long lastTransitMicros;
+    private long lastArrivalSeq;
+    private long lastCaptureMicros;
+    private boolean lastArrivalSid;
+    private double jitterMicros;
+    private long frameDurationMicros = DEFAULT_FRAME_DURATION_MICROS;
+    private int targetDepth;
+    private int jitterDepth;
+    private int depthFloor;
+    private long polledArrivalMicros;
+
+    private long received;
+    private long played;
+    private long lateDrops;
+    private long lostFrames;
+    private long underruns;
+    private long skippedFrames;
+
+    public JitterBuffer() {
+        this(DEFAULT_CAPACITY, DEFAULT_MIN_DEPTH, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param capacity Number of frame slots; rounded up to a power of two.
+     * @param minDepth Smallest target depth in frames.
+     * @param maxDepth Largest target depth in frames; must be less than the capacity.
+     */
+    public JitterBuffer(int capacity, int minDepth, int maxDepth) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        if (minDepth < 1 || maxDepth < minDepth || maxDepth >= size) {
+            throw new IllegalArgumentException("Invalid depth range " + minDepth + ".." + maxDepth + " for capacity " + size);
+        }
+        slots = new AudioFrame[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new AudioFrame();
+        }
+        present = new boolean[size];
+        arrivalMicros = new long[size];
+        mask = size - 1;
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        this.targetDepth = minDepth;
+        this.jitterDepth = minDepth;
+    }
+
+    /**
+     * Inserts a received frame.
+     * @param frame The frame; its contents are copied.
+     * @param arrivalMicros Local monotonic clock at arrival, in microseconds.
+     * @return {@code false} if the frame was dropped because it arrived too late or twice.
+     */
+    public synchronized boolean put(AudioFrame frame, long arrivalMicros) {
+        int seq = frame.getSequenceNumber();
+        if (!initialized) {
+            initialized = true;
+            nextSeq = seq;
+            highestSeq = seq;
+        } else if (seq - nextSeq < 0) {
+            if (started) {
+                lateDrops++;
+                return false;
+            }
+            // Still prebuffering the first frames: a later frame overtook this one, so start playout from it.
+            if (highestSeq - seq >= slots.length) {
+                lateDrops++;
+                return false;
+            }
+            nextSeq = seq;
+        }
+        if (seq - nextSeq >= slots.length) {
+            // Far ahead of playout (e.g. after a long stall): forget what can no longer be played.
+            int newNext = seq - slots.length + 1;
+            for (int s = nextSeq; s - newNext < 0; s++) {
+                if (present[s & mask]) {
+                    present[s & mask] = false;
+                    skippedFrames++;
+                }
+            }
+            nextSeq = newNext;
+        }
+        int slot = seq & mask;
+        if (present[slot]) {
+            lateDrops++;
+            return false;
+        }
+        slots[slot].copyFrom(frame);
+        present[slot] = true;
+        this.arrivalMicros[slot] = arrivalMicros;
+        if (seq - highestSeq > 0) {
+            highestSeq = seq;
+        }
+        received++;
+        updateJitter(frame, arrivalMicros);
+        return true;
+    }
+
+    private void updateJitter(AudioFrame frame, long arrivalMicros) {
+        long transit = arrivalMicros - frame.getCaptureTimeMicros();
+        int seq = frame.getSequenceNumber();
+        boolean sid = (frame.getFlags() & AudioFrame.FLAG_SID) != 0;
+        if (haveTransit) {
+            long seqDelta = seq - lastArrivalSeq;
+            // Around SID frames the capture clock jumps over suppressed audio; that says nothing about frame length.
+            if (seqDelta > 0 && seqDelta < slots.length && !sid && !lastArrivalSid) {
+                long duration = (frame.getCaptureTimeMicros() - lastCaptureMicros) / seqDelta;
+                if (duration > 0) {
+                    frameDurationMicros += (duration - frameDurationMicros) / 8;
+                }
+            }
+            long d = Math.abs(transit - lastTransitMicros);
+            jitterMicros += (d - jitterMicros) / 16.0;
+        }
+        haveTransit = true;
+        lastTransitMicros = transit;
+        lastArrivalSeq = seq;
+        lastCaptureMicros = frame.getCaptureTimeMicros();
+        lastArrivalSid = sid;
+
+        jitterDepth = (int) Math.ceil(JITTER_MULTIPLIER * jitterMicros / Math.max(1, frameDurationMicros)) + 1;
+        updateTargetDepth();
+    }
+
+    private void updateTargetDepth() {
+        targetDepth = Math.max(minDepth, Math.min(maxDepth, Math.max(jitterDepth, depthFloor)));
+    }
+
+    /**
+     * Keeps the target depth at or above {@code frames}, whatever the jitter.
+     * @param frames The floor in frames; 0 removes it.
+     */
+    public synchronized void setDepthFloor(int frames) {
+        if (frames != depthFloor) {
+            depthFloor = frames;
+            updateTargetDepth();
+        }
+    }
+
+    /**
+     * Takes the next frame in sequence for playout. Call once per frame period.
+     * @param out Receives the frame if {@link #FRAME} is returned.
+     * @return {@link #FRAME}, {@link #MISSING}, {@link #EMPTY} or {@link #SILENCE}.
+     */
+    public synchronized int poll(AudioFrame out) {
+        int depth = getDepthLocked();
+        if (!playing) {
+            if (depth == 0 || depth < targetDepth) {
+                return silent ? SILENCE : EMPTY;
+            }
+            playing = true;
+            started = true;
+        }
+        if (depth == 0) {
+            // Ran dry: rebuffer up to the target before playing again.
+            playing = false;
+            if (silent) {
+                return SILENCE;
+            }
+            underruns++;
+            return EMPTY;
+        }
+        while (depth > targetDepth + DRAIN_SLACK && !present[nextSeq & mask]) {
+            // A gap in an over-full buffer is cheaper to skip than to conceal.
+            nextSeq++;
+            lostFrames++;
+            depth--;
+        }
+        if (depth > targetDepth + DRAIN_SLACK) {
+            present[nextSeq & mask] = false;
+            nextSeq++;
+            skippedFrames++;
+        }
+        int slot = nextSeq & mask;
+        nextSeq++;
+        if (present[slot]) {
+            present[slot] = false;
+            out.copyFrom(slots[slot]);
+            polledArrivalMicros = arrivalMicros[slot];
+            silent = (out.getFlags() & AudioFrame.FLAG_SID) != 0;
+            played++;
+            return FRAME;
+        }
+        lostFrames++;
+        return silent ? SILENCE : MISSING;
+    }
+
+    /**
+     * @return The arrival time passed to {@link #put} for the frame the last {@link #FRAME} poll returned.
+     */
+    public synchronized long getPolledArrivalMicros() {
+        return polledArrivalMicros;
+    }
+
+    private int getDepthLocked() {
+        if (!initialized || highestSeq - nextSeq < 0) {
+            return 0;
+        }
+        return highestSeq - nextSeq + 1;
+    }
+
+    /**
+     * @return The number of frame periods currently buffered, including gaps.
+     */
+    public synchronized int getDepth() {
+        return getDepthLocked();
+    }
+
+    /**
+     * @return The depth, in frames, the buffer currently aims for.
+     */
+    public synchronized int getTargetDepth() {
+        return targetDepth;
+    }
+
+    /**
+     * @return The smoothed inter-arrival jitter in microseconds.
+     */
+    public synchronized long getJitterMicros() {
+        return (long) jitterMicros;
+    }
+
+    /**
+     * @return The frame duration inferred from capture timestamps, in microseconds.
+     */
+    public synchronized long getFrameDurationMicros() {
+        return frameDurationMicros;
+    }
+
+    public synchronized long getReceivedCount() {
+        return received;
+    }
+
+    public synchronized long getPlayedCount() {
+        return played;
+    }
+
+    /**
+     * @return Frames dropped because they arrived after their playout time, or twice.
+     */
+    public synchronized long getLateDropCount() {
+        return lateDrops;
+    }
+
+    /**
+     * @return Frame periods for which no frame had arrived when it was due.
+     */
+    public synchronized long getLostCount() {
+        return lostFrames;
+    }
+
+    /**
+     * @return Number of times playout ran dry and had to rebuffer.
+     */
+    public synchronized long getUnderrunCount() {
+        return underruns;
+    }
+
+    /**
+     * @return Frames discarded to shrink the buffer back towards its target.
+     */
+    public synchronized long getSkippedCount() {
+        return skippedFrames;
+    }
+
+    /**
+     * Drops all buffered frames and statistics, e.g. when a new call starts.
+     */
+    public synchronized void reset() {
+        reset(DEFAULT_FRAME_DURATION_MICROS);
+    }
+
+    /**
+     * Like {@link #reset()}, for a call whose frame duration is known in advance; the estimate
+     * then starts out right instead of converging from 20 ms.
+     */
+    public synchronized void reset(long frameDurationMicros) {
+        for (int i = 0; i < present.length; i++) {
+            present[i] = false;
+        }
+        initialized = false;
+        started = false;
+        playing = false;
+        silent = false;
+        haveTransit = false;
+        lastArrivalSid = false;
+        jitterMicros = 0;
+        this.frameDurationMicros = frameDurationMicros > 0 ? frameDurationMicros : DEFAULT_FRAME_DURATION_MICROS;
+        targetDepth = minDepth;
+        jitterDepth = minDepth;
+        depthFloor = 0;
+        received = played = lateDrops = lostFrames = underruns = skippedFrames = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "JitterBuffer{depth=" + getDepthLocked() + ", target=" + targetDepth + ", jitterUs=" + (long) jitterMicros
+                + ", received=" + received + ", played=" + played + ", late=" + lateDrops + ", lost=" + lostFrames
+                + ", underruns=" + underruns + ", skipped=" + skippedFrames + "}";
+    }
+}
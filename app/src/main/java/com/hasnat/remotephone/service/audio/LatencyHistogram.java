@@ -0,0 +1,117 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Distribution of latencies in microseconds, from which per-call percentiles are read.
+ * <p>
+ * Buckets are 128 µs wide below 1 ms, then eight per power of two up to 8 s, so a percentile
+ * is within about 6% of the true value wherever audio latencies lie. Recording costs a few
+ * integer operations and never allocates. The audio threads record while the stats reporter
+ * reads, so access is synchronized.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_SHIFT = 7;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Values from {@code 1 << FIRST_EXPONENT} up go into the logarithmic buckets. */
+    private static final int FIRST_EXPONENT = LINEAR_SHIFT + SUB_BUCKET_BITS;
+    /** Values from {@code 2 << LAST_EXPONENT} up all count in the last bucket. */
+    private static final int LAST_EXPONENT = 22;
+    static final int BUCKET_COUNT = SUB_BUCKETS * (LAST_EXPONENT - FIRST_EXPONENT + 2);
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Adds one sample; negative values count as zero.
+     */
+    public synchronized void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    static int bucketOf(long value) {
+        if (value < 1L << FIRST_EXPONENT) {
+            return (int) (value >> LINEAR_SHIFT);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > LAST_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (exponent - FIRST_EXPONENT + 1) + sub;
+    }
+
+    /**
+     * @return The smallest value that falls into {@code bucket}.
+     */
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return (long) bucket << LINEAR_SHIFT;
+        }
+        int exponent = FIRST_EXPONENT + bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param fraction The percentile as a fraction, e.g. 0.95.
+     * @return The value below which {@code fraction} of the samples lie, from the middle of its
+     * bucket and clamped to the recorded range; 0 if nothing was recorded. The top percentile is the maximum.
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        if (rank >= count) {
+            return max;
+        }
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                long middle = (lowerBoundOf(bucket) + (bucket + 1 < BUCKET_COUNT ? lowerBoundOf(bucket + 1) : max + 1)) / 2;
+                return Math.max(min, Math.min(max, middle));
+            }
+        }
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LatencyHistogram{n=" + count + ", p50Us=" + getPercentile(0.5) + ", p95Us=" + getPercentile(0.95)
+                + ", maxUs=" + max + "}";
+    }
+}
@@ -0,0 +1,181 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Packet loss concealment for the playout path, after ITU-T G.711 Appendix I.
+ * <p>
+ * Every good frame passes through {@link #process(short[], int, int)}, which keeps a short
+ * history of the signal. When a frame is lost, {@link #conceal(short[], int, int)} estimates
+ * the pitch period of the history by autocorrelation and synthesizes a replacement by
+ * repeating the last pitch period. The repetition plays at full level for the first 10 ms,
+ * then fades out linearly and reaches silence after 60 ms, so long bursts do not turn into a
+ * buzz. The first good frame after a loss is cross-faded with the synthetic signal to avoid
+ * a click.
+ * <p>
+ * Works on 16-bit mono samples at any rate and does not allocate after construction.
+ * One instance serves one stream.
+ */
+public class PacketLossConcealer {
+    /** Highest pitch searched for, in Hz; sets the shortest period. */
+    private static final int MAX_PITCH_HZ = 400;
+    /** Longest pitch period searched for, in milliseconds (about 66 Hz). */
+    private static final int MAX_PERIOD_MS = 15;
+    private static final int FULL_LEVEL_MS = 10;
+    private static final int SILENT_AFTER_MS = 60;
+    private static final int CROSSFADE_MS = 4;
+
+    private final int minPeriod;
+    private final int maxPeriod;
+    private final int fullLevelSamples;
+    private final int silentAfterSamples;
+    private final int crossfadeSamples;
+
+    private final short[] history;
+    private int historyFill;
+    private final short[] pitchBuffer;
+    private final short[] scratch;
+    private int period;
+    private int pitchPos;
+    private int lostSamples;
+
+    private long concealedFrames;
+
+    public PacketLossConcealer(int sampleRate) {
+        minPeriod = Math.max(2, sampleRate / MAX_PITCH_HZ);
+        maxPeriod = sampleRate * MAX_PERIOD_MS / 1000;
+        fullLevelSamples = sampleRate * FULL_LEVEL_MS / 1000;
+        silentAfterSamples = sampleRate * SILENT_AFTER_MS / 1000;
+        crossfadeSamples = sampleRate * CROSSFADE_MS / 1000;
+        history = new short[3 * maxPeriod];
+        pitchBuffer = new short[maxPeriod];
+        scratch = new short[crossfadeSamples];
+    }
+
+    /**
+     * Feeds a correctly received frame. If it follows a loss, its start is cross-faded
+     * in place with the concealment signal.
+     */
+    public void process(short[] pcm, int offset, int length) {
+        if (lostSamples > 0) {
+            int n = Math.min(crossfadeSamples, length);
+            if (period > 0 && n > 0) {
+                synthesize(scratch, 0, n);
+                for (int i = 0; i < n; i++) {
+                    int w = (i + 1) * 256 / (n + 1);
+                    pcm[offset + i] = (short) ((pcm[offset + i] * w + scratch[i] * (256 - w)) >> 8);
+                }
+            }
+            lostSamples = 0;
+        }
+        appendHistory(pcm, offset, length);
+    }
+
+    /**
+     * Synthesizes {@code length} samples to stand in for a lost frame.
+     */
+    public void conceal(short[] out, int offset, int length) {
+        concealedFrames++;
+        if (lostSamples == 0) {
+            period = historyFill >= history.length ? estimatePitch() : 0;
+            if (period > 0) {
+                buildPitchBuffer();
+            }
+        }
+        if (period == 0) {
+            // Not enough signal seen yet to repeat anything.
+            for (int i = 0; i < length; i++) out[offset + i] = 0;
+            lostSamples += length;
+        } else {
+            synthesize(out, offset, length);
+        }
+        appendHistory(out, offset, length);
+    }
+
+    /**
+     * @return The number of frames synthesized since construction or the last {@link #reset()}.
+     */
+    public long getConcealedFrameCount() {
+        return concealedFrames;
+    }
+
+    /**
+     * Forgets all history, e.g. when a new stream starts.
+     */
+    public void reset() {
+        historyFill = 0;
+        lostSamples = 0;
+        period = 0;
+        concealedFrames = 0;
+    }
+
+    private void synthesize(short[] out, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            int gain = gainQ8(lostSamples);
+            out[offset + i] = (short) ((pitchBuffer[pitchPos] * gain) >> 8);
+            if (++pitchPos == period) pitchPos = 0;
+            lostSamples++;
+        }
+    }
+
+    /** Level of the concealment signal, 0..256, after {@code lost} concealed samples. */
+    private int gainQ8(int lost) {
+        if (lost < fullLevelSamples) return 256;
+        if (lost >= silentAfterSamples) return 0;
+        return 256 - (lost - fullLevelSamples) * 256 / (silentAfterSamples - fullLevelSamples);
+    }
+
+    /**
+     * Finds the lag with the highest normalized autocorrelation between the most recent
+     * {@code maxPeriod} samples and the same window shifted back by the lag.
+     */
+    private int estimatePitch() {
+        int end = history.length;
+        int window = maxPeriod;
+        double bestScore = 0;
+        int bestLag = 0;
+        for (int lag = minPeriod; lag <= maxPeriod; lag++) {
+            long corr = 0;
+            long energy = 0;
+            for (int i = end - window; i < end; i++) {
+                int past = history[i - lag];
+                corr += history[i] * past;
+                energy += past * past;
+            }
+            if (corr <= 0 || energy == 0) continue;
+            double score = (double) corr * corr / energy;
+            if (score > bestScore) {
+                bestScore = score;
+                bestLag = lag;
+            }
+        }
+        // Silence or noise without periodicity: repeat the longest period, which sounds least tonal.
+        return bestLag == 0 ? maxPeriod : bestLag;
+    }
+
+    /**
+     * Copies the last pitch period into the pitch buffer, cross-fading its tail with the
+     * samples one period earlier so that the loop point joins smoothly.
+     */
+    private void buildPitchBuffer() {
+        int end = history.length;
+        System.arraycopy(history, end - period, pitchBuffer, 0, period);
+        int q = period / 4;
+        for (int j = 0; j < q; j++) {
+            int w = (j + 1) * 256 / (q + 1);
+            int recent = history[end - q + j];
+            int earlier = history[end - period - q + j];
+            pitchBuffer[period - q + j] = (short) ((recent * (256 - w) + earlier * w) >> 8);
+        }
+        pitchPos = 0;
+    }
+
+    private void appendHistory(short[] pcm, int offset, int length) {
+        int len = history.length;
+        if (length >= len) {
+            System.arraycopy(pcm, offset + length - len, history, 0, len);
+        } else {
+            System.arraycopy(history, length, history, 0, len - length);
+            System.arraycopy(pcm, offset, history, len - length, length);
+        }
+        historyFill = Math.min(len, historyFill + length);
+    }
+}
@@ -0,0 +1,55 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Conversions between 16-bit PCM bytes, as read from and written to the audio devices,
+ * and samples. Byte arrays are little-endian; {@link ByteBuffer}s use their own byte order.
+ */
+public final class Pcm16 {
+
+    private Pcm16() {
+    }
+
+    /**
+     * Converts {@code samples} samples from little-endian bytes to shorts.
+     */
+    public static void toShorts(byte[] src, int srcOffset, short[] dst, int dstOffset, int samples) {
+        for (int i = 0; i < samples; i++) {
+            int b = srcOffset + 2 * i;
+            dst[dstOffset + i] = (short) ((src[b] & 0xFF) | (src[b + 1] << 8));
+        }
+    }
+
+    /**
+     * Converts {@code samples} samples from shorts to little-endian bytes.
+     */
+    public static void toBytes(short[] src, int srcOffset, byte[] dst, int dstOffset, int samples) {
+        for (int i = 0; i < samples; i++) {
+            short s = src[srcOffset + i];
+            int b = dstOffset + 2 * i;
+            dst[b] = (byte) s;
+            dst[b + 1] = (byte) (s >> 8);
+        }
+    }
+
+    /**
+     * Converts {@code samples} samples starting at index 0 of {@code src} to shorts.
+     * Uses absolute reads, so the buffer's position and limit are left untouched.
+     */
+    public static void toShorts(ByteBuffer src, short[] dst, int dstOffset, int samples) {
+        for (int i = 0; i < samples; i++) {
+            dst[dstOffset + i] = src.getShort(2 * i);
+        }
+    }
+
+    /**
+     * Converts {@code samples} samples to bytes starting at index 0 of {@code dst}.
+     * Uses absolute writes, so the buffer's position and limit are left untouched.
+     */
+    public static void toBytes(short[] src, int srcOffset, ByteBuffer dst, int samples) {
+        for (int i = 0; i < samples; i++) {
+            dst.putShort(2 * i, src[srcOffset + i]);
+        }
+    }
+}
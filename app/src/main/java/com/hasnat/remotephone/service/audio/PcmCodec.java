@@ -0,0 +1,41 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Uncompressed 16-bit little-endian PCM ("L16"), the original wire format.
+ */
+public class PcmCodec implements AudioCodec {
+    public static final String NAME = "l16";
+
+    @Override
+    public int getId() {
+        return AudioFrame.CODEC_PCM_16BIT;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getMaxEncodedSize(int samples) {
+        return samples * 2;
+    }
+
+    @Override
+    public int getDecodedSamples(int bytes) {
+        return bytes / 2;
+    }
+
+    @Override
+    public int encode(short[] pcm, int pcmOffset, int samples, byte[] out, int outOffset) {
+        Pcm16.toBytes(pcm, pcmOffset, out, outOffset, samples);
+        return samples * 2;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+        int samples = length / 2;
+        Pcm16.toShorts(in, offset, pcm, pcmOffset, samples);
+        return samples;
+    }
+}
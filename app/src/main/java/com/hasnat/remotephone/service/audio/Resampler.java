@@ -0,0 +1,188 @@
+package com.hasnat.remotephone.service.audio;
+
+/**
+ * Streaming sample-rate converter between the audio devices' native rate and the wire rate.
+ * <p>
+ * Converts by the rational factor {@code L/M} (the rates divided by their greatest common
+ * divisor) with a polyphase FIR filter: a Kaiser-windowed sinc low-pass at
+ * {@link #ROLLOFF} of the lower Nyquist frequency, split into {@code L} phases so that each
+ * output sample costs one short dot product instead of filtering the conceptually
+ * upsampled signal. The filter spans {@link #ZERO_CROSSINGS} zero crossings of the sinc on
+ * either side, which keeps aliases and images more than 80 dB down.
+ * <p>
+ * The last input samples are kept between calls, so a stream can be converted in blocks of
+ * any size and the output is the same as converting it in one piece. Blocks of a whole
+ * number of milliseconds at both rates (such as a 10, 20 or 40 ms frame) always produce the
+ * same number of samples. The filter delays the signal by about {@link #ZERO_CROSSINGS}
+ * periods of the cutoff frequency (1 ms from 16 kHz). No allocation happens once the
+ * largest block has been seen. One instance serves one stream.
+ */
+public class Resampler {
+    /** Passband edge as a fraction of the lower of the two Nyquist frequencies. */
+    static final double ROLLOFF = 0.85;
+    /** Half-length of the filter in zero crossings of the windowed sinc. */
+    static final int ZERO_CROSSINGS = 16;
+    /** Kaiser window shape; 8 gives about 80 dB of stopband attenuation. */
+    private static final double KAISER_BETA = 8.0;
+
+    private final int inputRate;
+    private final int outputRate;
+    /** Upsampling factor, and number of filter phases. */
+    private final int up;
+    /** Downsampling factor. */
+    private final int down;
+    /** Taps per phase. */
+    private final int taps;
+    /** Phase {@code p} occupies {@code [p * taps, (p + 1) * taps)}, in time-reversed order. */
+    private final float[] coefficients;
+
+    /** The last {@code taps - 1} input samples, followed by the current block. */
+    private float[] work;
+    /** Index of the input sample the next output is aligned to, relative to the current block. */
+    private int inputIndex;
+    private int phase;
+
+    public Resampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rates " + inputRate + " -> " + outputRate);
+        }
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        int gcd = gcd(inputRate, outputRate);
+        up = outputRate / gcd;
+        down = inputRate / gcd;
+        if (up == down) {
+            taps = 1;
+            coefficients = new float[] {1f};
+        } else {
+            // Cutoff in cycles per input sample.
+            double cutoff = ROLLOFF * Math.min(inputRate, outputRate) / 2.0 / inputRate;
+            int halfTaps = (int) Math.ceil(ZERO_CROSSINGS / (2 * cutoff));
+            taps = 2 * halfTaps;
+            coefficients = design(up, taps, cutoff);
+        }
+        work = new float[taps - 1];
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * @return The largest number of samples {@link #process} can produce for a block of {@code inputSamples}.
+     */
+    public int getMaxOutputSamples(int inputSamples) {
+        return (int) (((long) inputSamples * up + down - 1) / down) + 1;
+    }
+
+    /**
+     * Converts the next block of the stream.
+     * @return The number of samples written to {@code out}; at most {@link #getMaxOutputSamples(int)}.
+     */
+    public int process(short[] in, int inOffset, int inLength, short[] out, int outOffset) {
+        if (up == down) {
+            System.arraycopy(in, inOffset, out, outOffset, inLength);
+            return inLength;
+        }
+        int history = taps - 1;
+        if (work.length < history + inLength) {
+            float[] grown = new float[history + inLength];
+            System.arraycopy(work, 0, grown, 0, history);
+            work = grown;
+        }
+        float[] w = work;
+        for (int i = 0; i < inLength; i++) {
+            w[history + i] = in[inOffset + i];
+        }
+
+        float[] h = coefficients;
+        int n = outOffset;
+        int i = inputIndex;
+        int p = phase;
+        while (i < inLength) {
+            int c = p * taps;
+            float acc = 0f;
+            for (int k = 0; k < taps; k++) {
+                acc += h[c + k] * w[i + k];
+            }
+            int s = Math.round(acc);
+            out[n++] = (short) (s > Short.MAX_VALUE ? Short.MAX_VALUE : s < Short.MIN_VALUE ? Short.MIN_VALUE : s);
+            p += down;
+            i += p / up;
+            p %= up;
+        }
+        inputIndex = i - inLength;
+        phase = p;
+        System.arraycopy(w, inLength, w, 0, history);
+        return n - outOffset;
+    }
+
+    /**
+     * Forgets the stream history, e.g. when a new call starts.
+     */
+    public void reset() {
+        for (int i = 0; i < taps - 1; i++) {
+            work[i] = 0f;
+        }
+        inputIndex = 0;
+        phase = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Resampler{" + inputRate + " -> " + outputRate + " Hz, " + up + "/" + down + ", " + taps + " taps}";
+    }
+
+    /**
+     * Samples the windowed sinc for every phase. Output sample {@code (i, p)} lies
+     * {@code p / up} input samples after input {@code i}; tap {@code k} of that phase weighs
+     * input {@code i - k}, at distance {@code k + p / up} minus the filter's centre.
+     */
+    private static float[] design(int phases, int taps, double cutoff) {
+        float[] h = new float[phases * taps];
+        double centre = taps / 2.0;
+        double i0Beta = besselI0(KAISER_BETA);
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+            double[] phaseTaps = new double[taps];
+            for (int k = 0; k < taps; k++) {
+                double t = k + (double) p / phases - centre;
+                double x = t / centre;
+                double window = Math.abs(x) >= 1 ? 0 : besselI0(KAISER_BETA * Math.sqrt(1 - x * x)) / i0Beta;
+                double arg = 2 * cutoff * t;
+                double sinc = arg == 0 ? 1 : Math.sin(Math.PI * arg) / (Math.PI * arg);
+                phaseTaps[k] = 2 * cutoff * sinc * window;
+                sum += phaseTaps[k];
+            }
+            // Unity gain at DC in every phase, so silence and DC offsets stay exact.
+            for (int k = 0; k < taps; k++) {
+                h[p * taps + (taps - 1 - k)] = (float) (phaseTaps[k] / sum);
+            }
+        }
+        return h;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < 1e-12 * sum) break;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,338 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link AudioTransport} for one call's audio session that outlives the connections under it.
+ * <p>
+ * The host names each session with a random token when the bridge starts. When the current
+ * connection fails (the socket drops, or the client's address changes with the network), the
+ * session stays open: frames sent meanwhile are dropped like lost datagrams, and receivers
+ * wait for a new connection to be {@link #attach(AudioTransport) attached}. The client side has
+ * a {@link Reconnector} and opens that connection itself, starting it with a
+ * {@link #writeSessionProbe(AudioFrame, long) session probe} so the host can tell which call it
+ * belongs to; the host attaches the connection and both sides carry on with the same sequence
+ * numbers, codec state and jitter buffers, without a new handshake. Only if no connection is
+ * attached within the reattach window does the stream end.
+ * <p>
+ * On the client a connection that goes quiet after frames had been flowing also counts as
+ * failed, since a dead TCP peer is otherwise only noticed when the kernel gives up on it. With
+ * DTX, SID frames keep arriving during silence, so a quiet connection is a broken one.
+ * <p>
+ * Probes are consumed here and never returned to the caller.
+ */
+public class ResumableAudioTransport implements AudioTransport {
+    /** How long a session waits for a new connection before its stream ends. */
+    public static final long DEFAULT_REATTACH_WINDOW_MS = 15_000;
+    /** Pause between failed reconnection attempts. */
+    static final long RECONNECT_INTERVAL_MS = 100;
+    /** A client connection that delivered frames and then none for this long is reconnected. */
+    static final long STALL_TIMEOUT_MS = 600;
+    /** How long {@link #receive} waits for a connection before throwing a timeout, so callers can check for shutdown. */
+    private static final long RECEIVE_WAIT_MS = 200;
+    private static final int TOKEN_SIZE = 8;
+
+    /**
+     * Opens a new connection to the peer for a session whose connection failed.
+     */
+    public interface Reconnector {
+        AudioTransport reconnect() throws IOException;
+    }
+
+    private final long sessionToken;
+    private final Reconnector reconnector;
+    private final long reattachWindowMillis;
+    private final AudioFrame probe = new AudioFrame();
+    private final Object lock = new Object();
+
+    // Guarded by lock.
+    private AudioTransport current;
+    private long brokenAtMillis;
+    private boolean reconnecting;
+    private boolean closed;
+
+    // Receiving thread only.
+    private AudioTransport receiving;
+    private boolean receivedOnCurrent;
+    private long lastFrameMillis;
+
+    private volatile int reattachCount;
+    private volatile long lastOutageMillis;
+
+    /**
+     * @param initial The session's first connection.
+     * @param sessionToken The token the host issued for the session.
+     * @param reconnector Opens replacement connections (client side); {@code null} to wait for
+     *                    {@link #attach} instead (host side).
+     */
+    public ResumableAudioTransport(AudioTransport initial, long sessionToken, Reconnector reconnector) {
+        this(initial, sessionToken, reconnector, DEFAULT_REATTACH_WINDOW_MS);
+    }
+
+    public ResumableAudioTransport(AudioTransport initial, long sessionToken, Reconnector reconnector, long reattachWindowMillis) {
+        this.current = initial;
+        this.sessionToken = sessionToken;
+        this.reconnector = reconnector;
+        this.reattachWindowMillis = reattachWindowMillis;
+        writeSessionProbe(probe, sessionToken);
+    }
+
+    public long getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Writes a {@link AudioFrame#FLAG_PROBE probe} that names the session {@code token}; a token
+     * of 0 introduces a connection for a new session.
+     */
+    public static void writeSessionProbe(AudioFrame frame, long token) {
+        frame.setFlags(AudioFrame.FLAG_PROBE);
+        frame.setSequenceNumber(0);
+        frame.setCaptureTimeMicros(0);
+        byte[] payload = frame.getPayload();
+        for (int i = 0; i < TOKEN_SIZE; i++) {
+            payload[i] = (byte) (token >>> (56 - 8 * i));
+        }
+        frame.setPayloadLength(TOKEN_SIZE);
+    }
+
+    /**
+     * @return The session token a probe carries, or 0 if {@code frame} is not a session probe.
+     */
+    public static long readSessionToken(AudioFrame frame) {
+        if ((frame.getFlags() & AudioFrame.FLAG_PROBE) == 0 || frame.getPayloadLength() != TOKEN_SIZE) {
+            return 0;
+        }
+        long token = 0;
+        byte[] payload = frame.getPayload();
+        for (int i = 0; i < TOKEN_SIZE; i++) {
+            token = token << 8 | (payload[i] & 0xFF);
+        }
+        return token;
+    }
+
+    /**
+     * Writes the probe that opens a new session's connection together with the client's
+     * proposal, so the host can start the bridge as soon as the connection is in, without
+     * waiting for {@code AUDIO_READY}. Hosts that do not read proposals take it for a plain
+     * probe of a new session.
+     */
+    public static void writeSessionHello(AudioFrame frame, AudioSessionParams proposal) {
+        writeSessionProbe(frame, 0);
+        byte[] text = proposal.encode().getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(text, 0, frame.getPayload(), TOKEN_SIZE, text.length);
+        frame.setPayloadLength(TOKEN_SIZE + text.length);
+    }
+
+    /**
+     * @return The proposal a {@link #writeSessionHello hello} carries, or {@code null} if
+     * {@code frame} is a plain probe or no probe at all.
+     */
+    public static AudioSessionParams readSessionHello(AudioFrame frame) {
+        if ((frame.getFlags() & AudioFrame.FLAG_PROBE) == 0 || frame.getPayloadLength() <= TOKEN_SIZE) {
+            return null;
+        }
+        return AudioSessionParams.parse(new String(frame.getPayload(), TOKEN_SIZE, frame.getPayloadLength() - TOKEN_SIZE,
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a session probe on the current connection. Over UDP this lets the host follow the
+     * client to a new address; call it periodically from a single thread.
+     */
+    public void sendSessionProbe() throws IOException {
+        send(probe);
+    }
+
+    /**
+     * Hands the session a new connection to the same peer, replacing and closing the current one.
+     * @return {@code false} if the session was already closed; the connection is closed then.
+     */
+    public boolean attach(AudioTransport transport) {
+        AudioTransport old;
+        synchronized (lock) {
+            if (closed) {
+                transport.close();
+                return false;
+            }
+            old = current;
+            current = transport;
+            if (brokenAtMillis != 0) {
+                lastOutageMillis = nowMillis() - brokenAtMillis;
+            }
+            brokenAtMillis = 0;
+            reattachCount++;
+            lock.notifyAll();
+        }
+        if (old != null) old.close();
+        return true;
+    }
+
+    /**
+     * Sends on the current connection; while there is none, the frame is dropped.
+     */
+    @Override
+    public void send(AudioFrame frame) throws IOException {
+        AudioTransport transport;
+        synchronized (lock) {
+            transport = current;
+        }
+        if (transport == null) return;
+        try {
+            transport.send(frame);
+        } catch (IOException e) {
+            connectionFailed(transport);
+        }
+    }
+
+    /**
+     * Receives from the current connection, waiting for a new one if it fails.
+     * @return {@code false} once the session is closed or no connection came within the reattach window.
+     * @throws SocketTimeoutException While waiting for a connection, or if the connection has a read timeout.
+     */
+    @Override
+    public boolean receive(AudioFrame frame) throws IOException {
+        while (true) {
+            AudioTransport transport = awaitConnection();
+            if (transport == null) return false;
+            try {
+                if (transport.receive(frame)) {
+                    if ((frame.getFlags() & AudioFrame.FLAG_PROBE) != 0) continue;
+                    lastFrameMillis = nowMillis();
+                    receivedOnCurrent = true;
+                    return true;
+                }
+                // The peer closed this connection; the session may still continue on another.
+                connectionFailed(transport);
+            } catch (SocketTimeoutException e) {
+                if (reconnector != null && receivedOnCurrent && nowMillis() - lastFrameMillis > STALL_TIMEOUT_MS) {
+                    connectionFailed(transport);
+                } else {
+                    throw e;
+                }
+            } catch (IOException e) {
+                connectionFailed(transport);
+            }
+        }
+    }
+
+    /**
+     * @return The current connection, or {@code null} if the session is over.
+     * @throws SocketTimeoutException If there is no connection yet.
+     */
+    private AudioTransport awaitConnection() throws SocketTimeoutException {
+        AudioTransport transport;
+        synchronized (lock) {
+            if (current == null && !closed) {
+                long remaining = brokenAtMillis + reattachWindowMillis - nowMillis();
+                if (remaining <= 0) {
+                    closed = true;
+                    return null;
+                }
+                try {
+                    lock.wait(Math.min(remaining, RECEIVE_WAIT_MS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                if (current == null && !closed) {
+                    throw new SocketTimeoutException("Waiting for the audio session to be reattached");
+                }
+            }
+            if (closed) return null;
+            transport = current;
+        }
+        if (transport != receiving) {
+            receiving = transport;
+            receivedOnCurrent = false;
+        }
+        return transport;
+    }
+
+    private void connectionFailed(AudioTransport transport) {
+        synchronized (lock) {
+            if (closed || current != transport) return;
+            current = null;
+            brokenAtMillis = nowMillis();
+            if (reconnector != null && !reconnecting) {
+                reconnecting = true;
+                Thread thread = new Thread(this::reconnect, "AudioReconnect");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        transport.close();
+    }
+
+    private void reconnect() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    if (closed || current != null || nowMillis() - brokenAtMillis > reattachWindowMillis) return;
+                }
+                try {
+                    AudioTransport transport = reconnector.reconnect();
+                    AudioFrame hello = new AudioFrame();
+                    writeSessionProbe(hello, sessionToken);
+                    transport.send(hello);
+                    attach(transport);
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(RECONNECT_INTERVAL_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (lock) {
+                reconnecting = false;
+            }
+        }
+    }
+
+    /**
+     * @return Whether a connection is currently attached.
+     */
+    public boolean isConnected() {
+        synchronized (lock) {
+            return current != null;
+        }
+    }
+
+    /**
+     * @return How many times a connection was attached after the first.
+     */
+    public int getReattachCount() {
+        return reattachCount;
+    }
+
+    /**
+     * @return How long the last outage lasted, from failure to reattachment, in milliseconds.
+     */
+    public long getLastOutageMillis() {
+        return lastOutageMillis;
+    }
+
+    @Override
+    public void close() {
+        AudioTransport transport;
+        synchronized (lock) {
+            closed = true;
+            transport = current;
+            current = null;
+            lock.notifyAll();
+        }
+        if (transport != null) transport.close();
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        return "ResumableAudioTransport{reattached=" + reattachCount + ", lastOutageMs=" + lastOutageMillis + "}";
+    }
+}
@@ -0,0 +1,38 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * {@link AudioTransport} over a connected TCP socket. Frames arrive reliably and in order,
+ * at the cost of head-of-line blocking whenever a segment has to be retransmitted.
+ */
+public class StreamAudioTransport implements AudioTransport {
+    private final Socket socket;
+    private final AudioFrameReader reader;
+    private final AudioFrameWriter writer;
+
+    public StreamAudioTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        this.reader = new AudioFrameReader(socket.getInputStream());
+        this.writer = new AudioFrameWriter(socket.getOutputStream());
+    }
+
+    @Override
+    public void send(AudioFrame frame) throws IOException {
+        writer.write(frame);
+    }
+
+    @Override
+    public boolean receive(AudioFrame frame) throws IOException {
+        return reader.read(frame);
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
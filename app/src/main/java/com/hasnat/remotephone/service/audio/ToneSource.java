@@ -0,0 +1,91 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.InterruptedIOException;
+
+/**
+ * {@link AudioSource} that generates a sine tone, continuously or in bursts separated by
+ * silence, for running the streaming loops off-device. Burst onsets are easy to find at the
+ * far end, so the time from one to its playout measures mouth-to-ear latency.
+ * <p>
+ * Paced in real time like a microphone unless {@link #setPaced} turns that off. Never ends
+ * unless given a duration.
+ */
+public class ToneSource implements AudioSource {
+    private final int sampleRate;
+    private final double phaseStep;
+    private final int amplitude;
+    private final long burstSamples;
+    private final long periodSamples;
+    private final AudioClock clock;
+    private boolean paced = true;
+    private long durationSamples = Long.MAX_VALUE;
+    private long position;
+
+    /**
+     * A continuous tone.
+     */
+    public ToneSource(int sampleRate, int frequencyHz, int amplitude) {
+        this(sampleRate, frequencyHz, amplitude, 1000, 1000);
+    }
+
+    /**
+     * A tone of {@code burstMillis} at the start of every {@code periodMillis}, silence in between.
+     */
+    public ToneSource(int sampleRate, int frequencyHz, int amplitude, int burstMillis, int periodMillis) {
+        this.sampleRate = sampleRate;
+        this.phaseStep = 2 * Math.PI * frequencyHz / sampleRate;
+        this.amplitude = amplitude;
+        this.burstSamples = (long) sampleRate * burstMillis / 1000;
+        this.periodSamples = (long) sampleRate * periodMillis / 1000;
+        this.clock = new AudioClock(sampleRate, 0);
+    }
+
+    /**
+     * @param paced Whether reads block for as long as capturing the samples would take.
+     */
+    public void setPaced(boolean paced) {
+        this.paced = paced;
+    }
+
+    /**
+     * Ends the source after {@code millis} of audio.
+     */
+    public void setDurationMillis(long millis) {
+        this.durationSamples = millis * sampleRate / 1000;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void start() {
+        clock.start();
+    }
+
+    /**
+     * @return When {@link #start} was called, in {@link System#nanoTime()} terms; burst {@code k}
+     * begins {@code k} periods later.
+     */
+    public long getStartNanos() {
+        return clock.getStartNanos();
+    }
+
+    @Override
+    public int read(short[] pcm, int offset, int samples) throws InterruptedIOException {
+        int n = (int) Math.min(samples, durationSamples - position);
+        if (n <= 0) return -1;
+        if (paced) clock.awaitCaptured(n);
+        for (int i = 0; i < n; i++) {
+            long t = position + i;
+            pcm[offset + i] = t % periodSamples < burstSamples ? (short) (amplitude * Math.sin(phaseStep * t)) : 0;
+        }
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+    }
+}
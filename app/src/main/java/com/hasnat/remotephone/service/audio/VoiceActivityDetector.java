@@ -0,0 +1,121 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.util.Arrays;
+
+/**
+ * Energy and zero-crossing voice activity detector for 16-bit mono frames.
+ * <p>
+ * A frame counts as speech when its energy is clearly above the background noise floor, or
+ * somewhat above it with the high zero-crossing rate of fricatives such as "s" and "f", which
+ * carry little energy. The noise floor is the lowest frame energy of the last two seconds
+ * (minimum statistics): speech always has short pauses between syllables, so the minimum
+ * follows the background even while someone talks, and a steady rise in background noise is
+ * picked up within two seconds. After speech a hangover keeps reporting activity so word
+ * endings are not clipped. Digital silence, such as a muted microphone, is always silence.
+ * <p>
+ * Does not allocate; one instance serves one stream.
+ */
+public class VoiceActivityDetector {
+    private static final int HANGOVER_MS = 200;
+    /** The noise floor is the minimum over this many sub-windows... */
+    private static final int MINIMUM_WINDOWS = 8;
+    /** ...of this length each, i.e. over the last two seconds. */
+    private static final int MINIMUM_WINDOW_MS = 250;
+    /** Energy of an RMS of 32 (about -60 dBov); anything quieter is never speech. */
+    private static final double ABSOLUTE_FLOOR_ENERGY = 32 * 32;
+    /** Speech must be this far above the noise floor (about 6 dB). */
+    private static final double SPEECH_TO_NOISE_RATIO = 4.0;
+    /** Zero crossings per sample above which a weaker frame is taken for a fricative. */
+    private static final double FRICATIVE_ZERO_CROSSINGS = 0.25;
+    /** Floor assumed until real minima are known, so speech at the start of a call is detected. */
+    private static final double INITIAL_NOISE_ENERGY = 100 * 100;
+
+    private final int hangoverSamples;
+    private final int windowSamples;
+    private final double[] minima = new double[MINIMUM_WINDOWS];
+    private int minimaIndex;
+    private double windowMinimum = Double.MAX_VALUE;
+    private int windowFill;
+    private double noiseEnergy = INITIAL_NOISE_ENERGY;
+    private double lastEnergy;
+    private int hangoverLeft;
+
+    public VoiceActivityDetector(int sampleRate) {
+        this.hangoverSamples = sampleRate * HANGOVER_MS / 1000;
+        this.windowSamples = sampleRate * MINIMUM_WINDOW_MS / 1000;
+        Arrays.fill(minima, INITIAL_NOISE_ENERGY);
+    }
+
+    /**
+     * Classifies one frame.
+     * @return {@code true} for speech (including the hangover after it).
+     */
+    public boolean process(short[] pcm, int offset, int length) {
+        if (length <= 0) return false;
+        long sum = 0;
+        int crossings = 0;
+        int previous = pcm[offset];
+        for (int i = offset; i < offset + length; i++) {
+            int s = pcm[i];
+            sum += s * s;
+            if ((s < 0) != (previous < 0)) crossings++;
+            previous = s;
+        }
+        double energy = (double) sum / length;
+        double zeroCrossings = (double) crossings / length;
+        lastEnergy = energy;
+        updateNoiseFloor(energy, length);
+
+        double threshold = Math.max(ABSOLUTE_FLOOR_ENERGY, noiseEnergy * SPEECH_TO_NOISE_RATIO);
+        boolean active = energy > threshold
+                || (energy > threshold / 2 && energy > ABSOLUTE_FLOOR_ENERGY && zeroCrossings > FRICATIVE_ZERO_CROSSINGS);
+        if (active) {
+            hangoverLeft = hangoverSamples;
+            return true;
+        }
+        if (hangoverLeft > 0) {
+            hangoverLeft -= length;
+            return true;
+        }
+        return false;
+    }
+
+    private void updateNoiseFloor(double energy, int length) {
+        windowMinimum = Math.min(windowMinimum, energy);
+        windowFill += length;
+        if (windowFill >= windowSamples) {
+            minima[minimaIndex] = windowMinimum;
+            minimaIndex = (minimaIndex + 1) % MINIMUM_WINDOWS;
+            windowMinimum = Double.MAX_VALUE;
+            windowFill = 0;
+        }
+        double floor = windowMinimum;
+        for (double minimum : minima) {
+            floor = Math.min(floor, minimum);
+        }
+        noiseEnergy = floor;
+    }
+
+    /**
+     * @return The energy (mean squared sample) of the last frame.
+     */
+    public double getLastEnergy() {
+        return lastEnergy;
+    }
+
+    /**
+     * @return The current background noise estimate, as an energy (mean squared sample).
+     */
+    public double getNoiseEnergy() {
+        return noiseEnergy;
+    }
+
+    /**
+     * Converts a mean squared sample value to a level in -dBov, clamped to 0..127.
+     */
+    static int energyToLevel(double energy) {
+        if (energy <= 0) return 127;
+        double dbov = 10 * Math.log10(energy / (32768.0 * 32768.0));
+        return (int) Math.max(0, Math.min(127, Math.round(-dbov)));
+    }
+}
@@ -0,0 +1,129 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link AudioSink} that writes what is played to a 16-bit mono PCM WAV file, for checking
+ * the output of the streaming loops off-device. With no file, the audio is discarded.
+ * <p>
+ * Paced in real time like a speaker with a {@link #DEFAULT_BUFFER_MILLIS} buffer unless
+ * {@link #setPaced} turns that off; a write after the buffer has run dry counts as an underrun.
+ */
+public class WavFileSink implements AudioSink {
+    /** How much audio the sink holds before writes block, about what a phone's audio track buffers. */
+    public static final int DEFAULT_BUFFER_MILLIS = 40;
+    private static final int HEADER_SIZE = 44;
+
+    private final File file;
+    private final int sampleRate;
+    private final AudioClock clock;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+    private long dataBytes;
+    private boolean paced = true;
+
+    /**
+     * @param file The file to create, or {@code null} to discard the audio.
+     */
+    public WavFileSink(File file, int sampleRate) {
+        this(file, sampleRate, DEFAULT_BUFFER_MILLIS);
+    }
+
+    public WavFileSink(File file, int sampleRate, int bufferMillis) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.clock = new AudioClock(sampleRate, bufferMillis);
+    }
+
+    /**
+     * @param paced Whether writes block while the buffer is full.
+     */
+    public void setPaced(boolean paced) {
+        this.paced = paced;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (file != null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            writeHeader();
+        }
+        clock.start();
+    }
+
+    @Override
+    public void write(short[] pcm, int offset, int samples) throws IOException {
+        if (channel != null) {
+            if (buffer.capacity() < 2 * samples) {
+                buffer = ByteBuffer.allocate(2 * samples).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            buffer.clear().limit(2 * samples);
+            Pcm16.toBytes(pcm, offset, buffer, samples);
+            while (buffer.hasRemaining()) {
+                dataBytes += channel.write(buffer);
+            }
+        }
+        if (paced) {
+            clock.play(samples);
+        } else {
+            clock.advance(samples);
+        }
+    }
+
+    @Override
+    public long getPlayedSamples() {
+        return clock.getPlayedSamples();
+    }
+
+    /**
+     * @return How many writes found the buffer already empty.
+     */
+    public long getUnderrunCount() {
+        return clock.getUnderrunCount();
+    }
+
+    /**
+     * Completes the WAV header and closes the file.
+     */
+    @Override
+    public void close() {
+        if (channel == null) return;
+        try {
+            writeHeader();
+        } catch (IOException ignored) {
+            // the audio is there; only the sizes in the header are stale
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] {'R', 'I', 'F', 'F'}).putInt((int) (HEADER_SIZE - 8 + dataBytes));
+        header.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '}).putInt(16);
+        header.putShort((short) CallRecorder.FORMAT_PCM_16).putShort((short) 1).putInt(sampleRate);
+        header.putInt(2 * sampleRate).putShort((short) 2).putShort((short) 16);
+        header.put(new byte[] {'d', 'a', 't', 'a'}).putInt((int) dataBytes);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.position(HEADER_SIZE + dataBytes);
+    }
+}
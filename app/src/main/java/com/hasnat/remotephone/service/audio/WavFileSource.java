@@ -0,0 +1,115 @@
+package com.hasnat.remotephone.service.audio;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link AudioSource} that plays a 16-bit mono PCM WAV file, for feeding recorded speech
+ * through the streaming loops off-device. Paced in real time like a microphone unless
+ * {@link #setPaced} turns that off; ends with the file.
+ */
+public class WavFileSource implements AudioSource {
+    private final FileChannel channel;
+    private final int sampleRate;
+    private final AudioClock clock;
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+    private long remainingBytes;
+    private boolean paced = true;
+
+    /**
+     * Opens {@code file} and reads its header.
+     * @throws IOException If it cannot be read or is not 16-bit mono PCM.
+     */
+    public WavFileSource(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer riff = readFully(12);
+            if (riff.getInt(0) != tag("RIFF") || riff.getInt(8) != tag("WAVE")) {
+                throw new IOException(file + " is not a WAV file");
+            }
+            int rate = 0;
+            while (true) {
+                ByteBuffer chunk = readFully(8);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xFFFFFFFFL;
+                if (id == tag("fmt ")) {
+                    ByteBuffer fmt = readFully((int) size);
+                    if (fmt.getShort(0) != CallRecorder.FORMAT_PCM_16 || fmt.getShort(2) != 1 || fmt.getShort(14) != 16) {
+                        throw new IOException(file + " is not 16-bit mono PCM");
+                    }
+                    rate = fmt.getInt(4);
+                } else if (id == tag("data")) {
+                    if (rate == 0) throw new IOException(file + " has no format chunk");
+                    remainingBytes = size;
+                    break;
+                } else {
+                    channel.position(channel.position() + size + (size & 1));
+                }
+            }
+            sampleRate = rate;
+            clock = new AudioClock(rate, 0);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static int tag(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+
+    private ByteBuffer readFully(int bytes) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) throw new EOFException("Truncated WAV header");
+        }
+        return header;
+    }
+
+    /**
+     * @param paced Whether reads block for as long as capturing the samples would take.
+     */
+    public void setPaced(boolean paced) {
+        this.paced = paced;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void start() {
+        clock.start();
+    }
+
+    @Override
+    public int read(short[] pcm, int offset, int samples) throws IOException {
+        int n = (int) Math.min(samples, remainingBytes / 2);
+        if (n <= 0) return -1;
+        if (buffer.capacity() < 2 * n) {
+            buffer = ByteBuffer.allocate(2 * n).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear().limit(2 * n);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException("WAV data ends early");
+        }
+        remainingBytes -= 2 * n;
+        if (paced) clock.awaitCaptured(n);
+        Pcm16.toShorts(buffer, pcm, offset, n);
+        return n;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
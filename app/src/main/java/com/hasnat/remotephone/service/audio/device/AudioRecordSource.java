@@ -0,0 +1,66 @@
+package com.hasnat.remotephone.service.audio.device;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+
+import com.hasnat.remotephone.service.audio.AudioBufferPool;
+import com.hasnat.remotephone.service.audio.AudioSource;
+import com.hasnat.remotephone.service.audio.Pcm16;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioSource} backed by the device microphone. Reads go through a pooled direct
+ * buffer, so capturing does not copy through a Java array in JNI.
+ * The caller must hold the {@code RECORD_AUDIO} permission.
+ */
+public class AudioRecordSource implements AudioSource {
+    private final AudioRecord record;
+    private final int sampleRate;
+    private final AudioBufferPool pool;
+    private final ByteBuffer captured;
+
+    /**
+     * @param audioSource The {@code MediaRecorder.AudioSource} to capture, e.g. {@code VOICE_COMMUNICATION}.
+     * @param frameSamples The samples per frame; the device buffers {@code bufferFrames} of them
+     *                     so that a late read does not lose audio.
+     */
+    public AudioRecordSource(int audioSource, int sampleRate, int frameSamples, int bufferFrames, AudioBufferPool pool) {
+        int minBuf = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        int buf = Math.max(minBuf, bufferFrames * 2 * frameSamples);
+        this.record = new AudioRecord(audioSource, sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, buf);
+        this.sampleRate = sampleRate;
+        this.pool = pool;
+        this.captured = pool.acquire();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            throw new IOException("AudioRecord failed to initialize");
+        }
+        record.startRecording();
+    }
+
+    @Override
+    public int read(short[] pcm, int offset, int samples) throws IOException {
+        int n = Math.min(samples, captured.capacity() / 2);
+        int bytes = record.read(captured, 2 * n, AudioRecord.READ_BLOCKING);
+        if (bytes < 0) throw new IOException("AudioRecord.read failed: " + bytes);
+        Pcm16.toShorts(captured, pcm, offset, bytes / 2);
+        return bytes / 2;
+    }
+
+    @Override
+    public void close() {
+        if (record.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) record.stop();
+        record.release();
+        pool.release(captured);
+    }
+}
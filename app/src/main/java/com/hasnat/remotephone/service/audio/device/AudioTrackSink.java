@@ -0,0 +1,75 @@
+package com.hasnat.remotephone.service.audio.device;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+import com.hasnat.remotephone.service.audio.AudioBufferPool;
+import com.hasnat.remotephone.service.audio.AudioSink;
+import com.hasnat.remotephone.service.audio.Pcm16;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link AudioSink} backed by the device speaker on the voice call stream. Writes go through
+ * a pooled direct buffer, in as many pieces as it takes, and block while the track is full.
+ */
+public class AudioTrackSink implements AudioSink {
+    private final AudioTrack track;
+    private final int sampleRate;
+    private final AudioBufferPool pool;
+    private final ByteBuffer output;
+
+    public AudioTrackSink(int sampleRate, AudioBufferPool pool) {
+        int buf = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        this.track = new AudioTrack(AudioManager.STREAM_VOICE_CALL, sampleRate, AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, buf, AudioTrack.MODE_STREAM);
+        this.sampleRate = sampleRate;
+        this.pool = pool;
+        this.output = pool.acquire();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            throw new IOException("AudioTrack failed to initialize");
+        }
+        track.play();
+    }
+
+    @Override
+    public void write(short[] pcm, int offset, int samples) throws IOException {
+        int outputSamples = output.capacity() / 2;
+        for (int off = 0; off < samples; off += outputSamples) {
+            int n = Math.min(outputSamples, samples - off);
+            output.clear();
+            Pcm16.toBytes(pcm, offset + off, output, n);
+            int written = track.write(output, 2 * n, AudioTrack.WRITE_BLOCKING);
+            if (written < 0) throw new IOException("AudioTrack.write failed: " + written);
+        }
+    }
+
+    /**
+     * The head position counts frames played as an unsigned 32-bit value.
+     */
+    @Override
+    public long getPlayedSamples() {
+        return track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) track.stop();
+        } catch (IllegalStateException ignored) {
+        }
+        track.release();
+        pool.release(output);
+    }
+}
@@ -2,44 +2,142 @@ package com.hasnat.remotephone.service.network;
 
 import android.Manifest;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioRecord;
-import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
+import com.hasnat.remotephone.service.audio.AudioBufferPool;
+import com.hasnat.remotephone.service.audio.AudioCallStats;
+import com.hasnat.remotephone.service.audio.AudioCodec;
+import com.hasnat.remotephone.service.audio.AudioCodecs;
+import com.hasnat.remotephone.service.audio.AudioFanout;
+import com.hasnat.remotephone.service.audio.AudioFrame;
+import com.hasnat.remotephone.service.audio.AudioMixer;
+import com.hasnat.remotephone.service.audio.AudioPlayer;
+import com.hasnat.remotephone.service.audio.AudioPlayout;
+import com.hasnat.remotephone.service.audio.AudioRateController;
+import com.hasnat.remotephone.service.audio.AudioReceiver;
+import com.hasnat.remotephone.service.audio.AudioSender;
+import com.hasnat.remotephone.service.audio.AudioSessionParams;
+import com.hasnat.remotephone.service.audio.AudioSink;
+import com.hasnat.remotephone.service.audio.AudioSource;
+import com.hasnat.remotephone.service.audio.AudioStatsReport;
+import com.hasnat.remotephone.service.audio.AudioTransport;
+import com.hasnat.remotephone.service.audio.CallRecorder;
+import com.hasnat.remotephone.service.audio.DatagramAudioTransport;
+import com.hasnat.remotephone.service.audio.FecAudioTransport;
+import com.hasnat.remotephone.service.audio.G711Codec;
+import com.hasnat.remotephone.service.audio.JitterBuffer;
+import com.hasnat.remotephone.service.audio.PcmCodec;
+import com.hasnat.remotephone.service.audio.ResumableAudioTransport;
+import com.hasnat.remotephone.service.audio.StreamAudioTransport;
+import com.hasnat.remotephone.service.audio.device.AudioRecordSource;
+import com.hasnat.remotephone.service.audio.device.AudioTrackSink;
+import com.hasnat.remotephone.utils.AudioDeviceUtils;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Manages the host-side audio server to handle two-way audio streaming with a connected client.
  * It streams audio from the host's microphone to the client's speaker and vice versa.
+ * Other clients can join the call: the host's audio is captured and encoded once and
+ * fanned out to every client's connection, and every client's microphone is mixed into what
+ * the host plays.
  */
 public class AudioServer {
+    // Whether bridged calls are recorded to the app's files; off by default.
+    public static final String PREF_RECORD_CALLS = "record_calls";
+    // "pcmu" (default) records G.711 mu-law, half the size of "l16", 16-bit PCM.
+    public static final String PREF_RECORDING_FORMAT = "recording_format";
     private static final String TAG = "AudioServer";
     private static final int AUDIO_SERVER_PORT = 8081;
+    // Capture buffer in frames; only absorbs scheduling hiccups, the frame size sets the latency.
+    private static final int CAPTURE_BUFFER_FRAMES = 4;
+    // How long a new audio connection may take to send its session probe.
+    private static final int HELLO_TIMEOUT_MS = 1000;
+    // How long the streaming threads of a stopped bridge get to write their last frames to the recording.
+    private static final long STREAM_STOP_TIMEOUT_MS = 500;
     private final Context context;
     private ServerSocket audioServerSocket;
     private Thread audioServerThread;
     private volatile boolean isStreaming = false;
-    private Socket clientAudioSocket; // Store the single client socket
+    // TCP audio connections and multiplexed audio channels waiting for their client's AUDIO_READY, by client
+    // address; the connections' session probes are consumed.
+    private final Map<InetAddress, AudioTransport> pendingStreams = new HashMap<>();
+    // The token each client named in the hello that started or joined the running call, by client address.
+    private final Map<InetAddress, Long> helloSessions = new HashMap<>();
+    // AUDIO_READY requests that arrived ahead of their audio connection's hello, by client address.
+    private final Map<InetAddress, AudioSessionParams> deferredRequests = new HashMap<>();
+    // Every client's audio session in the running call, by token, for reattaching.
+    private final Map<Long, ResumableAudioTransport> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom sessionRandom = new SecureRandom();
+    private volatile AudioTransport audioTransport;
+    private volatile AudioFanout fanout;
+    private volatile AudioMixer mixer;
+    private AudioSessionParams runningParams;
+    private InetAddress talkerAddress; // the client whose microphone the host plays
+    private boolean offHook;
+    private long offHookMicros;
+    // The host's microphone waits for the call to be answered (see setOffHook).
+    private volatile boolean microphoneHeld;
+    private volatile AudioSender hostSender;
+    private volatile AudioPlayer hostPlayer;
     private ExecutorService streamingExecutor;
     private Future<?> hostToClientStreamFuture;
     private Future<?> clientToHostStreamFuture;
+    private Future<?> clientToHostReceiveFuture;
+    // The streaming threads of the last stopped bridge, which the next one waits for.
+    private Future<?>[] stoppingStreams;
+    private AudioReceiver clientAudioReceiver;
+    private volatile AudioCallStats callStats;
+    private volatile AudioRateController rateController;
+    private CallRecorder recorder;
+
+    private final SessionListener sessionListener;
+
+    /**
+     * Connects the audio server to the control connections, for bridges a client starts from
+     * its audio connection.
+     */
+    public interface SessionListener {
+        /**
+         * @return Whether a control client is connected from {@code address}; only such a
+         * client may start a bridge from its audio connection.
+         */
+        boolean isControlClient(InetAddress address);
+
+        /**
+         * Called when a client's audio connection started a bridge, or joined it, without
+         * {@code AUDIO_READY}; the client still expects {@code START_AUDIO_BRIDGE}.
+         */
+        void onBridgeStarted(InetAddress clientAddress, AudioSessionParams accepted);
+    }
 
-    public AudioServer(Context context) {
+    public AudioServer(Context context, SessionListener sessionListener) {
         this.context = context;
+        this.sessionListener = sessionListener;
     }
 
     /**
@@ -48,7 +146,8 @@ public class AudioServer {
     public void startServer() {
         audioServerThread = new Thread(new AudioServerRunnable());
         audioServerThread.start();
-        streamingExecutor = Executors.newFixedThreadPool(2);
+        // Three threads for the call, plus a sender and a receiver per joining client.
+        streamingExecutor = Executors.newCachedThreadPool();
     }
 
     /**
@@ -56,6 +155,7 @@ public class AudioServer {
      */
     public void stopServer() {
         stopAudioBridge();
+        closePendingStreams();
         if (audioServerThread != null) {
             audioServerThread.interrupt();
         }
@@ -67,60 +167,415 @@ public class AudioServer {
             Log.e(TAG, "Error closing audio server socket", e);
         }
         if (streamingExecutor != null) {
-            streamingExecutor.shutdownNow();
+            // Not interrupted: the stopped bridge may still be finishing its recording.
+            streamingExecutor.shutdown();
         }
         Log.d(TAG, "Audio server stopped.");
     }
 
     /**
-     * Helper to safely close the client audio socket.
+     * Helper to close the audio connections no client has claimed.
      */
-    private synchronized void closeClientSocketQuietly() {
-        if (clientAudioSocket != null && !clientAudioSocket.isClosed()) {
-            try { clientAudioSocket.close(); } catch (IOException ignored) {}
-            clientAudioSocket = null;
+    private synchronized void closePendingStreams() {
+        for (AudioTransport stream : pendingStreams.values()) {
+            stream.close();
         }
+        pendingStreams.clear();
+    }
+
+    private synchronized AudioTransport takePendingStream(InetAddress clientAddress) {
+        return pendingStreams.remove(clientAddress);
     }
 
     /**
-     * Initiates the bidirectional audio bridge by starting the streaming threads.
+     * For an {@code AUDIO_READY} whose client named its session in the hello on its audio
+     * connection: whether that connection starts the bridge, so the request needs no answer.
+     * It does if its hello already started or joined the call under the request's token, or if
+     * the connection has not been read yet; the request is then kept, and the connection starts
+     * the bridge with it should its hello not do so. If the connection is already waiting
+     * without, the request is for {@link #startAudioBridge} as usual.
      */
-    public void startAudioBridge() {
-        if (clientAudioSocket == null || clientAudioSocket.isClosed()) {
-            Log.e(TAG, "Cannot start audio bridge: No client socket connected.");
-            return;
+    public synchronized boolean isStartedByHello(AudioSessionParams requested, InetAddress clientAddress) {
+        Long named = helloSessions.get(clientAddress);
+        if (named != null && named == requested.getSessionToken()) {
+            return true;
         }
+        if (pendingStreams.containsKey(clientAddress)) {
+            return false;
+        }
+        deferredRequests.put(clientAddress, requested);
+        return true;
+    }
 
+    /**
+     * Holds the audio channel of a client's multiplexed control connection for its
+     * {@code AUDIO_READY}, like an audio connection accepted on {@link #AUDIO_SERVER_PORT}.
+     */
+    public synchronized void addMultiplexedStream(InetAddress clientAddress, AudioTransport channel) {
+        AudioTransport previous = pendingStreams.put(clientAddress, channel);
+        if (previous != null) previous.close();
+    }
+
+    private long newSessionToken() {
+        long token;
+        do {
+            token = sessionRandom.nextLong();
+        } while (token == 0);
+        return token;
+    }
+
+    private static void configureAudioSocket(Socket socket) {
         try {
-            clientAudioSocket.setKeepAlive(true);
-            clientAudioSocket.setTcpNoDelay(true);
-            clientAudioSocket.setSoTimeout(1500); // periodic unblock on reads
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(1500); // periodic unblock on reads
         } catch (Exception e) {
             Log.w(TAG, "Failed to set socket options", e);
         }
+    }
+
+    /**
+     * Initiates the bidirectional audio bridge by starting the streaming threads.
+     * The client proposes a transport; the TCP socket accepted on {@link #AUDIO_SERVER_PORT}
+     * is used for {@code tcp}, a UDP channel on the same port number for {@code udp}, and the
+     * channel added with {@link #addMultiplexedStream} for {@code mux}.
+     * The host sends with the first codec the client offered that it supports, and both sides
+     * use the frame duration and wire sample rate the client asked for if they are supported.
+     * Discontinuous transmission, and parity frames over UDP, are used if the client asked
+     * for them. If the client asked for an adaptive stream, the host's stream follows the
+     * client's reports (see {@link #onClientReport}). The microphone and
+     * speaker run at the device's native rate and are resampled to and from the wire rate.
+     * The session gets a random token; a client that loses its audio connection reconnects
+     * quoting it and the streams resume on the new connection.
+     * <p>
+     * A client asks for the bridge with {@code prewarm} while the call rings or is being
+     * dialled; until {@link #setOffHook} reports the call answered, the bridge runs with the
+     * host's microphone held, so audio flows from the first frame after answering.
+     * <p>
+     * While the bridge runs, other clients that ask for audio join the call
+     * (see {@link #addParticipant}). A bridge that replaces a running one waits for the old
+     * one's threads to stop first, so that the devices are free.
+     * @param requested The parameters the client sent with {@code AUDIO_READY}.
+     * @param clientAddress The address of the client that sent them.
+     * @return The parameters the bridge was started with, or {@code null} if it could not start.
+     */
+    public AudioSessionParams startAudioBridge(AudioSessionParams requested, InetAddress clientAddress) {
+        return startAudioBridge(requested, clientAddress, null);
+    }
+
+    /**
+     * @param stream The client's audio connection, or {@code null} for the one it opened before
+     *               {@code AUDIO_READY}.
+     */
+    private synchronized AudioSessionParams startAudioBridge(AudioSessionParams requested, InetAddress clientAddress,
+                                                             AudioTransport stream) {
+        AudioSessionParams running = runningParams;
+        if (isStreaming && running != null && !clientAddress.equals(talkerAddress)) {
+            return addParticipant(requested, clientAddress, running, stream);
+        }
+        // The client may already be streaming with exactly this answer, under the token it chose.
+        AudioSessionParams accepted = requested.answer();
+        AudioCodec codec = AudioCodecs.byName(accepted.getCodec());
+        int deviceRate = AudioDeviceUtils.getNativeSampleRate(context, accepted.getSampleRate());
+        long sessionToken = accepted.getSessionToken() != 0 && !sessions.containsKey(accepted.getSessionToken())
+                ? accepted.getSessionToken() : newSessionToken();
+        accepted.setSessionToken(sessionToken);
+        if (stream == null && !accepted.isDatagram()) stream = takePendingStream(clientAddress);
+        if (audioTransport != null) {
+            // The talking client restarted its audio, or a previous bridge still holds the UDP port.
+            stopAudioBridge();
+        }
+        // The previous bridge's threads let go of the devices before the new ones open them.
+        Future<?>[] previous = stoppingStreams;
+        stoppingStreams = null;
+        if (previous != null && !awaitStreams(previous)) {
+            Log.w(TAG, "Previous audio bridge did not stop in time; starting the new one anyway.");
+        }
+        AudioTransport transport;
+        if (accepted.isDatagram()) {
+            try {
+                DatagramAudioTransport datagram = DatagramAudioTransport.bind(AUDIO_SERVER_PORT);
+                datagram.setSessionToken(sessionToken);
+                transport = datagram;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot start audio bridge: failed to bind UDP audio port.", e);
+                return null;
+            }
+        } else {
+            if (stream == null) {
+                Log.e(TAG, "Cannot start audio bridge: No client socket connected.");
+                return null;
+            }
+            transport = stream;
+        }
 
+        // The host waits for the client to reattach rather than reconnecting itself.
+        ResumableAudioTransport session = new ResumableAudioTransport(transport, sessionToken, null);
+        sessions.put(sessionToken, session);
+        AudioTransport bridgeTransport = accepted.isFec() ? new FecAudioTransport(session) : session;
+        audioTransport = bridgeTransport;
+        AudioFanout fanout = new AudioFanout(streamingExecutor);
+        fanout.subscribe(bridgeTransport);
+        this.fanout = fanout;
+        // Compressed frames decode to more samples than their byte count.
+        AudioMixer mixer = new AudioMixer(AudioFrame.MAX_PAYLOAD_SIZE);
+        this.mixer = mixer;
+        runningParams = accepted;
+        talkerAddress = clientAddress;
         isStreaming = true;
-        Log.d(TAG, "Starting bidirectional audio bridge.");
+        microphoneHeld = requested.isPrewarm() && !offHook;
+        Log.d(TAG, "Starting bidirectional audio bridge (" + accepted + ", device rate " + deviceRate + " Hz"
+                + (microphoneHeld ? ", held until answered" : "") + ").");
+
+        // Buffers of its own, which the threads of a previous bridge cannot touch.
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        jitterBuffer.reset(accepted.getFrameMillis() * 1000L);
+        // One capture and one playout buffer.
+        AudioBufferPool deviceBuffers = new AudioBufferPool(2, 2 * AudioFrame.MAX_PAYLOAD_SIZE);
+        AudioCallStats stats = new AudioCallStats(jitterBuffer, bridgeTransport);
+        if (offHook) stats.markAnswered(offHookMicros);
+        callStats = stats;
+        AudioRateController controller = accepted.isAdaptive()
+                ? AudioRateController.forSession(accepted, codec, requested.getCodecs()) : null;
+        rateController = controller;
+        AudioReceiver receiver = new AudioReceiver(bridgeTransport, jitterBuffer, stats);
+        clientAudioReceiver = receiver;
+
+        CallRecorder recorder = startRecording(accepted.getSampleRate());
+        this.recorder = recorder;
+        hostToClientStreamFuture  = streamingExecutor.submit(() -> streamHostMicToClient(fanout, codec, accepted, deviceRate, stats,
+                controller, recorder, deviceBuffers));
+        clientToHostReceiveFuture = streamingExecutor.submit(receiver);
+        clientToHostStreamFuture  = streamingExecutor.submit(() -> streamClientMicToHost(receiver, jitterBuffer, mixer, accepted,
+                deviceRate, stats, recorder, deviceBuffers));
+        return accepted;
+    }
+
+    /**
+     * Lets a client join the running call. It gets the frames the talking client gets, so it
+     * must be able to play them as they are encoded, and sends its microphone the same way;
+     * that is mixed into what the host plays. An adaptive stream follows the talking client's
+     * reports only, so listeners on a worse link than it lose more. Once the mixer is full,
+     * further clients only listen. Joining clients connect over TCP, or share their
+     * multiplexed control connection: the UDP port carries the talking client's stream. A
+     * client that proposed UDP is answered with TCP and no session, and asks again once its
+     * TCP connection is up.
+     * @return The parameters of the client's stream, or {@code null} if it cannot join.
+     */
+    private AudioSessionParams addParticipant(AudioSessionParams requested, InetAddress clientAddress, AudioSessionParams running,
+                                              AudioTransport stream) {
+        if (!requested.canReceive(running)) {
+            Log.w(TAG, "Client " + clientAddress.getHostAddress() + " cannot play the call's audio (" + running + ")");
+            return null;
+        }
+        AudioSessionParams accepted = new AudioSessionParams();
+        accepted.setTransport(requested.isMultiplexed() ? AudioSessionParams.TRANSPORT_MUX : AudioSessionParams.TRANSPORT_TCP);
+        accepted.setCodec(running.getCodec());
+        accepted.setFrameMillis(running.getFrameMillis());
+        accepted.setDtx(running.isDtx());
+        accepted.setSampleRate(running.getSampleRate());
+        accepted.setAdaptive(running.isAdaptive());
+        accepted.setPrewarm(requested.isPrewarm());
+        if (requested.isDatagram()) {
+            return accepted;
+        }
+        if (stream == null) stream = takePendingStream(clientAddress);
+        AudioFanout fanout = this.fanout;
+        AudioMixer mixer = this.mixer;
+        if (stream == null || fanout == null || mixer == null) {
+            Log.e(TAG, "Cannot add client to the call: No client socket connected.");
+            return null;
+        }
+        long sessionToken = newSessionToken();
+        accepted.setSessionToken(sessionToken);
+        ResumableAudioTransport session = new ResumableAudioTransport(stream, sessionToken, null);
+        AudioFanout.Subscriber subscriber = fanout.subscribe(session);
+        if (subscriber == null) {
+            return null;
+        }
+        sessions.put(sessionToken, session);
+
+        // The client's own jitter buffer delays its stream just enough for its network path.
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        jitterBuffer.reset(running.getFrameMillis() * 1000L);
+        int wireRate = running.getSampleRate();
+        AudioPlayout playout = new AudioPlayout(jitterBuffer, wireRate, running.getFrameSamples(wireRate));
+        AudioMixer.Source source = mixer.addSource(playout::next);
+        accepted.setListenOnly(source == null);
+        AudioReceiver receiver = new AudioReceiver(session, jitterBuffer);
+        streamingExecutor.execute(() -> {
+            receiver.run();
+            sessions.remove(sessionToken);
+            if (source != null) mixer.removeSource(source);
+            fanout.unsubscribe(subscriber);
+            Log.d(TAG, "Client " + clientAddress.getHostAddress() + " left the call: " + subscriber + ", " + jitterBuffer);
+        });
+        Log.d(TAG, "Client " + clientAddress.getHostAddress() + " joined the call (" + accepted + "), "
+                + fanout.getSubscriberCount() + " audio clients, " + mixer.getSourceCount() + " mixed");
+        return accepted;
+    }
+
+    /**
+     * Starts recording the call if {@link #PREF_RECORD_CALLS} is set. Recordings go to the
+     * app's external files, or its internal files if there is no external storage.
+     * @return The recorder, or {@code null} if the call is not recorded.
+     */
+    private CallRecorder startRecording(int sampleRate) {
+        SharedPreferences prefs = context.getSharedPreferences("AppPrefs", Context.MODE_PRIVATE);
+        if (prefs == null || !prefs.getBoolean(PREF_RECORD_CALLS, false)) {
+            return null;
+        }
+        boolean pcm = PcmCodec.NAME.equals(prefs.getString(PREF_RECORDING_FORMAT, G711Codec.NAME_MU_LAW));
+        File base = context.getExternalFilesDir(null);
+        File dir = new File(base != null ? base : context.getFilesDir(), "recordings");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot record call: failed to create " + dir);
+            return null;
+        }
+        String name = "call-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".wav";
+        try {
+            CallRecorder recorder = CallRecorder.open(new File(dir, name), sampleRate, AudioFrame.MAX_PAYLOAD_SIZE,
+                    pcm ? CallRecorder.FORMAT_PCM_16 : CallRecorder.FORMAT_MU_LAW);
+            Log.d(TAG, "Recording call to " + recorder.getFile());
+            return recorder;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record call", e);
+            return null;
+        }
+    }
+
+    /**
+     * Tells the audio server whether the phone is off-hook, i.e. the call was answered or
+     * dialled out. Going off-hook releases the microphone of a bridge set up ahead of the call.
+     */
+    public synchronized void setOffHook(boolean offHook) {
+        this.offHook = offHook;
+        if (!offHook) return;
+        offHookMicros = System.nanoTime() / 1000;
+        AudioCallStats stats = callStats;
+        if (stats != null) stats.markAnswered(offHookMicros);
+        if (!microphoneHeld) return;
+        microphoneHeld = false;
+        AudioSender sender = hostSender;
+        if (sender != null) sender.setHeld(false);
+        Log.d(TAG, "Call answered; host microphone is live.");
+    }
 
-        hostToClientStreamFuture  = streamingExecutor.submit(this::streamHostMicToClient);
-        clientToHostStreamFuture  = streamingExecutor.submit(this::streamClientMicToHost);
+    /**
+     * @return The statistics of the running audio bridge, or {@code null} if there is none.
+     */
+    public AudioCallStats getCallStats() {
+        return callStats;
     }
 
     /**
-     * Stops the audio streaming threads by setting the flag and canceling futures.
+     * Takes in the talking client's latest {@code AUDIO_STATS} report: adds it to the call's
+     * statistics, and adapts the stream the host sends and its parity to how the client receives it.
      */
-    public void stopAudioBridge() {
+    public void onClientReport(AudioStatsReport report) {
+        AudioCallStats stats = callStats;
+        if (stats == null) return;
+        stats.onPeerReport(report, System.nanoTime() / 1000);
+        AudioRateController controller = rateController;
+        if (controller == null) return;
+        if (controller.onReport(report, stats.getLastRoundTripMicros())) {
+            Log.i(TAG, "Host->Client stream adapted: " + controller);
+        }
+        AudioTransport transport = audioTransport;
+        if (transport instanceof FecAudioTransport) {
+            ((FecAudioTransport) transport).reportLoss(controller.getLossFraction());
+        }
+    }
+
+    /**
+     * Stops the audio streaming threads by setting the flag and asking each loop to exit, and
+     * logs a summary of the call's audio statistics. A recording is finished in the background
+     * once the threads have written their last frames to it.
+     */
+    public synchronized void stopAudioBridge() {
         isStreaming = false;
+        AudioSender sender = hostSender;
+        hostSender = null;
+        if (sender != null) sender.stop();
+        AudioPlayer player = hostPlayer;
+        hostPlayer = null;
+        if (player != null) player.stop();
         Log.d(TAG, "Stopping host audio bridge.");
+        runningParams = null;
+        talkerAddress = null;
+        for (ResumableAudioTransport session : sessions.values()) {
+            if (session.getReattachCount() > 0) Log.d(TAG, "Audio session " + session);
+        }
+        sessions.clear();
+        helloSessions.clear();
+        deferredRequests.clear();
+        AudioCallStats stats = callStats;
+        callStats = null;
+        if (stats != null) {
+            Log.i(TAG, "Call audio summary:\n" + stats.describe("Host->Client", "Client->Host", System.nanoTime() / 1000));
+        }
+        AudioRateController controller = rateController;
+        rateController = null;
+        if (controller != null) Log.d(TAG, "Host->Client " + controller);
 
-        if (hostToClientStreamFuture != null) hostToClientStreamFuture.cancel(true);
-        if (clientToHostStreamFuture != null) clientToHostStreamFuture.cancel(true);
+        if (clientAudioReceiver != null) clientAudioReceiver.stop();
+        Future<?>[] streams = {hostToClientStreamFuture, clientToHostStreamFuture, clientToHostReceiveFuture};
+        hostToClientStreamFuture = null;
+        clientToHostStreamFuture = null;
+        clientToHostReceiveFuture = null;
+        stoppingStreams = streams;
 
-        // Nudge blocking I/O to exit quickly
-        try { if (clientAudioSocket != null) clientAudioSocket.shutdownInput(); } catch (IOException ignored) {}
-        try { if (clientAudioSocket != null) clientAudioSocket.shutdownOutput(); } catch (IOException ignored) {}
+        // Closing every client's connection nudges blocking I/O to exit quickly.
+        AudioFanout fanout = this.fanout;
+        this.fanout = null;
+        mixer = null;
+        if (fanout != null) fanout.close();
+        AudioTransport transport = audioTransport;
+        audioTransport = null;
+        if (transport instanceof FecAudioTransport) Log.d(TAG, "Client->Host " + transport);
+        if (transport != null) transport.close();
+        closePendingStreams();
 
-        closeClientSocketQuietly();
+        CallRecorder recorder = this.recorder;
+        this.recorder = null;
+        if (streamingExecutor == null) return; // the server never started
+        streamingExecutor.execute(() -> {
+            awaitStreams(streams);
+            if (recorder == null) return;
+            // The streaming threads have written their last frames, so the recording is complete.
+            try {
+                recorder.finish();
+                Log.i(TAG, "Call recorded: " + recorder);
+            } catch (IOException e) {
+                Log.e(TAG, "Call recording failed: " + recorder, e);
+            }
+        });
+    }
+
+    /**
+     * Waits up to {@link #STREAM_STOP_TIMEOUT_MS} for each streaming thread to exit, and
+     * interrupts those that have not.
+     * @return {@code false} if some had to be interrupted.
+     */
+    private static boolean awaitStreams(Future<?>[] streams) {
+        long deadline = System.nanoTime() + STREAM_STOP_TIMEOUT_MS * 1_000_000L;
+        boolean stopped = true;
+        for (Future<?> stream : streams) {
+            if (stream == null) continue;
+            try {
+                stream.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                stream.cancel(true);
+                stopped = false;
+            } catch (ExecutionException | CancellationException ignored) {
+                // Ended one way or another.
+            } catch (InterruptedException e) {
+                stream.cancel(true);
+                stopped = false;
+                Thread.currentThread().interrupt();
+            }
+        }
+        return stopped;
     }
 
     /**
@@ -136,12 +591,61 @@ public class AudioServer {
                     Socket newClient = audioServerSocket.accept();
                     Log.d(TAG, "Client connected to audio server: " + newClient.getInetAddress());
 
-                    if (clientAudioSocket != null && !clientAudioSocket.isClosed()) {
-                        Log.d(TAG, "Replacing existing audio client");
-                        stopAudioBridge();
-                        closeClientSocketQuietly();
+                    StreamAudioTransport stream;
+                    AudioFrame probe = new AudioFrame();
+                    try {
+                        newClient.setSoTimeout(HELLO_TIMEOUT_MS);
+                        stream = new StreamAudioTransport(newClient);
+                        readSessionProbe(stream, probe);
+                        configureAudioSocket(newClient);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Audio client went away before identifying its session", e);
+                        try { newClient.close(); } catch (IOException ignored) {}
+                        continue;
+                    }
+
+                    long token = ResumableAudioTransport.readSessionToken(probe);
+                    ResumableAudioTransport session = token != 0 ? sessions.get(token) : null;
+                    if (session != null) {
+                        if (session.attach(stream)) {
+                            Log.d(TAG, "Client reattached to the audio session after " + session.getLastOutageMillis() + " ms");
+                        }
+                        continue;
+                    }
+                    if (token != 0) {
+                        // The call ended while the client was away; refusing lets its session run out.
+                        Log.d(TAG, "Client tried to reattach to an audio session that has ended.");
+                        stream.close();
+                        continue;
+                    }
+                    AudioSessionParams proposal = ResumableAudioTransport.readSessionHello(probe);
+                    InetAddress address = newClient.getInetAddress();
+                    if (proposal != null && !proposal.isDatagram() && sessionListener.isControlClient(address)) {
+                        // The client is already streaming: start at once rather than wait for AUDIO_READY.
+                        AudioSessionParams accepted;
+                        synchronized (AudioServer.this) {
+                            deferredRequests.remove(address);
+                            accepted = startAudioBridge(proposal, address, stream);
+                            if (accepted != null) helloSessions.put(address, proposal.getSessionToken());
+                        }
+                        onHelloBridge(address, stream, accepted);
+                        continue;
+                    }
+                    AudioSessionParams requested;
+                    synchronized (AudioServer.this) {
+                        // Its AUDIO_READY was put off for the hello, which did not start the bridge.
+                        requested = deferredRequests.remove(address);
+                        if (requested == null) {
+                            AudioTransport previous = pendingStreams.put(address, stream);
+                            if (previous != null) {
+                                Log.d(TAG, "Replacing unclaimed audio connection from " + address);
+                                previous.close();
+                            }
+                        }
+                    }
+                    if (requested != null) {
+                        onHelloBridge(address, stream, startAudioBridge(requested, address, stream));
                     }
-                    clientAudioSocket = newClient;
                 }
             } catch (IOException e) {
                 if (!Thread.currentThread().isInterrupted()) {
@@ -152,69 +656,94 @@ public class AudioServer {
     }
 
     /**
-     * Streams audio from the host's microphone to the connected client's speaker.
+     * Answers a bridge started from an audio connection on the client's control connection.
+     */
+    private void onHelloBridge(InetAddress clientAddress, AudioTransport stream, AudioSessionParams accepted) {
+        if (accepted != null) {
+            sessionListener.onBridgeStarted(clientAddress, accepted);
+        } else {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads the session probe a client starts each audio connection with into {@code frame};
+     * if the client sent none in time, {@code frame} is left as no probe, i.e. a new session.
      */
-    private void streamHostMicToClient() {
-        int buf = AudioRecord.getMinBufferSize(16000, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    private static void readSessionProbe(StreamAudioTransport stream, AudioFrame frame) throws IOException {
+        try {
+            if (!stream.receive(frame)) {
+                throw new IOException("Audio connection closed");
+            }
+        } catch (SocketTimeoutException e) {
+            frame.setFlags(0);
+        }
+    }
+
+    /**
+     * Streams audio from the host's microphone to the connected clients' speakers through an
+     * {@link AudioSender}; the capture is recorded on the host's side of {@code recorder}.
+     * @param controller Adapts the stream to the talking client's reports; {@code null} to send as negotiated.
+     */
+    private void streamHostMicToClient(AudioTransport transport, AudioCodec codec, AudioSessionParams params, int deviceRate,
+                                       AudioCallStats stats, AudioRateController controller, CallRecorder recorder,
+                                       AudioBufferPool deviceBuffers) {
         if (ActivityCompat.checkSelfPermission(context, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
             Log.e(TAG, "RECORD_AUDIO not granted");
             return;
         }
-        AudioRecord rec = new AudioRecord(MediaRecorder.AudioSource.VOICE_COMMUNICATION, 16000,
-                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, buf);
-        OutputStream out = null;
+        AudioSource mic = new AudioRecordSource(MediaRecorder.AudioSource.VOICE_COMMUNICATION, deviceRate,
+                params.getFrameSamples(deviceRate), CAPTURE_BUFFER_FRAMES, deviceBuffers);
+        AudioSender sender = new AudioSender(mic, transport, codec, params, stats);
+        if (controller != null) sender.setRateController(controller);
+        if (recorder != null) sender.setRecorder(recorder, CallRecorder.CHANNEL_HOST);
+        // Published before the hold is checked again, so a release in between is not missed.
+        sender.setHeld(microphoneHeld);
+        hostSender = sender;
+        if (!microphoneHeld) sender.setHeld(false);
+        if (!isStreaming) sender.stop(); // stopped before it was published
+        Log.d(TAG, "Host->Client started (" + sender + ", " + params.getFrameSamples(params.getSampleRate())
+                + " samples per frame)");
         try {
-            out = clientAudioSocket.getOutputStream();
-            rec.startRecording();
-            byte[] b = new byte[Math.max(640, buf)];
-            Log.d(TAG, "Host->Client started");
-            while (isStreaming && !Thread.currentThread().isInterrupted()) {
-                int n = rec.read(b, 0, b.length);
-                if (n > 0) {
-                    out.write(b, 0, n);
-                    out.flush();
-                }
-            }
-            try { clientAudioSocket.shutdownOutput(); } catch (IOException ignored) {}
-        } catch (IOException e) {
-            Log.e(TAG, "Error in host mic streaming thread", e);
+            sender.run();
         } finally {
-            if (rec.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) rec.stop();
-            rec.release();
-            Log.d(TAG, "Host->Client stopped");
+            mic.close();
         }
+        if (sender.getError() != null && isStreaming) {
+            Log.e(TAG, "Error in host mic streaming thread", sender.getError());
+        }
+        Log.d(TAG, "Host->Client stopped: " + sender);
     }
 
     /**
-     * Streams audio from the client's microphone to the host's speaker.
+     * Plays the clients' microphone audio on the host's speaker through an {@link AudioPlayer}.
+     * The talking client's frames come out of {@code jitterBuffer}, filled by {@code receiver}, and
+     * are mixed with those of any clients that joined the call; the mix is recorded on the
+     * clients' side of {@code recorder}.
      */
-    private void streamClientMicToHost() {
-        int buf = AudioTrack.getMinBufferSize(16000, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
-        AudioTrack player = new AudioTrack(AudioManager.STREAM_VOICE_CALL, 16000,
-                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, buf, AudioTrack.MODE_STREAM);
-        InputStream in = null;
+    private void streamClientMicToHost(AudioReceiver receiver, JitterBuffer jitterBuffer, AudioMixer mixer,
+                                       AudioSessionParams params, int deviceRate, AudioCallStats stats, CallRecorder recorder,
+                                       AudioBufferPool deviceBuffers) {
+        int wireRate = params.getSampleRate();
+        AudioPlayout playout = new AudioPlayout(jitterBuffer, wireRate, params.getFrameSamples(wireRate), stats);
+        mixer.addSource(playout::next);
+        AudioSink speaker = new AudioTrackSink(deviceRate, deviceBuffers);
+        AudioPlayer player = new AudioPlayer(mixer::mix, playout, receiver, speaker, wireRate, stats);
+        if (recorder != null) player.setRecorder(recorder, CallRecorder.CHANNEL_CLIENTS);
+        hostPlayer = player;
+        if (!isStreaming) player.stop(); // stopped before it was published
+        Log.d(TAG, "Client->Host started (" + player + ")");
         try {
-            in = clientAudioSocket.getInputStream();
-            player.play();
-            byte[] b = new byte[Math.max(640, buf)];
-            Log.d(TAG, "Client->Host started");
-            while (isStreaming && !Thread.currentThread().isInterrupted()) {
-                int n;
-                try {
-                    n = in.read(b);
-                } catch (SocketTimeoutException ste) {
-                    continue;
-                }
-                if (n == -1) break;
-                if (n > 0) player.write(b, 0, n);
-            }
-            try { clientAudioSocket.shutdownInput(); } catch (IOException ignored) {}
-        } catch (IOException e) {
-            Log.e(TAG, "Error in client mic streaming thread", e);
+            player.run();
         } finally {
-            try { player.stop(); } catch (Exception ignored) {}
-            player.release();
-            Log.d(TAG, "Client->Host stopped");
+            speaker.close();
+        }
+        if (player.getError() != null && isStreaming) {
+            Log.e(TAG, "Error in client mic playout thread", player.getError());
+        }
+        if (receiver.getError() != null) {
+            Log.e(TAG, "Error in client mic streaming thread", receiver.getError());
         }
+        Log.d(TAG, "Client->Host stopped: " + player + ", " + jitterBuffer);
     }
 }
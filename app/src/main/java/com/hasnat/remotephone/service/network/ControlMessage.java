@@ -0,0 +1,137 @@
+package com.hasnat.remotephone.service.network;
+
+/**
+ * One line of the control channel, e.g. {@code RINGING:+15551234|Alice}: a name, optionally
+ * followed by a colon and an argument. Some arguments are fields separated by {@code |};
+ * the audio handshake and stats messages carry {@code key=value;} parameters instead.
+ * <p>
+ * Parsing finds the separators with {@code indexOf} rather than regular expressions, so a
+ * message costs one substring per part. Pure Java, so it is covered by the JVM benchmarks.
+ */
+public final class ControlMessage {
+    // Host to client.
+    public static final String RINGING = "RINGING";
+    public static final String CALL_STARTED = "CALL_STARTED";
+    public static final String CALL_IDLE = "CALL_IDLE";
+    public static final String START_AUDIO_BRIDGE = "START_AUDIO_BRIDGE";
+    public static final String OTP = "OTP";
+    public static final String NOTIFICATION = "NOTIFICATION";
+    // Client to host.
+    public static final String ANSWER = "ANSWER";
+    public static final String END_CALL = "END_CALL";
+    public static final String MUTE = "MUTE";
+    public static final String UNMUTE = "UNMUTE";
+    public static final String HOLD = "HOLD";
+    public static final String RESUME = "RESUME";
+    public static final String SPEAKER_ON = "SPEAKER_ON";
+    public static final String SPEAKER_OFF = "SPEAKER_OFF";
+    public static final String DIAL = "DIAL";
+    public static final String REMOTE_CALL = "REMOTE_CALL";
+    public static final String AUDIO_READY = "AUDIO_READY";
+    // Both directions: asks for, and agrees to, switching to a MultiplexedConnection.
+    public static final String MUX = "MUX";
+
+    private static final char ARGUMENT_SEPARATOR = ':';
+    private static final char FIELD_SEPARATOR = '|';
+
+    private final String name;
+    private final String argument;
+
+    private ControlMessage(String name, String argument) {
+        this.name = name;
+        this.argument = argument;
+    }
+
+    /**
+     * Splits {@code line} at its first colon. A line without one is a name alone.
+     * <p>
+     * Commands that take no argument are only recognised bare, as they always were: a line
+     * such as {@code CALL_IDLE:junk} becomes a message named by the whole line, which no
+     * handler knows.
+     */
+    public static ControlMessage parse(String line) {
+        int colon = line.indexOf(ARGUMENT_SEPARATOR);
+        if (colon < 0) return new ControlMessage(line, null);
+        String name = line.substring(0, colon);
+        if (takesNoArgument(name)) return new ControlMessage(line, null);
+        return new ControlMessage(name, line.substring(colon + 1));
+    }
+
+    private static boolean takesNoArgument(String name) {
+        switch (name) {
+            case CALL_IDLE:
+            case ANSWER:
+            case END_CALL:
+            case MUTE:
+            case UNMUTE:
+            case HOLD:
+            case RESUME:
+            case SPEAKER_ON:
+            case SPEAKER_OFF:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Builds the line for {@code name} with its argument made of {@code fields}, joined by {@code |}.
+     */
+    public static String encode(String name, String... fields) {
+        if (fields.length == 0) return name;
+        StringBuilder line = new StringBuilder(name.length() + 32).append(name).append(ARGUMENT_SEPARATOR);
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) line.append(FIELD_SEPARATOR);
+            line.append(fields[i]);
+        }
+        return line.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean hasArgument() {
+        return argument != null;
+    }
+
+    /**
+     * @return Everything after the first colon, or an empty string if there is none.
+     */
+    public String getArgument() {
+        return argument != null ? argument : "";
+    }
+
+    /**
+     * Splits the argument at {@code |} into at most {@code limit} fields, the last of which
+     * keeps any further separators, like {@code String.split("\\|", limit)}.
+     */
+    public String[] getFields(int limit) {
+        String text = getArgument();
+        int count = 1;
+        for (int i = text.indexOf(FIELD_SEPARATOR); i >= 0 && count < limit; i = text.indexOf(FIELD_SEPARATOR, i + 1)) {
+            count++;
+        }
+        String[] fields = new String[count];
+        int start = 0;
+        for (int f = 0; f < count - 1; f++) {
+            int end = text.indexOf(FIELD_SEPARATOR, start);
+            fields[f] = text.substring(start, end);
+            start = end + 1;
+        }
+        fields[count - 1] = text.substring(start);
+        return fields;
+    }
+
+    /**
+     * @return The line this message was parsed from.
+     */
+    public String encode() {
+        return argument != null ? name + ARGUMENT_SEPARATOR + argument : name;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,426 @@
+package com.hasnat.remotephone.service.network;
+
+import com.hasnat.remotephone.service.audio.AudioFrame;
+import com.hasnat.remotephone.service.audio.AudioFrameCodec;
+import com.hasnat.remotephone.service.audio.AudioTransport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * One TCP connection between host and client that carries several logical channels: control
+ * lines, call audio and bulk data. A call's audio then needs no connection of its own, and
+ * the host is reached on a single port.
+ * <p>
+ * A control connection starts out as plain lines. The client asks to switch with
+ * {@link #upgradeLine() MUX:1} and sends nothing else until the answer; a host that supports
+ * multiplexing answers with the same line and both sides switch right after it. A host that
+ * does not treats the line as an unknown command and never answers, so the client stays on
+ * plain lines. After the switch, every message is a {@value #HEADER_SIZE}-byte header, the
+ * channel and the big-endian payload length, followed by the payload: a control line without
+ * its line break, an audio frame as {@link AudioFrameCodec} encodes it, or a chunk of bulk data.
+ * <p>
+ * One writer thread sends what is queued, control first, then audio, then bulk, so control is
+ * never queued behind audio. Bulk data goes out in chunks of at most {@value #BULK_CHUNK_SIZE}
+ * bytes, so neither control nor audio waits for more than one chunk. Audio frames that pile up
+ * because the link is slower than the stream are dropped oldest first, like lost datagrams,
+ * instead of delaying the rest.
+ * <p>
+ * Audio is carried for one call at a time: {@link #openAudioChannel()} returns the channel's
+ * {@link AudioTransport}, and closing it ends the stream for the peer, as closing an audio
+ * socket would. The audio path does not allocate.
+ */
+public class MultiplexedConnection implements Closeable {
+    public static final int VERSION = 1;
+    static final int CHANNEL_CONTROL = 0;
+    static final int CHANNEL_AUDIO = 1;
+    static final int CHANNEL_BULK = 2;
+    static final int HEADER_SIZE = 3;
+    public static final int BULK_CHUNK_SIZE = 1024;
+    /** Audio frames queued in each direction before the oldest is dropped. */
+    static final int AUDIO_QUEUE_FRAMES = 8;
+    /** How long {@link AudioTransport#receive} waits for a frame before throwing a timeout, so callers can check for shutdown. */
+    private static final long AUDIO_RECEIVE_WAIT_MS = 200;
+    private static final int MAX_PAYLOAD = 0xFFFF;
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * Receives the control lines and bulk data that arrive, on the thread running {@link #read()}.
+     */
+    public interface Listener {
+        void onControl(String line);
+
+        void onBulk(byte[] data, int offset, int length);
+    }
+
+    private final Socket socket;
+    private final Listener listener;
+    private final Thread writerThread;
+    private final Object lock = new Object();
+
+    // Guarded by lock.
+    private final ArrayDeque<byte[]> controlQueue = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> bulkQueue = new ArrayDeque<>();
+    private final byte[][] audioQueue = new byte[AUDIO_QUEUE_FRAMES][HEADER_SIZE + AudioFrameCodec.MAX_FRAME_SIZE];
+    private final int[] audioLengths = new int[AUDIO_QUEUE_FRAMES];
+    private int audioHead;
+    private int audioCount;
+    private boolean closed;
+    private long controlSent;
+    private long audioSent;
+    private long audioDropped;
+    private long bulkBytesSent;
+
+    private volatile AudioChannel audioChannel;
+    private volatile long audioReceived;
+    private volatile long audioMalformed;
+    private volatile long bulkBytesReceived;
+
+    /**
+     * Starts the writer thread; call {@link #read()} to take in what arrives.
+     * @param socket A control connection that has just been switched to multiplexing.
+     */
+    public MultiplexedConnection(Socket socket, Listener listener) throws IOException {
+        this.socket = socket;
+        this.listener = listener;
+        OutputStream out = socket.getOutputStream();
+        writerThread = new Thread(() -> writeLoop(out), "MultiplexedConnection writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * @return The line that asks for, and agrees to, a switch to multiplexing.
+     */
+    public static String upgradeLine() {
+        return ControlMessage.encode(ControlMessage.MUX, String.valueOf(VERSION));
+    }
+
+    /**
+     * @return Whether {@code line} asks for a version of multiplexing this side speaks.
+     */
+    public static boolean isUpgrade(String line) {
+        return upgradeLine().equals(line);
+    }
+
+    /**
+     * Reads one line byte by byte, so that nothing after it is consumed: on a connection that
+     * switches to multiplexing, what follows the answer is binary.
+     * @return The line without its line break, or {@code null} at the end of the stream.
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() > 0 ? line.toString(StandardCharsets.UTF_8.name()) : null;
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Control line too long");
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.UTF_8.name());
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Queues a control line; it goes out ahead of any audio or bulk data waiting.
+     */
+    public void sendControl(String line) throws IOException {
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        if (text.length > MAX_PAYLOAD) {
+            throw new IOException("Control line too long: " + text.length + " bytes");
+        }
+        enqueue(controlQueue, message(CHANNEL_CONTROL, text, 0, text.length));
+    }
+
+    /**
+     * Queues bulk data, sent in chunks whenever no control line or audio frame is waiting.
+     */
+    public void sendBulk(byte[] data, int offset, int length) throws IOException {
+        for (int start = offset; start < offset + length; start += BULK_CHUNK_SIZE) {
+            int chunk = Math.min(BULK_CHUNK_SIZE, offset + length - start);
+            enqueue(bulkQueue, message(CHANNEL_BULK, data, start, chunk));
+        }
+    }
+
+    private static byte[] message(int channel, byte[] payload, int offset, int length) {
+        byte[] message = new byte[HEADER_SIZE + length];
+        writeHeader(message, channel, length);
+        System.arraycopy(payload, offset, message, HEADER_SIZE, length);
+        return message;
+    }
+
+    private static void writeHeader(byte[] dst, int channel, int length) {
+        dst[0] = (byte) channel;
+        dst[1] = (byte) (length >>> 8);
+        dst[2] = (byte) length;
+    }
+
+    private void enqueue(ArrayDeque<byte[]> queue, byte[] message) throws IOException {
+        synchronized (lock) {
+            if (closed) throw new IOException("Connection closed");
+            queue.add(message);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues an audio frame, or with {@code frame == null} the end of the stream.
+     */
+    private void enqueueAudio(AudioFrame frame) throws IOException {
+        synchronized (lock) {
+            if (closed) throw new IOException("Connection closed");
+            if (audioCount == AUDIO_QUEUE_FRAMES) {
+                audioHead = (audioHead + 1) % AUDIO_QUEUE_FRAMES;
+                audioCount--;
+                audioDropped++;
+            }
+            int slot = (audioHead + audioCount) % AUDIO_QUEUE_FRAMES;
+            int length = frame != null ? AudioFrameCodec.encode(frame, audioQueue[slot], HEADER_SIZE) : 0;
+            writeHeader(audioQueue[slot], CHANNEL_AUDIO, length);
+            audioLengths[slot] = HEADER_SIZE + length;
+            audioCount++;
+            lock.notifyAll();
+        }
+    }
+
+    private void writeLoop(OutputStream out) {
+        byte[] audio = new byte[HEADER_SIZE + AudioFrameCodec.MAX_FRAME_SIZE];
+        try {
+            while (true) {
+                byte[] message;
+                int length;
+                synchronized (lock) {
+                    while (!closed && controlQueue.isEmpty() && audioCount == 0 && bulkQueue.isEmpty()) {
+                        lock.wait();
+                    }
+                    if (closed) return;
+                    if (!controlQueue.isEmpty()) {
+                        message = controlQueue.poll();
+                        length = message.length;
+                        controlSent++;
+                    } else if (audioCount > 0) {
+                        length = audioLengths[audioHead];
+                        System.arraycopy(audioQueue[audioHead], 0, audio, 0, length);
+                        message = audio;
+                        audioHead = (audioHead + 1) % AUDIO_QUEUE_FRAMES;
+                        audioCount--;
+                        audioSent++;
+                    } else {
+                        message = bulkQueue.poll();
+                        length = message.length;
+                        bulkBytesSent += length - HEADER_SIZE;
+                    }
+                }
+                out.write(message, 0, length);
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+
+    /**
+     * Reads and dispatches messages until the peer closes the connection, then closes it here
+     * too. Control lines and bulk data go to the listener on this thread; audio frames are
+     * handed to the open audio channel, or dropped if there is none. A malformed audio frame
+     * is counted and dropped; it does not end the connection.
+     */
+    public void read() throws IOException {
+        byte[] payload = new byte[MAX_PAYLOAD];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                int channel;
+                try {
+                    channel = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                int length = in.readUnsignedShort();
+                in.readFully(payload, 0, length);
+                switch (channel) {
+                    case CHANNEL_CONTROL:
+                        listener.onControl(new String(payload, 0, length, StandardCharsets.UTF_8));
+                        break;
+                    case CHANNEL_AUDIO: {
+                        AudioChannel audio = audioChannel;
+                        if (audio != null && !audio.deliver(payload, length)) {
+                            audioMalformed++;
+                        }
+                        audioReceived++;
+                        break;
+                    }
+                    case CHANNEL_BULK:
+                        listener.onBulk(payload, 0, length);
+                        bulkBytesReceived += length;
+                        break;
+                    default:
+                        break; // A channel of a later version.
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Starts carrying a call's audio. Audio still queued for a previous call is discarded, and
+     * a channel still open for it ends.
+     */
+    public AudioTransport openAudioChannel() {
+        AudioChannel channel = new AudioChannel();
+        AudioChannel previous;
+        synchronized (lock) {
+            audioHead = 0;
+            audioCount = 0;
+            previous = audioChannel;
+            audioChannel = channel;
+        }
+        if (previous != null) previous.end();
+        return channel;
+    }
+
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    /**
+     * Closes the connection and every channel on it.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            lock.notifyAll();
+        }
+        AudioChannel channel = audioChannel;
+        if (channel != null) channel.end();
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "MultiplexedConnection{sent " + controlSent + " control, " + audioSent + " audio (" + audioDropped
+                    + " dropped), " + bulkBytesSent + " bulk bytes; received " + audioReceived + " audio (" + audioMalformed + " malformed), "
+                    + bulkBytesReceived + " bulk bytes}";
+        }
+    }
+
+    /**
+     * The audio of one call. Received frames wait in a small queue for the receiving thread;
+     * if it falls behind, the oldest are dropped.
+     */
+    private class AudioChannel implements AudioTransport {
+        private final AudioFrame[] frames = new AudioFrame[AUDIO_QUEUE_FRAMES];
+        // Takes each frame as it is decoded, so a malformed one leaves the queue alone.
+        private AudioFrame decoded = new AudioFrame();
+        private int head;
+        private int count;
+        private boolean ended;
+        private boolean closed;
+
+        AudioChannel() {
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = new AudioFrame();
+            }
+        }
+
+        /**
+         * @return {@code false} if the frame was malformed and dropped.
+         */
+        synchronized boolean deliver(byte[] payload, int length) {
+            if (length == 0) {
+                ended = true; // the peer closed its end
+            } else if (!ended) {
+                try {
+                    AudioFrameCodec.decode(payload, 0, length, decoded);
+                } catch (ProtocolException e) {
+                    return false;
+                }
+                if (count == frames.length) {
+                    head = (head + 1) % frames.length;
+                    count--;
+                }
+                int tail = (head + count) % frames.length;
+                AudioFrame free = frames[tail];
+                frames[tail] = decoded;
+                decoded = free;
+                count++;
+            }
+            notifyAll();
+            return true;
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        @Override
+        public void send(AudioFrame frame) throws IOException {
+            synchronized (this) {
+                if (closed) throw new IOException("Audio channel closed");
+            }
+            enqueueAudio(frame);
+        }
+
+        @Override
+        public synchronized boolean receive(AudioFrame frame) throws IOException {
+            long deadline = System.nanoTime() + AUDIO_RECEIVE_WAIT_MS * 1_000_000L;
+            while (count == 0 && !ended && !closed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No audio frame within " + AUDIO_RECEIVE_WAIT_MS + " ms");
+                }
+                try {
+                    wait(remaining / 1_000_000L + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (count == 0 || closed) {
+                return false;
+            }
+            frame.copyFrom(frames[head]);
+            head = (head + 1) % frames.length;
+            count--;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                notifyAll();
+            }
+            if (audioChannel == this) {
+                try {
+                    enqueueAudio(null); // tells the peer the stream ended
+                } catch (IOException ignored) {
+                    // The connection is gone, and the peer's stream with it.
+                }
+            }
+        }
+    }
+}
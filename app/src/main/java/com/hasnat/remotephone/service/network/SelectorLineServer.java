@@ -0,0 +1,473 @@
+package com.hasnat.remotephone.service.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves line-based control connections from a single thread with a {@link Selector}, so the
+ * number of threads stays the same however many clients connect.
+ * <p>
+ * The event loop accepts connections, reads whatever has arrived on each, splits it into
+ * lines and hands them to the {@link Listener}. All connections share one read buffer; a
+ * connection only keeps the bytes of a line that is still incomplete. Lines may be sent from
+ * any thread: they are encoded straight into the connection's output buffer, which is reused
+ * for as long as the connection lasts, and written by the loop as far as the socket takes
+ * them, the rest once it is writable again. A client that stops reading while more than
+ * {@value #MAX_QUEUED_BYTES} bytes are queued for it is disconnected, instead of holding on
+ * to ever more memory.
+ * <p>
+ * A connection can also leave the loop, e.g. to switch to a {@link MultiplexedConnection}:
+ * after {@link Connection#handOver()}, no more of its input is read and no more lines are
+ * taken; the loop goes on writing what is queued without blocking, and once all of it is out
+ * the listener gets the connection back in {@link Listener#onHandOver}.
+ */
+public class SelectorLineServer implements Closeable {
+    static final int READ_BUFFER_SIZE = 16 * 1024;
+    static final int MAX_LINE_LENGTH = 8192;
+    /** Output queued for one client before it counts as gone. */
+    static final int MAX_QUEUED_BYTES = 256 * 1024;
+    private static final int INITIAL_OUTPUT_SIZE = 1024;
+
+    /**
+     * Told what happens on the connections; called on the event-loop thread, so it must not block.
+     */
+    public interface Listener {
+        void onConnected(Connection connection);
+
+        void onLine(Connection connection, String line);
+
+        /**
+         * Called once a connection asked to be {@link Connection#handOver() handed over} has
+         * written all its queued output and left the loop; take it with {@link Connection#detach()}.
+         */
+        void onHandOver(Connection connection);
+
+        /**
+         * @param cause Why the connection ended; {@code null} if the client closed it or it was closed here.
+         */
+        void onDisconnected(Connection connection, IOException cause);
+    }
+
+    /**
+     * One client connection.
+     */
+    public final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Object outputLock = new Object();
+        // Guarded by outputLock: the queued bytes, from the start up to the position.
+        private ByteBuffer output = ByteBuffer.allocate(INITIAL_OUTPUT_SIZE);
+        private byte[] partialLine;
+        private int partialLength;
+        private volatile boolean closing;
+        private boolean closed;
+        // Guarded by outputLock.
+        private boolean handingOver;
+        private boolean detached;
+        private volatile Object attachment;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        public InetAddress getAddress() {
+            return channel.socket().getInetAddress();
+        }
+
+        /**
+         * Queues a line for the client; may be called from any thread.
+         * @return {@code false} if the connection is closed or being handed over, or the client
+         * fell too far behind.
+         */
+        public boolean send(String line) {
+            int length = utf8Length(line) + 1;
+            synchronized (outputLock) {
+                if (closing || handingOver) {
+                    return false;
+                }
+                int queued = output.position();
+                if (queued + length > MAX_QUEUED_BYTES) {
+                    closing = true;
+                } else {
+                    if (output.remaining() < length) {
+                        ByteBuffer grown = ByteBuffer.allocate(Math.min(MAX_QUEUED_BYTES, Math.max(queued + length, 2 * output.capacity())));
+                        output.flip();
+                        output = grown.put(output);
+                    }
+                    putUtf8(output, line);
+                    output.put((byte) '\n');
+                }
+            }
+            requestService(this);
+            return !closing;
+        }
+
+        /**
+         * Closes the connection from any thread; the listener hears of it as usual.
+         */
+        public void close() {
+            closing = true;
+            requestService(this);
+        }
+
+        /**
+         * Takes the connection out of the loop once the current line is handled and what is
+         * queued has been written; input after that line is not read, and later lines are
+         * refused. Only on the event-loop thread, e.g. in {@link Listener#onLine}.
+         */
+        public void handOver() {
+            synchronized (outputLock) {
+                handingOver = true;
+            }
+        }
+
+        /**
+         * Only in {@link Listener#onHandOver}: returns the connection's socket, now blocking,
+         * with nothing left queued. Does no I/O.
+         */
+        public Socket detach() throws IOException {
+            channel.configureBlocking(true);
+            detached = true;
+            return channel.socket();
+        }
+
+        public void attach(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public Object attachment() {
+            return attachment;
+        }
+
+        @Override
+        public String toString() {
+            return "Connection{" + getAddress().getHostAddress() + "}";
+        }
+    }
+
+    private final InetSocketAddress bindAddress;
+    private final Listener listener;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // Connections with output or a close to deal with, from other threads.
+    private final ConcurrentLinkedQueue<Connection> serviceRequests = new ConcurrentLinkedQueue<>();
+    private final List<Connection> handOvers = new ArrayList<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loopThread;
+    private volatile boolean running;
+
+    public SelectorLineServer(InetSocketAddress bindAddress, Listener listener) {
+        this.bindAddress = bindAddress;
+        this.listener = listener;
+    }
+
+    /**
+     * Binds the server socket and starts the event loop.
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(bindAddress);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        loopThread = new Thread(this::loop, "SelectorLineServer");
+        loopThread.start();
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the event loop and closes every connection still in it.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (selector != null) selector.wakeup();
+        if (loopThread != null && Thread.currentThread() != loopThread) {
+            try {
+                loopThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void requestService(Connection connection) {
+        serviceRequests.add(connection);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select();
+                Connection requested;
+                while ((requested = serviceRequests.poll()) != null) {
+                    if (requested.closing) {
+                        closeConnection(requested, null);
+                    } else {
+                        flush(requested);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) read(connection);
+                    if (key.isValid() && key.isWritable()) flush(connection);
+                }
+                if (!handOvers.isEmpty()) completeHandOvers();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            running = false;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    closeConnection((Connection) key.attachment(), null);
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                channel.close();
+                continue;
+            }
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            Connection connection = new Connection(channel, key);
+            key.attach(connection);
+            listener.onConnected(connection);
+        }
+    }
+
+    /**
+     * Reads what has arrived and hands every complete line to the listener. Lines that arrived
+     * whole are decoded straight from the shared buffer; only the start of an incomplete one is
+     * kept with the connection.
+     */
+    private void read(Connection connection) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = connection.channel.read(readBuffer);
+        } catch (IOException e) {
+            closeConnection(connection, e);
+            return;
+        }
+        if (read < 0) {
+            closeConnection(connection, null);
+            return;
+        }
+        byte[] data = readBuffer.array();
+        int start = 0;
+        for (int i = 0; i < read && !connection.handingOver && !connection.closed; i++) {
+            if (data[i] != '\n') continue;
+            String line;
+            if (connection.partialLength > 0) {
+                if (!appendToLine(connection, data, start, i - start)) return;
+                line = decodeLine(connection.partialLine, connection.partialLength);
+                connection.partialLength = 0;
+            } else if (i - start > MAX_LINE_LENGTH) {
+                closeConnection(connection, new IOException("Control line too long"));
+                return;
+            } else {
+                line = decodeLine(data, start, i - start);
+            }
+            start = i + 1;
+            listener.onLine(connection, line);
+        }
+        if (connection.closed) return;
+        if (connection.handingOver) {
+            connection.partialLength = 0;
+            flush(connection);
+        } else if (start < read) {
+            appendToLine(connection, data, start, read - start);
+        }
+    }
+
+    /**
+     * @return The length of {@code text} in UTF-8, as {@link #putUtf8} writes it.
+     */
+    private static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes {@code text} as UTF-8 without an intermediate array; like
+     * {@link String#getBytes}, an unpaired surrogate becomes {@code '?'}.
+     */
+    private static void putUtf8(ByteBuffer out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                out.put((byte) (0xF0 | cp >> 18));
+                out.put((byte) (0x80 | cp >> 12 & 0x3F));
+                out.put((byte) (0x80 | cp >> 6 & 0x3F));
+                out.put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3F));
+                out.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private static String decodeLine(byte[] data, int length) {
+        return decodeLine(data, 0, length);
+    }
+
+    private static String decodeLine(byte[] data, int offset, int length) {
+        if (length > 0 && data[offset + length - 1] == '\r') length--;
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Keeps part of a line that has not fully arrived; closes the connection if the line is too long.
+     */
+    private boolean appendToLine(Connection connection, byte[] data, int offset, int length) {
+        int needed = connection.partialLength + length;
+        if (needed > MAX_LINE_LENGTH) {
+            closeConnection(connection, new IOException("Control line too long"));
+            return false;
+        }
+        if (connection.partialLine == null || connection.partialLine.length < needed) {
+            byte[] grown = new byte[Math.min(MAX_LINE_LENGTH, Math.max(needed, 2 * needed))];
+            if (connection.partialLine != null) {
+                System.arraycopy(connection.partialLine, 0, grown, 0, connection.partialLength);
+            }
+            connection.partialLine = grown;
+        }
+        System.arraycopy(data, offset, connection.partialLine, connection.partialLength, length);
+        connection.partialLength = needed;
+        return true;
+    }
+
+    /**
+     * Writes as much of the queued output as the socket takes, and watches for it becoming
+     * writable again if some is left. A connection being handed over is no longer read, and
+     * leaves the loop once its output is drained.
+     */
+    private void flush(Connection connection) {
+        if (connection.closed || connection.detached) return;
+        boolean drained;
+        boolean handingOver;
+        try {
+            synchronized (connection.outputLock) {
+                ByteBuffer output = connection.output;
+                if (output.position() > 0) {
+                    output.flip();
+                    try {
+                        connection.channel.write(output);
+                    } finally {
+                        output.compact();
+                    }
+                }
+                drained = output.position() == 0;
+                handingOver = connection.handingOver;
+            }
+        } catch (IOException e) {
+            closeConnection(connection, e);
+            return;
+        }
+        if (handingOver) {
+            if (drained) {
+                if (!handOvers.contains(connection)) handOvers.add(connection);
+            } else {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+        connection.key.interestOps(drained ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Deregisters the connections that asked to leave the loop and gives them to the listener.
+     */
+    private void completeHandOvers() throws IOException {
+        for (Connection connection : handOvers) {
+            connection.key.cancel();
+        }
+        // Completes the deregistration, so the channels can be switched to blocking.
+        selector.selectNow();
+        for (Connection connection : handOvers) {
+            connection.partialLine = null;
+            listener.onHandOver(connection);
+        }
+        handOvers.clear();
+    }
+
+    private void closeConnection(Connection connection, IOException cause) {
+        if (connection.closed || connection.detached) return;
+        connection.closed = true;
+        connection.closing = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (connection.outputLock) {
+            connection.output.clear();
+        }
+        listener.onDisconnected(connection, cause);
+    }
+}
@@ -0,0 +1,103 @@
+package com.hasnat.remotephone.service.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Opens TCP connections to the host with a bounded connect and retries failed attempts after
+ * a jittered, exponentially growing delay.
+ * <p>
+ * Each attempt gives up after the connect timeout instead of the system's, which on a host
+ * that has gone away is tens of seconds. The first retry follows within tens of milliseconds,
+ * so a host that is back after a moment is reached right away; each further one waits up to
+ * twice as long, up to the maximum delay, so a host that stays away is not flooded. The delay
+ * is drawn from the upper half of its range, so that clients which lost the host together do
+ * not all come back at the same instant.
+ * <p>
+ * The delay only grows with consecutive failures: call {@link #reset()} once a connection has
+ * proved to be usable.
+ */
+public class SocketConnector {
+    /**
+     * Told about each failed attempt before the connector waits to retry.
+     */
+    public interface RetryListener {
+        void onRetry(int attempt, IOException error, long delayMillis);
+    }
+
+    private final int connectTimeoutMillis;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random;
+    private int failures;
+
+    public SocketConnector(int connectTimeoutMillis, long initialDelayMillis, long maxDelayMillis) {
+        this(connectTimeoutMillis, initialDelayMillis, maxDelayMillis, new Random());
+    }
+
+    SocketConnector(int connectTimeoutMillis, long initialDelayMillis, long maxDelayMillis, Random random) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.random = random;
+    }
+
+    /**
+     * Makes one attempt, waiting at most the connect timeout.
+     * @return The connected socket, with Nagle's algorithm off.
+     */
+    public Socket connect(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(address, connectTimeoutMillis);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Attempts until a connection is made, backing off between attempts.
+     * @param maxAttempts How many attempts to make; 0 to keep trying until interrupted.
+     * @param listener Told about each failure that is retried; may be {@code null}.
+     * @throws IOException The last attempt's error, once {@code maxAttempts} have failed.
+     * @throws InterruptedException If interrupted while waiting to retry.
+     */
+    public Socket connect(InetSocketAddress address, int maxAttempts, RetryListener listener)
+            throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return connect(address);
+            } catch (IOException e) {
+                if (maxAttempts > 0 && attempt >= maxAttempts) {
+                    throw e;
+                }
+                long delay = nextDelayMillis();
+                if (listener != null) listener.onRetry(attempt, e, delay);
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * @return How long to wait before the next attempt; each call counts as one more failure.
+     */
+    public long nextDelayMillis() {
+        long ceiling = initialDelayMillis << Math.min(failures, 20);
+        if (ceiling <= 0 || ceiling > maxDelayMillis) ceiling = maxDelayMillis;
+        failures++;
+        long floor = ceiling / 2;
+        return floor + (long) (random.nextDouble() * (ceiling - floor + 1));
+    }
+
+    /**
+     * Starts the delays over from the initial one.
+     */
+    public void reset() {
+        failures = 0;
+    }
+}
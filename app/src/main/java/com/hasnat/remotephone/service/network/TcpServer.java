@@ -5,18 +5,29 @@ import android.util.Log;
 
 import com.hasnat.remotephone.service.BroadcastManager;
 import com.hasnat.remotephone.service.NotificationHelper;
+import com.hasnat.remotephone.service.audio.AudioTransport;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+/**
+ * Accepts the clients' control connections on {@value #TCP_SERVER_PORT}. By default one
+ * {@link SelectorLineServer} event loop serves all of them, and their commands are handled one
+ * at a time on a single command thread; with selector mode off, every client gets a thread of
+ * its own.
+ */
 public class TcpServer {
     private static final String TAG = "TcpServer";
     private static final int TCP_SERVER_PORT = 8080;
@@ -27,21 +38,73 @@ public class TcpServer {
     private ServerSocket controlServerSocket;
     private Thread tcpServerThread;
     private ExecutorService clientExecutor;
-    private final List<PrintWriter> clientWriters = new ArrayList<>();
+    private final List<ControlClient> clients = new ArrayList<>();
+    private final boolean useSelector;
+    private SelectorLineServer selectorServer;
+    private ExecutorService commandExecutor;
 
     public interface IncomingCommandListener {
-        void onCommandReceived(String command);
+        /**
+         * @param client The control client that sent the command.
+         */
+        void onCommandReceived(String command, ClientConnection client);
+    }
+
+    /**
+     * One connected control client, for answers meant for it alone.
+     */
+    public interface ClientConnection {
+        InetAddress getAddress();
+
+        void send(String message);
+
+        /**
+         * @return A new channel for a call's audio on this connection, or {@code null} if the
+         * client did not switch it to a {@link MultiplexedConnection}.
+         */
+        AudioTransport openAudioChannel();
+    }
+
+    /**
+     * A control client as the server writes to it.
+     */
+    private interface ControlClient extends ClientConnection {
+        /**
+         * @return Whether the message could be sent; {@code false} once the client is gone.
+         */
+        boolean write(String message);
     }
 
     public TcpServer(Context context, IncomingCommandListener listener, BroadcastManager broadcastManager, NotificationHelper notificationHelper) {
+        this(context, listener, broadcastManager, notificationHelper, true);
+    }
+
+    /**
+     * @param useSelector Whether to serve all clients from one event loop rather than a thread each.
+     */
+    public TcpServer(Context context, IncomingCommandListener listener, BroadcastManager broadcastManager, NotificationHelper notificationHelper,
+                     boolean useSelector) {
         this.context = context;
         this.commandListener = listener;
         this.broadcastManager = broadcastManager;
         this.notificationHelper = notificationHelper;
+        this.useSelector = useSelector;
         this.clientExecutor = Executors.newCachedThreadPool();
+        if (useSelector) {
+            this.commandExecutor = Executors.newSingleThreadExecutor();
+        }
     }
 
     public void startServer() {
+        if (useSelector) {
+            selectorServer = new SelectorLineServer(new InetSocketAddress(TCP_SERVER_PORT), new SelectorListener());
+            try {
+                selectorServer.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Control server socket error", e);
+            }
+            return;
+        }
         tcpServerThread = new Thread(new TcpServerRunnable());
         tcpServerThread.start();
     }
@@ -50,6 +113,12 @@ public class TcpServer {
         if (tcpServerThread != null) {
             tcpServerThread.interrupt();
         }
+        if (selectorServer != null) {
+            selectorServer.close();
+        }
+        if (commandExecutor != null) {
+            commandExecutor.shutdownNow();
+        }
         clientExecutor.shutdownNow();
         try {
             if (controlServerSocket != null) {
@@ -60,22 +129,47 @@ public class TcpServer {
         }
     }
 
+    /**
+     * @return The control client connected from {@code address}, or {@code null} if there is none.
+     */
+    public ClientConnection findClient(InetAddress address) {
+        synchronized (clients) {
+            for (ControlClient client : clients) {
+                if (client.getAddress().equals(address)) {
+                    return client;
+                }
+            }
+        }
+        return null;
+    }
+
     public void broadcastToClients(String message) {
         Log.d(TAG, "Attempting to broadcast message: " + message);
-        synchronized (clientWriters) {
-            List<PrintWriter> disconnectedClients = new ArrayList<>();
-            for (PrintWriter writer : clientWriters) {
-                if (writer.checkError()) {
-                    disconnectedClients.add(writer);
-                    continue;
-                }
-                writer.println(message);
-                if (writer.checkError()) {
-                    disconnectedClients.add(writer);
+        synchronized (clients) {
+            List<ControlClient> disconnectedClients = new ArrayList<>();
+            for (ControlClient client : clients) {
+                if (!client.write(message)) {
+                    disconnectedClients.add(client);
                 }
             }
-            clientWriters.removeAll(disconnectedClients);
-            broadcastManager.sendClientCountUpdate(clientWriters.size());
+            clients.removeAll(disconnectedClients);
+            broadcastManager.sendClientCountUpdate(clients.size());
+        }
+    }
+
+    private void addClient(ControlClient client) {
+        synchronized (clients) {
+            clients.add(client);
+            broadcastManager.sendClientCountUpdate(clients.size());
+        }
+        notificationHelper.updateNotification("Remote Phone Host", "Client connected from " + client.getAddress().getHostAddress());
+        broadcastManager.sendHostStatus("Host: Client connected from " + client.getAddress().getHostAddress());
+    }
+
+    private void removeClient(ControlClient client) {
+        synchronized (clients) {
+            clients.remove(client);
+            broadcastManager.sendClientCountUpdate(clients.size());
         }
     }
 
@@ -87,13 +181,9 @@ public class TcpServer {
                 while (!Thread.currentThread().isInterrupted()) {
                     Socket clientSocket = controlServerSocket.accept();
                     PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                    synchronized (clientWriters) {
-                        clientWriters.add(out);
-                        broadcastManager.sendClientCountUpdate(clientWriters.size());
-                    }
-                    notificationHelper.updateNotification("Remote Phone Host", "Client connected from " + clientSocket.getInetAddress().getHostAddress());
-                    broadcastManager.sendHostStatus("Host: Client connected from " + clientSocket.getInetAddress().getHostAddress());
-                    clientExecutor.execute(new ClientHandler(clientSocket, out));
+                    ClientHandler client = new ClientHandler(clientSocket, out);
+                    addClient(client);
+                    clientExecutor.execute(client);
                 }
             } catch (IOException e) {
                 if (!Thread.currentThread().isInterrupted()) {
@@ -103,37 +193,267 @@ public class TcpServer {
         }
     }
 
-    class ClientHandler implements Runnable {
+    /**
+     * Reads one client's control lines. A client that asks for it is switched to a
+     * {@link MultiplexedConnection}, after which its audio can share the connection.
+     */
+    class ClientHandler implements Runnable, ControlClient, MultiplexedConnection.Listener {
         private final Socket clientSocket;
         private final PrintWriter clientWriter;
+        private volatile MultiplexedConnection multiplexed;
 
         public ClientHandler(Socket socket, PrintWriter writer) {
             this.clientSocket = socket;
             this.clientWriter = writer;
         }
 
+        @Override
+        public InetAddress getAddress() {
+            return clientSocket.getInetAddress();
+        }
+
+        @Override
+        public void send(String message) {
+            Log.d(TAG, "Sending message to " + getAddress().getHostAddress() + ": " + message);
+            synchronized (clients) {
+                write(message);
+            }
+        }
+
+        @Override
+        public boolean write(String message) {
+            MultiplexedConnection connection = multiplexed;
+            if (connection != null) {
+                try {
+                    connection.sendControl(message);
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            if (clientWriter.checkError()) {
+                return false;
+            }
+            clientWriter.println(message);
+            return !clientWriter.checkError();
+        }
+
+        @Override
+        public AudioTransport openAudioChannel() {
+            MultiplexedConnection connection = multiplexed;
+            return connection != null ? connection.openAudioChannel() : null;
+        }
+
+        @Override
+        public void onControl(String line) {
+            commandListener.onCommandReceived(line, this);
+        }
+
+        @Override
+        public void onBulk(byte[] data, int offset, int length) {
+            Log.d(TAG, "Ignoring " + length + " bytes of bulk data from " + getAddress().getHostAddress());
+        }
+
         @Override
         public void run() {
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
                 String command;
                 while ((command = reader.readLine()) != null) {
-                    commandListener.onCommandReceived(command);
+                    if (MultiplexedConnection.isUpgrade(command)) {
+                        // The client waits for the answer, so nothing after its request is buffered in the
+                        // reader; holding the lock keeps broadcasts from slipping a plain line in after it.
+                        MultiplexedConnection connection;
+                        synchronized (clients) {
+                            clientWriter.println(MultiplexedConnection.upgradeLine());
+                            connection = new MultiplexedConnection(clientSocket, this);
+                            multiplexed = connection;
+                        }
+                        Log.d(TAG, "Client " + getAddress().getHostAddress() + " switched to a multiplexed connection");
+                        connection.read();
+                        Log.d(TAG, "Client " + getAddress().getHostAddress() + " disconnected: " + connection);
+                        break;
+                    }
+                    commandListener.onCommandReceived(command, this);
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Client disconnected or I/O error: " + e.getMessage(), e);
             } finally {
                 try {
+                    MultiplexedConnection connection = multiplexed;
+                    if (connection != null) connection.close();
                     clientSocket.close();
-                    synchronized (clientWriters) {
-                        if (clientWriter != null) {
-                            clientWriters.remove(clientWriter);
-                            broadcastManager.sendClientCountUpdate(clientWriters.size());
-                        }
-                    }
+                    removeClient(this);
                 } catch (IOException e) {
                     Log.e(TAG, "Error closing client socket", e);
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Tracks the clients of the event loop and passes their commands to the command thread,
+     * so that handling one does not hold up the loop.
+     */
+    class SelectorListener implements SelectorLineServer.Listener {
+        @Override
+        public void onConnected(SelectorLineServer.Connection connection) {
+            SelectorClient client = new SelectorClient(connection);
+            connection.attach(client);
+            addClient(client);
+        }
+
+        @Override
+        public void onLine(SelectorLineServer.Connection connection, String line) {
+            SelectorClient client = (SelectorClient) connection.attachment();
+            if (MultiplexedConnection.isUpgrade(line)) {
+                // The client waits for the answer, so nothing after its request is left unread.
+                client.beginSwitch();
+                connection.handOver();
+                return;
+            }
+            commandExecutor.execute(() -> commandListener.onCommandReceived(line, client));
+        }
+
+        @Override
+        public void onHandOver(SelectorLineServer.Connection connection) {
+            SelectorClient client = (SelectorClient) connection.attachment();
+            Socket socket;
+            try {
+                socket = connection.detach();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not switch client " + client.getAddress().getHostAddress() + " to a multiplexed connection", e);
+                connection.close();
+                return;
+            }
+            // Its audio needs a writer of its own, so a multiplexed client leaves the event loop;
+            // the blocking answer is written there too, so a client that stops reading holds up
+            // no one else.
+            clientExecutor.execute(() -> {
+                MultiplexedConnection multiplexed = null;
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write((MultiplexedConnection.upgradeLine() + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    multiplexed = new MultiplexedConnection(socket, client);
+                    client.finishSwitch(multiplexed);
+                    Log.d(TAG, "Client " + client.getAddress().getHostAddress() + " switched to a multiplexed connection");
+                    multiplexed.read();
+                    Log.d(TAG, "Client " + client.getAddress().getHostAddress() + " disconnected: " + multiplexed);
+                } catch (IOException e) {
+                    Log.e(TAG, "Client disconnected or I/O error: " + e.getMessage(), e);
+                } finally {
+                    if (multiplexed != null) {
+                        multiplexed.close();
+                    } else {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    removeClient(client);
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnected(SelectorLineServer.Connection connection, IOException cause) {
+            if (cause != null) {
+                Log.e(TAG, "Client disconnected or I/O error: " + cause.getMessage(), cause);
+            }
+            removeClient((SelectorClient) connection.attachment());
+        }
+    }
+
+    /**
+     * A control client served by the event loop; its lines are queued rather than written
+     * by the sending thread.
+     */
+    class SelectorClient implements ControlClient, MultiplexedConnection.Listener {
+        private final SelectorLineServer.Connection connection;
+        private volatile MultiplexedConnection multiplexed;
+        // Lines sent while the connection switches, guarded by this; null when not switching.
+        private List<String> pendingLines;
+
+        SelectorClient(SelectorLineServer.Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public InetAddress getAddress() {
+            return connection.getAddress();
+        }
+
+        @Override
+        public void send(String message) {
+            Log.d(TAG, "Sending message to " + getAddress().getHostAddress() + ": " + message);
+            synchronized (clients) {
+                write(message);
+            }
+        }
+
+        @Override
+        public boolean write(String message) {
+            MultiplexedConnection multiplexed = this.multiplexed;
+            if (multiplexed == null) {
+                synchronized (this) {
+                    if (pendingLines != null) {
+                        pendingLines.add(message);
+                        return true;
+                    }
+                    multiplexed = this.multiplexed;
+                }
+                if (multiplexed == null) return connection.send(message);
+            }
+            try {
+                multiplexed.sendControl(message);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Holds lines back from now on, until the multiplexed connection is up to take them.
+         */
+        synchronized void beginSwitch() {
+            pendingLines = new ArrayList<>();
+        }
+
+        /**
+         * Sends the lines held back while switching, in order, then lets new ones through.
+         */
+        void finishSwitch(MultiplexedConnection multiplexed) throws IOException {
+            while (true) {
+                List<String> lines;
+                synchronized (this) {
+                    if (pendingLines.isEmpty()) {
+                        pendingLines = null;
+                        this.multiplexed = multiplexed;
+                        return;
+                    }
+                    lines = pendingLines;
+                    pendingLines = new ArrayList<>();
+                }
+                for (String line : lines) {
+                    multiplexed.sendControl(line);
+                }
+            }
+        }
+
+        @Override
+        public AudioTransport openAudioChannel() {
+            MultiplexedConnection multiplexed = this.multiplexed;
+            return multiplexed != null ? multiplexed.openAudioChannel() : null;
+        }
+
+        @Override
+        public void onControl(String line) {
+            commandExecutor.execute(() -> commandListener.onCommandReceived(line, this));
+        }
+
+        @Override
+        public void onBulk(byte[] data, int offset, int length) {
+            Log.d(TAG, "Ignoring " + length + " bytes of bulk data from " + getAddress().getHostAddress());
+        }
+    }
+}
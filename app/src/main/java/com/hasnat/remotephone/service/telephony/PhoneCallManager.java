@@ -20,6 +20,7 @@ import androidx.core.content.ContextCompat;
 
 import com.hasnat.remotephone.service.BroadcastManager;
 import com.hasnat.remotephone.service.NotificationHelper;
+import com.hasnat.remotephone.service.network.ControlMessage;
 import com.hasnat.remotephone.utils.ContactHelper;
 
 import android.content.ComponentName;
@@ -75,7 +76,8 @@ public class PhoneCallManager {
                             tempIncomingName = contactName;
 
                             // Broadcast the incoming call with the name and number
-                            broadcastManager.broadcastToClients("RINGING:" + number + "|" + (contactName != null ? contactName : "Unknown"));
+                            broadcastManager.broadcastToClients(ControlMessage.encode(ControlMessage.RINGING, number,
+                                    contactName != null ? contactName : "Unknown"));
                             break;
 
                         case TelephonyManager.CALL_STATE_OFFHOOK:
@@ -87,13 +89,13 @@ public class PhoneCallManager {
                                 // This is an outgoing call, broadcast the number and name from temporary storage
                                 String outgoingName = tempOutgoingName != null ? tempOutgoingName : "Unknown";
                                 Log.d(TAG, "Outgoing call started. Broadcasting to client: " + tempOutgoingNumber + " (" + outgoingName + ")");
-                                broadcastManager.broadcastToClients("CALL_STARTED:" + tempOutgoingNumber + "|" + outgoingName);
+                                broadcastManager.broadcastToClients(ControlMessage.encode(ControlMessage.CALL_STARTED, tempOutgoingNumber, outgoingName));
                                 tempOutgoingNumber = null;
                                 tempOutgoingName = null;
                             } else if (tempIncomingNumber != null) {
                                 // This is an answered incoming call, broadcast the stored number and name
                                 Log.d(TAG, "Incoming call was answered. Broadcasting to client: " + tempIncomingNumber + " (" + tempIncomingName + ")");
-                                broadcastManager.broadcastToClients("CALL_STARTED:" + tempIncomingNumber + "|" + tempIncomingName);
+                                broadcastManager.broadcastToClients(ControlMessage.encode(ControlMessage.CALL_STARTED, tempIncomingNumber, tempIncomingName));
                                 tempIncomingNumber = null;
                                 tempIncomingName = null;
                             }
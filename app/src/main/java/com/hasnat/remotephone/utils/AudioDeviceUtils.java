@@ -0,0 +1,31 @@
+package com.hasnat.remotephone.utils;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.util.Log;
+
+public class AudioDeviceUtils {
+    private static final String TAG = "AudioDeviceUtils";
+
+    /**
+     * Gets the sample rate the device's audio hardware runs at. Opening AudioRecord and
+     * AudioTrack at this rate avoids resampling in the platform and keeps them eligible
+     * for the low-latency fast path.
+     *
+     * @param fallback The rate to use if the device does not report one.
+     * @return The native sample rate in Hz.
+     */
+    public static int getNativeSampleRate(Context context, int fallback) {
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        String rate = audioManager != null ? audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE) : null;
+        if (rate != null) {
+            try {
+                int parsed = Integer.parseInt(rate);
+                if (parsed > 0) return parsed;
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unexpected native sample rate: " + rate);
+            }
+        }
+        return fallback;
+    }
+}
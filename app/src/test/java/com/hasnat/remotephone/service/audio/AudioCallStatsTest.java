@@ -0,0 +1,206 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class AudioCallStatsTest {
+
+    private static AudioFrame frame(int seq, long captureMicros) {
+        AudioFrame frame = new AudioFrame();
+        frame.setSequenceNumber(seq);
+        frame.setCaptureTimeMicros(captureMicros);
+        frame.setPayloadLength(160);
+        return frame;
+    }
+
+    @Test
+    public void recordsEachStage() {
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        AudioCallStats stats = new AudioCallStats(jitterBuffer, null);
+        // The sender's clock is far ahead of ours; only the variation in transit is seen.
+        long offset = 5_000_000_000L;
+        for (int seq = 0; seq < 100; seq++) {
+            long capture = offset + seq * 20_000L;
+            long extra = seq % 5 == 4 ? 30_000 : 2_000;
+            stats.recordArrival(frame(seq, capture), capture - offset + 10_000 + extra);
+            stats.recordSent(frame(seq, seq * 20_000L), seq * 20_000L + 21_000);
+            stats.recordJitterBufferResidency(40_000);
+            stats.recordPlayoutQueue(60_000);
+        }
+        AudioStatsReport report = stats.snapshot(0);
+        assertEquals(21_000, report.getP50Micros(AudioStatsReport.STAGE_CAPTURE));
+        assertEquals(0, report.getP50Micros(AudioStatsReport.STAGE_NETWORK), 128);
+        assertEquals(28_000, report.getP95Micros(AudioStatsReport.STAGE_NETWORK), 28_000 * 0.07);
+        assertEquals(40_000, report.getP50Micros(AudioStatsReport.STAGE_JITTER_BUFFER), 40_000 * 0.07);
+        assertEquals(60_000, report.getP95Micros(AudioStatsReport.STAGE_PLAYOUT), 60_000 * 0.07);
+        assertEquals(0, report.getCount(AudioStatsReport.COUNT_REORDERED));
+    }
+
+    @Test
+    public void countsReorderingButNotRebuiltFrames() throws Exception {
+        // A link that swaps frames 4 and 5 and drops frame 6, which parity then rebuilds.
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        Link link = new Link();
+        FecAudioTransport sender = new FecAudioTransport(link);
+        FecAudioTransport receiver = new FecAudioTransport(link);
+        sender.reportLoss(0.04); // groups of 3
+        for (int seq = 0; seq < 9; seq++) {
+            link.drop = seq == 6;
+            sender.send(frame(seq, seq * 20_000L));
+        }
+        link.swap(4, 5);
+
+        AudioCallStats stats = new AudioCallStats(jitterBuffer, receiver);
+        AudioReceiver audioReceiver = new AudioReceiver(receiver, jitterBuffer, stats);
+        audioReceiver.run();
+        AudioStatsReport report = stats.snapshot(0);
+        assertEquals(9, report.getCount(AudioStatsReport.COUNT_RECEIVED));
+        assertEquals(1, report.getCount(AudioStatsReport.COUNT_RECOVERED));
+        assertEquals(1, report.getCount(AudioStatsReport.COUNT_REORDERED));
+    }
+
+    @Test
+    public void playoutRecordsResidencyAndConcealment() {
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        AudioCallStats stats = new AudioCallStats(jitterBuffer, null);
+        AudioPlayout playout = new AudioPlayout(jitterBuffer, 16000, 320, stats);
+        AudioFrame frame = frame(0, 0);
+        frame.setCodecId(AudioFrame.CODEC_PCM_16BIT);
+        frame.setPayloadLength(640);
+        long arrival = System.nanoTime() / 1000 - 30_000;
+        jitterBuffer.put(frame, arrival);
+        frame.setSequenceNumber(2);
+        jitterBuffer.put(frame, arrival);
+        short[] pcm = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+        playout.next(pcm);
+        playout.next(pcm); // frame 1 is missing
+        LatencyHistogram residency = stats.getHistogram(AudioStatsReport.STAGE_JITTER_BUFFER);
+        assertEquals(1, residency.getCount());
+        assertTrue(residency.getMax() >= 30_000);
+        assertEquals(1, stats.snapshot(0).getCount(AudioStatsReport.COUNT_CONCEALED));
+    }
+
+    @Test
+    public void reportsEchoTheRoundTrip() {
+        AudioCallStats host = new AudioCallStats(new JitterBuffer(), null);
+        AudioCallStats client = new AudioCallStats(new JitterBuffer(), null);
+        // The clocks differ by an arbitrary offset; each side only subtracts its own times.
+        long clientOffset = 123_456_789;
+        AudioStatsReport fromHost = host.snapshot(1_000_000);
+        assertFalse(fromHost.hasEcho());
+        client.onPeerReport(AudioStatsReport.fromCommand(fromHost.toCommand()), 1_003_000 + clientOffset);
+        AudioStatsReport fromClient = client.snapshot(1_500_000 + clientOffset);
+        assertTrue(fromClient.hasEcho());
+        // 3 ms each way, with the host's report held for 497 ms before the client answered.
+        host.onPeerReport(AudioStatsReport.fromCommand(fromClient.toCommand()), 1_503_000);
+        assertEquals(6_000, host.getRoundTripHistogram().getPercentile(0.5));
+        assertEquals(6_000, host.snapshot(2_000_000).getRoundTripMicros());
+        assertEquals(6_000, host.getLastRoundTripMicros());
+    }
+
+    @Test
+    public void reportsTheReceivedStream() {
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        AudioCallStats stats = new AudioCallStats(jitterBuffer, null);
+        assertFalse(stats.snapshot(0).hasHighestSequence());
+        for (int seq = 0; seq < 50; seq++) {
+            AudioFrame frame = frame(seq == 20 ? 21 : seq == 21 ? 20 : seq, seq * 20_000L);
+            long arrival = seq * 20_000L + (seq % 2) * 6_000;
+            stats.recordArrival(frame, arrival);
+            jitterBuffer.put(frame, arrival);
+        }
+        AudioStatsReport report = AudioStatsReport.fromCommand(stats.snapshot(0).toCommand());
+        assertTrue(report.hasHighestSequence());
+        assertEquals(49, report.getHighestSequence());
+        assertEquals(jitterBuffer.getJitterMicros(), report.getJitterMicros());
+        assertTrue(report.getJitterMicros() > 0);
+    }
+
+    @Test
+    public void reportSurvivesTheControlChannel() {
+        AudioStatsReport report = new AudioStatsReport();
+        report.setTimeMicros(42);
+        report.setEcho(17, 5);
+        report.setRoundTripMicros(4_000);
+        report.setLatency(AudioStatsReport.STAGE_PLAYOUT, 40_000, 60_000);
+        report.setCount(AudioStatsReport.COUNT_LOST, 3);
+        report.setCount(AudioStatsReport.COUNT_RECEIVED, 297);
+        report.setJitterMicros(2_500);
+        report.setHighestSequence(-5); // sequence numbers wrap
+        String command = report.toCommand();
+        assertTrue(AudioSessionParams.isCommand(command, AudioStatsReport.COMMAND));
+
+        AudioStatsReport parsed = AudioStatsReport.fromCommand(command);
+        assertEquals(command, parsed.toCommand());
+        assertEquals(0.01, parsed.getLossFraction(), 1e-9);
+        assertEquals(2_500, parsed.getJitterMicros());
+        assertEquals(-5, parsed.getHighestSequence());
+
+        // Newer peers may add keys; older ones may miss some.
+        AudioStatsReport lenient = AudioStatsReport.parse("t=1;jb=5000;mos=4.2;late=x");
+        assertEquals(5000, lenient.getP95Micros(AudioStatsReport.STAGE_JITTER_BUFFER));
+        assertEquals(0, lenient.getCount(AudioStatsReport.COUNT_LATE));
+        assertFalse(lenient.hasEcho());
+        assertFalse(lenient.hasHighestSequence());
+    }
+
+    @Test
+    public void describesADirectionEndToEnd() {
+        AudioStatsReport sender = new AudioStatsReport();
+        sender.setLatency(AudioStatsReport.STAGE_CAPTURE, 21_000, 22_000);
+        AudioStatsReport receiver = new AudioStatsReport();
+        receiver.setRoundTripMicros(8_000);
+        receiver.setLatency(AudioStatsReport.STAGE_NETWORK, 1_000, 10_000);
+        receiver.setLatency(AudioStatsReport.STAGE_JITTER_BUFFER, 20_000, 40_000);
+        receiver.setLatency(AudioStatsReport.STAGE_PLAYOUT, 40_000, 45_000);
+        receiver.setCount(AudioStatsReport.COUNT_RECEIVED, 990);
+        receiver.setCount(AudioStatsReport.COUNT_LOST, 10);
+        String text = AudioStatsReport.describe(sender, receiver);
+        assertTrue(text, text.startsWith("86 ms (p95 121): capture 21 + network 5 + buffer 20 + playout 40"));
+        assertTrue(text, text.contains("loss 1.0%"));
+        assertEquals("no data", AudioStatsReport.describe(null, null));
+    }
+
+    /** A one-way link that can drop the next frame and reorder what it holds. */
+    private static class Link implements AudioTransport {
+        final java.util.ArrayList<AudioFrame> frames = new java.util.ArrayList<>();
+        boolean drop;
+
+        void swap(int seqA, int seqB) {
+            int a = -1, b = -1;
+            for (int i = 0; i < frames.size(); i++) {
+                AudioFrame f = frames.get(i);
+                if ((f.getFlags() & AudioFrame.FLAG_FEC) != 0) continue;
+                if (f.getSequenceNumber() == seqA) a = i;
+                if (f.getSequenceNumber() == seqB) b = i;
+            }
+            java.util.Collections.swap(frames, a, b);
+        }
+
+        @Override
+        public void send(AudioFrame frame) {
+            boolean parity = (frame.getFlags() & AudioFrame.FLAG_FEC) != 0;
+            if (drop && !parity) {
+                drop = false;
+                return;
+            }
+            AudioFrame copy = new AudioFrame();
+            copy.copyFrom(frame);
+            frames.add(copy);
+        }
+
+        @Override
+        public boolean receive(AudioFrame frame) throws IOException {
+            if (frames.isEmpty()) return false;
+            frame.copyFrom(frames.remove(0));
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AudioFanoutTest {
+    private final ExecutorService senders = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        senders.shutdownNow();
+    }
+
+    private static AudioFrame frame(int seq) {
+        AudioFrame frame = new AudioFrame();
+        frame.setSequenceNumber(seq);
+        frame.setPayloadLength(160);
+        frame.getPayload()[0] = (byte) seq;
+        return frame;
+    }
+
+    @Test
+    public void slowSubscriberDoesNotHoldUpTheOthers() throws Exception {
+        AudioFanout fanout = new AudioFanout(senders, 16);
+        Collector first = new Collector();
+        Collector second = new Collector();
+        Collector stuck = new Collector();
+        stuck.gate = new CountDownLatch(1); // e.g. a TCP connection whose window is closed
+        fanout.subscribe(first);
+        AudioFanout.Subscriber slow = fanout.subscribe(stuck);
+        fanout.subscribe(second);
+        assertEquals(3, fanout.getSubscriberCount());
+
+        // The sending thread gets through every frame while the stuck subscriber holds one.
+        Thread host = new Thread(() -> {
+            try {
+                for (int seq = 0; seq < 50; seq++) {
+                    fanout.send(frame(seq));
+                    Thread.sleep(2);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        host.start();
+        host.join(10_000);
+        assertFalse("sending is held up", host.isAlive());
+        first.await(50);
+        second.await(50);
+        for (int seq = 0; seq < 50; seq++) {
+            assertEquals(seq, first.sequences.get(seq).intValue());
+            assertEquals(seq, second.sequences.get(seq).intValue());
+        }
+
+        // The stuck one holds frame 0 in its send and the newest 16 in its queue.
+        assertEquals(50 - 1 - 16, slow.getDroppedCount());
+        stuck.gate.countDown();
+        stuck.await(17);
+        assertEquals(0, stuck.sequences.get(0).intValue());
+        assertEquals(34, stuck.sequences.get(1).intValue());
+        assertEquals(49, stuck.sequences.get(16).intValue());
+        fanout.close();
+        assertTrue(first.closed && second.closed && stuck.closed);
+    }
+
+    @Test
+    public void failedSubscriberIsRemoved() throws Exception {
+        AudioFanout fanout = new AudioFanout(senders);
+        Collector healthy = new Collector();
+        Collector broken = new Collector();
+        broken.fail = true;
+        fanout.subscribe(healthy);
+        AudioFanout.Subscriber failed = fanout.subscribe(broken);
+        fanout.send(frame(1));
+        healthy.await(1);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (failed.isSubscribed() && System.nanoTime() < deadline) Thread.sleep(5);
+        assertFalse(failed.isSubscribed());
+        assertNotNull(failed.getError());
+        assertTrue(broken.closed);
+        assertEquals(1, fanout.getSubscriberCount());
+
+        fanout.send(frame(2));
+        healthy.await(2);
+        fanout.close();
+        assertNull(fanout.subscribe(new Collector()));
+    }
+
+    /** Records the sequence numbers it is sent. */
+    private static class Collector implements AudioTransport {
+        final List<Integer> sequences = new ArrayList<>();
+        volatile CountDownLatch gate;
+        volatile boolean fail;
+        volatile boolean closed;
+
+        @Override
+        public void send(AudioFrame frame) throws IOException {
+            if (fail) throw new IOException("connection reset");
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            assertEquals((byte) frame.getSequenceNumber(), frame.getPayload()[0]);
+            synchronized (sequences) {
+                sequences.add(frame.getSequenceNumber());
+                sequences.notifyAll();
+            }
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            synchronized (sequences) {
+                while (sequences.size() < count && System.currentTimeMillis() < deadline) {
+                    sequences.wait(100);
+                }
+                assertEquals(count, sequences.size());
+            }
+        }
+
+        @Override
+        public boolean receive(AudioFrame frame) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
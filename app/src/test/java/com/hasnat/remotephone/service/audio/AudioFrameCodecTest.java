@@ -0,0 +1,174 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AudioFrameCodecTest {
+
+    private static AudioFrame frame(int seq, long ts, int payloadLength) {
+        AudioFrame frame = new AudioFrame();
+        frame.setSequenceNumber(seq);
+        frame.setCaptureTimeMicros(ts);
+        frame.setCodecId(AudioFrame.CODEC_PCM_16BIT);
+        frame.setFlags(0x05);
+        frame.setPayloadLength(payloadLength);
+        for (int i = 0; i < payloadLength; i++) {
+            frame.getPayload()[i] = (byte) (i * 31 + seq);
+        }
+        return frame;
+    }
+
+    private static void assertSameFrame(AudioFrame expected, AudioFrame actual) {
+        assertEquals(expected.getSequenceNumber(), actual.getSequenceNumber());
+        assertEquals(expected.getCaptureTimeMicros(), actual.getCaptureTimeMicros());
+        assertEquals(expected.getCodecId(), actual.getCodecId());
+        assertEquals(expected.getFlags(), actual.getFlags());
+        assertEquals(expected.getPayloadLength(), actual.getPayloadLength());
+        for (int i = 0; i < expected.getPayloadLength(); i++) {
+            assertEquals(expected.getPayload()[i], actual.getPayload()[i]);
+        }
+    }
+
+    @Test
+    public void byteArrayRoundTrip() throws ProtocolException {
+        AudioFrame in = frame(0x7F00FF01, 0x0123456789ABCDEFL, 640);
+        byte[] wire = new byte[AudioFrameCodec.MAX_FRAME_SIZE];
+        int n = AudioFrameCodec.encode(in, wire, 0);
+        assertEquals(AudioFrameCodec.HEADER_SIZE + 640, n);
+
+        AudioFrame out = new AudioFrame();
+        assertEquals(n, AudioFrameCodec.decode(wire, 0, n, out));
+        assertSameFrame(in, out);
+    }
+
+    @Test
+    public void byteBufferRoundTripMatchesArrayEncoding() throws ProtocolException {
+        AudioFrame in = frame(-2, Long.MAX_VALUE, AudioFrame.MAX_PAYLOAD_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(AudioFrameCodec.MAX_FRAME_SIZE);
+        AudioFrameCodec.encode(in, buffer);
+        buffer.flip();
+
+        byte[] expected = new byte[AudioFrameCodec.MAX_FRAME_SIZE];
+        int n = AudioFrameCodec.encode(in, expected, 0);
+        assertEquals(n, buffer.remaining());
+        for (int i = 0; i < n; i++) {
+            assertEquals(expected[i], buffer.get(i));
+        }
+
+        AudioFrame out = new AudioFrame();
+        AudioFrameCodec.decode(buffer, out);
+        assertFalse(buffer.hasRemaining());
+        assertSameFrame(in, out);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsUnknownVersion() throws ProtocolException {
+        byte[] wire = new byte[AudioFrameCodec.MAX_FRAME_SIZE];
+        int n = AudioFrameCodec.encode(frame(1, 1, 10), wire, 0);
+        wire[0] = 99;
+        AudioFrameCodec.decode(wire, 0, n, new AudioFrame());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTruncatedPayload() throws ProtocolException {
+        byte[] wire = new byte[AudioFrameCodec.MAX_FRAME_SIZE];
+        int n = AudioFrameCodec.encode(frame(1, 1, 100), wire, 0);
+        AudioFrameCodec.decode(wire, 0, n - 1, new AudioFrame());
+    }
+
+    @Test
+    public void streamRoundTripKeepsFrameBoundaries() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AudioFrameWriter writer = new AudioFrameWriter(bytes);
+        int[] sizes = {640, 1, 0, 3200, 17};
+        for (int i = 0; i < sizes.length; i++) {
+            writer.write(frame(i, 1000L * i, sizes[i]));
+        }
+
+        AudioFrameReader reader = new AudioFrameReader(new ByteArrayInputStream(bytes.toByteArray()));
+        AudioFrame out = new AudioFrame();
+        for (int i = 0; i < sizes.length; i++) {
+            assertTrue(reader.read(out));
+            assertSameFrame(frame(i, 1000L * i, sizes[i]), out);
+        }
+        assertFalse(reader.read(out));
+    }
+
+    /** Delivers 7 bytes of {@code wire} at a time and times out between every chunk. */
+    private static InputStream choppy(byte[] wire) {
+        return new InputStream() {
+            private int pos;
+            private boolean timeoutNext;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (pos == wire.length) return -1;
+                timeoutNext = !timeoutNext;
+                if (timeoutNext) throw new SocketTimeoutException();
+                int n = Math.min(7, Math.min(len, wire.length - pos));
+                System.arraycopy(wire, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    private static byte[] twoFrames() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AudioFrameWriter writer = new AudioFrameWriter(bytes);
+        writer.write(frame(1, 10, 300));
+        writer.write(frame(2, 20, 300));
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void readerResumesAfterTimeoutMidFrame() throws IOException {
+        AudioFrameReader reader = new AudioFrameReader(choppy(twoFrames()));
+        AudioFrame out = new AudioFrame();
+        int frames = 0;
+        while (true) {
+            try {
+                if (!reader.read(out)) break;
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            frames++;
+            assertSameFrame(frame(frames, 10L * frames, 300), out);
+        }
+        assertEquals(2, frames);
+    }
+
+    @Test
+    public void resumedReadMayUseAnotherFrame() throws IOException {
+        AudioFrameReader reader = new AudioFrameReader(choppy(twoFrames()));
+        AudioFrame[] outs = {new AudioFrame(), new AudioFrame(), new AudioFrame()};
+        int calls = 0;
+        int frames = 0;
+        while (true) {
+            // A different frame on every call, each with stale bytes from an earlier one.
+            AudioFrame out = outs[calls++ % outs.length];
+            try {
+                if (!reader.read(out)) break;
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            frames++;
+            assertSameFrame(frame(frames, 10L * frames, 300), out);
+        }
+        assertEquals(2, frames);
+    }
+}
@@ -0,0 +1,293 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the complete host-client audio pipeline on the JVM: generated or recorded audio is
+ * captured in real time by {@link AudioSender}, crosses loopback sockets, and is played by
+ * {@link AudioPlayer} into a sink paced like a phone's speaker. Everything between the
+ * microphone and the speaker is the code the phones run.
+ */
+public class AudioLoopbackTest {
+    private static final int DEVICE_RATE = 48000;
+    private static final int BURST_MILLIS = 100;
+    private static final int PERIOD_MILLIS = 500;
+    private static final int AMPLITUDE = 8000;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<AudioTransport> transports = new ArrayList<>();
+    private final List<File> files = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Thread thread : threads) thread.interrupt();
+        for (AudioTransport transport : transports) transport.close();
+        for (File file : files) file.delete();
+    }
+
+    private File newFile() throws IOException {
+        File file = File.createTempFile("loopback", ".wav");
+        files.add(file);
+        return file;
+    }
+
+    private Thread start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /** One direction of a call: a capture thread on one end, receive and playout threads on the other. */
+    private class Direction {
+        final AudioSender sender;
+        final AudioReceiver receiver;
+        final AudioPlayer player;
+        final AudioPlayout playout;
+        final JitterBuffer jitterBuffer = new JitterBuffer();
+        final Thread[] threads;
+
+        Direction(String name, AudioSource source, AudioTransport out, AudioTransport in, AudioSink sink,
+                  AudioSessionParams params) {
+            AudioCodec codec = AudioCodecs.byName(params.getCodec());
+            int wireRate = params.getSampleRate();
+            jitterBuffer.reset(params.getFrameMillis() * 1000L);
+            sender = new AudioSender(source, out, codec, params, null);
+            receiver = new AudioReceiver(in, jitterBuffer);
+            playout = new AudioPlayout(jitterBuffer, wireRate, params.getFrameSamples(wireRate));
+            player = new AudioPlayer(playout, receiver, sink, wireRate, null);
+            threads = new Thread[] {
+                    start(sender, name + " capture"), start(receiver, name + " receive"), start(player, name + " playout")};
+        }
+    }
+
+    /**
+     * Notes when each tone burst is heard: the moment its first loud sample leaves the speaker,
+     * which is after everything already queued in front of it has played.
+     */
+    private static class OnsetSink implements AudioSink {
+        private final WavFileSink speaker;
+        private final int silentGap;
+        private final long[] onsets = new long[64];
+        private int onsetCount;
+        private long written;
+        private int quietRun;
+
+        OnsetSink(WavFileSink speaker) {
+            this.speaker = speaker;
+            this.silentGap = speaker.getSampleRate() / 10;
+            this.quietRun = silentGap;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return speaker.getSampleRate();
+        }
+
+        @Override
+        public void start() throws IOException {
+            speaker.start();
+        }
+
+        @Override
+        public void write(short[] pcm, int offset, int samples) throws IOException {
+            long queued = written - speaker.getPlayedSamples();
+            long now = System.nanoTime();
+            for (int i = 0; i < samples; i++) {
+                if (Math.abs(pcm[offset + i]) > AMPLITUDE / 4) {
+                    if (quietRun >= silentGap && onsetCount < onsets.length) {
+                        onsets[onsetCount++] = now + (queued + i) * 1_000_000_000L / getSampleRate();
+                    }
+                    quietRun = 0;
+                } else {
+                    quietRun++;
+                }
+            }
+            written += samples;
+            speaker.write(pcm, offset, samples);
+        }
+
+        @Override
+        public long getPlayedSamples() {
+            return speaker.getPlayedSamples();
+        }
+
+        @Override
+        public void close() {
+            speaker.close();
+        }
+
+        /** @return Mouth-to-ear latency of each burst heard, in milliseconds. */
+        long[] latenciesMillis(ToneSource source) {
+            long[] latencies = new long[onsetCount];
+            long periodNanos = PERIOD_MILLIS * 1_000_000L;
+            for (int i = 0; i < onsetCount; i++) {
+                long sinceStart = onsets[i] - source.getStartNanos();
+                latencies[i] = (sinceStart - (sinceStart / periodNanos) * periodNanos) / 1_000_000;
+            }
+            return latencies;
+        }
+    }
+
+    @Test
+    public void callOverUdpRunsInRealTimeBothWays() throws Exception {
+        AudioSessionParams params = AudioSessionParams.parse("transport=udp;codec=pcmu;rate=16000;frame=20");
+        DatagramAudioTransport host = DatagramAudioTransport.bind(0);
+        transports.add(host);
+        DatagramAudioTransport client = DatagramAudioTransport.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), host.getLocalPort()));
+        transports.add(client);
+        client.sendProbe(); // the host learns the client's address from its first datagram
+
+        int millis = 3000;
+        ToneSource hostMic = new ToneSource(DEVICE_RATE, 440, AMPLITUDE, BURST_MILLIS, PERIOD_MILLIS);
+        ToneSource clientMic = new ToneSource(DEVICE_RATE, 660, AMPLITUDE, BURST_MILLIS, PERIOD_MILLIS);
+        hostMic.setDurationMillis(millis);
+        clientMic.setDurationMillis(millis);
+        WavFileSink clientSpeaker = new WavFileSink(null, DEVICE_RATE);
+        WavFileSink hostSpeaker = new WavFileSink(null, DEVICE_RATE);
+        OnsetSink clientEar = new OnsetSink(clientSpeaker);
+        OnsetSink hostEar = new OnsetSink(hostSpeaker);
+
+        Direction down = new Direction("host->client", hostMic, host, client, clientEar, params);
+        Direction up = new Direction("client->host", clientMic, client, host, hostEar, params);
+        for (Thread thread : down.threads) if (thread.getName().endsWith("capture")) thread.join();
+        for (Thread thread : up.threads) if (thread.getName().endsWith("capture")) thread.join();
+        Thread.sleep(300); // let the last burst play out
+        down.player.stop();
+        up.player.stop();
+        down.receiver.stop();
+        up.receiver.stop();
+
+        long[] downLatency = clientEar.latenciesMillis(hostMic);
+        long[] upLatency = hostEar.latenciesMillis(clientMic);
+
+        int bursts = millis / PERIOD_MILLIS;
+        assertNull(down.sender.getError());
+        assertNull(up.sender.getError());
+        assertEquals(millis / params.getFrameMillis(), down.sender.getSentCount());
+        // The first burst may race the host learning the client's address; every later one is heard.
+        assertTrue(downLatency.length >= bursts - 1);
+        assertTrue(upLatency.length >= bursts - 1);
+        for (long latency : downLatency) assertTrue("host->client " + latency + " ms", latency < 250);
+        for (long latency : upLatency) assertTrue("client->host " + latency + " ms", latency < 250);
+    }
+
+    @Test
+    public void prewarmedBridgeIsHeardFromTheFirstFrameAfterAnswer() throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        Socket hostSocket = server.accept();
+        server.close();
+        hostSocket.setTcpNoDelay(true);
+        StreamAudioTransport client = new StreamAudioTransport(clientSocket);
+        StreamAudioTransport host = new StreamAudioTransport(hostSocket);
+        transports.add(client);
+        transports.add(host);
+
+        // Set up while the call rings: the host's microphone runs, but is held.
+        AudioSessionParams params = AudioSessionParams.parse("transport=tcp;codec=pcmu;rate=16000;frame=20;prewarm=1");
+        ToneSource hostMic = new ToneSource(DEVICE_RATE, 440, AMPLITUDE);
+        AudioSender sender = new AudioSender(hostMic, host, AudioCodecs.byName(params.getCodec()), params, null);
+        sender.setHeld(true);
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        jitterBuffer.reset(params.getFrameMillis() * 1000L);
+        AudioCallStats stats = new AudioCallStats(jitterBuffer, client);
+        AudioReceiver receiver = new AudioReceiver(client, jitterBuffer, stats);
+        start(sender, "host capture");
+        start(receiver, "client receive");
+        Thread.sleep(500);
+        assertEquals(0, sender.getSentCount());
+        assertEquals(0, jitterBuffer.getReceivedCount());
+
+        // Answered: the frame being captured is the first one sent.
+        stats.markAnswered(System.nanoTime() / 1000);
+        sender.setHeld(false);
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        // The sender counts a frame once the transport has taken it, which may be after it arrived.
+        while ((jitterBuffer.getReceivedCount() == 0 || sender.getSentCount() == 0) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        sender.stop();
+        receiver.stop();
+        // The held frames were never sent; audio flows once the call is answered.
+        assertTrue("no audio after answer", jitterBuffer.getReceivedCount() > 0);
+        assertTrue(stats.getAnswerToAudioMicros() >= 0);
+        assertTrue(sender.getSentCount() > 0);
+        assertNull(sender.getError());
+    }
+
+    @Test
+    public void recordingPlayedOverTcpComesOutWhole() throws Exception {
+        // A second of 16 kHz "speech", written unpaced.
+        File input = newFile();
+        WavFileSink writer = new WavFileSink(input, 16000);
+        writer.setPaced(false);
+        writer.start();
+        ToneSource tone = new ToneSource(16000, 440, AMPLITUDE);
+        tone.setPaced(false);
+        tone.start();
+        short[] pcm = new short[16000];
+        writer.write(pcm, 0, tone.read(pcm, 0, pcm.length));
+        writer.close();
+
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        Socket hostSocket = server.accept();
+        server.close();
+        clientSocket.setTcpNoDelay(true);
+        StreamAudioTransport client = new StreamAudioTransport(clientSocket);
+        StreamAudioTransport host = new StreamAudioTransport(hostSocket);
+        transports.add(client);
+        transports.add(host);
+
+        AudioSessionParams params = AudioSessionParams.parse("transport=tcp;codec=l16;rate=16000;frame=20");
+        WavFileSource mic = new WavFileSource(input);
+        File output = newFile();
+        WavFileSink speaker = new WavFileSink(output, DEVICE_RATE);
+        Direction up = new Direction("client->host", mic, client, host, speaker, params);
+
+        // The file ends, so does the stream, and playout stops once it has drained.
+        up.threads[0].join(5000);
+        client.close();
+        up.threads[2].join(5000);
+        assertTrue(up.player.isFinished());
+        assertNull(up.player.getError());
+        speaker.close();
+        mic.close();
+        assertEquals(50, up.sender.getSentCount());
+
+        WavFileSource played = new WavFileSource(output);
+        played.setPaced(false);
+        played.start();
+        assertEquals(DEVICE_RATE, played.getSampleRate());
+        short[] out = new short[2 * DEVICE_RATE];
+        int n = played.read(out, 0, out.length);
+        played.close();
+        // Playout starts with silence while the jitter buffer fills; then the whole second is heard.
+        int first = 0;
+        while (first < n && Math.abs(out[first]) < AMPLITUDE / 4) first++;
+        int last = n - 1;
+        while (last > first && Math.abs(out[last]) < AMPLITUDE / 4) last--;
+        long heardMillis = (last - first) * 1000L / DEVICE_RATE;
+        // Nothing is lost; if the end of the stream is seen late, the tail may be concealed for a few frames.
+        assertTrue("heard " + heardMillis + " ms", heardMillis >= 995 && heardMillis <= 1000 + 10 * params.getFrameMillis());
+        double energy = 0;
+        for (int i = first; i <= last; i++) energy += (double) out[i] * out[i];
+        double rms = Math.sqrt(energy / (last - first + 1));
+        assertEquals(AMPLITUDE / Math.sqrt(2), rms, AMPLITUDE * 0.05);
+    }
+}
@@ -0,0 +1,131 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class AudioMixerTest {
+
+    /** A source that plays the same frame over and over. */
+    private static AudioMixer.Input constant(short[] frame) {
+        return pcm -> {
+            System.arraycopy(frame, 0, pcm, 0, frame.length);
+            return frame.length;
+        };
+    }
+
+    private static short[] filled(int length, int value) {
+        short[] frame = new short[length];
+        java.util.Arrays.fill(frame, (short) value);
+        return frame;
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void quietSourcesAddUpExactly() {
+        AudioMixer mixer = new AudioMixer(320);
+        short[] out = new short[320];
+        assertEquals(0, mixer.mix(out));
+
+        mixer.addSource(constant(filled(320, 1000)));
+        AudioMixer.Source second = mixer.addSource(constant(filled(320, -300)));
+        assertEquals(320, mixer.mix(out));
+        assertEquals(700, out[0]);
+        assertEquals(700, out[319]);
+
+        second.setGain(0.5f);
+        mixer.mix(out);
+        assertEquals(850, out[100]);
+        second.setGain(0);
+        mixer.mix(out);
+        assertEquals(1000, out[100]);
+
+        mixer.removeSource(second);
+        assertEquals(1, mixer.getSourceCount());
+    }
+
+    @Test
+    public void shorterFramesArePaddedWithSilence() {
+        AudioMixer mixer = new AudioMixer(320);
+        mixer.addSource(constant(filled(160, 2000)));
+        mixer.addSource(constant(filled(320, 500)));
+        mixer.addSource(constant(filled(80, 100)));
+        short[] out = new short[320];
+        assertEquals(320, mixer.mix(out));
+        assertEquals(2600, out[0]);
+        assertEquals(2500, out[80]);
+        assertEquals(500, out[160]);
+        // The next mix starts from silence again.
+        assertEquals(320, mixer.mix(out));
+        assertEquals(500, out[319]);
+    }
+
+    @Test
+    public void loudSumsAreCompressedNotWrapped() {
+        assertEquals(AudioMixer.KNEE, AudioMixer.limit(AudioMixer.KNEE));
+        assertEquals(-1234, AudioMixer.limit(-1234));
+        int previous = Short.MIN_VALUE;
+        for (int x = -AudioMixer.MAX_SOURCES * 8 * 32768; x <= AudioMixer.MAX_SOURCES * 8 * 32768; x += 97) {
+            int y = AudioMixer.limit(x);
+            assertTrue("not monotonic at " + x, y >= previous);
+            assertTrue(y < Short.MAX_VALUE && y > Short.MIN_VALUE);
+            previous = y;
+        }
+
+        // Eight people shouting: full scale each, and the mix keeps its sign.
+        AudioMixer mixer = new AudioMixer(4);
+        for (int i = 0; i < AudioMixer.MAX_SOURCES; i++) {
+            assertNotNull(mixer.addSource(constant(new short[] {Short.MAX_VALUE, Short.MIN_VALUE, 20000, -20000})));
+        }
+        assertNull(mixer.addSource(constant(new short[4])));
+        short[] out = new short[4];
+        mixer.mix(out);
+        assertTrue(out[0] > 32000);
+        assertTrue(out[1] < -32000);
+        assertTrue(out[2] > AudioMixer.KNEE && out[2] <= out[0]);
+        assertTrue(out[3] < -AudioMixer.KNEE);
+    }
+
+    @Test
+    public void gainIsClampedAndFixedPoint() {
+        AudioMixer mixer = new AudioMixer(1);
+        AudioMixer.Source source = mixer.addSource(constant(new short[] {4096}));
+        source.setGain(100);
+        assertEquals(8.0f, source.getGain(), 0);
+        source.setGain(-1);
+        assertEquals(0.0f, source.getGain(), 0);
+        source.setGain(1.5f);
+        short[] out = new short[1];
+        mixer.mix(out);
+        assertEquals(6144, out[0]);
+    }
+
+    @Test
+    public void mixingAllocatesNothingPerFrame() {
+        int frame = 960; // 20 ms at 48 kHz, the largest wire rate
+        short[] out = new short[frame];
+        for (int count = 2; count <= AudioMixer.MAX_SOURCES; count *= 2) {
+            AudioMixer mixer = new AudioMixer(frame);
+            for (int s = 0; s < count; s++) {
+                mixer.addSource(constant(filled(frame, 100)));
+            }
+            for (int i = 0; i < 5000; i++) {
+                mixer.mix(out);
+            }
+            long allocatedBefore = allocatedBytes();
+            for (int i = 0; i < 5000; i++) {
+                assertEquals(frame, mixer.mix(out));
+            }
+            long allocated = allocatedBytes() - allocatedBefore;
+            assertTrue(count + " sources allocated " + allocated + " bytes", allocated < 16 * 1024);
+            assertEquals(100 * count, out[0]);
+            assertEquals(100 * count, out[frame - 1]);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the whole per-frame path, from captured device bytes through resampling, encode, the
+ * network, the jitter buffer, decode, concealment and resampling back to playout bytes, and
+ * checks that it stops allocating once warmed up. The devices run at 48 kHz and the wire at 16 kHz.
+ */
+public class AudioPipelineAllocationTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SAMPLES = 320;
+    private static final int DEVICE_RATE = 48000;
+    private static final int DEVICE_FRAME_SAMPLES = 960;
+    private static final int WARMUP_FRAMES = 5_000;
+    private static final int MEASURED_FRAMES = 5_000;
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** State of one direction of a call, all allocated up front like the streaming loops do. */
+    private static class Pipeline {
+        final AudioTransport sender;
+        final AudioTransport receiver;
+        final AudioCodec codec;
+        final AudioBufferPool pool = new AudioBufferPool(2, 2 * AudioFrame.MAX_PAYLOAD_SIZE);
+        final ByteBuffer captured = pool.acquire();
+        final ByteBuffer output = pool.acquire();
+        final short[] signal = new short[DEVICE_RATE];
+        final short[] devicePcm = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+        final short[] pcm = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+        final Resampler captureResampler = new Resampler(DEVICE_RATE, SAMPLE_RATE);
+        final Resampler playoutResampler = new Resampler(SAMPLE_RATE, DEVICE_RATE);
+        final AudioFrame sent = new AudioFrame();
+        final AudioFrame received = new AudioFrame();
+        final JitterBuffer jitterBuffer = new JitterBuffer();
+        final AudioCallStats stats = new AudioCallStats(jitterBuffer, null);
+        final AudioPlayout playout = new AudioPlayout(jitterBuffer, SAMPLE_RATE, FRAME_SAMPLES, stats);
+        int seq;
+
+        Pipeline(AudioTransport sender, AudioTransport receiver, AudioCodec codec) {
+            this.sender = sender;
+            this.receiver = receiver;
+            this.codec = codec;
+            for (int i = 0; i < signal.length; i++) {
+                signal[i] = (short) (8000 * Math.sin(2 * Math.PI * 200 * i / DEVICE_RATE));
+            }
+            sent.setCodecId(codec.getId());
+        }
+
+        void run(int frames) throws IOException {
+            for (int f = 0; f < frames; f++) {
+                // Capture: the device fills the direct buffer, the loop converts, resamples and encodes.
+                Pcm16.toBytes(signal, (seq * DEVICE_FRAME_SAMPLES) % (signal.length - DEVICE_FRAME_SAMPLES), captured, DEVICE_FRAME_SAMPLES);
+                Pcm16.toShorts(captured, devicePcm, 0, DEVICE_FRAME_SAMPLES);
+                int frameSamples = captureResampler.process(devicePcm, 0, DEVICE_FRAME_SAMPLES, pcm, 0);
+                assertEquals(FRAME_SAMPLES, frameSamples);
+                sent.setSequenceNumber(seq);
+                sent.setCaptureTimeMicros(seq * 20_000L);
+                sent.setPayloadLength(codec.encode(pcm, 0, frameSamples, sent.getPayload(), 0));
+                if (seq % 10 != 7) { // every tenth frame is lost on the way
+                    sender.send(sent);
+                    stats.recordSent(sent, seq * 20_000L + 21_000);
+                    assertTrue(receiver.receive(received));
+                    stats.recordArrival(received, seq * 20_000L + 500);
+                    jitterBuffer.put(received, seq * 20_000L + 500);
+                }
+                seq++;
+
+                // Playout: decode, or conceal what is missing, resample, then hand the bytes to the device.
+                int samples = playout.next(pcm);
+                int deviceSamples = playoutResampler.process(pcm, 0, samples, devicePcm, 0);
+                output.clear();
+                Pcm16.toBytes(devicePcm, 0, output, deviceSamples);
+                stats.recordPlayoutQueue(40_000);
+            }
+        }
+    }
+
+    private static void assertSteadyStateAllocationFree(String name, Pipeline pipeline) throws IOException {
+        pipeline.run(WARMUP_FRAMES);
+        long before = allocatedBytes();
+        pipeline.run(MEASURED_FRAMES);
+        long allocated = allocatedBytes() - before;
+        assertTrue(pipeline.playout.getConcealedFrameCount() > 0);
+        // A single small object per frame would add up to more than 80 KB; what remains are a few
+        // one-off JIT and JDK bookkeeping allocations.
+        assertTrue(name + "/" + pipeline.codec.getName() + " allocated " + allocated + " bytes", allocated < 16 * 1024);
+    }
+
+    private static AudioCodec[] codecs() {
+        return new AudioCodec[]{
+                AudioCodecs.byName(PcmCodec.NAME),
+                AudioCodecs.byName(G711Codec.NAME_MU_LAW),
+                AudioCodecs.byName(ImaAdpcmCodec.NAME)
+        };
+    }
+
+    @Test
+    public void datagramPathIsAllocationFree() throws IOException {
+        for (AudioCodec codec : codecs()) {
+            try (DatagramAudioTransport host = DatagramAudioTransport.bind(0);
+                 DatagramAudioTransport client = DatagramAudioTransport.connect(
+                         new InetSocketAddress(InetAddress.getLoopbackAddress(), host.getLocalPort()))) {
+                client.sendProbe();
+                AudioFrame probe = new AudioFrame();
+                assertTrue(host.receive(probe));
+                assertSteadyStateAllocationFree("udp", new Pipeline(client, host, codec));
+            }
+        }
+    }
+
+    @Test
+    public void streamPathIsAllocationFree() throws IOException {
+        for (AudioCodec codec : codecs()) {
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                 Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                 Socket hostSocket = server.accept()) {
+                assertSteadyStateAllocationFree("tcp", new Pipeline(
+                        new StreamAudioTransport(clientSocket), new StreamAudioTransport(hostSocket), codec));
+            }
+        }
+    }
+
+    @Test
+    public void poolReusesBuffers() {
+        AudioBufferPool pool = new AudioBufferPool(2, 64);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        assertTrue(a.isDirect());
+        assertEquals(0, pool.getAvailable());
+        ByteBuffer extra = pool.acquire();
+        assertEquals(1, pool.getMissCount());
+        a.position(10);
+        pool.release(a);
+        pool.release(b);
+        pool.release(extra); // beyond capacity: dropped
+        pool.release(ByteBuffer.allocateDirect(32)); // foreign size: ignored
+        assertEquals(2, pool.getAvailable());
+        ByteBuffer again = pool.acquire();
+        assertSame(a, again);
+        assertEquals(0, again.position());
+        assertEquals(1, pool.getMissCount());
+    }
+}
@@ -0,0 +1,240 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AudioRateControllerTest {
+    private static final int FRAMES_PER_REPORT = 100; // 2 s of 20 ms frames
+
+    /** The receiving end of a stream, making the reports the sender's controller takes in. */
+    private static class Peer {
+        int highestSeq = -1;
+        long received;
+        long lost;
+        long late;
+        long recovered;
+
+        /** The next report, after {@code sent} more frames of which {@code lostFrames} never arrived. */
+        AudioStatsReport interval(int sent, int lostFrames, long jitterMicros) {
+            highestSeq += sent;
+            received += sent - lostFrames;
+            lost += lostFrames;
+            AudioStatsReport report = new AudioStatsReport();
+            report.setHighestSequence(highestSeq);
+            report.setCount(AudioStatsReport.COUNT_RECEIVED, received);
+            report.setCount(AudioStatsReport.COUNT_LOST, lost);
+            report.setCount(AudioStatsReport.COUNT_LATE, late);
+            report.setCount(AudioStatsReport.COUNT_RECOVERED, recovered);
+            report.setJitterMicros(jitterMicros);
+            return report;
+        }
+
+        AudioStatsReport clean() {
+            return interval(FRAMES_PER_REPORT, 0, 2_000);
+        }
+
+        AudioStatsReport lossy() {
+            return interval(FRAMES_PER_REPORT, 10, 2_000);
+        }
+    }
+
+    private static AudioSessionParams session(int sampleRate, int frameMillis) {
+        AudioSessionParams params = new AudioSessionParams();
+        params.setSampleRate(sampleRate);
+        params.setFrameMillis(frameMillis);
+        params.setAdaptive(true);
+        return params;
+    }
+
+    private static AudioRateController controller() {
+        return AudioRateController.forSession(session(16000, 20), AudioCodecs.byName(PcmCodec.NAME), AudioCodecs.supportedNames());
+    }
+
+    @Test
+    public void ladderStepsDownToCheaperStreams() {
+        List<AudioRateController.Level> ladder = controller().getLadder();
+        assertEquals("[l16/20ms, pcmu/20ms, adpcm/20ms, adpcm/40ms, adpcm/40ms/half]", ladder.toString());
+        for (int i = 1; i < ladder.size(); i++) {
+            assertTrue(ladder.get(i) + " is not cheaper", ladder.get(i).getBitrate(16000) < ladder.get(i - 1).getBitrate(16000));
+        }
+        assertEquals(40, controller().getMaxFrameMillis());
+
+        // Only codecs the peer plays; no half rate below 16 kHz; already at the longest frames.
+        AudioRateController narrow = AudioRateController.forSession(session(8000, 40), AudioCodecs.byName(G711Codec.NAME_MU_LAW),
+                Arrays.asList(PcmCodec.NAME, G711Codec.NAME_MU_LAW));
+        assertEquals("[pcmu/40ms]", narrow.getLadder().toString());
+    }
+
+    @Test
+    public void stepsDownOnCongestionAndBackUpAfterCleanIntervals() {
+        AudioRateController controller = controller();
+        Peer peer = new Peer();
+        assertFalse(controller.onReport(new AudioStatsReport(), 0)); // nothing received yet
+        assertFalse(controller.onReport(peer.clean(), 8_000));
+        assertEquals(0, controller.getLevelIndex());
+
+        assertTrue(controller.onReport(peer.lossy(), 8_000));
+        assertEquals(1, controller.getLevelIndex());
+        assertEquals(0.10, controller.getResidualLossFraction(), 1e-9);
+        assertTrue(controller.onReport(peer.interval(FRAMES_PER_REPORT, 0, 60_000), 8_000)); // jitter
+        assertTrue(controller.onReport(peer.clean(), 250_000)); // queued behind other traffic
+        assertEquals(3, controller.getLevelIndex());
+
+        for (int i = 0; i < AudioRateController.MIN_CLEAN_REPORTS - 1; i++) {
+            assertFalse(controller.onReport(peer.clean(), 8_000));
+        }
+        assertTrue(controller.onReport(peer.clean(), 8_000));
+        assertEquals(2, controller.getLevelIndex());
+
+        // Loss between clean and congested holds the level and restarts the clean run.
+        assertFalse(controller.onReport(peer.interval(FRAMES_PER_REPORT, 3, 2_000), 8_000));
+        assertEquals(2, controller.getLevelIndex());
+        for (int i = 0; i < AudioRateController.MIN_CLEAN_REPORTS - 1; i++) {
+            assertFalse(controller.onReport(peer.clean(), 8_000));
+        }
+        assertTrue(controller.onReport(peer.clean(), 8_000));
+        assertEquals(1, controller.getLevelIndex());
+    }
+
+    @Test
+    public void failedProbeDoublesTheCleanRunNeeded() {
+        AudioRateController controller = controller();
+        Peer peer = new Peer();
+        controller.onReport(peer.clean(), 0);
+        controller.onReport(peer.lossy(), 0);
+        for (int i = 0; i < AudioRateController.MIN_CLEAN_REPORTS; i++) {
+            controller.onReport(peer.clean(), 0);
+        }
+        assertEquals(0, controller.getLevelIndex());
+        assertTrue(controller.onReport(peer.lossy(), 0)); // the link could not take it
+        assertEquals(1, controller.getLevelIndex());
+
+        int reports = 0;
+        while (!controller.onReport(peer.clean(), 0)) {
+            reports++;
+        }
+        assertEquals(2 * AudioRateController.MIN_CLEAN_REPORTS - 1, reports);
+        assertEquals(0, controller.getLevelIndex());
+    }
+
+    @Test
+    public void lossIsMeasuredPerIntervalBeforeAndAfterRecovery() {
+        AudioRateController controller = controller();
+        Peer peer = new Peer();
+        controller.onReport(peer.interval(5_000, 500, 0), 0); // a bad start long ago
+        // 8 frames lost on the way, 5 of them rebuilt from parity, 1 late.
+        peer.recovered += 5;
+        peer.late += 1;
+        peer.received += 5;
+        peer.lost -= 5;
+        controller.onReport(peer.interval(FRAMES_PER_REPORT, 8, 0), 0);
+        assertEquals(0.08, controller.getLossFraction(), 1e-9);
+        assertEquals(0.04, controller.getResidualLossFraction(), 1e-9);
+        assertEquals(0, controller.getLevelIndex());
+
+        // Silence sends nothing, and a peer that started over is not a loss.
+        assertFalse(controller.onReport(peer.interval(0, 0, 0), 0));
+        Peer restarted = new Peer();
+        assertFalse(controller.onReport(restarted.clean(), 0));
+        assertEquals(0, controller.getLevelIndex());
+    }
+
+    /** Keeps every frame sent and, after {@code congestAfter} frames, tells the controller the link is congested. */
+    private static class Link implements AudioTransport {
+        final List<AudioFrame> frames = new ArrayList<>();
+        final AudioRateController controller;
+        final int congestAfter;
+        final Peer peer = new Peer();
+
+        Link(AudioRateController controller, int congestAfter) {
+            this.controller = controller;
+            this.congestAfter = congestAfter;
+            controller.onReport(peer.clean(), 0);
+        }
+
+        @Override
+        public void send(AudioFrame frame) {
+            AudioFrame copy = new AudioFrame();
+            copy.copyFrom(frame);
+            frames.add(copy);
+            if (frames.size() == congestAfter) {
+                while (controller.getLevelIndex() < controller.getLadder().size() - 1) {
+                    controller.onReport(peer.lossy(), 0);
+                }
+            }
+        }
+
+        @Override
+        public boolean receive(AudioFrame frame) {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void senderSwitchesMidStreamAndPlayoutKeepsItsPeriod() {
+        AudioSessionParams params = session(16000, 20);
+        AudioCodec pcm = AudioCodecs.byName(PcmCodec.NAME);
+        AudioRateController controller = AudioRateController.forSession(params, pcm, AudioCodecs.supportedNames());
+        Link link = new Link(controller, 25);
+        ToneSource tone = new ToneSource(48000, 440, 8000);
+        tone.setPaced(false);
+        tone.setDurationMillis(1500);
+        AudioSender sender = new AudioSender(tone, link, pcm, params, null);
+        sender.setRateController(controller);
+        sender.run();
+        assertNull(sender.getError());
+
+        // 25 frames of 20 ms as negotiated, then 40 ms half-rate ADPCM for the remaining second.
+        assertEquals(25 + 25, link.frames.size());
+        for (int i = 0; i < link.frames.size(); i++) {
+            AudioFrame frame = link.frames.get(i);
+            assertEquals(i, frame.getSequenceNumber());
+            boolean degraded = i >= 25;
+            assertEquals(degraded ? ImaAdpcmCodec.ID : pcm.getId(), frame.getCodecId());
+            assertEquals(degraded ? AudioFrame.FLAG_HALF_RATE : 0, frame.getFlags());
+            int samples = degraded ? 8000 * 40 / 1000 : 320;
+            assertEquals(AudioCodecs.byId(frame.getCodecId()).getMaxEncodedSize(samples), frame.getPayloadLength());
+        }
+
+        // Played back in time: every period is the negotiated 20 ms, and the tone carries on.
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        jitterBuffer.reset(20_000);
+        AudioPlayout playout = new AudioPlayout(jitterBuffer, 16000, 320);
+        short[] out = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+        short[] played = new short[16000 * 2];
+        int playedSamples = 0;
+        long arrivalMicros = 0;
+        for (AudioFrame frame : link.frames) {
+            int periods = frame.getFlags() == AudioFrame.FLAG_HALF_RATE ? 2 : 1;
+            jitterBuffer.put(frame, arrivalMicros);
+            arrivalMicros += periods * 20_000L;
+            for (int p = 0; p < periods; p++) {
+                int n = playout.next(out);
+                assertEquals(320, n);
+                System.arraycopy(out, 0, played, playedSamples, n);
+                playedSamples += n;
+            }
+        }
+        assertEquals(0, playout.getConcealedFrameCount());
+        // 440 Hz crosses zero 880 times a second, at full and at half rate alike.
+        assertEquals(880 * 0.3, zeroCrossings(played, 3200, 8000), 4);
+        assertEquals(880 * 0.5, zeroCrossings(played, playedSamples - 8640, playedSamples - 640), 4);
+    }
+
+    private static int zeroCrossings(short[] pcm, int from, int to) {
+        int crossings = 0;
+        for (int i = from + 1; i < to; i++) {
+            if ((pcm[i - 1] < 0) != (pcm[i] < 0)) crossings++;
+        }
+        return crossings;
+    }
+}
@@ -0,0 +1,190 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class AudioSessionParamsTest {
+
+    @Test
+    public void bareCommandMeansTcp() {
+        assertTrue(AudioSessionParams.isCommand("AUDIO_READY", "AUDIO_READY"));
+        assertFalse(AudioSessionParams.isCommand("AUDIO_READY_X", "AUDIO_READY"));
+        AudioSessionParams params = AudioSessionParams.fromCommand("AUDIO_READY", "AUDIO_READY");
+        assertEquals(AudioSessionParams.TRANSPORT_TCP, params.getTransport());
+        assertFalse(params.isDatagram());
+    }
+
+    @Test
+    public void roundTripsThroughCommand() {
+        AudioSessionParams params = new AudioSessionParams();
+        params.setTransport(AudioSessionParams.TRANSPORT_UDP);
+        String command = params.toCommand("START_AUDIO_BRIDGE");
+        assertTrue(AudioSessionParams.isCommand(command, "START_AUDIO_BRIDGE"));
+        assertTrue(AudioSessionParams.fromCommand(command, "START_AUDIO_BRIDGE").isDatagram());
+
+        params.setTransport(AudioSessionParams.TRANSPORT_MUX);
+        AudioSessionParams multiplexed = AudioSessionParams.fromCommand(params.toCommand("START_AUDIO_BRIDGE"), "START_AUDIO_BRIDGE");
+        assertTrue(multiplexed.isMultiplexed());
+        assertFalse(multiplexed.isDatagram());
+        assertFalse(AudioSessionParams.parse("transport=tcp").isMultiplexed());
+
+        params.setPrewarm(true);
+        assertTrue(AudioSessionParams.fromCommand(params.toCommand("AUDIO_READY"), "AUDIO_READY").isPrewarm());
+        assertFalse(AudioSessionParams.parse("transport=tcp").isPrewarm());
+    }
+
+    @Test
+    public void ignoresUnknownKeysAndGarbage() {
+        AudioSessionParams params = AudioSessionParams.parse("future=1; transport = UDP ;;=x;novalue");
+        assertTrue(params.isDatagram());
+        assertFalse(AudioSessionParams.parse("transport=carrier-pigeon").isDatagram());
+    }
+
+    @Test
+    public void offersAndAnswersCodecs() {
+        AudioSessionParams offer = new AudioSessionParams();
+        offer.setCodecs(Arrays.asList("opus", "pcma", "l16"));
+        AudioSessionParams received = AudioSessionParams.fromCommand(offer.toCommand("AUDIO_READY"), "AUDIO_READY");
+        assertEquals(Arrays.asList("opus", "pcma", "l16"), received.getCodecs());
+
+        AudioCodec chosen = AudioCodecs.negotiate(received.getCodecs());
+        assertEquals(G711Codec.ID_A_LAW, chosen.getId());
+
+        AudioSessionParams answer = new AudioSessionParams();
+        answer.setCodec(chosen.getName());
+        assertEquals("pcma", AudioSessionParams.fromCommand(answer.toCommand("START_AUDIO_BRIDGE"), "START_AUDIO_BRIDGE").getCodec());
+    }
+
+    @Test
+    public void legacyPeersGetUncompressedPcm() {
+        assertEquals(PcmCodec.NAME, AudioSessionParams.parse("transport=tcp").getCodec());
+        assertEquals(AudioFrame.CODEC_PCM_16BIT, AudioCodecs.negotiate(Collections.<String>emptyList()).getId());
+        assertNull(AudioCodecs.byId(200));
+        assertSame(AudioCodecs.byName("PCMU"), AudioCodecs.byId(G711Codec.ID_MU_LAW));
+    }
+
+    @Test
+    public void negotiatesFrameDuration() {
+        assertEquals(AudioSessionParams.DEFAULT_FRAME_MILLIS, AudioSessionParams.parse("transport=tcp").getFrameMillis());
+
+        AudioSessionParams offer = new AudioSessionParams();
+        offer.setFrameMillis(10);
+        AudioSessionParams received = AudioSessionParams.fromCommand(offer.toCommand("AUDIO_READY"), "AUDIO_READY");
+        assertEquals(10, received.getFrameMillis());
+        assertEquals(160, received.getFrameSamples(16000));
+        assertEquals(640, AudioSessionParams.parse("frame=40").getFrameSamples(16000));
+
+        // Unsupported or garbled durations fall back to the default instead of failing the call.
+        assertEquals(AudioSessionParams.DEFAULT_FRAME_MILLIS, AudioSessionParams.parse("frame=7").getFrameMillis());
+        assertEquals(AudioSessionParams.DEFAULT_FRAME_MILLIS, AudioSessionParams.parse("frame=abc").getFrameMillis());
+    }
+
+    @Test
+    public void negotiatesSampleRate() {
+        assertEquals(AudioSessionParams.DEFAULT_SAMPLE_RATE, AudioSessionParams.parse("transport=tcp").getSampleRate());
+
+        AudioSessionParams offer = new AudioSessionParams();
+        offer.setSampleRates(AudioSessionParams.supportedSampleRates(48000));
+        AudioSessionParams received = AudioSessionParams.fromCommand(offer.toCommand("AUDIO_READY"), "AUDIO_READY");
+        assertEquals(Arrays.asList(48000, 8000, 16000), received.getSampleRates());
+        assertEquals(48000, AudioSessionParams.negotiateSampleRate(received.getSampleRates()));
+        assertEquals(8000, AudioSessionParams.negotiateSampleRate(AudioSessionParams.parse("rates=11025,x,8000").getSampleRates()));
+        assertEquals(16000, AudioSessionParams.negotiateSampleRate(Collections.<Integer>emptyList()));
+
+        AudioSessionParams answer = new AudioSessionParams();
+        answer.setSampleRate(8000);
+        AudioSessionParams accepted = AudioSessionParams.fromCommand(answer.toCommand("START_AUDIO_BRIDGE"), "START_AUDIO_BRIDGE");
+        assertEquals(8000, accepted.getSampleRate());
+        assertEquals(160, accepted.getFrameSamples(accepted.getSampleRate()));
+        assertEquals(AudioSessionParams.DEFAULT_SAMPLE_RATE, AudioSessionParams.parse("rate=22050").getSampleRate());
+    }
+
+    @Test
+    public void fecNeedsBothSides() {
+        assertFalse(AudioSessionParams.parse("transport=udp;dtx=1").isFec());
+        AudioSessionParams offer = new AudioSessionParams();
+        offer.setFec(true);
+        assertTrue(AudioSessionParams.fromCommand(offer.toCommand("AUDIO_READY"), "AUDIO_READY").isFec());
+    }
+
+    @Test
+    public void adaptationNeedsBothSides() {
+        assertFalse(AudioSessionParams.parse("transport=udp;dtx=1;fec=1").isAdaptive());
+        AudioSessionParams offer = new AudioSessionParams();
+        offer.setAdaptive(true);
+        assertTrue(AudioSessionParams.fromCommand(offer.toCommand("AUDIO_READY"), "AUDIO_READY").isAdaptive());
+    }
+
+    @Test
+    public void carriesTheSessionToken() {
+        assertEquals(0, AudioSessionParams.parse("transport=udp").getSessionToken());
+        AudioSessionParams accepted = new AudioSessionParams();
+        accepted.setSessionToken(0x8000_0000_0000_002AL); // tokens use all 64 bits
+        String command = accepted.toCommand("START_AUDIO_BRIDGE");
+        assertTrue(command, command.contains("session=800000000000002a"));
+        assertEquals(0x8000_0000_0000_002AL, AudioSessionParams.fromCommand(command, "START_AUDIO_BRIDGE").getSessionToken());
+        assertEquals(0, AudioSessionParams.parse("session=zz").getSessionToken());
+    }
+
+    @Test
+    public void clientPredictsTheAnswerToItsProposal() {
+        AudioSessionParams proposal = new AudioSessionParams();
+        proposal.setCodecs(Arrays.asList("opus", "pcmu", "l16"));
+        proposal.setSampleRates(AudioSessionParams.supportedSampleRates(8000));
+        proposal.setFrameMillis(10);
+        proposal.setFec(true);
+        proposal.setSessionToken(42);
+        AudioSessionParams received = AudioSessionParams.fromCommand(proposal.toCommand("AUDIO_READY"), "AUDIO_READY");
+
+        AudioSessionParams answer = received.answer();
+        assertEquals(G711Codec.NAME_MU_LAW, answer.getCodec());
+        assertEquals(8000, answer.getSampleRate());
+        assertEquals(10, answer.getFrameMillis());
+        assertFalse(answer.isFec()); // over TCP
+        assertEquals(42, answer.getSessionToken());
+        assertTrue(proposal.answer().agreesWith(
+                AudioSessionParams.fromCommand(answer.toCommand("START_AUDIO_BRIDGE"), "START_AUDIO_BRIDGE")));
+
+        // An older host issues its own token; a running call may leave the client listening.
+        AudioSessionParams issued = received.answer();
+        issued.setSessionToken(7);
+        assertFalse(proposal.answer().agreesWith(issued));
+        AudioSessionParams listening = received.answer();
+        listening.setListenOnly(true);
+        assertFalse(proposal.answer().agreesWith(listening));
+    }
+
+    @Test
+    public void listenersMustPlayTheRunningStream() {
+        AudioSessionParams running = new AudioSessionParams();
+        running.setCodec(G711Codec.NAME_MU_LAW);
+        running.setSampleRate(8000);
+        running.setDtx(true);
+
+        AudioSessionParams offer = new AudioSessionParams();
+        offer.setCodecs(AudioCodecs.supportedNames());
+        offer.setSampleRates(AudioSessionParams.supportedSampleRates(16000));
+        offer.setDtx(true);
+        assertTrue(offer.canReceive(running));
+        offer.setDtx(false);
+        assertFalse(offer.canReceive(running));
+        // A peer that negotiates nothing plays 16 kHz PCM only.
+        assertFalse(AudioSessionParams.parse("transport=tcp").canReceive(running));
+        assertTrue(AudioSessionParams.parse("transport=tcp").canReceive(new AudioSessionParams()));
+        // Older peers would play half-rate frames of an adaptive stream too fast.
+        offer.setDtx(true);
+        running.setAdaptive(true);
+        assertFalse(offer.canReceive(running));
+        offer.setAdaptive(true);
+        assertTrue(offer.canReceive(running));
+
+        AudioSessionParams listener = new AudioSessionParams();
+        listener.setListenOnly(true);
+        assertTrue(AudioSessionParams.fromCommand(listener.toCommand("START_AUDIO_BRIDGE"), "START_AUDIO_BRIDGE").isListenOnly());
+        assertFalse(AudioSessionParams.parse("transport=tcp").isListenOnly());
+    }
+}
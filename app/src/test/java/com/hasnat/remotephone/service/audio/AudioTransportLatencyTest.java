@@ -0,0 +1,153 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loopback comparison of what one lost frame does to the frames sent after it over the TCP
+ * and UDP audio transports.
+ * <p>
+ * For UDP a lost frame simply never arrives. For TCP the loss is modelled the way the kernel
+ * handles it: the segment is held back until it is retransmitted, and everything sent behind
+ * it waits (head-of-line blocking).
+ */
+public class AudioTransportLatencyTest {
+    private static final int FRAMES = 20;
+    private static final int LOST_SEQ = 7;
+    private static final int PAYLOAD = 320;
+    // Generous; only reached if a frame that should arrive never does.
+    private static final long RECEIVE_TIMEOUT_MS = 10_000;
+    // How long the stalled stream is watched for frames overtaking the lost one.
+    private static final int STALL_CHECK_MS = 200;
+
+    private final ExecutorService receiver = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        receiver.shutdownNow();
+    }
+
+    private static void send(AudioTransport transport, boolean dropLost) throws IOException {
+        AudioFrame frame = new AudioFrame();
+        frame.setPayloadLength(PAYLOAD);
+        for (int seq = 0; seq < FRAMES; seq++) {
+            frame.setSequenceNumber(seq);
+            if (!(dropLost && seq == LOST_SEQ)) {
+                transport.send(frame);
+            }
+        }
+    }
+
+    /**
+     * Receives the next frame, failing the test instead of hanging if none comes; the transport
+     * is closed then, which ends the blocked receive.
+     * @return Its sequence number.
+     */
+    private int receive(AudioTransport transport, AudioFrame frame) throws Exception {
+        Future<Boolean> received = receiver.submit(() -> transport.receive(frame));
+        try {
+            assertTrue("transport closed", received.get(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            transport.close();
+            fail("no frame within " + RECEIVE_TIMEOUT_MS + " ms");
+        }
+        return frame.getSequenceNumber();
+    }
+
+    @Test
+    public void datagramFramesAfterALossAreNotHeldUp() throws Exception {
+        DatagramAudioTransport host = DatagramAudioTransport.bind(0);
+        DatagramAudioTransport client = DatagramAudioTransport.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), host.getLocalPort()));
+        try {
+            send(client, true);
+            // The lost frame never comes; the ones behind it are delivered right away.
+            AudioFrame frame = new AudioFrame();
+            for (int seq = 0; seq < FRAMES; seq++) {
+                if (seq == LOST_SEQ) continue;
+                assertEquals(seq, receive(host, frame));
+            }
+        } finally {
+            host.close();
+            client.close();
+        }
+    }
+
+    @Test
+    public void streamFramesWaitBehindALostSegment() throws Exception {
+        try (ServerSocket relayServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ServerSocket hostServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket client = new Socket(InetAddress.getLoopbackAddress(), relayServer.getLocalPort());
+            Socket relayIn = relayServer.accept();
+            Socket relayOut = new Socket(InetAddress.getLoopbackAddress(), hostServer.getLocalPort());
+            Socket host = hostServer.accept();
+            client.setTcpNoDelay(true);
+            relayOut.setTcpNoDelay(true);
+
+            // The relay holds back the "lost" frame until it is retransmitted.
+            CountDownLatch retransmit = new CountDownLatch(1);
+            Thread relay = new Thread(() -> {
+                try {
+                    AudioFrameReader reader = new AudioFrameReader(relayIn.getInputStream());
+                    AudioFrameWriter writer = new AudioFrameWriter(relayOut.getOutputStream());
+                    AudioFrame frame = new AudioFrame();
+                    while (reader.read(frame)) {
+                        if (frame.getSequenceNumber() == LOST_SEQ) {
+                            retransmit.await();
+                        }
+                        writer.write(frame);
+                    }
+                } catch (IOException | InterruptedException ignored) {
+                }
+            });
+            relay.start();
+
+            StreamAudioTransport clientTransport = new StreamAudioTransport(client);
+            StreamAudioTransport hostTransport = new StreamAudioTransport(host);
+            try {
+                send(clientTransport, false);
+                AudioFrame frame = new AudioFrame();
+                for (int seq = 0; seq < LOST_SEQ; seq++) {
+                    assertEquals(seq, receive(hostTransport, frame));
+                }
+
+                // Everything sent after the lost frame has left the client, yet none of it is delivered.
+                host.setSoTimeout(STALL_CHECK_MS);
+                try {
+                    hostTransport.receive(frame);
+                    fail("frame " + frame.getSequenceNumber() + " overtook the lost one");
+                } catch (SocketTimeoutException expected) {
+                }
+                host.setSoTimeout(0);
+
+                // Once it is retransmitted, it and the frames queued behind it arrive, in order.
+                retransmit.countDown();
+                for (int seq = LOST_SEQ; seq < FRAMES; seq++) {
+                    assertEquals(seq, receive(hostTransport, frame));
+                }
+            } finally {
+                retransmit.countDown();
+                clientTransport.close();
+                hostTransport.close();
+                relayIn.close();
+                relayOut.close();
+                relay.join(1000);
+            }
+        }
+    }
+}
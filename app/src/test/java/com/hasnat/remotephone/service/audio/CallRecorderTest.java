@@ -0,0 +1,222 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class CallRecorderTest {
+    private File file;
+
+    @After
+    public void tearDown() {
+        if (file != null) file.delete();
+    }
+
+    private File newFile() throws IOException {
+        file = File.createTempFile("call", ".wav");
+        return file;
+    }
+
+    private static short[] filled(int length, int value) {
+        short[] frame = new short[length];
+        java.util.Arrays.fill(frame, (short) value);
+        return frame;
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String tag(ByteBuffer wav, int offset) {
+        byte[] tag = new byte[4];
+        for (int i = 0; i < 4; i++) tag[i] = wav.get(offset + i);
+        return new String(tag, java.nio.charset.StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void pcmRecordingIsAStereoWavWithBothSides() throws IOException {
+        File file = newFile();
+        CallRecorder recorder = CallRecorder.open(file, 8000, 160, CallRecorder.FORMAT_PCM_16);
+        for (int i = 0; i < 50; i++) {
+            recorder.write(CallRecorder.CHANNEL_HOST, filled(160, 1000), 0, 160);
+            recorder.write(CallRecorder.CHANNEL_CLIENTS, filled(160, -2000), 0, 160);
+        }
+        recorder.finish();
+        assertEquals(0, recorder.getDroppedFrameCount());
+        assertEquals(1000, recorder.getDurationMillis());
+
+        ByteBuffer wav = read(file);
+        int dataBytes = 50 * 160 * 2 * 2;
+        assertEquals(44 + dataBytes, wav.limit());
+        assertEquals("RIFF", tag(wav, 0));
+        assertEquals(36 + dataBytes, wav.getInt(4));
+        assertEquals("WAVE", tag(wav, 8));
+        assertEquals(CallRecorder.FORMAT_PCM_16, wav.getShort(20));
+        assertEquals(2, wav.getShort(22));
+        assertEquals(8000, wav.getInt(24));
+        assertEquals(32000, wav.getInt(28));
+        assertEquals(16, wav.getShort(34));
+        assertEquals("data", tag(wav, 36));
+        assertEquals(dataBytes, wav.getInt(40));
+        for (int offset = 44; offset < wav.limit(); offset += 4) {
+            assertEquals(1000, wav.getShort(offset));
+            assertEquals(-2000, wav.getShort(offset + 2));
+        }
+    }
+
+    @Test
+    public void muLawRecordingIsHalfTheSize() throws IOException {
+        File file = newFile();
+        CallRecorder recorder = CallRecorder.open(file, 16000, 320, CallRecorder.FORMAT_MU_LAW);
+        for (int i = 0; i < 10; i++) {
+            recorder.write(CallRecorder.CHANNEL_HOST, filled(320, 4000), 0, 320);
+            recorder.write(CallRecorder.CHANNEL_CLIENTS, filled(320, -4000), 0, 320);
+        }
+        recorder.finish();
+
+        ByteBuffer wav = read(file);
+        int frames = 10 * 320;
+        assertEquals(58 + frames * 2, wav.limit());
+        assertEquals(CallRecorder.FORMAT_MU_LAW, wav.getShort(20));
+        assertEquals(8, wav.getShort(34));
+        assertEquals("fact", tag(wav, 38));
+        assertEquals(frames, wav.getInt(46));
+        assertEquals("data", tag(wav, 50));
+        assertEquals(frames * 2, wav.getInt(54));
+
+        short[] decoded = new short[2];
+        byte[] encoded = {wav.get(58), wav.get(59)};
+        G711Codec.muLaw().decode(encoded, 0, 2, decoded, 0);
+        assertEquals(4000, decoded[0], 150);
+        assertEquals(-4000, decoded[1], 150);
+    }
+
+    @Test
+    public void silentSideIsPaddedOnceTheOtherRunsAhead() throws IOException {
+        File file = newFile();
+        CallRecorder recorder = CallRecorder.open(file, 8000, 160, CallRecorder.FORMAT_PCM_16);
+        // Nobody on the client side is talking or connected: only the host's side arrives.
+        for (int i = 0; i < 25; i++) {
+            recorder.write(CallRecorder.CHANNEL_HOST, filled(160, 500), 0, 160);
+        }
+        recorder.finish();
+
+        ByteBuffer wav = read(file);
+        assertEquals(25 * 160 * 4, wav.getInt(40));
+        for (int offset = 44; offset < wav.limit(); offset += 4) {
+            assertEquals(500, wav.getShort(offset));
+            assertEquals(0, wav.getShort(offset + 2));
+        }
+    }
+
+    @Test
+    public void stalledDiskDropsAudioWithoutBlockingTheCaller() throws Exception {
+        File file = newFile();
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        CountDownLatch stall = new CountDownLatch(1);
+        StallingChannel channel = new StallingChannel(fileChannel, stall);
+        CallRecorder recorder = new CallRecorder(channel, file, 8000, 160, CallRecorder.FORMAT_PCM_16, 16);
+
+        short[] frame = filled(160, 300);
+        long worstNanos = 0;
+        // Enough audio to fill a batch, so the writer blocks on the stalled disk.
+        for (int i = 0; i < 400; i++) {
+            int ch = i % 2 == 0 ? CallRecorder.CHANNEL_HOST : CallRecorder.CHANNEL_CLIENTS;
+            long start = System.nanoTime();
+            recorder.write(ch, frame, 0, 160);
+            worstNanos = Math.max(worstNanos, System.nanoTime() - start);
+        }
+        assertTrue("write took " + worstNanos + " ns", worstNanos < 5_000_000);
+        assertTrue(recorder.getDroppedFrameCount() > 0);
+
+        stall.countDown();
+        recorder.finish();
+        assertTrue(channel.closed);
+        ByteBuffer wav = read(file);
+        assertEquals("RIFF", tag(wav, 0));
+        assertEquals(wav.limit() - 44, wav.getInt(40));
+        assertEquals(wav.limit() - 8, wav.getInt(4));
+        assertTrue(wav.limit() > 44);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFormatIsRejected() throws IOException {
+        CallRecorder.open(newFile(), 8000, 160, 85);
+    }
+
+    /** A channel whose data writes block until released, like a disk stuck in a long flush. */
+    private static class StallingChannel implements SeekableByteChannel {
+        private final FileChannel delegate;
+        private final CountDownLatch stall;
+        private boolean headerWritten;
+        boolean closed;
+
+        StallingChannel(FileChannel delegate, CountDownLatch stall) {
+            this.delegate = delegate;
+            this.stall = stall;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (headerWritten) {
+                try {
+                    stall.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            int n = delegate.write(src);
+            headerWritten = true;
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockDriftCompensatorTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SAMPLES = 320;
+    private static final long FRAME_US = 20_000;
+    private static final long CALL_MICROS = 30 * 60 * 1_000_000L;
+    /** Long enough for the jitter buffer to size itself and the drift estimate to settle. */
+    private static final long SETTLE_MICROS = 120_000_000;
+
+    /** What became of a simulated call. */
+    private static class Call {
+        JitterBuffer jitterBuffer;
+        AudioPlayout playout;
+        double earlyWaitMicros;
+        double lateWaitMicros;
+        long underrunsWhileSettling;
+
+        long underrunsSettled() {
+            return jitterBuffer.getUnderrunCount() - underrunsWhileSettling;
+        }
+    }
+
+    /**
+     * Plays a 30 minute call whose sender captures {@code driftPpm} faster than the playout
+     * device plays, over a network with up to 10 ms of jitter. All times are on the playout clock.
+     */
+    private static Call call(double driftPpm, boolean compensate) {
+        Call call = new Call();
+        call.jitterBuffer = new JitterBuffer();
+        call.jitterBuffer.reset(FRAME_US);
+        call.playout = new AudioPlayout(call.jitterBuffer, SAMPLE_RATE, FRAME_SAMPLES);
+        call.playout.getDriftCompensator().setEnabled(compensate);
+        Random random = new Random(42);
+        AudioCodec codec = new PcmCodec();
+        short[] tone = new short[FRAME_SAMPLES];
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            tone[i] = (short) (8000 * Math.sin(2 * Math.PI * 500 * i / SAMPLE_RATE)); // whole cycles per frame
+        }
+        AudioFrame frame = new AudioFrame();
+        short[] out = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+        double senderFrameMicros = FRAME_US / (1 + driftPpm * 1e-6);
+        int seq = 0;
+        long nextArrival = 30_000;
+        double earlySum = 0;
+        double lateSum = 0;
+        int earlyCount = 0;
+        int lateCount = 0;
+        for (long now = 0; now < CALL_MICROS; now += FRAME_US) {
+            while (nextArrival <= now) {
+                frame.setSequenceNumber(seq);
+                frame.setCaptureTimeMicros(Math.round(seq * senderFrameMicros));
+                frame.setPayloadLength(codec.encode(tone, 0, FRAME_SAMPLES, frame.getPayload(), 0));
+                call.jitterBuffer.put(frame, nextArrival);
+                seq++;
+                nextArrival = Math.round(seq * senderFrameMicros) + 30_000 + random.nextInt(10_000);
+            }
+            if (now == SETTLE_MICROS) {
+                call.underrunsWhileSettling = call.jitterBuffer.getUnderrunCount();
+            }
+            assertEquals(FRAME_SAMPLES, call.playout.next(out, now));
+            long wait = now - call.jitterBuffer.getPolledArrivalMicros();
+            if (now >= SETTLE_MICROS && now < SETTLE_MICROS + 60_000_000) {
+                earlySum += wait;
+                earlyCount++;
+            } else if (now >= CALL_MICROS - 60_000_000) {
+                lateSum += wait;
+                lateCount++;
+            }
+        }
+        call.earlyWaitMicros = earlySum / earlyCount;
+        call.lateWaitMicros = lateSum / lateCount;
+        return call;
+    }
+
+    @Test
+    public void fastSenderNoLongerFillsTheBuffer() {
+        Call uncompensated = call(300, false);
+        assertTrue(uncompensated.jitterBuffer.getSkippedCount() > 10); // 540 ms of audio too many
+
+        Call call = call(300, true);
+        assertEquals(300e-6, call.playout.getDriftCompensator().getDrift(), 30e-6);
+        assertEquals(0, call.jitterBuffer.getSkippedCount());
+        assertEquals(0, call.underrunsSettled());
+        // Frames start mid-period at a phase that keeps turning, hence the tolerance.
+        assertEquals(call.earlyWaitMicros, call.lateWaitMicros, 10_000);
+        long deleted = call.playout.getDriftCompensator().getDeletedSamples();
+        assertEquals(300e-6 * CALL_MICROS * SAMPLE_RATE / 1e6, deleted, 300);
+    }
+
+    @Test
+    public void slowSenderNoLongerUnderruns() {
+        Call uncompensated = call(-300, false);
+        assertTrue(uncompensated.underrunsSettled() > 10);
+
+        Call call = call(-300, true);
+        assertEquals(-300e-6, call.playout.getDriftCompensator().getDrift(), 30e-6);
+        assertEquals(0, call.underrunsSettled());
+        assertEquals(0, call.jitterBuffer.getSkippedCount());
+        assertEquals(call.earlyWaitMicros, call.lateWaitMicros, 10_000);
+        assertTrue(call.playout.getDriftCompensator().getInsertedSamples() > 0);
+        assertEquals(0, call.playout.getDriftCompensator().getDeletedSamples());
+    }
+
+    @Test
+    public void stretchingKeepsTheWaveformSmooth() {
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        ClockDriftCompensator compensator = new ClockDriftCompensator(jitterBuffer);
+        // One window at a steady wait, then one where the wait grew by 3 ms a second: a fast sender.
+        compensator.onFramePlayed(40_000, 0);
+        compensator.onFramePlayed(40_000, ClockDriftCompensator.WINDOW_MICROS);
+        compensator.onFramePlayed(55_000, ClockDriftCompensator.WINDOW_MICROS + 1);
+        compensator.onFramePlayed(55_000, 2 * ClockDriftCompensator.WINDOW_MICROS + 1);
+        assertEquals(ClockDriftCompensator.MAX_CORRECTION, compensator.getCorrection(), 1e-9);
+
+        short[] pcm = new short[FRAME_SAMPLES + 1];
+        int total = 0;
+        for (int f = 0; f < 10; f++) {
+            for (int i = 0; i < FRAME_SAMPLES; i++) {
+                pcm[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+            }
+            int n = compensator.stretch(pcm, FRAME_SAMPLES);
+            total += n;
+            assertEquals(0, pcm[0]);
+            assertEquals((short) (8000 * Math.sin(2 * Math.PI * 440 * (FRAME_SAMPLES - 1) / SAMPLE_RATE)), pcm[n - 1]);
+            for (int i = 1; i < n; i++) {
+                // 440 Hz at 8000 peak moves at most ~1400 per sample; a gap or step would show.
+                assertTrue("step at " + i, Math.abs(pcm[i] - pcm[i - 1]) < 1500);
+            }
+        }
+        assertEquals(10 * FRAME_SAMPLES - 6, total); // 0.2 % of 3200 samples
+        assertEquals(6, compensator.getDeletedSamples());
+    }
+}
@@ -0,0 +1,135 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static org.junit.Assert.*;
+
+public class DatagramAudioTransportTest {
+    private DatagramAudioTransport host;
+    private DatagramAudioTransport client;
+
+    @After
+    public void tearDown() {
+        if (host != null) host.close();
+        if (client != null) client.close();
+    }
+
+    private void open() throws IOException {
+        host = DatagramAudioTransport.bind(0);
+        client = DatagramAudioTransport.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), host.getLocalPort()));
+    }
+
+    private static AudioFrame frame(int seq, int payloadLength) {
+        AudioFrame frame = new AudioFrame();
+        frame.setSequenceNumber(seq);
+        frame.setCaptureTimeMicros(seq * 20_000L);
+        frame.setPayloadLength(payloadLength);
+        frame.getPayload()[payloadLength - 1] = (byte) seq;
+        return frame;
+    }
+
+    @Test
+    public void hostLearnsClientAddressFromProbe() throws IOException {
+        open();
+        assertFalse(host.hasPeer());
+        // Without a peer the host drops frames instead of failing.
+        host.send(frame(1, 10));
+
+        client.sendProbe();
+        AudioFrame received = new AudioFrame();
+        assertTrue(host.receive(received));
+        assertEquals(AudioFrame.FLAG_PROBE, received.getFlags());
+        assertEquals(0, received.getPayloadLength());
+        assertTrue(host.hasPeer());
+
+        host.send(frame(2, 640));
+        assertTrue(client.receive(received));
+        assertEquals(2, received.getSequenceNumber());
+        assertEquals(640, received.getPayloadLength());
+        assertEquals(2, received.getPayload()[639]);
+    }
+
+    @Test
+    public void oneFramePerDatagram() throws IOException {
+        open();
+        for (int i = 0; i < 20; i++) {
+            client.send(frame(i, 320));
+        }
+        AudioFrame received = new AudioFrame();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(host.receive(received));
+            assertEquals(i, received.getSequenceNumber());
+            assertEquals(i * 20_000L, received.getCaptureTimeMicros());
+        }
+    }
+
+    @Test
+    public void ignoresDatagramsFromStrangers() throws IOException {
+        open();
+        client.sendProbe();
+        AudioFrame received = new AudioFrame();
+        assertTrue(host.receive(received));
+
+        try (DatagramChannel stranger = DatagramChannel.open()) {
+            InetSocketAddress hostAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), host.getLocalPort());
+            ByteBuffer junk = ByteBuffer.allocate(AudioFrameCodec.MAX_FRAME_SIZE);
+            AudioFrameCodec.encode(frame(99, 10), junk);
+            junk.flip();
+            stranger.send(junk, hostAddress);
+        }
+        client.send(frame(3, 2));
+        assertTrue(host.receive(received));
+        assertEquals(3, received.getSequenceNumber());
+    }
+
+    @Test
+    public void receiveReturnsFalseAfterClose() throws Exception {
+        open();
+        boolean[] result = {true};
+        Thread receiver = new Thread(() -> {
+            try {
+                result[0] = host.receive(new AudioFrame());
+            } catch (IOException e) {
+                fail(e.toString());
+            }
+        });
+        receiver.start();
+        Thread.sleep(50);
+        host.close();
+        receiver.join(2000);
+        assertFalse(receiver.isAlive());
+        assertFalse(result[0]);
+    }
+
+    @Test
+    public void followsAClientThatMovesWithTheSessionToken() throws IOException {
+        open();
+        host.setSessionToken(42);
+        client.sendProbe();
+        AudioFrame received = new AudioFrame();
+        assertTrue(host.receive(received));
+
+        // The client's address changes: a new socket, as after a network switch.
+        client.close();
+        client = DatagramAudioTransport.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), host.getLocalPort()));
+        AudioFrame probe = new AudioFrame();
+        ResumableAudioTransport.writeSessionProbe(probe, 41);
+        client.send(probe); // wrong session: ignored
+        client.send(frame(5, 10)); // not a probe: ignored
+        ResumableAudioTransport.writeSessionProbe(probe, 42);
+        client.send(probe);
+        assertTrue(host.receive(received));
+        assertEquals(42, ResumableAudioTransport.readSessionToken(received));
+
+        host.send(frame(6, 10));
+        assertTrue(client.receive(received));
+        assertEquals(6, received.getSequenceNumber());
+    }
+}
@@ -0,0 +1,145 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DiscontinuousTransmissionTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SAMPLES = 320;
+    private static final int FRAME_US = 20_000;
+
+    /**
+     * One side of a conversation: alternating talkspurts and pauses of {@code spurtMs} each, with
+     * syllable-rate modulation during talkspurts and quiet background noise throughout.
+     */
+    private static short[] conversation(int seconds, int spurtMs, double noiseRms) {
+        Random random = new Random(7);
+        short[] pcm = new short[seconds * SAMPLE_RATE];
+        int spurt = SAMPLE_RATE * spurtMs / 1000;
+        for (int i = 0; i < pcm.length; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double noise = random.nextGaussian() * noiseRms;
+            double voice = 0;
+            if ((i / spurt) % 2 == 0) {
+                double syllables = 0.55 + 0.45 * Math.sin(2 * Math.PI * 4 * t);
+                voice = syllables * (5000 * Math.sin(2 * Math.PI * 140 * t) + 2000 * Math.sin(2 * Math.PI * 420 * t));
+            }
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, voice + noise));
+        }
+        return pcm;
+    }
+
+    private static double rms(short[] pcm, int offset, int length) {
+        double sum = 0;
+        for (int i = offset; i < offset + length; i++) sum += (double) pcm[i] * pcm[i];
+        return Math.sqrt(sum / length);
+    }
+
+    @Test
+    public void conversationalCallRoughlyHalvesBandwidth() {
+        short[] pcm = conversation(20, 1500, 40);
+        DiscontinuousTransmission dtx = new DiscontinuousTransmission(SAMPLE_RATE);
+        AudioCodec codec = new PcmCodec();
+        AudioFrame frame = new AudioFrame();
+        long fullBytes = 0, dtxBytes = 0;
+        int encodes = 0, frames = pcm.length / FRAME_SAMPLES;
+        for (int f = 0; f < frames; f++) {
+            int off = f * FRAME_SAMPLES;
+            fullBytes += AudioFrameCodec.HEADER_SIZE + codec.getMaxEncodedSize(FRAME_SAMPLES);
+            int action = dtx.process(pcm, off, FRAME_SAMPLES);
+            boolean inSpurt = (off / (SAMPLE_RATE * 3 / 2)) % 2 == 0;
+            if (inSpurt) {
+                assertEquals("speech suppressed at frame " + f, DiscontinuousTransmission.SEND_AUDIO, action);
+            }
+            if (action == DiscontinuousTransmission.SEND_SID) {
+                dtx.writeSid(frame);
+                dtxBytes += AudioFrameCodec.HEADER_SIZE + frame.getPayloadLength();
+            } else if (action == DiscontinuousTransmission.SEND_AUDIO) {
+                dtxBytes += AudioFrameCodec.HEADER_SIZE + codec.encode(pcm, off, FRAME_SAMPLES, frame.getPayload(), 0);
+                encodes++;
+            }
+        }
+        double ratio = (double) dtxBytes / fullBytes;
+        // 50% talk time, plus the hangover after every talkspurt and the SIDs.
+        assertTrue("DTX sent " + ratio + " of full rate", ratio < 0.65);
+        assertEquals(encodes, dtx.getAudioFrameCount());
+    }
+
+    @Test
+    public void mutedMicrophoneSendsOnlyPeriodicSids() {
+        DiscontinuousTransmission dtx = new DiscontinuousTransmission(SAMPLE_RATE);
+        short[] zeros = new short[FRAME_SAMPLES];
+        int sids = 0;
+        for (int f = 0; f < 100; f++) { // 2 s
+            int action = dtx.process(zeros, 0, FRAME_SAMPLES);
+            assertNotEquals(DiscontinuousTransmission.SEND_AUDIO, action);
+            if (action == DiscontinuousTransmission.SEND_SID) sids++;
+        }
+        assertEquals(100 / (DiscontinuousTransmission.SID_INTERVAL_MS * SAMPLE_RATE / 1000 / FRAME_SAMPLES), sids);
+        AudioFrame frame = new AudioFrame();
+        dtx.writeSid(frame);
+        assertEquals(AudioFrame.FLAG_SID, frame.getFlags());
+        assertEquals(127, DiscontinuousTransmission.readSidLevel(frame));
+    }
+
+    @Test
+    public void comfortNoiseMatchesTheDescribedLevel() {
+        // Three seconds of background noise: enough for the detector to learn it is not speech.
+        short[] background = new short[3 * SAMPLE_RATE];
+        Random random = new Random(3);
+        for (int i = 0; i < background.length; i++) background[i] = (short) (random.nextGaussian() * 300);
+
+        DiscontinuousTransmission dtx = new DiscontinuousTransmission(SAMPLE_RATE);
+        for (int off = 0; off < background.length; off += FRAME_SAMPLES) {
+            dtx.process(background, off, FRAME_SAMPLES);
+        }
+        AudioFrame sid = new AudioFrame();
+        dtx.writeSid(sid);
+
+        ComfortNoiseGenerator generator = new ComfortNoiseGenerator();
+        generator.setLevel(DiscontinuousTransmission.readSidLevel(sid));
+        short[] generated = new short[SAMPLE_RATE];
+        generator.generate(generated, 0, generated.length);
+        // Skip the glide from silence to the target level.
+        double ratioDb = 20 * Math.log10(rms(generated, SAMPLE_RATE / 2, SAMPLE_RATE / 2) / rms(background, 0, background.length));
+        assertEquals("comfort noise level off by " + ratioDb + " dB", 0, ratioDb, 1.5);
+    }
+
+    @Test
+    public void silenceIsPlayedAsComfortNoiseNotUnderruns() {
+        short[] pcm = conversation(6, 1000, 40);
+        DiscontinuousTransmission dtx = new DiscontinuousTransmission(SAMPLE_RATE);
+        AudioCodec codec = new PcmCodec();
+        JitterBuffer jitterBuffer = new JitterBuffer();
+        jitterBuffer.reset(FRAME_US);
+        AudioPlayout playout = new AudioPlayout(jitterBuffer, SAMPLE_RATE, FRAME_SAMPLES);
+        AudioFrame frame = new AudioFrame();
+        short[] out = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+        int seq = 0;
+        int frames = pcm.length / FRAME_SAMPLES;
+        for (int f = 0; f < frames; f++) {
+            int off = f * FRAME_SAMPLES;
+            int action = dtx.process(pcm, off, FRAME_SAMPLES);
+            if (action != DiscontinuousTransmission.SUPPRESS) {
+                frame.setSequenceNumber(seq++);
+                frame.setCaptureTimeMicros((long) f * FRAME_US);
+                if (action == DiscontinuousTransmission.SEND_SID) {
+                    dtx.writeSid(frame);
+                } else {
+                    frame.setFlags(0);
+                    frame.setPayloadLength(codec.encode(pcm, off, FRAME_SAMPLES, frame.getPayload(), 0));
+                }
+                jitterBuffer.put(frame, (long) f * FRAME_US + 2_000);
+            }
+            assertEquals(FRAME_SAMPLES, playout.next(out));
+        }
+        assertEquals(0, jitterBuffer.getUnderrunCount());
+        assertEquals(0, jitterBuffer.getLostCount());
+        assertEquals(0, playout.getConcealedFrameCount());
+        assertTrue(playout.getComfortNoiseFrameCount() > frames / 3);
+        assertEquals(FRAME_US, jitterBuffer.getFrameDurationMicros());
+    }
+}
@@ -0,0 +1,198 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FecAudioTransportTest {
+
+    /** One direction of a link that drops the datagrams it is told to; receive returns false when drained. */
+    private static class LossyLink implements AudioTransport {
+        final ArrayDeque<AudioFrame> queue = new ArrayDeque<>();
+        Random random;
+        double loss;
+        int dropNext;
+        long sent;
+
+        @Override
+        public void send(AudioFrame frame) {
+            sent++;
+            if (dropNext > 0) {
+                dropNext--;
+                return;
+            }
+            if (random != null && random.nextDouble() < loss) return;
+            AudioFrame copy = new AudioFrame();
+            copy.copyFrom(frame);
+            queue.add(copy);
+        }
+
+        @Override
+        public boolean receive(AudioFrame frame) {
+            AudioFrame next = queue.poll();
+            if (next == null) return false;
+            frame.copyFrom(next);
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static AudioFrame frame(int seq) {
+        AudioFrame frame = new AudioFrame();
+        frame.setSequenceNumber(seq);
+        frame.setCaptureTimeMicros(1_000_000L + seq * 20_000L);
+        frame.setCodecId(seq % 3);
+        frame.setFlags(seq % 5 == 0 ? AudioFrame.FLAG_SID : 0);
+        int length = 40 + seq * 7 % 100;
+        for (int i = 0; i < length; i++) {
+            frame.getPayload()[i] = (byte) (seq * 31 + i);
+        }
+        frame.setPayloadLength(length);
+        return frame;
+    }
+
+    private static void assertSameFrame(AudioFrame expected, AudioFrame actual) {
+        assertEquals(expected.getSequenceNumber(), actual.getSequenceNumber());
+        assertEquals(expected.getCaptureTimeMicros(), actual.getCaptureTimeMicros());
+        assertEquals(expected.getCodecId(), actual.getCodecId());
+        assertEquals(expected.getFlags(), actual.getFlags());
+        assertEquals(expected.getPayloadLength(), actual.getPayloadLength());
+        for (int i = 0; i < expected.getPayloadLength(); i++) {
+            assertEquals(expected.getPayload()[i], actual.getPayload()[i]);
+        }
+    }
+
+    @Test
+    public void groupShrinksAsLossGrows() {
+        assertEquals(FecAudioTransport.MAX_GROUP_SIZE, FecAudioTransport.groupSizeFor(0.01));
+        assertEquals(3, FecAudioTransport.groupSizeFor(0.04));
+        assertEquals(FecAudioTransport.MIN_GROUP_SIZE, FecAudioTransport.groupSizeFor(0.10));
+    }
+
+    @Test
+    public void rebuildsASingleLostFrameExactly() throws Exception {
+        LossyLink link = new LossyLink();
+        FecAudioTransport sender = new FecAudioTransport(link);
+        FecAudioTransport receiver = new FecAudioTransport(link);
+        sender.reportLoss(0.04); // groups of 3
+        for (int seq = 0; seq < 9; seq++) {
+            if (seq == 4) link.dropNext = 1;
+            sender.send(frame(seq));
+        }
+        assertEquals(3, sender.getParityFramesSent());
+        assertEquals(12, link.sent);
+
+        // Frame 4 is rebuilt when the parity after frame 5 arrives.
+        AudioFrame received = new AudioFrame();
+        for (int seq : new int[] {0, 1, 2, 3, 5, 4, 6, 7, 8}) {
+            assertTrue(receiver.receive(received));
+            assertSameFrame(frame(seq), received);
+        }
+        assertFalse(receiver.receive(received));
+        assertEquals(1, receiver.getLostCount());
+        assertEquals(1, receiver.getRecoveredCount());
+        assertEquals(0, receiver.getUnrecoverableCount());
+        assertEquals(3, receiver.getReceiveGroupSize());
+    }
+
+    @Test
+    public void twoLossesInAGroupCannotBeRebuilt() throws Exception {
+        LossyLink link = new LossyLink();
+        FecAudioTransport sender = new FecAudioTransport(link);
+        FecAudioTransport receiver = new FecAudioTransport(link);
+        sender.reportLoss(0.04);
+        for (int seq = 0; seq < 6; seq++) {
+            if (seq == 3) link.dropNext = 2;
+            sender.send(frame(seq));
+        }
+        AudioFrame received = new AudioFrame();
+        int count = 0;
+        while (receiver.receive(received)) {
+            assertNotEquals(3, received.getSequenceNumber());
+            assertNotEquals(4, received.getSequenceNumber());
+            count++;
+        }
+        assertEquals(4, count);
+        assertEquals(2, receiver.getLostCount());
+        assertEquals(0, receiver.getRecoveredCount());
+        assertEquals(2, receiver.getUnrecoverableCount());
+    }
+
+    @Test
+    public void cleanLinkCarriesNoParity() throws Exception {
+        LossyLink link = new LossyLink();
+        FecAudioTransport sender = new FecAudioTransport(link);
+        FecAudioTransport receiver = new FecAudioTransport(link);
+        AudioFrame received = new AudioFrame();
+        for (int seq = 0; seq < 500; seq++) {
+            sender.send(frame(seq));
+            assertTrue(receiver.receive(received));
+            assertEquals(seq, received.getSequenceNumber());
+        }
+        assertEquals(0, sender.getParityFramesSent());
+        assertEquals(500, link.sent);
+        assertEquals(0, receiver.getReceiveGroupSize());
+    }
+
+    @Test
+    public void adaptsToLossOnASharedLink() throws Exception {
+        for (double loss : new double[] {0.02, 0.05, 0.10}) {
+            // Both directions share the link: each side sizes its groups from the loss it sees.
+            LossyLink hostToClient = new LossyLink();
+            LossyLink clientToHost = new LossyLink();
+            Random random = new Random(42);
+            hostToClient.random = clientToHost.random = random;
+            hostToClient.loss = clientToHost.loss = loss;
+            FecAudioTransport host = new FecAudioTransport(new Duplex(hostToClient, clientToHost));
+            FecAudioTransport client = new FecAudioTransport(new Duplex(clientToHost, hostToClient));
+
+            AudioFrame received = new AudioFrame();
+            int frames = 20_000;
+            for (int seq = 0; seq < frames; seq++) {
+                host.send(frame(seq));
+                client.send(frame(seq));
+                while (client.receive(received)) { }
+                while (host.receive(received)) { }
+            }
+            double raw = (double) client.getLostCount() / frames;
+            double residual = (double) client.getUnrecoverableCount() / frames;
+            double overhead = (double) host.getParityFramesSent() / frames;
+            assertEquals(loss, raw, loss * 0.2);
+            assertEquals(FecAudioTransport.groupSizeFor(loss), client.getReceiveGroupSize(), 1);
+            assertTrue("Residual " + residual + " at " + loss, residual < raw / 4);
+            assertTrue("Overhead " + overhead, overhead <= 1.0 / FecAudioTransport.MIN_GROUP_SIZE);
+        }
+    }
+
+    /** Sends on one link and receives from the other. */
+    private static class Duplex implements AudioTransport {
+        final AudioTransport out;
+        final AudioTransport in;
+
+        Duplex(AudioTransport out, AudioTransport in) {
+            this.out = out;
+            this.in = in;
+        }
+
+        @Override
+        public void send(AudioFrame frame) throws IOException {
+            out.send(frame);
+        }
+
+        @Override
+        public boolean receive(AudioFrame frame) throws IOException {
+            return in.receive(frame);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
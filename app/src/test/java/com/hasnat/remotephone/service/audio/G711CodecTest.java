@@ -0,0 +1,87 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class G711CodecTest {
+
+    private static short[] sine(int samples, double hz, double amplitude) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * hz * i / 16000));
+        }
+        return pcm;
+    }
+
+    private static double snrDb(short[] reference, short[] decoded) {
+        double signal = 0, noise = 0;
+        for (int i = 0; i < reference.length; i++) {
+            double d = reference[i] - decoded[i];
+            signal += (double) reference[i] * reference[i];
+            noise += d * d;
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+
+    @Test
+    public void knownCodeValues() {
+        assertEquals(0xFF, G711Codec.linearToMuLaw(0));
+        assertEquals(0, G711Codec.muLawToLinear(0xFF));
+        assertEquals(-32124, G711Codec.muLawToLinear(0x00));
+        assertEquals(32124, G711Codec.muLawToLinear(0x80));
+        assertEquals(0xD5, G711Codec.linearToALaw(0));
+        assertEquals(8, G711Codec.aLawToLinear(0xD5));
+        assertEquals(-8, G711Codec.aLawToLinear(0x55));
+    }
+
+    @Test
+    public void tablesMatchReferenceForEverySample() {
+        G711Codec mu = G711Codec.muLaw();
+        G711Codec a = G711Codec.aLaw();
+        short[] pcm = new short[65536];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (i - 32768);
+        }
+        byte[] muCodes = new byte[pcm.length];
+        byte[] aCodes = new byte[pcm.length];
+        assertEquals(pcm.length, mu.encode(pcm, 0, pcm.length, muCodes, 0));
+        assertEquals(pcm.length, a.encode(pcm, 0, pcm.length, aCodes, 0));
+        for (int i = 0; i < pcm.length; i++) {
+            assertEquals("mu-law " + pcm[i], G711Codec.linearToMuLaw(pcm[i]), muCodes[i] & 0xFF);
+            assertEquals("A-law " + pcm[i], G711Codec.linearToALaw(pcm[i]), aCodes[i] & 0xFF);
+        }
+    }
+
+    @Test
+    public void decodeThenEncodeIsIdentity() {
+        for (G711Codec codec : new G711Codec[]{G711Codec.muLaw(), G711Codec.aLaw()}) {
+            byte[] codes = new byte[256];
+            for (int i = 0; i < 256; i++) codes[i] = (byte) i;
+            short[] pcm = new short[256];
+            assertEquals(256, codec.decode(codes, 0, 256, pcm, 0));
+            byte[] again = new byte[256];
+            codec.encode(pcm, 0, 256, again, 0);
+            for (int i = 0; i < 256; i++) {
+                // mu-law has two codes for zero (0x7F and 0xFF); the encoder always emits 0xFF.
+                if (codec.getId() == G711Codec.ID_MU_LAW && i == 0x7F) continue;
+                assertEquals(codec.getName() + " code " + i, codes[i], again[i]);
+            }
+        }
+    }
+
+    @Test
+    public void speechLevelSineKeepsHighSnrAtHalfTheBytes() {
+        short[] pcm = sine(16000, 440, 8000);
+        for (G711Codec codec : new G711Codec[]{G711Codec.muLaw(), G711Codec.aLaw()}) {
+            byte[] encoded = new byte[codec.getMaxEncodedSize(pcm.length)];
+            int bytes = codec.encode(pcm, 0, pcm.length, encoded, 0);
+            assertEquals(pcm.length, bytes); // 8 bits per sample instead of 16
+            short[] decoded = new short[codec.getDecodedSamples(bytes)];
+            codec.decode(encoded, 0, bytes, decoded, 0);
+            double snr = snrDb(pcm, decoded);
+            // G.711 gives roughly 38 dB over most of its range.
+            assertTrue(codec.getName() + " SNR " + snr, snr > 33);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImaAdpcmCodecTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SAMPLES = 320; // 20 ms
+
+    /** Two harmonics with a slow level change, roughly the spectrum of a voiced vowel. */
+    private static short[] voice(int samples) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double level = 0.6 + 0.4 * Math.sin(2 * Math.PI * 3 * t);
+            pcm[i] = (short) Math.round(level * (6000 * Math.sin(2 * Math.PI * 180 * t) + 2500 * Math.sin(2 * Math.PI * 720 * t)));
+        }
+        return pcm;
+    }
+
+    private static double snrDb(short[] reference, short[] decoded) {
+        double signal = 0, noise = 0;
+        for (int i = 0; i < reference.length; i++) {
+            double d = reference[i] - decoded[i];
+            signal += (double) reference[i] * reference[i];
+            noise += d * d;
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+
+    /** Encodes and decodes {@code pcm} frame by frame; returns the total encoded size. */
+    private static int roundTrip(AudioCodec codec, short[] pcm, short[] decoded) {
+        byte[] encoded = new byte[codec.getMaxEncodedSize(FRAME_SAMPLES)];
+        int total = 0;
+        for (int off = 0; off < pcm.length; off += FRAME_SAMPLES) {
+            int bytes = codec.encode(pcm, off, FRAME_SAMPLES, encoded, 0);
+            total += bytes;
+            assertEquals(FRAME_SAMPLES, codec.decode(encoded, 0, bytes, decoded, off));
+        }
+        return total;
+    }
+
+    @Test
+    public void compressesFourToOneAtAcceptableQuality() {
+        ImaAdpcmCodec codec = new ImaAdpcmCodec();
+        short[] pcm = voice(SAMPLE_RATE);
+        short[] decoded = new short[pcm.length];
+        int bytes = roundTrip(codec, pcm, decoded);
+
+        double kbps = bytes * 8 / 1000.0;
+        double snr = snrDb(pcm, decoded);
+        assertEquals(ImaAdpcmCodec.HEADER_SIZE + FRAME_SAMPLES / 2, codec.getMaxEncodedSize(FRAME_SAMPLES));
+        assertTrue("Bitrate " + kbps, kbps < 66);
+        assertTrue("SNR " + snr, snr > 20);
+    }
+
+    @Test
+    public void framesDecodeIndependently() {
+        ImaAdpcmCodec codec = new ImaAdpcmCodec();
+        short[] pcm = voice(3 * FRAME_SAMPLES);
+        byte[][] frames = new byte[3][codec.getMaxEncodedSize(FRAME_SAMPLES)];
+        int[] lengths = new int[3];
+        for (int f = 0; f < 3; f++) {
+            lengths[f] = codec.encode(pcm, f * FRAME_SAMPLES, FRAME_SAMPLES, frames[f], 0);
+        }
+        short[] inOrder = new short[FRAME_SAMPLES];
+        short[] alone = new short[FRAME_SAMPLES];
+        codec.decode(frames[2], 0, lengths[2], alone, 0);
+        // Decoding the earlier frames first must not change the result: there is no carried state.
+        codec.decode(frames[0], 0, lengths[0], inOrder, 0);
+        codec.decode(frames[1], 0, lengths[1], inOrder, 0);
+        codec.decode(frames[2], 0, lengths[2], inOrder, 0);
+        assertArrayEquals(alone, inOrder);
+        assertEquals(pcm[2 * FRAME_SAMPLES], alone[0]);
+    }
+
+    @Test
+    public void oddSampleCountsAndExtremes() {
+        ImaAdpcmCodec codec = new ImaAdpcmCodec();
+        short[] pcm = {Short.MAX_VALUE, Short.MIN_VALUE, Short.MAX_VALUE, 0, -5, 7, 1000};
+        byte[] encoded = new byte[codec.getMaxEncodedSize(pcm.length)];
+        int bytes = codec.encode(pcm, 0, pcm.length, encoded, 0);
+        assertEquals(codec.getMaxEncodedSize(pcm.length), bytes);
+        short[] decoded = new short[codec.getDecodedSamples(bytes)];
+        assertEquals(pcm.length, codec.decode(encoded, 0, bytes, decoded, 0));
+        assertEquals(Short.MAX_VALUE, decoded[0]);
+
+        assertEquals(0, codec.encode(pcm, 0, 0, encoded, 0));
+        assertEquals(0, codec.decode(encoded, 0, 2, decoded, 0));
+    }
+}
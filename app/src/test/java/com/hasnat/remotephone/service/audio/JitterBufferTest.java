@@ -0,0 +1,217 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JitterBufferTest {
+    private static final long FRAME_US = 20_000;
+
+    private final AudioFrame in = new AudioFrame();
+    private final AudioFrame out = new AudioFrame();
+
+    /** Puts frame {@code seq} captured at {@code seq * 20 ms}, arriving {@code delayUs} later. */
+    private boolean put(JitterBuffer buffer, int seq, long delayUs) {
+        in.setSequenceNumber(seq);
+        in.setCaptureTimeMicros(seq * FRAME_US);
+        in.setPayloadLength(640);
+        in.getPayload()[0] = (byte) seq;
+        return buffer.put(in, seq * FRAME_US + delayUs);
+    }
+
+    private void assertPolls(JitterBuffer buffer, int seq) {
+        assertEquals(JitterBuffer.FRAME, buffer.poll(out));
+        assertEquals(seq, out.getSequenceNumber());
+        assertEquals((byte) seq, out.getPayload()[0]);
+    }
+
+    @Test
+    public void cleanNetworkKeepsMinimalDepth() {
+        JitterBuffer buffer = new JitterBuffer();
+        for (int seq = 0; seq < 500; seq++) {
+            put(buffer, seq, 3_000);
+            assertPolls(buffer, seq);
+        }
+        assertEquals(1, buffer.getTargetDepth());
+        assertEquals(0, buffer.getDepth());
+        assertEquals(0, buffer.getUnderrunCount());
+        assertEquals(FRAME_US, buffer.getFrameDurationMicros());
+    }
+
+    @Test
+    public void reordersBySequenceNumber() {
+        JitterBuffer buffer = new JitterBuffer(64, 3, 16);
+        put(buffer, 10, 0);
+        put(buffer, 12, 0);
+        put(buffer, 11, 0);
+        assertPolls(buffer, 10);
+        assertPolls(buffer, 11);
+        assertPolls(buffer, 12);
+    }
+
+    @Test
+    public void frameOvertakenBeforePlayoutStartsIsStillPlayed() {
+        JitterBuffer buffer = new JitterBuffer(64, 2, 16);
+        put(buffer, 5, 0);
+        put(buffer, 4, 0);
+        assertPolls(buffer, 4);
+        assertPolls(buffer, 5);
+    }
+
+    @Test
+    public void lateAndDuplicateFramesAreDropped() {
+        JitterBuffer buffer = new JitterBuffer();
+        put(buffer, 0, 0);
+        put(buffer, 2, 0);
+        assertPolls(buffer, 0);
+        assertEquals(JitterBuffer.MISSING, buffer.poll(out));
+        assertFalse("seq 1 arrives after its playout time", put(buffer, 1, 60_000));
+        assertTrue(put(buffer, 3, 0));
+        assertFalse("duplicate", put(buffer, 3, 0));
+        assertPolls(buffer, 2);
+        assertPolls(buffer, 3);
+        assertEquals(2, buffer.getLateDropCount());
+        assertEquals(1, buffer.getLostCount());
+    }
+
+    @Test
+    public void countsUnderrunsAndRebuffers() {
+        JitterBuffer buffer = new JitterBuffer();
+        assertEquals("prebuffering is not an underrun", JitterBuffer.EMPTY, buffer.poll(out));
+        assertEquals(0, buffer.getUnderrunCount());
+        put(buffer, 0, 0);
+        assertPolls(buffer, 0);
+        assertEquals(JitterBuffer.EMPTY, buffer.poll(out));
+        assertEquals(1, buffer.getUnderrunCount());
+        put(buffer, 1, 0);
+        assertPolls(buffer, 1);
+    }
+
+    @Test
+    public void targetDepthTracksJitter() {
+        JitterBuffer buffer = new JitterBuffer();
+        Random random = new Random(42);
+        int seq = 0;
+        for (; seq < 300; seq++) {
+            // Up to 60 ms of random queuing delay: a busy hotspot.
+            put(buffer, seq, random.nextInt(60_000));
+            buffer.poll(out);
+        }
+        int jitteryTarget = buffer.getTargetDepth();
+        assertTrue("target should grow under jitter, was " + jitteryTarget, jitteryTarget >= 3);
+        assertTrue(buffer.getJitterMicros() > 10_000);
+
+        for (; seq < 800; seq++) {
+            put(buffer, seq, 2_000);
+            buffer.poll(out);
+        }
+        assertTrue("target should shrink again on a clean link", buffer.getTargetDepth() < jitteryTarget);
+        assertTrue("latency drains back to the target", buffer.getDepth() <= buffer.getTargetDepth() + 2);
+    }
+
+    @Test
+    public void overfullBufferSkipsFramesToCutLatency() {
+        JitterBuffer buffer = new JitterBuffer();
+        for (int seq = 0; seq < 10; seq++) {
+            put(buffer, seq, 0); // a burst after a stall
+        }
+        assertEquals(10, buffer.getDepth());
+        int polls = 0;
+        while (buffer.getDepth() > buffer.getTargetDepth() + 2) {
+            buffer.poll(out);
+            polls++;
+        }
+        assertTrue(polls < 10);
+        assertTrue(buffer.getSkippedCount() > 0);
+    }
+
+    @Test
+    public void jumpFarAheadResynchronizes() {
+        JitterBuffer buffer = new JitterBuffer(16, 1, 8);
+        put(buffer, 0, 0);
+        assertPolls(buffer, 0);
+        put(buffer, 1000, 0);
+        assertTrue(buffer.getDepth() <= 16);
+        int status;
+        do {
+            status = buffer.poll(out);
+        } while (status == JitterBuffer.MISSING);
+        assertEquals(JitterBuffer.FRAME, status);
+        assertEquals(1000, out.getSequenceNumber());
+    }
+
+    @Test
+    public void sequenceNumbersWrapAround() {
+        JitterBuffer buffer = new JitterBuffer();
+        for (int seq = Integer.MAX_VALUE - 3; seq != Integer.MIN_VALUE + 3; seq++) {
+            in.setSequenceNumber(seq);
+            in.setCaptureTimeMicros(0);
+            buffer.put(in, 0);
+            assertEquals(JitterBuffer.FRAME, buffer.poll(out));
+            assertEquals(seq, out.getSequenceNumber());
+        }
+    }
+
+    @Test
+    public void resetWithKnownFrameDurationSizesTargetFromTheStart() {
+        JitterBuffer buffer = new JitterBuffer();
+        buffer.reset(10_000);
+        assertEquals(10_000, buffer.getFrameDurationMicros());
+        buffer.reset();
+        assertEquals(FRAME_US, buffer.getFrameDurationMicros());
+    }
+
+    @Test
+    public void runningDryAfterSidIsSilenceNotUnderrun() {
+        JitterBuffer buffer = new JitterBuffer();
+        put(buffer, 0, 1_000);
+        assertPolls(buffer, 0);
+        in.setFlags(AudioFrame.FLAG_SID);
+        put(buffer, 1, 1_000);
+        in.setFlags(0);
+        assertPolls(buffer, 1);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(JitterBuffer.SILENCE, buffer.poll(out));
+        }
+        // The next talkspurt resumes after the suppressed frames; sequence numbers stay contiguous.
+        in.setSequenceNumber(2);
+        in.setCaptureTimeMicros(12 * FRAME_US);
+        in.getPayload()[0] = 2;
+        buffer.put(in, 12 * FRAME_US + 1_000);
+        assertPolls(buffer, 2);
+        assertEquals(JitterBuffer.EMPTY, buffer.poll(out));
+        assertEquals(1, buffer.getUnderrunCount());
+        assertEquals(0, buffer.getLostCount());
+        assertEquals(FRAME_US, buffer.getFrameDurationMicros());
+    }
+
+    @Test
+    public void depthFloorHoldsFramesForRecovery() {
+        JitterBuffer buffer = new JitterBuffer();
+        buffer.setDepthFloor(4);
+        assertEquals(4, buffer.getTargetDepth());
+        for (int seq = 0; seq < 3; seq++) {
+            put(buffer, seq, 3_000);
+            assertEquals(JitterBuffer.EMPTY, buffer.poll(out));
+        }
+        put(buffer, 3, 3_000);
+        assertPolls(buffer, 0);
+        // Frame 5 is lost; by the time it is due, a rebuilt copy has arrived behind frame 7.
+        put(buffer, 4, 3_000);
+        assertPolls(buffer, 1);
+        put(buffer, 6, 3_000);
+        assertPolls(buffer, 2);
+        put(buffer, 7, 3_000);
+        put(buffer, 5, 50_000);
+        assertPolls(buffer, 3);
+        assertPolls(buffer, 4);
+        assertPolls(buffer, 5);
+        assertEquals(0, buffer.getLostCount());
+
+        // Without the floor the target follows the jitter again, which the late copy raised a little.
+        buffer.setDepthFloor(0);
+        assertTrue(buffer.getTargetDepth() < 4);
+    }
+}
@@ -0,0 +1,61 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverTheRangeInOrder() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(7, LatencyHistogram.bucketOf(1023));
+        assertEquals(8, LatencyHistogram.bucketOf(1024));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long lower = LatencyHistogram.lowerBoundOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            if (bucket > 0) {
+                assertEquals(bucket - 1, LatencyHistogram.bucketOf(lower - 1));
+            }
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketResolution() {
+        Random random = new Random(7);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[10_000];
+        for (int i = 0; i < values.length; i++) {
+            // Log-normal around 40 ms, like a playout delay with a long tail.
+            values[i] = (long) (40_000 * Math.exp(0.5 * random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double fraction : new double[] {0.5, 0.95, 0.99}) {
+            long exact = values[(int) Math.ceil(fraction * values.length) - 1];
+            assertEquals("p" + (int) (fraction * 100), exact, histogram.getPercentile(fraction), exact * 0.07);
+        }
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values[values.length - 1], histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void emptyAndResetReadZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        histogram.record(20_000);
+        histogram.record(-5);
+        assertEquals(0, histogram.getMin());
+        assertEquals(10_000, histogram.getMean());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.95));
+    }
+}
@@ -0,0 +1,156 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PacketLossConcealerTest {
+    private static final int RATE = 16000;
+    private static final int FRAME = 320; // 20 ms
+
+    /**
+     * A voiced, vowel-like test signal: harmonics of a slowly gliding 110..180 Hz fundamental
+     * with a syllable-rate amplitude envelope.
+     */
+    private static short[] voice(int frames) {
+        short[] pcm = new short[frames * FRAME];
+        double phase = 0;
+        for (int i = 0; i < pcm.length; i++) {
+            double t = (double) i / RATE;
+            double f0 = 145 + 35 * Math.sin(2 * Math.PI * 0.7 * t);
+            phase += 2 * Math.PI * f0 / RATE;
+            double v = 0;
+            for (int h = 1; h <= 8; h++) {
+                v += Math.sin(h * phase) / h;
+            }
+            double envelope = 0.6 + 0.4 * Math.sin(2 * Math.PI * 3 * t);
+            pcm[i] = (short) (7000 * envelope * v);
+        }
+        return pcm;
+    }
+
+    private static boolean[] lossPattern(int frames, double rate, long seed) {
+        Random random = new Random(seed);
+        boolean[] lost = new boolean[frames];
+        for (int f = 10; f < frames; f++) { // first frames always arrive to seed the history
+            lost[f] = random.nextDouble() < rate;
+        }
+        return lost;
+    }
+
+    /** Runs the signal through the concealer; lost frames are synthesized (or zeroed). */
+    private static short[] play(short[] clean, boolean[] lost, boolean conceal) {
+        PacketLossConcealer plc = new PacketLossConcealer(RATE);
+        short[] out = new short[clean.length];
+        for (int f = 0; f < lost.length; f++) {
+            int off = f * FRAME;
+            if (lost[f]) {
+                if (conceal) plc.conceal(out, off, FRAME);
+            } else {
+                System.arraycopy(clean, off, out, off, FRAME);
+                plc.process(out, off, FRAME);
+            }
+        }
+        return out;
+    }
+
+    private static double snrDb(short[] clean, short[] test) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < clean.length; i++) {
+            signal += (double) clean[i] * clean[i];
+            double e = clean[i] - test[i];
+            noise += e * e;
+        }
+        return 10 * Math.log10(signal / Math.max(1, noise));
+    }
+
+    @Test
+    public void concealmentBeatsSilenceAtFiveAndTenPercentLoss() {
+        short[] clean = voice(500); // 10 s
+        for (double rate : new double[]{0.05, 0.10}) {
+            boolean[] lost = lossPattern(clean.length / FRAME, rate, 7);
+            double concealed = snrDb(clean, play(clean, lost, true));
+            double silence = snrDb(clean, play(clean, lost, false));
+            assertTrue("concealment should clearly beat silence at " + rate + ": " + concealed + " vs " + silence,
+                    concealed > silence + 3);
+        }
+    }
+
+    @Test
+    public void goodFramesPassThroughUntouched() {
+        short[] clean = voice(20);
+        short[] out = play(clean, new boolean[20], true);
+        assertArrayEquals(clean, out);
+    }
+
+    @Test
+    public void concealedSignalContinuesThePitch() {
+        short[] clean = voice(12);
+        PacketLossConcealer plc = new PacketLossConcealer(RATE);
+        short[] history = clean.clone();
+        plc.process(history, 0, 11 * FRAME);
+        short[] synthetic = new short[FRAME];
+        plc.conceal(synthetic, 0, FRAME);
+
+        // The first 10 ms are at full level and should track the real continuation closely.
+        double signal = 0, noise = 0;
+        for (int i = 0; i < 160; i++) {
+            double ref = clean[11 * FRAME + i];
+            signal += ref * ref;
+            noise += (ref - synthetic[i]) * (ref - synthetic[i]);
+        }
+        assertTrue("first 10 ms SNR " + 10 * Math.log10(signal / noise), signal / noise > 2);
+    }
+
+    @Test
+    public void longBurstFadesToSilence() {
+        short[] clean = voice(10);
+        PacketLossConcealer plc = new PacketLossConcealer(RATE);
+        plc.process(clean, 0, clean.length);
+        short[] out = new short[FRAME];
+        for (int f = 0; f < 3; f++) {
+            plc.conceal(out, 0, FRAME); // 60 ms
+        }
+        plc.conceal(out, 0, FRAME);
+        for (short s : out) {
+            assertEquals(0, s);
+        }
+        assertEquals(4, plc.getConcealedFrameCount());
+    }
+
+    @Test
+    public void concealsSilenceWithoutHistory() {
+        PacketLossConcealer plc = new PacketLossConcealer(RATE);
+        short[] out = new short[FRAME];
+        java.util.Arrays.fill(out, (short) 123);
+        plc.conceal(out, 0, FRAME);
+        for (short s : out) {
+            assertEquals(0, s);
+        }
+    }
+
+    @Test
+    public void recoveryIsCrossFaded() {
+        short[] clean = voice(14);
+        PacketLossConcealer plc = new PacketLossConcealer(RATE);
+        plc.process(clean.clone(), 0, 10 * FRAME);
+        short[] lost = new short[2 * FRAME];
+        plc.conceal(lost, 0, 2 * FRAME);
+        short[] good = new short[FRAME];
+        System.arraycopy(clean, 12 * FRAME, good, 0, FRAME);
+        plc.process(good, 0, FRAME);
+        // After the 4 ms cross-fade the frame is untouched.
+        for (int i = 64; i < FRAME; i++) {
+            assertEquals(clean[12 * FRAME + i], good[i]);
+        }
+        // The junction has no jump larger than the signal's own sample-to-sample steps.
+        int maxStep = 0;
+        for (int i = 1; i < clean.length; i++) {
+            maxStep = Math.max(maxStep, Math.abs(clean[i] - clean[i - 1]));
+        }
+        assertTrue(Math.abs(good[0] - lost[lost.length - 1]) <= 2 * maxStep);
+    }
+}
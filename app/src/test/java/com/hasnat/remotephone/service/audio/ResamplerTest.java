@@ -0,0 +1,136 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ResamplerTest {
+    private static final int[][] CONVERSIONS = {
+            {8000, 16000}, {16000, 8000}, {16000, 48000}, {48000, 16000}, {8000, 48000}, {48000, 8000}, {44100, 16000},
+    };
+
+    @Test
+    public void tonesSurviveConversionCleanly() {
+        for (int[] rates : CONVERSIONS) {
+            for (double freq : new double[] {440, 1000, 3000}) {
+                short[] out = convertTone(rates[0], rates[1], freq, 10000);
+                // Skip the filter's start-up transient.
+                double[] fit = fitTone(out, rates[1] / 10, out.length, rates[1], freq);
+                double snr = 10 * Math.log10(fit[1] / fit[2]);
+                double gain = 20 * Math.log10(fit[0] / 10000);
+                assertTrue(rates[0] + "->" + rates[1] + " at " + freq + " Hz: SNR " + snr, snr > 70);
+                // 3 kHz is near the passband edge at 8 kHz and may droop slightly.
+                assertEquals(rates[0] + "->" + rates[1] + " at " + freq + " Hz: gain", 0, gain, 0.25);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsAliases() {
+        // Neither tone can be represented at 16 kHz; they must not fold back to 7 and 4 kHz.
+        for (double freq : new double[] {9000, 12000}) {
+            short[] out = convertTone(48000, 16000, freq, 10000);
+            double rms = rms(out, 1600, out.length);
+            // 70 dB below the tone's rms of 7071.
+            assertTrue("Alias level " + rms, rms < 2.3);
+        }
+    }
+
+    @Test
+    public void frameSizeOutputIsConstantAndIndependentOfBlocking() {
+        short[] in = tone(48000, 1000, 8000, 48000);
+        Resampler whole = new Resampler(48000, 16000);
+        short[] expected = new short[whole.getMaxOutputSamples(in.length)];
+        int expectedLength = whole.process(in, 0, in.length, expected, 0);
+
+        Resampler framed = new Resampler(48000, 16000);
+        short[] actual = new short[expectedLength + 16];
+        int produced = 0;
+        for (int off = 0; off < in.length; off += 960) {
+            int n = framed.process(in, off, 960, actual, produced);
+            assertEquals("20 ms at 48 kHz is 20 ms at 16 kHz", 320, n);
+            produced += n;
+        }
+        assertEquals(expectedLength, produced);
+
+        Resampler odd = new Resampler(48000, 16000);
+        int oddProduced = 0;
+        int off = 0;
+        for (int block = 1; off < in.length; block = block * 7 % 1001 + 1) {
+            int len = Math.min(block, in.length - off);
+            oddProduced += odd.process(in, off, len, actual, oddProduced);
+            off += len;
+        }
+        assertEquals(expectedLength, oddProduced);
+        for (int i = 0; i < expectedLength; i++) {
+            assertEquals("sample " + i, expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void equalRatesPassThrough() {
+        Resampler resampler = new Resampler(16000, 16000);
+        short[] in = tone(16000, 1000, 10000, 320);
+        short[] out = new short[320];
+        assertEquals(320, resampler.process(in, 0, 320, out, 0));
+        assertArrayEquals(in, out);
+    }
+
+    private static short[] convertTone(int inRate, int outRate, double freq, double amplitude) {
+        short[] in = tone(inRate, freq, amplitude, inRate);
+        Resampler resampler = new Resampler(inRate, outRate);
+        int frame = inRate / 50;
+        short[] out = new short[resampler.getMaxOutputSamples(in.length)];
+        int produced = 0;
+        for (int off = 0; off < in.length; off += frame) {
+            produced += resampler.process(in, off, Math.min(frame, in.length - off), out, produced);
+        }
+        assertEquals(outRate, produced, 1);
+        return Arrays.copyOf(out, produced);
+    }
+
+    private static short[] tone(int rate, double freq, double amplitude, int samples) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * freq * i / rate));
+        }
+        return pcm;
+    }
+
+    /**
+     * Least-squares fit of a sine at {@code freq}.
+     * @return Amplitude, signal energy and residual energy.
+     */
+    private static double[] fitTone(short[] x, int from, int to, int rate, double freq) {
+        double ss = 0, cc = 0, sc = 0, xs = 0, xc = 0;
+        for (int i = from; i < to; i++) {
+            double s = Math.sin(2 * Math.PI * freq * i / rate);
+            double c = Math.cos(2 * Math.PI * freq * i / rate);
+            ss += s * s;
+            cc += c * c;
+            sc += s * c;
+            xs += x[i] * s;
+            xc += x[i] * c;
+        }
+        double det = ss * cc - sc * sc;
+        double a = (xs * cc - xc * sc) / det;
+        double b = (xc * ss - xs * sc) / det;
+        double signal = 0, residual = 0;
+        for (int i = from; i < to; i++) {
+            double fitted = a * Math.sin(2 * Math.PI * freq * i / rate) + b * Math.cos(2 * Math.PI * freq * i / rate);
+            signal += fitted * fitted;
+            residual += (x[i] - fitted) * (x[i] - fitted);
+        }
+        return new double[] {Math.hypot(a, b), signal, residual};
+    }
+
+    private static double rms(short[] x, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (double) x[i] * x[i];
+        }
+        return Math.sqrt(sum / (to - from));
+    }
+}
@@ -0,0 +1,234 @@
+package com.hasnat.remotephone.service.audio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.*;
+
+public class ResumableAudioTransportTest {
+    private static final long TOKEN = 0x1234_5678_9ABC_DEF0L;
+
+    private ServerSocket server;
+    private Thread acceptor;
+    private volatile ResumableAudioTransport hostSession;
+    private volatile Socket clientSocket;
+
+    @After
+    public void tearDown() throws Exception {
+        if (acceptor != null) acceptor.interrupt();
+        if (server != null) server.close();
+        if (hostSession != null) hostSession.close();
+    }
+
+    private static AudioFrame frame(int seq) {
+        AudioFrame frame = new AudioFrame();
+        frame.setSequenceNumber(seq);
+        frame.setCaptureTimeMicros(seq * 20_000L);
+        frame.setPayloadLength(160);
+        return frame;
+    }
+
+    /** Receives, riding out the timeouts a session throws while it has no connection. */
+    /** Receives, riding out the timeouts a session throws while it waits for a connection. */
+    private static AudioFrame receive(AudioTransport transport) throws IOException {
+        AudioFrame frame = new AudioFrame();
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            try {
+                return transport.receive(frame) ? frame : null;
+            } catch (SocketTimeoutException e) {
+                // keep waiting
+            }
+        }
+        fail("no audio frame");
+        return null;
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 300);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(200);
+        clientSocket = socket;
+        return socket;
+    }
+
+    /** Accepts connections like the host's audio server: a session probe naming the call reattaches it. */
+    private void startAcceptor() {
+        acceptor = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    StreamAudioTransport stream = new StreamAudioTransport(socket);
+                    AudioFrame hello = new AudioFrame();
+                    assertTrue(stream.receive(hello));
+                    long token = ResumableAudioTransport.readSessionToken(hello);
+                    if (token == 0) {
+                        hostSession = new ResumableAudioTransport(stream, TOKEN, null);
+                    } else if (token == TOKEN) {
+                        hostSession.attach(stream);
+                    } else {
+                        stream.close();
+                    }
+                }
+            } catch (IOException ignored) {
+                // server closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Test
+    public void droppedConnectionIsReattachedAndTheStreamContinues() throws Exception {
+        server = new ServerSocket(0, 5, InetAddress.getLoopbackAddress());
+        startAcceptor();
+        StreamAudioTransport initial = new StreamAudioTransport(connect());
+        AudioFrame hello = new AudioFrame();
+        ResumableAudioTransport.writeSessionProbe(hello, 0);
+        initial.send(hello);
+        ResumableAudioTransport client = new ResumableAudioTransport(initial, TOKEN,
+                () -> new StreamAudioTransport(connect()));
+        while (hostSession == null) Thread.sleep(5);
+        ResumableAudioTransport host = hostSession;
+
+        client.send(frame(0));
+        assertEquals(0, receive(host).getSequenceNumber());
+        host.send(frame(0));
+        assertEquals(0, receive(client).getSequenceNumber());
+
+        // The host keeps talking, one frame per 20 ms.
+        Thread talker = new Thread(() -> {
+            try {
+                for (int seq = 1; !Thread.currentThread().isInterrupted(); seq++) {
+                    host.send(frame(seq));
+                    Thread.sleep(20);
+                }
+            } catch (IOException | InterruptedException ignored) {
+            }
+        });
+        talker.setDaemon(true);
+        talker.start();
+        assertTrue(receive(client).getSequenceNumber() > 0);
+
+        // The connection drops mid-call, e.g. the phone roams between access points.
+        clientSocket.close();
+        AudioFrame resumed = receive(client);
+        talker.interrupt();
+        assertNotNull(resumed);
+        assertEquals(1, client.getReattachCount());
+        assertEquals(1, host.getReattachCount());
+
+        // Sequence numbers carry on: no new handshake, the jitter buffer just sees a gap.
+        client.send(frame(40));
+        assertEquals(40, receive(host).getSequenceNumber());
+
+        client.close();
+        host.close();
+    }
+
+    @Test
+    public void streamEndsWhenNoConnectionComesWithinTheWindow() throws IOException {
+        Queue link = new Queue();
+        link.open = false; // the peer closed it
+        ResumableAudioTransport session = new ResumableAudioTransport(link, TOKEN, null, 100);
+        long start = System.nanoTime();
+        assertNull(receive(session));
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 100);
+        assertTrue(link.closed);
+        assertFalse(session.isConnected());
+        // Once the session is over, late connections are turned away.
+        Queue late = new Queue();
+        assertFalse(session.attach(late));
+        assertTrue(late.closed);
+    }
+
+    @Test
+    public void probesAreConsumedAndSendsDuringAnOutageAreDropped() throws IOException {
+        Queue link = new Queue();
+        ResumableAudioTransport session = new ResumableAudioTransport(link, TOKEN, null);
+        session.sendSessionProbe();
+        assertEquals(TOKEN, ResumableAudioTransport.readSessionToken(link.frames.peek()));
+        link.frames.add(frame(7));
+        assertEquals(7, receive(session).getSequenceNumber());
+        assertTrue(link.frames.isEmpty());
+
+        link.failSends = true;
+        session.send(frame(8)); // fails the connection instead of throwing
+        assertFalse(session.isConnected());
+        session.send(frame(9));
+
+        Queue next = new Queue();
+        assertTrue(session.attach(next));
+        session.send(frame(10));
+        assertEquals(10, next.frames.peek().getSequenceNumber());
+        assertEquals(1, next.frames.size());
+    }
+
+    @Test
+    public void ordinaryFramesCarryNoToken() {
+        assertEquals(0, ResumableAudioTransport.readSessionToken(frame(3)));
+        AudioFrame probe = new AudioFrame();
+        probe.setFlags(AudioFrame.FLAG_PROBE);
+        assertEquals(0, ResumableAudioTransport.readSessionToken(probe));
+    }
+
+    @Test
+    public void helloCarriesTheProposalAndReadsAsANewSessionToOlderHosts() {
+        AudioSessionParams proposal = new AudioSessionParams();
+        proposal.setCodecs(AudioCodecs.supportedNames());
+        proposal.setPrewarm(true);
+        proposal.setSessionToken(TOKEN);
+        AudioFrame hello = new AudioFrame();
+        ResumableAudioTransport.writeSessionHello(hello, proposal);
+
+        assertEquals(0, ResumableAudioTransport.readSessionToken(hello));
+        AudioSessionParams received = ResumableAudioTransport.readSessionHello(hello);
+        assertNotNull(received);
+        assertEquals(TOKEN, received.getSessionToken());
+        assertEquals(AudioCodecs.supportedNames(), received.getCodecs());
+        assertTrue(received.isPrewarm());
+
+        AudioFrame probe = new AudioFrame();
+        ResumableAudioTransport.writeSessionProbe(probe, 0);
+        assertNull(ResumableAudioTransport.readSessionHello(probe));
+        assertNull(ResumableAudioTransport.readSessionHello(frame(3)));
+    }
+
+    /** An in-memory connection. */
+    private static class Queue implements AudioTransport {
+        final ArrayDeque<AudioFrame> frames = new ArrayDeque<>();
+        boolean open = true;
+        boolean failSends;
+        boolean closed;
+
+        @Override
+        public void send(AudioFrame frame) throws IOException {
+            if (failSends) throw new IOException("broken pipe");
+            AudioFrame copy = new AudioFrame();
+            copy.copyFrom(frame);
+            frames.add(copy);
+        }
+
+        @Override
+        public boolean receive(AudioFrame frame) {
+            if (!open || frames.isEmpty()) return false;
+            frame.copyFrom(frames.poll());
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.hasnat.remotephone.service.network;
+
+import com.hasnat.remotephone.service.audio.AudioCodecs;
+import com.hasnat.remotephone.service.audio.AudioFrame;
+import com.hasnat.remotephone.service.audio.AudioSessionParams;
+import com.hasnat.remotephone.service.audio.ResumableAudioTransport;
+import com.hasnat.remotephone.service.audio.StreamAudioTransport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Orders the phases of setting a call's audio up over loopback connections that delay every
+ * byte by {@link #ONE_WAY_DELAY_MS}, once with the plain handshake and once with the client
+ * streaming straight after its hello.
+ * <p>
+ * The host side does what {@code AudioServer} and {@code NetworkServerService} do with the
+ * same wire helpers: a plain probe waits for {@code AUDIO_READY}, a hello starts the bridge.
+ */
+public class AudioHandshakeTest {
+    // Long enough that one crossing more or less decides the order of events.
+    private static final long ONE_WAY_DELAY_MS = 100;
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    /** Forwards one connection to {@code target}, holding every chunk back for the delay. */
+    private int startDelayedRelay(int target) throws IOException {
+        ServerSocket relay = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        resources.add(relay);
+        Thread acceptor = new Thread(() -> {
+            try {
+                Socket near = relay.accept();
+                Socket far = new Socket(InetAddress.getLoopbackAddress(), target);
+                near.setTcpNoDelay(true);
+                far.setTcpNoDelay(true);
+                resources.add(near);
+                resources.add(far);
+                pump(near.getInputStream(), far.getOutputStream());
+                pump(far.getInputStream(), near.getOutputStream());
+            } catch (IOException ignored) {
+                // closed by the test
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return relay.getLocalPort();
+    }
+
+    private static void pump(InputStream in, OutputStream out) {
+        BlockingQueue<Object[]> delayed = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    delayed.add(new Object[]{System.nanoTime() + ONE_WAY_DELAY_MS * 1_000_000, Arrays.copyOf(buffer, read)});
+                }
+            } catch (IOException ignored) {
+            }
+            delayed.add(new Object[]{0L, null});
+        });
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    Object[] chunk = delayed.take();
+                    if (chunk[1] == null) break;
+                    long waitNanos = (long) chunk[0] - System.nanoTime();
+                    if (waitNanos > 0) Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                    out.write((byte[]) chunk[1]);
+                    out.flush();
+                }
+                out.close();
+            } catch (IOException | InterruptedException ignored) {
+            }
+        });
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /** The host's end: answers the client and notes when its first audio frame came in. */
+    private static class Host implements Runnable {
+        final ServerSocket control;
+        final ServerSocket audio;
+        volatile long firstAudioNanos;
+        volatile AudioSessionParams accepted;
+        volatile Throwable error;
+
+        Host(ServerSocket control, ServerSocket audio) {
+            this.control = control;
+            this.audio = audio;
+        }
+
+        @Override
+        public void run() {
+            try (Socket controlSocket = control.accept(); Socket audioSocket = audio.accept()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(controlSocket.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter writer = new PrintWriter(controlSocket.getOutputStream(), true);
+                StreamAudioTransport stream = new StreamAudioTransport(audioSocket);
+                AudioFrame frame = new AudioFrame();
+                assertTrue(stream.receive(frame));
+                AudioSessionParams requested = ResumableAudioTransport.readSessionHello(frame);
+                if (requested == null) {
+                    // Waits in the pending streams for AUDIO_READY, and issues its own token.
+                    ControlMessage message = ControlMessage.parse(reader.readLine());
+                    assertEquals(ControlMessage.AUDIO_READY, message.getName());
+                    requested = AudioSessionParams.parse(message.getArgument());
+                    requested.setSessionToken(0x5E55_10AL);
+                }
+                accepted = requested.answer();
+                writer.println(accepted.toCommand(ControlMessage.START_AUDIO_BRIDGE));
+                assertTrue(stream.receive(frame));
+                firstAudioNanos = System.nanoTime();
+                // Stays up until the client is done with the control connection.
+                reader.readLine();
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+    }
+
+    private static class Phases {
+        long streamingNanos;
+        long answeredNanos;
+        long firstAudioNanos;
+    }
+
+    /**
+     * Runs the client's side the way {@code NetworkClientService} does.
+     * @param optimistic Whether the client names its session and streams before the answer.
+     */
+    private Phases runHandshake(boolean optimistic) throws Exception {
+        ServerSocket control = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        ServerSocket audio = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        resources.add(control);
+        resources.add(audio);
+        Host host = new Host(control, audio);
+        Thread hostThread = new Thread(host);
+        hostThread.start();
+        int controlPort = startDelayedRelay(control.getLocalPort());
+        int audioPort = startDelayedRelay(audio.getLocalPort());
+
+        // The control connection is up long before the call.
+        Socket controlSocket = new Socket(InetAddress.getLoopbackAddress(), controlPort);
+        resources.add(controlSocket);
+        controlSocket.setTcpNoDelay(true);
+        PrintWriter writer = new PrintWriter(controlSocket.getOutputStream(), true);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(controlSocket.getInputStream(), StandardCharsets.UTF_8));
+
+        Phases phases = new Phases();
+        Socket audioSocket = new Socket(InetAddress.getLoopbackAddress(), audioPort);
+        resources.add(audioSocket);
+        audioSocket.setTcpNoDelay(true);
+        StreamAudioTransport stream = new StreamAudioTransport(audioSocket);
+
+        AudioSessionParams proposal = new AudioSessionParams();
+        proposal.setCodecs(AudioCodecs.supportedNames());
+        proposal.setSampleRates(AudioSessionParams.supportedSampleRates(16000));
+        AudioFrame hello = new AudioFrame();
+        if (optimistic) {
+            proposal.setSessionToken(0xC0FFEEL);
+            ResumableAudioTransport.writeSessionHello(hello, proposal);
+        } else {
+            ResumableAudioTransport.writeSessionProbe(hello, 0);
+        }
+        stream.send(hello);
+        writer.println(proposal.toCommand(ControlMessage.AUDIO_READY));
+
+        AudioFrame first = new AudioFrame();
+        first.setPayloadLength(160);
+        AudioSessionParams expected = proposal.answer();
+        if (optimistic) {
+            stream.send(first);
+            phases.streamingNanos = System.nanoTime();
+        }
+        AudioSessionParams accepted = AudioSessionParams.fromCommand(reader.readLine(), ControlMessage.START_AUDIO_BRIDGE);
+        phases.answeredNanos = System.nanoTime();
+        if (optimistic) {
+            assertTrue(accepted + " vs " + expected, expected.agreesWith(accepted));
+        } else {
+            assertFalse(expected.agreesWith(accepted)); // the host named the session
+            stream.send(first);
+            phases.streamingNanos = System.nanoTime();
+        }
+
+        controlSocket.shutdownOutput();
+        hostThread.join(5000);
+        if (host.error != null) throw new AssertionError(host.error);
+        phases.firstAudioNanos = host.firstAudioNanos;
+        return phases;
+    }
+
+    @Test
+    public void helloStartsTheAudioARoundTripSooner() throws Exception {
+        // Plain: the proposal goes over, the answer comes back, and only then the audio goes over.
+        Phases plain = runHandshake(false);
+        assertTrue(plain.answeredNanos < plain.streamingNanos);
+        assertTrue(plain.answeredNanos < plain.firstAudioNanos);
+
+        // One round trip: the audio follows the hello, and the host hears it while its answer
+        // is still on the way back.
+        Phases optimistic = runHandshake(true);
+        assertTrue(optimistic.streamingNanos < optimistic.answeredNanos);
+        assertTrue(optimistic.firstAudioNanos < optimistic.answeredNanos);
+    }
+}
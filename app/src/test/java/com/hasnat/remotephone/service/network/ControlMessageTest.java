@@ -0,0 +1,65 @@
+package com.hasnat.remotephone.service.network;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ControlMessageTest {
+
+    @Test
+    public void nameAndFieldsAreSplitLikeTheOldRegexParsing() {
+        String line = "RINGING:+15551234|Alice | Bob";
+        ControlMessage message = ControlMessage.parse(line);
+        assertEquals(ControlMessage.RINGING, message.getName());
+        assertTrue(message.hasArgument());
+        assertArrayEquals(message.getArgument().split("\\|", 2), message.getFields(2));
+        assertArrayEquals(new String[] {"+15551234", "Alice | Bob"}, message.getFields(2));
+        assertArrayEquals(new String[] {"+15551234", "Alice ", " Bob"}, message.getFields(3));
+        assertEquals(line, message.encode());
+
+        String[] fields = ControlMessage.parse("CALL_STARTED:5551234").getFields(2);
+        assertArrayEquals(new String[] {"5551234"}, fields);
+        assertArrayEquals(new String[] {"", "", ""}, ControlMessage.parse("NOTIFICATION:||").getFields(3));
+    }
+
+    @Test
+    public void argumentKeepsLaterColons() {
+        ControlMessage message = ControlMessage.parse("START_AUDIO_BRIDGE:transport=udp;session=ab:cd");
+        assertEquals(ControlMessage.START_AUDIO_BRIDGE, message.getName());
+        assertEquals("transport=udp;session=ab:cd", message.getArgument());
+    }
+
+    @Test
+    public void bareNamesHaveNoArgument() {
+        ControlMessage message = ControlMessage.parse("CALL_IDLE");
+        assertEquals(ControlMessage.CALL_IDLE, message.getName());
+        assertFalse(message.hasArgument());
+        assertEquals("", message.getArgument());
+        assertArrayEquals(new String[] {""}, message.getFields(2));
+        assertEquals("CALL_IDLE", message.encode());
+        assertEquals("", ControlMessage.parse("AUDIO_READY:").getArgument());
+        assertTrue(ControlMessage.parse("AUDIO_READY:").hasArgument());
+    }
+
+    @Test
+    public void commandsWithoutArgumentsAreOnlyRecognisedBare() {
+        for (String name : new String[] {ControlMessage.CALL_IDLE, ControlMessage.ANSWER, ControlMessage.END_CALL,
+                ControlMessage.MUTE, ControlMessage.HOLD, ControlMessage.SPEAKER_OFF}) {
+            assertEquals(name, ControlMessage.parse(name).getName());
+            ControlMessage padded = ControlMessage.parse(name + ":junk");
+            assertEquals(name + ":junk", padded.getName());
+            assertFalse(padded.hasArgument());
+            assertEquals(name + ":junk", padded.encode());
+            assertEquals(name + ":", ControlMessage.parse(name + ":").getName());
+        }
+    }
+
+    @Test
+    public void encodeJoinsFields() {
+        assertEquals("NOTIFICATION:com.example|Title|Text", ControlMessage.encode(ControlMessage.NOTIFICATION, "com.example", "Title", "Text"));
+        assertEquals("DIAL:5551234", ControlMessage.encode(ControlMessage.DIAL, "5551234"));
+        assertEquals("ANSWER", ControlMessage.encode(ControlMessage.ANSWER));
+        ControlMessage parsed = ControlMessage.parse(ControlMessage.encode(ControlMessage.RINGING, "1", "Unknown"));
+        assertArrayEquals(new String[] {"1", "Unknown"}, parsed.getFields(2));
+    }
+}
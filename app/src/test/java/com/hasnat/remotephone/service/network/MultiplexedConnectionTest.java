@@ -0,0 +1,236 @@
+package com.hasnat.remotephone.service.network;
+
+import com.hasnat.remotephone.service.audio.AudioFrame;
+import com.hasnat.remotephone.service.audio.AudioFrameCodec;
+import com.hasnat.remotephone.service.audio.AudioTransport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MultiplexedConnectionTest {
+    private MultiplexedConnection host;
+    private MultiplexedConnection client;
+    private final Recorder hostRecorder = new Recorder();
+    private final Recorder clientRecorder = new Recorder();
+
+    /** Keeps what arrives; may hold up the reading thread on the first bulk chunk. */
+    private static class Recorder implements MultiplexedConnection.Listener {
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        final CountDownLatch bulkReleased = new CountDownLatch(1);
+        volatile boolean holdBulk;
+        volatile long bulkBytes;
+        volatile long bulkBytesAtControl = -1;
+
+        @Override
+        public void onControl(String line) {
+            if (bulkBytesAtControl < 0) bulkBytesAtControl = bulkBytes;
+            lines.add(line);
+        }
+
+        @Override
+        public void onBulk(byte[] data, int offset, int length) {
+            try {
+                if (holdBulk) bulkReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            bulkBytes += length;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (host != null) host.close();
+        if (client != null) client.close();
+    }
+
+    /** Connects host and client over loopback and switches the connection the way they do. */
+    private void connect(int bufferSize) throws Exception {
+        try (ServerSocket server = new ServerSocket()) {
+            if (bufferSize > 0) server.setReceiveBufferSize(bufferSize);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Socket clientSocket = new Socket();
+            if (bufferSize > 0) clientSocket.setSendBufferSize(bufferSize);
+            clientSocket.connect(server.getLocalSocketAddress());
+            Socket hostSocket = server.accept();
+
+            clientSocket.getOutputStream().write((MultiplexedConnection.upgradeLine() + "\n").getBytes("UTF-8"));
+            assertTrue(MultiplexedConnection.isUpgrade(MultiplexedConnection.readLine(hostSocket.getInputStream())));
+            hostSocket.getOutputStream().write((MultiplexedConnection.upgradeLine() + "\n").getBytes("UTF-8"));
+            assertTrue(MultiplexedConnection.isUpgrade(MultiplexedConnection.readLine(clientSocket.getInputStream())));
+
+            host = new MultiplexedConnection(hostSocket, hostRecorder);
+            client = new MultiplexedConnection(clientSocket, clientRecorder);
+            startReader(host);
+            startReader(client);
+        }
+    }
+
+    private static void startReader(MultiplexedConnection connection) {
+        Thread reader = new Thread(() -> {
+            try {
+                connection.read();
+            } catch (IOException ignored) {
+                // closed by the test
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private static AudioFrame frame(int seq) {
+        AudioFrame frame = new AudioFrame();
+        frame.setSequenceNumber(seq);
+        frame.setCaptureTimeMicros(seq * 20_000L);
+        frame.setPayloadLength(160);
+        frame.getPayload()[0] = (byte) seq;
+        return frame;
+    }
+
+    /** Receives, riding out the timeouts a channel throws while nothing arrives. */
+    private static AudioFrame receive(AudioTransport transport) throws IOException {
+        AudioFrame frame = new AudioFrame();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            try {
+                return transport.receive(frame) ? frame : null;
+            } catch (SocketTimeoutException e) {
+                // keep waiting
+            }
+        }
+        fail("no audio frame");
+        return null;
+    }
+
+    @Test
+    public void upgradeLineIsTheMuxCommand() {
+        assertEquals("MUX:1", MultiplexedConnection.upgradeLine());
+        assertFalse(MultiplexedConnection.isUpgrade("MUX:2"));
+        assertFalse(MultiplexedConnection.isUpgrade(null));
+    }
+
+    @Test
+    public void controlAndAudioShareTheConnection() throws Exception {
+        connect(0);
+        AudioTransport hostAudio = host.openAudioChannel();
+        AudioTransport clientAudio = client.openAudioChannel();
+
+        client.sendControl("DIAL:5551234");
+        assertEquals("DIAL:5551234", hostRecorder.lines.poll(5, TimeUnit.SECONDS));
+        host.sendControl("CALL_STARTED:5551234");
+        assertEquals("CALL_STARTED:5551234", clientRecorder.lines.poll(5, TimeUnit.SECONDS));
+
+        for (int seq = 0; seq < 5; seq++) {
+            clientAudio.send(frame(seq));
+            hostAudio.send(frame(100 + seq));
+        }
+        for (int seq = 0; seq < 5; seq++) {
+            AudioFrame up = receive(hostAudio);
+            assertEquals(seq, up.getSequenceNumber());
+            assertEquals(160, up.getPayloadLength());
+            assertEquals((byte) seq, up.getPayload()[0]);
+            assertEquals(100 + seq, receive(clientAudio).getSequenceNumber());
+        }
+    }
+
+    @Test
+    public void controlOvertakesQueuedBulkData() throws Exception {
+        connect(16 * 1024);
+        hostRecorder.holdBulk = true;
+        int total = 4 * 1024 * 1024;
+        client.sendBulk(new byte[total], 0, total);
+        // The host holds up its reader, so the socket fills and most of the bulk data stays queued.
+        Thread.sleep(200);
+        client.sendControl("END_CALL");
+        hostRecorder.bulkReleased.countDown();
+
+        assertEquals("END_CALL", hostRecorder.lines.poll(5, TimeUnit.SECONDS));
+        assertTrue("control arrived after " + hostRecorder.bulkBytesAtControl + " bulk bytes",
+                hostRecorder.bulkBytesAtControl < total / 4);
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (hostRecorder.bulkBytes < total && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(total, hostRecorder.bulkBytes);
+    }
+
+    @Test
+    public void closingAnAudioChannelEndsTheStreamUntilTheNextCall() throws Exception {
+        connect(0);
+        AudioTransport hostAudio = host.openAudioChannel();
+        AudioTransport clientAudio = client.openAudioChannel();
+        clientAudio.send(frame(1));
+        clientAudio.close();
+        assertEquals(1, receive(hostAudio).getSequenceNumber());
+        assertNull(receive(hostAudio));
+        try {
+            clientAudio.send(frame(2));
+            fail("sent on a closed channel");
+        } catch (IOException expected) {
+        }
+
+        // The next call opens fresh channels on the same connection.
+        hostAudio = host.openAudioChannel();
+        clientAudio = client.openAudioChannel();
+        client.sendControl("AUDIO_READY:transport=mux");
+        assertEquals("AUDIO_READY:transport=mux", hostRecorder.lines.poll(5, TimeUnit.SECONDS));
+        clientAudio.send(frame(3));
+        assertEquals(3, receive(hostAudio).getSequenceNumber());
+        assertFalse(host.isClosed());
+    }
+
+    @Test
+    public void peerClosingEndsTheAudioChannel() throws Exception {
+        connect(0);
+        AudioTransport hostAudio = host.openAudioChannel();
+        client.close();
+        assertNull(receive(hostAudio));
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!host.isClosed() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(host.isClosed());
+    }
+
+    @Test
+    public void malformedAudioFrameIsDroppedWithoutEndingTheConnection() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket peer = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            host = new MultiplexedConnection(server.accept(), hostRecorder);
+            startReader(host);
+            AudioTransport hostAudio = host.openAudioChannel();
+            OutputStream out = peer.getOutputStream();
+
+            out.write(new byte[]{MultiplexedConnection.CHANNEL_AUDIO, 0, 2, 7, 7}); // a truncated frame
+            byte[] message = new byte[MultiplexedConnection.HEADER_SIZE + AudioFrameCodec.MAX_FRAME_SIZE];
+            int length = AudioFrameCodec.encode(frame(9), message, MultiplexedConnection.HEADER_SIZE);
+            message[0] = MultiplexedConnection.CHANNEL_AUDIO;
+            message[1] = (byte) (length >> 8);
+            message[2] = (byte) length;
+            out.write(message, 0, MultiplexedConnection.HEADER_SIZE + length);
+            byte[] line = "END_CALL".getBytes("UTF-8");
+            out.write(new byte[]{MultiplexedConnection.CHANNEL_CONTROL, 0, (byte) line.length});
+            out.write(line);
+            out.flush();
+
+            assertEquals(9, receive(hostAudio).getSequenceNumber());
+            assertEquals("END_CALL", hostRecorder.lines.poll(5, TimeUnit.SECONDS));
+            assertFalse(host.isClosed());
+            assertTrue(host.toString(), host.toString().contains("(1 malformed)"));
+        }
+    }
+}
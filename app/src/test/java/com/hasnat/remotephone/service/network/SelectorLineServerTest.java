@@ -0,0 +1,308 @@
+package com.hasnat.remotephone.service.network;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SelectorLineServerTest {
+    private static final int CLIENTS = 100;
+    private static final int ROUNDS = 20;
+
+    private SelectorLineServer server;
+    private final Recorder recorder = new Recorder();
+    private final List<Socket> sockets = new ArrayList<>();
+
+    /** Answers every line with an acknowledgement, and keeps what happened. */
+    private static class Recorder implements SelectorLineServer.Listener {
+        final List<SelectorLineServer.Connection> connections = new CopyOnWriteArrayList<>();
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        final BlockingQueue<SelectorLineServer.Connection> disconnected = new LinkedBlockingQueue<>();
+        final BlockingQueue<Socket> handedOver = new LinkedBlockingQueue<>();
+        volatile boolean acknowledge = true;
+        volatile String queuedBeforeSwitch = "QUEUED_BEFORE_SWITCH";
+        volatile int queuedCopies = 1;
+
+        @Override
+        public void onConnected(SelectorLineServer.Connection connection) {
+            connections.add(connection);
+        }
+
+        @Override
+        public void onLine(SelectorLineServer.Connection connection, String line) {
+            if (MultiplexedConnection.isUpgrade(line)) {
+                for (int i = 0; i < queuedCopies; i++) {
+                    connection.send(queuedBeforeSwitch);
+                }
+                connection.handOver();
+                return;
+            }
+            lines.add(line);
+            if (acknowledge) connection.send("ACK:" + line);
+        }
+
+        @Override
+        public void onHandOver(SelectorLineServer.Connection connection) {
+            Socket socket;
+            try {
+                socket = connection.detach();
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            // Off the loop, as the answer may block.
+            new Thread(() -> {
+                try {
+                    socket.getOutputStream().write((MultiplexedConnection.upgradeLine() + "\n").getBytes(StandardCharsets.UTF_8));
+                    handedOver.add(socket);
+                } catch (IOException ignored) {
+                }
+            }).start();
+        }
+
+        @Override
+        public void onDisconnected(SelectorLineServer.Connection connection, IOException cause) {
+            connections.remove(connection);
+            disconnected.add(connection);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        if (server != null) server.close();
+    }
+
+    private void startServer() throws IOException {
+        server = new SelectorLineServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), recorder);
+        server.start();
+    }
+
+    private Socket connect(int receiveBufferSize) throws IOException {
+        Socket socket = new Socket();
+        if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(5000);
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+        sockets.add(socket);
+        return socket;
+    }
+
+    private static void write(Socket socket, String text) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private void awaitConnections(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (recorder.connections.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, recorder.connections.size());
+    }
+
+    @Test
+    public void oneThreadServesAHundredClients() throws Exception {
+        startServer();
+        int threadsBefore = Thread.activeCount();
+
+        List<Socket> clients = new ArrayList<>();
+        List<BufferedReader> readers = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            Socket socket = connect(0);
+            clients.add(socket);
+            readers.add(reader(socket));
+        }
+        awaitConnections(CLIENTS);
+
+        // Every client sends a command each round, then reads its answer.
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < CLIENTS; i++) {
+                write(clients.get(i), "DIAL:" + i + "-" + round + "\n");
+            }
+            for (int i = 0; i < CLIENTS; i++) {
+                assertEquals("ACK:DIAL:" + i + "-" + round, readers.get(i).readLine());
+            }
+        }
+        int threadsDuring = Thread.activeCount();
+
+        // A broadcast reaches every client.
+        for (SelectorLineServer.Connection connection : recorder.connections) {
+            assertTrue(connection.send("CALL_STARTED:5551234"));
+        }
+        for (BufferedReader reader : readers) {
+            assertEquals("CALL_STARTED:5551234", reader.readLine());
+        }
+
+        assertEquals(CLIENTS * ROUNDS, recorder.lines.size());
+        assertEquals(threadsBefore, threadsDuring);
+
+        for (Socket socket : clients) {
+            socket.close();
+        }
+        for (int i = 0; i < CLIENTS; i++) {
+            assertNotNull(recorder.disconnected.poll(5, TimeUnit.SECONDS));
+        }
+        assertTrue(recorder.connections.isEmpty());
+    }
+
+    @Test
+    public void linesSplitAcrossReadsAreJoined() throws Exception {
+        startServer();
+        Socket socket = connect(0);
+        write(socket, "HEL");
+        Thread.sleep(50);
+        write(socket, "LO\r\nWOR");
+        Thread.sleep(50);
+        write(socket, "LD\nÄNDERN\n");
+        assertEquals("HELLO", recorder.lines.poll(5, TimeUnit.SECONDS));
+        assertEquals("WORLD", recorder.lines.poll(5, TimeUnit.SECONDS));
+        assertEquals("ÄNDERN", recorder.lines.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void sentLinesAreUtf8() throws Exception {
+        startServer();
+        recorder.acknowledge = false;
+        Socket socket = connect(0);
+        awaitConnections(1);
+        SelectorLineServer.Connection connection = recorder.connections.get(0);
+        String[] lines = {"CALL_STARTED:+49 ÄNDERN", "SMS:€ 5 📞", "UNPAIRED:\uD800x", ""};
+        for (String line : lines) {
+            assertTrue(connection.send(line));
+        }
+        BufferedReader reader = reader(socket);
+        for (String line : lines) {
+            assertEquals(new String(line.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), reader.readLine());
+        }
+    }
+
+    @Test
+    public void slowReaderGetsEverythingWhileOthersAreServed() throws Exception {
+        startServer();
+        recorder.acknowledge = false;
+        Socket slow = connect(4096);
+        Socket fast = connect(0);
+        awaitConnections(2);
+        SelectorLineServer.Connection slowConnection = recorder.connections.get(0);
+        SelectorLineServer.Connection fastConnection = recorder.connections.get(1);
+
+        // Far more than the socket buffers hold, so most of it is written in parts as the reader catches up.
+        char[] filler = new char[1000];
+        Arrays.fill(filler, 'x');
+        String body = new String(filler);
+        int lines = 200;
+        for (int i = 0; i < lines; i++) {
+            assertTrue(slowConnection.send(i + ":" + body));
+        }
+        // The loop is not stuck on the slow client.
+        assertTrue(fastConnection.send("PING"));
+        assertEquals("PING", reader(fast).readLine());
+
+        BufferedReader slowReader = reader(slow);
+        for (int i = 0; i < lines; i++) {
+            assertEquals(i + ":" + body, slowReader.readLine());
+        }
+    }
+
+    @Test
+    public void clientThatStopsReadingIsDisconnected() throws Exception {
+        startServer();
+        connect(4096);
+        awaitConnections(1);
+        SelectorLineServer.Connection connection = recorder.connections.get(0);
+        char[] filler = new char[8000];
+        Arrays.fill(filler, 'x');
+        String line = new String(filler);
+        boolean accepted = true;
+        for (int i = 0; i < 1000 && accepted; i++) {
+            accepted = connection.send(line);
+        }
+        assertFalse(accepted);
+        assertSame(connection, recorder.disconnected.poll(5, TimeUnit.SECONDS));
+        assertFalse(connection.send("CALL_IDLE"));
+    }
+
+    @Test
+    public void tooLongLineClosesTheConnection() throws Exception {
+        startServer();
+        Socket socket = connect(0);
+        char[] filler = new char[SelectorLineServer.MAX_LINE_LENGTH + 1];
+        Arrays.fill(filler, 'x');
+        write(socket, new String(filler));
+        assertNotNull(recorder.disconnected.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void handedOverConnectionIsABlockingSocket() throws Exception {
+        startServer();
+        Socket socket = connect(0);
+        write(socket, "DIAL:1\n" + MultiplexedConnection.upgradeLine() + "\n");
+        BufferedReader reader = reader(socket);
+        assertEquals("ACK:DIAL:1", reader.readLine());
+        // Output queued before the switch goes out ahead of the answer.
+        assertEquals("QUEUED_BEFORE_SWITCH", reader.readLine());
+        assertEquals(MultiplexedConnection.upgradeLine(), reader.readLine());
+
+        Socket handedOver = recorder.handedOver.poll(5, TimeUnit.SECONDS);
+        assertNotNull(handedOver);
+        write(socket, "binary from here\n");
+        assertEquals("binary from here", MultiplexedConnection.readLine(handedOver.getInputStream()));
+        assertFalse(recorder.connections.get(0).send("late"));
+        handedOver.close();
+        assertNull(recorder.disconnected.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void switchingClientThatStopsReadingHoldsUpNoOne() throws Exception {
+        startServer();
+        recorder.acknowledge = false;
+        // A backlog near the queue's limit is still waiting when the client asks to switch.
+        char[] filler = new char[80_000];
+        Arrays.fill(filler, 'x');
+        recorder.queuedBeforeSwitch = new String(filler);
+        recorder.queuedCopies = 3;
+        Socket switching = connect(4096);
+        Socket other = connect(0);
+        awaitConnections(2);
+        SelectorLineServer.Connection otherConnection = recorder.connections.get(1);
+        write(switching, MultiplexedConnection.upgradeLine() + "\n");
+        Thread.sleep(100);
+
+        // The switching client reads nothing, yet the loop still serves the others.
+        write(other, "DIAL:2\n");
+        assertEquals("DIAL:2", recorder.lines.poll(5, TimeUnit.SECONDS));
+        assertTrue(otherConnection.send("PING"));
+        assertEquals("PING", reader(other).readLine());
+
+        // Once it reads again, it gets the queued line, then the answer.
+        BufferedReader reader = reader(switching);
+        for (int i = 0; i < recorder.queuedCopies; i++) {
+            assertEquals(recorder.queuedBeforeSwitch, reader.readLine());
+        }
+        assertEquals(MultiplexedConnection.upgradeLine(), reader.readLine());
+        assertNotNull(recorder.handedOver.poll(5, TimeUnit.SECONDS));
+    }
+}
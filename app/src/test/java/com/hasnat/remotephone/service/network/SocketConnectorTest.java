@@ -0,0 +1,123 @@
+package com.hasnat.remotephone.service.network;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SocketConnectorTest {
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
+
+    /** A loopback address nothing listens on, until the test binds it. */
+    private static InetSocketAddress freeAddress() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), probe.getLocalPort());
+        }
+    }
+
+    @Test
+    public void delaysGrowExponentiallyWithJitterUpToTheMaximum() {
+        SocketConnector connector = new SocketConnector(1000, 25, 1000, new Random(7));
+        long[] ceilings = {25, 50, 100, 200, 400, 800, 1000, 1000, 1000};
+        for (long ceiling : ceilings) {
+            long delay = connector.nextDelayMillis();
+            assertTrue(delay + " ms for a ceiling of " + ceiling, delay >= ceiling / 2 && delay <= ceiling);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(connector.nextDelayMillis() <= 1000);
+        }
+
+        connector.reset();
+        assertTrue(connector.nextDelayMillis() <= 25);
+    }
+
+    @Test
+    public void jitterSpreadsClientsThatRetryTogether() {
+        SocketConnector first = new SocketConnector(1000, 25, 5000, new Random(1));
+        SocketConnector second = new SocketConnector(1000, 25, 5000, new Random(2));
+        int same = 0;
+        for (int i = 0; i < 8; i++) {
+            if (first.nextDelayMillis() == second.nextDelayMillis()) same++;
+        }
+        assertTrue(same < 4);
+    }
+
+    @Test
+    public void retriesWithinTensOfMillisecondsUntilTheHostComesUp() throws Exception {
+        InetSocketAddress address = freeAddress();
+        Thread host = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                ServerSocket server = new ServerSocket();
+                server.setReuseAddress(true);
+                server.bind(address);
+                resources.add(server);
+            } catch (IOException | InterruptedException ignored) {
+            }
+        });
+        SocketConnector connector = new SocketConnector(500, 10, 200);
+        List<Long> delays = new ArrayList<>();
+        host.start();
+        Socket socket = connector.connect(address, 20, (attempt, error, delayMillis) -> delays.add(delayMillis));
+        resources.add(socket);
+        assertTrue(socket.isConnected());
+        assertTrue(socket.getTcpNoDelay());
+        // The host was down at first; the first retry followed within the initial delay, not a fixed second.
+        assertFalse(delays.isEmpty());
+        assertTrue(delays.get(0) + " ms", delays.get(0) <= 10);
+        for (long delay : delays) {
+            assertTrue(delay + " ms", delay <= 200);
+        }
+        host.join();
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() throws Exception {
+        InetSocketAddress address = freeAddress();
+        SocketConnector connector = new SocketConnector(500, 5, 20);
+        List<Integer> retried = new ArrayList<>();
+        try {
+            connector.connect(address, 3, (attempt, error, delayMillis) -> retried.add(attempt));
+            fail("connected to a closed port");
+        } catch (IOException expected) {
+        }
+        assertEquals(2, retried.size());
+        assertEquals(Integer.valueOf(2), retried.get(1));
+    }
+
+    @Test
+    public void connectIsBoundedOnAHostThatDoesNotAnswer() throws Exception {
+        // A listener whose accept queue is full drops further connection requests unanswered.
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        resources.add(server);
+        SocketConnector connector = new SocketConnector(200, 10, 100);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 8; i++) {
+                resources.add(connector.connect((InetSocketAddress) server.getLocalSocketAddress()));
+            }
+            fail("the accept queue never filled up");
+        } catch (SocketTimeoutException expected) {
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        // The system's own connect timeout would take minutes.
+        assertTrue(elapsedMillis + " ms", elapsedMillis < 10_000);
+    }
+}
@@ -0,0 +1,67 @@
+package com.hasnat.remotephone.benchmark;
+
+import com.hasnat.remotephone.service.audio.AudioCodec;
+import com.hasnat.remotephone.service.audio.AudioCodecs;
+import com.hasnat.remotephone.service.audio.AudioFrame;
+import com.hasnat.remotephone.service.audio.AudioFrameCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.ProtocolException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning one 20 ms frame of 16 kHz speech into bytes on the wire and back: the codec plus
+ * the frame header, per codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AudioFrameBenchmark {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SAMPLES = 320;
+
+    @Param({"l16", "pcmu", "pcma", "adpcm"})
+    public String codecName;
+
+    private AudioCodec codec;
+    private final short[] pcm = new short[FRAME_SAMPLES];
+    private final short[] decoded = new short[AudioFrame.MAX_PAYLOAD_SIZE];
+    private final AudioFrame frame = new AudioFrame();
+    private final AudioFrame received = new AudioFrame();
+    private final byte[] wire = new byte[AudioFrameCodec.MAX_FRAME_SIZE];
+    private int wireLength;
+    private int seq;
+
+    @Setup
+    public void setup() {
+        codec = AudioCodecs.byName(codecName);
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            pcm[i] = (short) (6000 * Math.sin(2 * Math.PI * 300 * i / SAMPLE_RATE) + 2000 * Math.sin(2 * Math.PI * 1700 * i / SAMPLE_RATE));
+        }
+        frame.setCodecId(codec.getId());
+        encode();
+    }
+
+    @Benchmark
+    public int encode() {
+        frame.setSequenceNumber(seq++);
+        frame.setCaptureTimeMicros(seq * 20_000L);
+        frame.setPayloadLength(codec.encode(pcm, 0, FRAME_SAMPLES, frame.getPayload(), 0));
+        wireLength = AudioFrameCodec.encode(frame, wire, 0);
+        return wireLength;
+    }
+
+    @Benchmark
+    public int decode() throws ProtocolException {
+        AudioFrameCodec.decode(wire, 0, wireLength, received);
+        return codec.decode(received.getPayload(), 0, received.getPayloadLength(), decoded, 0);
+    }
+}
@@ -0,0 +1,52 @@
+package com.hasnat.remotephone.benchmark;
+
+import com.hasnat.remotephone.service.audio.AudioMixer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mixing one 20 ms frame at 48 kHz, the largest wire rate, from the clients on a call. Half
+ * the sources are turned down, so the gains are applied too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AudioMixerBenchmark {
+    private static final int FRAME_SAMPLES = 960;
+
+    @Param({"2", "4", "8"})
+    public int sources;
+
+    private AudioMixer mixer;
+    private final short[] out = new short[FRAME_SAMPLES];
+
+    @Setup
+    public void setup() {
+        mixer = new AudioMixer(FRAME_SAMPLES);
+        for (int s = 0; s < sources; s++) {
+            short[] tone = new short[FRAME_SAMPLES];
+            for (int i = 0; i < FRAME_SAMPLES; i++) {
+                tone[i] = (short) (12000 * Math.sin(2 * Math.PI * (300 + 100 * s) * i / 48000.0));
+            }
+            AudioMixer.Source source = mixer.addSource(pcm -> {
+                System.arraycopy(tone, 0, pcm, 0, tone.length);
+                return tone.length;
+            });
+            source.setGain(s % 2 == 0 ? 1.0f : 0.8f);
+        }
+    }
+
+    @Benchmark
+    public int mix() {
+        return mixer.mix(out);
+    }
+}
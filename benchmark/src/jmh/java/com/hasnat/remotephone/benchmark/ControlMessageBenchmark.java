@@ -0,0 +1,84 @@
+package com.hasnat.remotephone.benchmark;
+
+import com.hasnat.remotephone.service.audio.AudioCodecs;
+import com.hasnat.remotephone.service.audio.AudioSessionParams;
+import com.hasnat.remotephone.service.audio.AudioStatsReport;
+import com.hasnat.remotephone.service.network.ControlMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and building the control channel's messages, as the client and host dispatch them:
+ * call events with {@code |} fields, and the audio handshake and stats messages with
+ * {@code key=value;} parameters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ControlMessageBenchmark {
+    private static final String RINGING = "RINGING:+15551234567|Alice Example";
+
+    private String bridge;
+    private String stats;
+    private AudioSessionParams params;
+
+    @Setup
+    public void setup() {
+        params = AudioSessionParams.parse("transport=udp;frame=20;dtx=1;fec=1;rate=16000;session=1a2b3c4d5e6f7081");
+        params.setCodec(AudioCodecs.byName("pcmu").getName());
+        params.setCodecs(Arrays.asList("adpcm", "pcmu", "l16"));
+        bridge = params.toCommand(ControlMessage.START_AUDIO_BRIDGE);
+
+        AudioStatsReport report = new AudioStatsReport();
+        for (int stage = AudioStatsReport.STAGE_CAPTURE; stage <= AudioStatsReport.STAGE_PLAYOUT; stage++) {
+            report.setLatency(stage, 1200 + stage * 5000, 4800 + stage * 9000);
+        }
+        for (int counter = AudioStatsReport.COUNT_RECEIVED; counter <= AudioStatsReport.COUNT_RECOVERED; counter++) {
+            report.setCount(counter, 1000 * (counter + 1));
+        }
+        report.setTimeMicros(123_456_789L);
+        report.setEcho(123_000_000L, 2_500);
+        report.setRoundTripMicros(8_000);
+        stats = report.toCommand();
+    }
+
+    @Benchmark
+    public String[] parseRinging() {
+        return ControlMessage.parse(RINGING).getFields(2);
+    }
+
+    /** How the client split call events before {@link ControlMessage}. */
+    @Benchmark
+    public String[] parseRingingWithRegex() {
+        return RINGING.substring("RINGING:".length()).split("\\|", 2);
+    }
+
+    @Benchmark
+    public String encodeRinging() {
+        return ControlMessage.encode(ControlMessage.RINGING, "+15551234567", "Alice Example");
+    }
+
+    @Benchmark
+    public AudioSessionParams parseAudioBridge() {
+        return AudioSessionParams.parse(ControlMessage.parse(bridge).getArgument());
+    }
+
+    @Benchmark
+    public String encodeAudioBridge() {
+        return params.toCommand(ControlMessage.START_AUDIO_BRIDGE);
+    }
+
+    @Benchmark
+    public AudioStatsReport parseAudioStats() {
+        return AudioStatsReport.parse(ControlMessage.parse(stats).getArgument());
+    }
+}
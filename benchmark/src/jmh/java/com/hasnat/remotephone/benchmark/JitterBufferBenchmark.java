@@ -0,0 +1,64 @@
+package com.hasnat.remotephone.benchmark;
+
+import com.hasnat.remotephone.service.audio.AudioFrame;
+import com.hasnat.remotephone.service.audio.JitterBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One frame period of the jitter buffer in a running call: a frame goes in, a frame comes out.
+ * Arrival times carry a little jitter, so the depth estimate keeps adapting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JitterBufferBenchmark {
+    private static final long FRAME_MICROS = 20_000;
+
+    private final JitterBuffer jitterBuffer = new JitterBuffer();
+    private final AudioFrame in = new AudioFrame();
+    private final AudioFrame second = new AudioFrame();
+    private final AudioFrame out = new AudioFrame();
+    private int seq;
+
+    @Setup
+    public void setup() {
+        jitterBuffer.reset(FRAME_MICROS);
+        in.setPayloadLength(160);
+        second.setPayloadLength(160);
+    }
+
+    private long arrival(int seq) {
+        return seq * FRAME_MICROS + (seq * 7919L % 5) * 1000;
+    }
+
+    @Benchmark
+    public int insertAndPop() {
+        in.setSequenceNumber(seq);
+        in.setCaptureTimeMicros(seq * FRAME_MICROS);
+        jitterBuffer.put(in, arrival(seq));
+        seq++;
+        return jitterBuffer.poll(out);
+    }
+
+    /** Two frames that swapped places on the way, then two frame periods of playout. */
+    @Benchmark
+    public int insertReorderedAndPop() {
+        second.setSequenceNumber(seq + 1);
+        second.setCaptureTimeMicros((seq + 1) * FRAME_MICROS);
+        jitterBuffer.put(second, arrival(seq));
+        in.setSequenceNumber(seq);
+        in.setCaptureTimeMicros(seq * FRAME_MICROS);
+        jitterBuffer.put(in, arrival(seq) + 500);
+        seq += 2;
+        return jitterBuffer.poll(out) + jitterBuffer.poll(out);
+    }
+}
@@ -0,0 +1,96 @@
+package com.hasnat.remotephone.benchmark;
+
+import com.hasnat.remotephone.service.audio.AudioFrame;
+import com.hasnat.remotephone.service.audio.AudioTransport;
+import com.hasnat.remotephone.service.audio.DatagramAudioTransport;
+import com.hasnat.remotephone.service.audio.StreamAudioTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames through the audio transports over loopback sockets: each operation sends a frame of
+ * 20 ms of G.711 to an echo thread and waits for it to come back, so the score is round trips
+ * per second through the transport's framing, the kernel and back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoopbackTransportBenchmark {
+    private static final int PAYLOAD = 320;
+
+    @Param({"tcp", "udp"})
+    public String transport;
+
+    private AudioTransport near;
+    private AudioTransport far;
+    private Thread echo;
+    private final AudioFrame frame = new AudioFrame();
+    private final AudioFrame reply = new AudioFrame();
+    private int seq;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        if ("udp".equals(transport)) {
+            DatagramAudioTransport host = DatagramAudioTransport.bind(0);
+            DatagramAudioTransport client = DatagramAudioTransport.connect(new InetSocketAddress(loopback, host.getLocalPort()));
+            client.sendProbe(); // the host answers the address its first datagram came from
+            host.receive(reply);
+            far = host;
+            near = client;
+        } else {
+            try (ServerSocket server = new ServerSocket(0, 1, loopback)) {
+                Socket client = new Socket(loopback, server.getLocalPort());
+                client.setTcpNoDelay(true);
+                Socket host = server.accept();
+                host.setTcpNoDelay(true);
+                near = new StreamAudioTransport(client);
+                far = new StreamAudioTransport(host);
+            }
+        }
+        echo = new Thread(() -> {
+            AudioFrame received = new AudioFrame();
+            try {
+                while (far.receive(received)) {
+                    far.send(received);
+                }
+            } catch (IOException ignored) {
+                // closed at teardown
+            }
+        }, "echo");
+        echo.setDaemon(true);
+        echo.start();
+        frame.setPayloadLength(PAYLOAD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        near.close();
+        far.close();
+        echo.join(1000);
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        frame.setSequenceNumber(seq++);
+        near.send(frame);
+        if (!near.receive(reply)) throw new IOException("Loopback closed");
+        return reply.getSequenceNumber();
+    }
+}
@@ -0,0 +1,49 @@
+package com.hasnat.remotephone.benchmark;
+
+import com.hasnat.remotephone.service.audio.Resampler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting one 20 ms frame between a device's native rate and a wire rate, per pair of
+ * rates. Real time is 20,000,000 ns per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResamplerBenchmark {
+    @Param({"8000-16000", "16000-8000", "16000-48000", "48000-16000", "8000-48000", "48000-8000", "44100-16000"})
+    public String rates;
+
+    private Resampler resampler;
+    private short[] in;
+    private short[] out;
+    private int frameSamples;
+
+    @Setup
+    public void setup() {
+        String[] parts = rates.split("-");
+        int inputRate = Integer.parseInt(parts[0]);
+        resampler = new Resampler(inputRate, Integer.parseInt(parts[1]));
+        frameSamples = inputRate / 50;
+        in = new short[frameSamples];
+        for (int i = 0; i < frameSamples; i++) {
+            in[i] = (short) (10000 * Math.sin(2 * Math.PI * 1000 * i / inputRate));
+        }
+        out = new short[resampler.getMaxOutputSamples(frameSamples)];
+    }
+
+    @Benchmark
+    public int process() {
+        return resampler.process(in, 0, frameSamples, out, 0);
+    }
+}